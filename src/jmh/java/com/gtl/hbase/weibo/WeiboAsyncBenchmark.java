@@ -0,0 +1,91 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同步接口与异步接口(WeiboAsyncService)的对比，都包括等待回填完成
+ * addFocusSync：逐个调用WeiboService.addFocus，再等待回填
+ * addFocusAsync：同时提交followees个WeiboAsyncService.addFocus，等待全部完成(关注关系与回填扫描并发执行)
+ * uploadSync、uploadAsync：reader发布followees条微博(不等待推送)
+ * 每次调用前先恢复到未关注的状态
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboAsyncBenchmark {
+
+    @Param({"10", "100"})
+    public int followees;
+
+    private WeiboService service;
+    private WeiboAsyncService asyncService;
+    private List<String> authors = new ArrayList<String>();
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        asyncService = new WeiboAsyncService(service);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < followees; i++) {
+            String author = "author_" + i;
+            WeiboBenchmarkData.seedPosts(service, author, 10, now, 1000L);
+            authors.add(author);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        WeiboBenchmarkData.awaitBackfill(service);
+        WeiboBenchmarkData.awaitFanout(service);
+        service.deleteFocusBatch("reader", authors);
+    }
+
+    @TearDown
+    public void tearDown() {
+        asyncService.close(30000L);
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public void addFocusSync() {
+        for (String author : authors) {
+            service.addFocus("reader", author);
+        }
+        WeiboBenchmarkData.awaitBackfill(service);
+    }
+
+    @Benchmark
+    public void addFocusAsync() {
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for (String author : authors) {
+            futures.add(asyncService.addFocus("reader", author));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+    }
+
+    @Benchmark
+    public void uploadSync() {
+        for (int i = 0; i < followees; i++) {
+            service.uploadWeibo("reader", "吃饭了吗?", "reader_weibo" + i, (byte[]) null);
+        }
+    }
+
+    @Benchmark
+    public void uploadAsync() {
+        List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < followees; i++) {
+            futures.add(asyncService.uploadWeibo("reader", "吃饭了吗?", "reader_weibo" + i, null));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+    }
+}
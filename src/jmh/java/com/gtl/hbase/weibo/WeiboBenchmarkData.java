@@ -0,0 +1,237 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * 基准测试数据准备
+ * 直接通过WeiboDao写入微博、粉丝、关注关系以及接收列表，不经过WeiboService，
+ * 这样准备数据时不会触发推送、回填等逻辑，数据量大时也能很快准备好。
+ */
+public class WeiboBenchmarkData {
+
+    private static final PrintStream STDOUT = System.out;
+
+    /**
+     * 创建基于内存存储的WeiboService
+     * @param cached 是否启用用户微博列表缓存和微博内容缓存
+     * @return
+     */
+    public static WeiboService createService(boolean cached) {
+        return createService(new Configuration(), cached);
+    }
+
+    /**
+     * 创建基于内存存储的WeiboService
+     * @param conf 其他配置，例如接收列表的存储方式
+     * @param cached 是否启用用户微博列表缓存和微博内容缓存
+     * @return
+     */
+    public static WeiboService createService(Configuration conf, boolean cached) {
+        if (!cached) {
+            conf.setInt(WeiboConstants.TIMELINE_CACHE_USERS_KEY, 0);
+            conf.setLong(WeiboConstants.POST_CACHE_MAX_BYTES_KEY, 0L);
+        }
+        WeiboService service = WeiboService.createMemoryService(conf);
+        quiet();
+        return service;
+    }
+
+    /**
+     * WeiboService每个操作都会打印日志，基准测试时关闭输出，避免打印的耗时影响结果
+     */
+    public static void quiet() {
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    public static void restore() {
+        System.setOut(STDOUT);
+    }
+
+    /**
+     * 写入一个用户的微博
+     * @param service
+     * @param userid
+     * @param count 微博条数
+     * @param latestTime 最新一条微博的发布时间
+     * @param intervalMs 相邻两条微博的发布间隔
+     * @return 微博的rowkey和微博ID，按发布时间降序排列
+     * @throws IOException
+     */
+    public static List<WeiboTimelineEntry> seedPosts(WeiboService service, String userid, int count,
+                                                     long latestTime, long intervalMs) throws IOException {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>(count);
+        List<Put> puts = new ArrayList<Put>(count);
+        List<Put> indexPuts = new ArrayList<Put>(count * 2);
+        List<Put> searchPuts = new ArrayList<Put>(count);
+        for (int i = 0; i < count; i++) {
+            long time = latestTime - i * intervalMs;
+            long id = WeiboIdGenerator.minIdAt(time);
+            byte[] rowkey = service.getTables().weiboRowKey(userid, id);
+            puts.add(service.getPostCodec().toPut(rowkey, time, userid, "title_" + (i % 10), userid + "_weibo" + i, null));
+            indexPuts.addAll(service.getTitleIndex().toPuts(userid, "title_" + (i % 10), id));
+            searchPuts.addAll(service.getSearchIndex().toPuts(userid, userid + "_weibo" + i, id));
+            entries.add(new WeiboTimelineEntry(rowkey, id));
+        }
+        service.getDao().putDatas(service.getTables().weiboTable(), puts);
+        service.getDao().putDatas(service.getTitleIndex().getTable(), indexPuts);
+        service.getDao().putDatas(service.getSearchIndex().getTable(), searchPuts);
+        return entries;
+    }
+
+    /**
+     * 给一个用户添加粉丝，粉丝的userid为 userid_fan_序号
+     * @param service
+     * @param userid
+     * @param fans 粉丝数量
+     * @throws IOException
+     */
+    public static void seedFans(WeiboService service, String userid, int fans) throws IOException {
+        if (fans == 0) {
+            return;
+        }
+        Put put = new Put(service.getTables().userRowKey(userid));
+        for (int i = 0; i < fans; i++) {
+            put.addColumn(WeiboConstants.CF2, (userid + "_fan_" + i).getBytes(), WeiboConstants.DEFAULT_VALUE);
+        }
+        List<Put> puts = new ArrayList<Put>();
+        puts.add(put);
+        service.getDao().putDatas(service.getTables().userRelationsTable(), puts);
+    }
+
+    /**
+     * 给一个用户添加关注用户，每个关注用户发布inboxDepth条微博，并全部推送到该用户的接收列表
+     * 关注用户的userid为 userid_focus_序号
+     * @param service
+     * @param userid
+     * @param followees 关注用户数量
+     * @param inboxDepth 每个关注用户在接收列表中的微博条数
+     * @throws IOException
+     */
+    public static void seedFollowees(WeiboService service, String userid, int followees, int inboxDepth) throws IOException {
+        long now = System.currentTimeMillis();
+        Put put_focus = new Put(service.getTables().userRowKey(userid));
+        List<WeiboTimelineEntry> inbox = new ArrayList<WeiboTimelineEntry>();
+        List<Put> fanPuts = new ArrayList<Put>();
+        for (int i = 0; i < followees; i++) {
+            String focusUserId = userid + "_focus_" + i;
+            put_focus.addColumn(WeiboConstants.CF1, focusUserId.getBytes(), WeiboConstants.DEFAULT_VALUE);
+            Put put_fans = new Put(service.getTables().userRowKey(focusUserId));
+            put_fans.addColumn(WeiboConstants.CF2, userid.getBytes(), WeiboConstants.DEFAULT_VALUE);
+            fanPuts.add(put_fans);
+            //不同关注用户的发布时间错开，接收列表中的微博按时间交错
+            inbox.addAll(seedPosts(service, focusUserId, inboxDepth, now - i, 1000L));
+        }
+        fanPuts.add(put_focus);
+        service.getDao().putDatas(service.getTables().userRelationsTable(), fanPuts);
+        WeiboInboxLayout layout = service.getInbox();
+        service.getDao().putDatas(layout.getTable(), layout.toPuts(userid, inbox));
+    }
+
+    /**
+     * 生成关注关系：users个用户(userid为 prefix序号)，每个用户关注followees个不同的用户，
+     * 被关注的用户按Zipf分布(指数为1)选取，序号越小的用户粉丝越多，接近真实的微博关注关系
+     * @param service
+     * @param prefix
+     * @param users
+     * @param followees
+     * @param random
+     * @throws IOException
+     */
+    public static void seedFollowGraph(WeiboService service, String prefix, int users, int followees, Random random) throws IOException {
+        double[] cumulative = new double[users];
+        double sum = 0;
+        for (int i = 0; i < users; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        Map<Integer, Put> fanPuts = new HashMap<Integer, Put>();
+        List<Put> puts = new ArrayList<Put>();
+        for (int i = 0; i < users; i++) {
+            String userid = prefix + i;
+            Put put_focus = new Put(service.getTables().userRowKey(userid));
+            Set<Integer> chosen = new HashSet<Integer>();
+            while (chosen.size() < Math.min(followees, users - 1)) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                int focus = index >= 0 ? index : -index - 1;
+                if (focus == i || focus >= users || !chosen.add(focus)) {
+                    continue;
+                }
+                put_focus.addColumn(WeiboConstants.CF1, (prefix + focus).getBytes(), WeiboConstants.DEFAULT_VALUE);
+                Put put_fans = fanPuts.get(focus);
+                if (put_fans == null) {
+                    put_fans = new Put(service.getTables().userRowKey(prefix + focus));
+                    fanPuts.put(focus, put_fans);
+                }
+                put_fans.addColumn(WeiboConstants.CF2, userid.getBytes(), WeiboConstants.DEFAULT_VALUE);
+            }
+            puts.add(put_focus);
+        }
+        puts.addAll(fanPuts.values());
+        service.getDao().putDatas(service.getTables().userRelationsTable(), puts);
+    }
+
+    /**
+     * 统计接收列表表的存储大小
+     * @param service
+     * @return {行数, 单元格数, 字节数(按KeyValue的序列化长度计算)}
+     * @throws IOException
+     */
+    public static long[] inboxSize(WeiboService service) throws IOException {
+        long rows = 0;
+        long cells = 0;
+        long bytes = 0;
+        Scan scan = new Scan();
+        scan.setMaxVersions();
+        WeiboResultScanner resultScanner = service.getDao().getDatas(service.getInbox().getTable(), scan);
+        try {
+            for (Result result : resultScanner) {
+                rows++;
+                for (Cell cell : result.rawCells()) {
+                    cells++;
+                    // 4字节key长度 + 4字节value长度 + 2字节row长度 + row + 1字节列族长度 + 列族 + 列名 + 8字节时间戳 + 1字节类型 + value
+                    bytes += 20 + cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength() + cell.getValueLength();
+                }
+            }
+        } finally {
+            resultScanner.close();
+        }
+        return new long[]{rows, cells, bytes};
+    }
+
+    /**
+     * 等待添加关注时的异步回填任务全部完成
+     * @param service
+     */
+    public static void awaitBackfill(WeiboService service) {
+        WeiboFocusBackfill backfill = service.getFocusBackfill();
+        while (backfill.getCompletedTasks() < backfill.getSubmittedTasks()) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 等待异步推送队列中的任务全部完成
+     * @param service
+     */
+    public static void awaitFanout(WeiboService service) {
+        WeiboFanoutPipeline pipeline = service.getFanoutPipeline();
+        while (pipeline.getCompletedTasks() < pipeline.getSubmittedTasks()) {
+            Thread.yield();
+        }
+    }
+}
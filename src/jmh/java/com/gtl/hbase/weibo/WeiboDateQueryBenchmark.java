@@ -0,0 +1,63 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按标题查询微博的耗时(通过t_weibo_title_index表)
+ * 用户最近30天每天发布postsPerDay条微博(标题为title_0~title_9循环)
+ * getWeiboByUserAndDate：查询其中一天标题为title_0的微博
+ * getWeiboByUserAndTitleRange：查询最近7天标题为title_0的最新20条微博
+ * getWeiboByTitle：不限用户，查询标题为title_0的最新20条微博
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboDateQueryBenchmark {
+
+    private static final int DAYS = 30;
+
+    @Param({"10", "100", "1000"})
+    public int postsPerDay;
+
+    private WeiboService service;
+    private String date;
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        long now = System.currentTimeMillis();
+        WeiboBenchmarkData.seedPosts(service, "author", postsPerDay * DAYS, now, 86400000L / postsPerDay);
+        date = new SimpleDateFormat("yyyyMMdd").format(new Date(now - DAYS / 2 * 86400000L));
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public List<Weibo> getWeiboByUserAndDate() {
+        return service.getWeiboByUserAndDate("author", date, "title_0");
+    }
+
+    @Benchmark
+    public List<Weibo> getWeiboByUserAndTitleRange() {
+        long now = System.currentTimeMillis();
+        return service.getWeiboByUserAndTitle("author", "title_0", now - 7 * 86400000L, now, 20);
+    }
+
+    @Benchmark
+    public List<Weibo> getWeiboByTitle() {
+        return service.getWeiboByTitle("title_0", 0, Long.MAX_VALUE, 20);
+    }
+}
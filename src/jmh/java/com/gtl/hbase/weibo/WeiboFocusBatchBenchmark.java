@@ -0,0 +1,83 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次关注followees个用户(每个用户已发布10条微博)的耗时，都包括等待回填完成
+ * addFocusLoop：逐个调用addFocus
+ * addFocusBatch：调用一次addFocusBatch
+ * deleteFocusLoop、deleteFocusBatch：取消关注这些用户
+ * 每次调用前先恢复到未关注(或已关注)的状态
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboFocusBatchBenchmark {
+
+    @Param({"10", "100"})
+    public int followees;
+
+    private WeiboService service;
+    private List<String> authors = new ArrayList<String>();
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < followees; i++) {
+            String author = "author_" + i;
+            WeiboBenchmarkData.seedPosts(service, author, 10, now, 1000L);
+            authors.add(author);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void reset(BenchmarkParams params) {
+        WeiboBenchmarkData.awaitBackfill(service);
+        if (params.getBenchmark().endsWith("deleteFocusLoop") || params.getBenchmark().endsWith("deleteFocusBatch")) {
+            service.addFocusBatch("reader", authors);
+        } else {
+            service.deleteFocusBatch("reader", authors);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public void addFocusLoop() {
+        for (String author : authors) {
+            service.addFocus("reader", author);
+        }
+        WeiboBenchmarkData.awaitBackfill(service);
+    }
+
+    @Benchmark
+    public WeiboFocusBatchResult addFocusBatch() {
+        return service.addFocusBatch("reader", authors);
+    }
+
+    @Benchmark
+    public void deleteFocusLoop() {
+        for (String author : authors) {
+            service.deleteFocus("reader", author);
+        }
+    }
+
+    @Benchmark
+    public WeiboFocusBatchResult deleteFocusBatch() {
+        return service.deleteFocusBatch("reader", authors);
+    }
+}
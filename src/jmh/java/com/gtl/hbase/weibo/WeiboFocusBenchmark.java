@@ -0,0 +1,55 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 添加关注的耗时
+ * addFocus：只包括写入关注关系，回填在后台执行，耗时应与被关注用户的微博数无关
+ * addFocusAndBackfill：包括等待把被关注用户最近的10条微博回填到当前用户的接收列表
+ * 每次调用前先取消关注，保证每次测量的都是一次完整的添加关注
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboFocusBenchmark {
+
+    @Param({"0", "10", "1000"})
+    public int posts;
+
+    private WeiboService service;
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        WeiboBenchmarkData.seedPosts(service, "author", posts, System.currentTimeMillis(), 1000L);
+    }
+
+    @Setup(Level.Invocation)
+    public void unfollow() {
+        WeiboBenchmarkData.awaitBackfill(service);
+        service.deleteFocus("reader", "author");
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public void addFocus() {
+        service.addFocus("reader", "author");
+    }
+
+    @Benchmark
+    public void addFocusAndBackfill() {
+        service.addFocus("reader", "author");
+        WeiboBenchmarkData.awaitBackfill(service);
+    }
+}
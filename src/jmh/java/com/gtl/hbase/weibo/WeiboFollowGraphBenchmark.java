@@ -0,0 +1,65 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启用与不启用关注关系图(WeiboFollowGraph)的对比
+ * uploadWeibo：发布微博并等待推送完成，粉丝从位图读取或从t_user_relations表分页读取
+ * isFocus、getFansCount：关注关系查询
+ * 粉丝直接写入t_user_relations表，启用时写入后重新加载关注关系图
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboFollowGraphBenchmark {
+
+    @Param({"false", "true"})
+    public boolean graph;
+
+    @Param({"100", "5000"})
+    public int fans;
+
+    private WeiboService service;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        conf.setBoolean(WeiboConstants.FOLLOW_GRAPH_ENABLED_KEY, graph);
+        service = WeiboBenchmarkData.createService(conf, true);
+        WeiboBenchmarkData.seedFans(service, "author", fans);
+        if (graph) {
+            service.getFollowGraph().load(service.getDao(), service.getTables(), WeiboConstants.FOLLOW_GRAPH_LOAD_THREADS_DEFAULT);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public void uploadWeibo() {
+        service.uploadWeibo("author", "吃饭了吗?", "author_weibo", "");
+        WeiboBenchmarkData.awaitFanout(service);
+    }
+
+    @Benchmark
+    public boolean isFocus() {
+        next = (next + 1) % fans;
+        return service.isFocus("author_fan_" + next, "author");
+    }
+
+    @Benchmark
+    public long getFansCount() {
+        return service.getFansCount("author");
+    }
+}
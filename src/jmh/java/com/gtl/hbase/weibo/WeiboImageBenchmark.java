@@ -0,0 +1,90 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 图片单独存储后的读取耗时(不使用缓存)
+ * reader关注20个用户，每个用户发布5条带imageBytes字节图片的微博(图片内容各不相同)
+ * getUserWeiboList：加载微博列表只读取摘要列，耗时应与图片大小无关
+ * readImage：按图片ID逐块读取一张完整的图片
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboImageBenchmark {
+
+    private static final int AUTHORS = 20;
+    private static final int POSTS = 5;
+
+    @Param({"0", "65536", "1048576"})
+    public int imageBytes;
+
+    private WeiboService service;
+    private String imageId;
+    private byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(false);
+        List<String> authors = new ArrayList<String>();
+        for (int i = 0; i < AUTHORS; i++) {
+            authors.add("author_" + i);
+        }
+        service.addFocusBatch("reader", authors);
+        WeiboBenchmarkData.awaitBackfill(service);
+        Random random = new Random(42);
+        for (int p = 0; p < POSTS; p++) {
+            for (String author : authors) {
+                byte[] image = new byte[imageBytes];
+                random.nextBytes(image);
+                service.uploadWeibo(author, "吃饭了吗?", author + "_weibo" + p, image);
+            }
+        }
+        WeiboBenchmarkData.awaitFanout(service);
+        for (Weibo weibo : service.getUserWeiboList("reader")) {
+            if (weibo.getImageId() != null) {
+                imageId = weibo.getImageId();
+                break;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public List<Weibo> getUserWeiboList() {
+        return service.getUserWeiboList("reader");
+    }
+
+    @Benchmark
+    public long readImage() throws IOException {
+        if (imageId == null) {
+            return 0;
+        }
+        long total = 0;
+        InputStream in = service.getImage(imageId);
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三种接收列表存储方式的对比
+ * layout：queue(方式一)、column(方式二)、row(方式三)
+ * followees：每个用户关注的用户数，关注关系按Zipf分布生成(见WeiboBenchmarkData.seedFollowGraph)，
+ *            1000个用户每人发布posts条微博并推送到粉丝的接收列表(大V阈值调大，所有微博都推送)
+ *
+ * publish：随机用户发布一条微博并等待推送完成，写放大体现为耗时(每个粉丝一个单元格，方式三每个粉丝多写一行)
+ * readFirstPage、readSecondPage：随机用户查询第一页、按游标查询第二页(每页20条，不使用缓存)
+ * 每次trial结束时打印接收列表的存储大小(行数、单元格数、字节数)以及平均每条推送的微博占用的字节数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboInboxLayoutBenchmark {
+
+    private static final int USERS = 1000;
+    private static final String PREFIX = "user_";
+
+    @Param({"queue", "column", "row"})
+    public String layout;
+
+    @Param({"20", "100"})
+    public int followees;
+
+    @Param({"10"})
+    public int posts;
+
+    private WeiboService service;
+    private Random random = new Random(42);
+    private long published = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        conf.set(WeiboConstants.INBOX_LAYOUT_KEY, layout);
+        conf.setInt(WeiboConstants.CELEBRITY_THRESHOLD_KEY, Integer.MAX_VALUE - 1);
+        service = WeiboBenchmarkData.createService(conf, false);
+        WeiboBenchmarkData.seedFollowGraph(service, PREFIX, USERS, followees, random);
+        for (int i = 0; i < posts; i++) {
+            for (int u = 0; u < USERS; u++) {
+                service.uploadWeibo(PREFIX + u, "title_" + (i % 10), PREFIX + u + "_weibo" + i, "");
+            }
+        }
+        WeiboBenchmarkData.awaitFanout(service);
+        published = (long) posts * USERS;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        long[] size = WeiboBenchmarkData.inboxSize(service);
+        WeiboBenchmarkData.restore();
+        System.out.println("layout=" + layout + " followees=" + followees + " 发布微博=" + published
+                + " 接收列表：行=" + size[0] + " 单元格=" + size[1] + " 字节=" + size[2]
+                + " 每条微博=" + (published == 0 ? 0 : size[2] / published) + "字节"
+                + " 每个单元格=" + (size[1] == 0 ? 0 : size[2] / size[1]) + "字节");
+        service.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        service.uploadWeibo(PREFIX + random.nextInt(USERS), "吃饭了吗?", "benchmark_weibo", "");
+        WeiboBenchmarkData.awaitFanout(service);
+        published++;
+    }
+
+    @Benchmark
+    public WeiboTimelinePage readFirstPage() {
+        return service.getUserWeiboList(PREFIX + random.nextInt(USERS), null, 20);
+    }
+
+    @Benchmark
+    public WeiboTimelinePage readSecondPage() {
+        String userid = PREFIX + random.nextInt(USERS);
+        WeiboTimelinePage first = service.getUserWeiboList(userid, null, 20);
+        if (first.getNextCursor() == null) {
+            return first;
+        }
+        return service.getUserWeiboList(userid, first.getNextCursor(), 20);
+    }
+}
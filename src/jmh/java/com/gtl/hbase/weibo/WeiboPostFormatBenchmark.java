@@ -0,0 +1,56 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * t_weibo表两种存储格式的读取耗时(不使用缓存)，见WeiboPostCodec
+ * format：columns(每个字段一个单元格) 或 compact(整条微博一个单元格)
+ * getUserWeiboList：reader关注100个用户，每个用户10条微博，加载微博列表
+ * toWeibo：把t_weibo表的一行数据转换为Weibo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboPostFormatBenchmark {
+
+    @Param({"columns", "compact"})
+    public String format;
+
+    private WeiboService service;
+    private Result row;
+
+    @Setup
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        conf.set(WeiboConstants.POST_FORMAT_KEY, format);
+        service = WeiboBenchmarkData.createService(conf, false);
+        WeiboBenchmarkData.seedFollowees(service, "reader", 100, 10);
+        List<WeiboTimelineEntry> entries = WeiboBenchmarkData.seedPosts(service, "author", 1, System.currentTimeMillis(), 1000L);
+        row = service.getDao().getOneRowData(service.getTables().weiboTable(), WeiboHydrator.summaryGet(entries.get(0).getRowkey()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public List<Weibo> getUserWeiboList() {
+        return service.getUserWeiboList("reader");
+    }
+
+    @Benchmark
+    public Weibo toWeibo() {
+        return WeiboHydrator.toWeibo(row);
+    }
+}
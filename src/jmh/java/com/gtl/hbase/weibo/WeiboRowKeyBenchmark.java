@@ -0,0 +1,31 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * rowkey生成的耗时：t_weibo表rowkey(盐值 + userid + 倒序时间)、用户表rowkey(盐值 + userid)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeiboRowKeyBenchmark {
+
+    private WeiboTables tables = new WeiboTables(WeiboConstants.NS, WeiboConstants.SALT_BUCKETS_DEFAULT);
+    private String userid = "zhangsan";
+    private long time = 1573084800000L;
+
+    @Benchmark
+    public byte[] weiboRowKey() {
+        return tables.weiboRowKey(userid, time++);
+    }
+
+    @Benchmark
+    public byte[] userRowKey() {
+        return tables.userRowKey(userid);
+    }
+}
@@ -0,0 +1,92 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全文检索的耗时
+ * 100个用户在最近30天共发布posts条微博，内容由WORDS中随机的8个词组成，倒排索引与发布微博时写入的相同
+ * compacted：是否先执行WeiboSearchIndex.compact()把倒排列表合并压缩
+ * searchWord：一个词(一个二元组)；searchPhrase：两个词连在一起(多个二元组求交集)；searchKeywords：两个关键词
+ * 都查询最近7天，返回最相关的20条
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboSearchBenchmark {
+
+    private static final String[] WORDS = {"今天", "天气", "不错", "吃饭", "电影", "周末", "加班", "地铁",
+            "咖啡", "跑步", "音乐", "旅行", "下雨", "火锅", "读书", "睡觉", "HBase", "微博", "朋友", "开心"};
+    private static final int USERS = 100;
+    private static final int DAYS = 30;
+
+    @Param({"10000", "100000"})
+    public int posts;
+
+    @Param({"false", "true"})
+    public boolean compacted;
+
+    private WeiboService service;
+    private long now;
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        now = System.currentTimeMillis();
+        Random random = new Random(42);
+        List<Put> puts = new ArrayList<Put>();
+        List<Put> searchPuts = new ArrayList<Put>();
+        for (int i = 0; i < posts; i++) {
+            String userid = "user_" + random.nextInt(USERS);
+            long id = WeiboIdGenerator.minIdAt(now - (long) (random.nextDouble() * DAYS * 86400000L)) + i % 4096;
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < 8; w++) {
+                content.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            puts.add(service.getPostCodec().toPut(service.getTables().weiboRowKey(userid, id), WeiboIdGenerator.timeOf(id),
+                    userid, "title", content.toString(), null));
+            searchPuts.addAll(service.getSearchIndex().toPuts(userid, content.toString(), id));
+            if (puts.size() >= 1000) {
+                service.getDao().putDatas(service.getTables().weiboTable(), puts);
+                service.getDao().putDatas(service.getSearchIndex().getTable(), searchPuts);
+                puts = new ArrayList<Put>();
+                searchPuts = new ArrayList<Put>();
+            }
+        }
+        service.getDao().putDatas(service.getTables().weiboTable(), puts);
+        service.getDao().putDatas(service.getSearchIndex().getTable(), searchPuts);
+        if (compacted) {
+            service.getSearchIndex().compact();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public List<Weibo> searchWord() {
+        return service.searchWeibo("火锅", now - 7 * 86400000L, now + 1, 20);
+    }
+
+    @Benchmark
+    public List<Weibo> searchPhrase() {
+        return service.searchWeibo("周末火锅", now - 7 * 86400000L, now + 1, 20);
+    }
+
+    @Benchmark
+    public List<Weibo> searchKeywords() {
+        return service.searchWeibo("火锅 电影", now - 7 * 86400000L, now + 1, 20);
+    }
+}
@@ -0,0 +1,60 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询微博列表的耗时
+ * followees：关注用户数量
+ * inboxDepth：每个关注用户在接收列表中的微博条数(接收列表表最多保存100个版本)
+ * cached：是否启用用户微博列表缓存和微博内容缓存，false时每次查询都从存储中读取
+ * getUserWeiboPages：分页查询前两页(每页20条)，第二页总是按游标从存储中读取
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboTimelineBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int followees;
+
+    @Param({"1", "10", "100"})
+    public int inboxDepth;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private WeiboService service;
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(cached);
+        WeiboBenchmarkData.seedFollowees(service, "reader", followees, inboxDepth);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public List<Weibo> getUserWeiboList() {
+        return service.getUserWeiboList("reader");
+    }
+
+    @Benchmark
+    public WeiboTimelinePage getUserWeiboPages() {
+        WeiboTimelinePage first = service.getUserWeiboList("reader", null, 20);
+        if (first.getNextCursor() == null) {
+            return first;
+        }
+        return service.getUserWeiboList("reader", first.getNextCursor(), 20);
+    }
+}
@@ -0,0 +1,42 @@
+package com.gtl.hbase.weibo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发布微博的耗时：包括写入t_weibo表以及推送到所有粉丝的接收列表(等待异步推送完成)
+ * fans超过大V阈值(默认10000)时，发布的微博不再推送，而是由粉丝查询时拉取
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeiboUploadBenchmark {
+
+    @Param({"0", "100", "1000", "20000"})
+    public int fans;
+
+    private WeiboService service;
+
+    @Setup
+    public void setup() throws IOException {
+        service = WeiboBenchmarkData.createService(true);
+        WeiboBenchmarkData.seedFans(service, "author", fans);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+        WeiboBenchmarkData.restore();
+    }
+
+    @Benchmark
+    public void uploadWeibo() {
+        service.uploadWeibo("author", "吃饭了吗?", "author_weibo", "");
+        WeiboBenchmarkData.awaitFanout(service);
+    }
+}
@@ -1,12 +1,24 @@
 package com.gtl.hbase.weibo;
 
 public class Weibo {
+    //微博ID，与userid一起定位一条微博(点赞、转发等计数见WeiboCounterService)，原来的字符串rowkey没有ID，为0
+    private long id;
     private String userid;
     private String title;
     private String content;
+    //只有原来直接保存在t_weibo表中的图片才有值，批量加载的微博不包含图片，按imageId调用WeiboService.getImage()读取
     private byte[] image;
+    private String imageId;
     private long time;
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getUserid() {
         return userid;
     }
@@ -39,6 +51,14 @@ public class Weibo {
         this.image = image;
     }
 
+    public String getImageId() {
+        return imageId;
+    }
+
+    public void setImageId(String imageId) {
+        this.imageId = imageId;
+    }
+
     public long getTime() {
         return time;
     }
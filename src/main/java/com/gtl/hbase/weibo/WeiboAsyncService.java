@@ -0,0 +1,467 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * WeiboService的异步接口：每个方法立即返回CompletableFuture，存储操作在内部线程池中执行，调用方不需要为每个请求占用一个线程
+ * 1、互不依赖的步骤并发执行：
+ *    uploadWeibo：保存图片之后，t_weibo表、标题索引、全文索引三次写入并发执行，t_weibo表写入成功后交给异步推送队列
+ *    addFocus：写入关注关系与扫描被关注用户最近的微博并发执行，两者都完成后确认关注关系并写入接收列表
+ * 2、每种操作同时执行的数量有上限(weibo.async.max.concurrent)，超过时返回的future立即以RejectedExecutionException失败，
+ *    不会在队列中无限堆积；操作真正执行完成(而不是超时)时才释放名额
+ * 3、每种操作有超时时间(weibo.async.timeout.ms)，超时后future以TimeoutException失败，正在执行的存储操作不会被中断
+ * 4、存储异常通过future返回(CompletionException包装的IOException)，而不是像WeiboService那样打印后返回空结果
+ *
+ * future在内部线程中完成，调用方在thenApply等回调中不要执行阻塞操作，耗时的回调使用thenApplyAsync等方法指定自己的线程池。
+ * 关闭时先关闭WeiboAsyncService，再关闭WeiboService。
+ */
+public class WeiboAsyncService {
+
+    private WeiboService service;
+    private ThreadPoolExecutor pool;
+    private ScheduledThreadPoolExecutor timer;
+    private Semaphore[] permits;
+    private int[] maxConcurrent;
+    private long[] timeoutMs;
+    private AtomicLongArray rejected;
+
+    /**
+     * 线程数、并发数上限、超时时间从service.getConf()读取，key见WeiboConstants
+     * @param service
+     */
+    public WeiboAsyncService(WeiboService service) {
+        this.service = service;
+        Configuration conf = service.getConf();
+        int threads = conf.getInt(WeiboConstants.ASYNC_THREADS_KEY, WeiboConstants.ASYNC_THREADS_DEFAULT);
+        int defaultMaxConcurrent = conf.getInt(WeiboConstants.ASYNC_MAX_CONCURRENT_KEY, WeiboConstants.ASYNC_MAX_CONCURRENT_DEFAULT);
+        long timeout = conf.getLong(WeiboConstants.ASYNC_TIMEOUT_MS_KEY, WeiboConstants.ASYNC_TIMEOUT_MS_DEFAULT);
+        permits = new Semaphore[WeiboMetrics.operationCount()];
+        maxConcurrent = new int[WeiboMetrics.operationCount()];
+        timeoutMs = new long[WeiboMetrics.operationCount()];
+        rejected = new AtomicLongArray(WeiboMetrics.operationCount());
+        for (int i = 0; i < permits.length; i++) {
+            String name = WeiboMetrics.operationName(i);
+            maxConcurrent[i] = conf.getInt(WeiboConstants.ASYNC_MAX_CONCURRENT_KEY + "." + name, defaultMaxConcurrent);
+            permits[i] = new Semaphore(maxConcurrent[i]);
+            timeoutMs[i] = conf.getLong(WeiboConstants.ASYNC_TIMEOUT_MS_KEY + "." + name, timeout);
+        }
+        // 队列长度由各操作的并发数上限限制
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int index = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "weibo-async-" + (index++));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-async-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public WeiboService getService() {
+        return service;
+    }
+
+    /**
+     * 上传微博
+     * 步骤：
+     * 1、有图片时先保存到t_weibo_image表
+     * 2、t_weibo表、t_weibo_title_index表、t_weibo_search表并发写入，索引写入失败时只打印日志，由WeiboTitleIndexTool、WeiboSearchIndexTool重建
+     * 3、t_weibo表写入成功后交给异步推送队列
+     * @param userid
+     * @param title
+     * @param content
+     * @param image 没有图片时为null
+     * @return 微博ID
+     */
+    public CompletableFuture<Long> uploadWeibo(final String userid, final String title, final String content, final byte[] image) {
+        return limit(WeiboMetrics.UPLOAD_WEIBO, new Callable<CompletableFuture<Long>>() {
+            public CompletableFuture<Long> call() {
+                // 1、保存图片
+                CompletableFuture<String> imageId = image == null || image.length == 0
+                        ? CompletableFuture.<String>completedFuture(null)
+                        : async(new Callable<String>() {
+                            public String call() throws IOException {
+                                return service.getImageStore().put(image);
+                            }
+                        });
+                return imageId.thenCompose(new Function<String, CompletableFuture<Long>>() {
+                    public CompletableFuture<Long> apply(String imageId) {
+                        return writeWeibo(userid, title, content, imageId);
+                    }
+                });
+            }
+        });
+    }
+
+    private CompletableFuture<Long> writeWeibo(final String userid, final String title, final String content, final String imageId) {
+        final long id = service.getIdGenerator().nextId();
+
+        // 2、三张表并发写入，3、t_weibo表写入成功后交给异步推送队列
+        CompletableFuture<Void> weibo = async(new Callable<Void>() {
+            public Void call() throws IOException {
+                service.writeWeibo(userid, id, title, content, imageId);
+                return null;
+            }
+        });
+        CompletableFuture<Void> titleIndex = async(new Callable<Void>() {
+            public Void call() {
+                service.writeTitleIndex(userid, title, id);
+                return null;
+            }
+        });
+        CompletableFuture<Void> searchIndex = async(new Callable<Void>() {
+            public Void call() {
+                service.writeSearchIndex(userid, content, id);
+                return null;
+            }
+        });
+        return CompletableFuture.allOf(weibo, titleIndex, searchIndex).thenApply(new Function<Void, Long>() {
+            public Long apply(Void v) {
+                return id;
+            }
+        });
+    }
+
+    /**
+     * 添加关注
+     * 步骤：
+     * 1、并发执行：在t_user_relations表中写入双向关注关系；从t_weibo表中扫描被关注用户最近的weibo.backfill.depth条微博
+     * 2、两者都完成后，确认关注关系仍然存在，把扫描到的微博写入当前用户的接收列表，见WeiboFocusBackfill
+     * @param userid
+     * @param focusUserId
+     * @return 回填的微博条数；关注关系写入失败时future失败，回填失败时返回-1
+     */
+    public CompletableFuture<Integer> addFocus(final String userid, final String focusUserId) {
+        return limit(WeiboMetrics.ADD_FOCUS, new Callable<CompletableFuture<Integer>>() {
+            public CompletableFuture<Integer> call() {
+                final WeiboFocusBackfill focusBackfill = service.getFocusBackfill();
+                // 1、写入关注关系
+                CompletableFuture<Void> relations = async(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        service.writeRelations(userid, focusUserId);
+                        return null;
+                    }
+                });
+                //   同时扫描被关注用户最近的微博，失败时不影响关注关系
+                CompletableFuture<List<WeiboTimelineEntry>> latest = focusBackfill.getDepth() <= 0
+                        ? CompletableFuture.completedFuture(Collections.<WeiboTimelineEntry>emptyList())
+                        : async(new Callable<List<WeiboTimelineEntry>>() {
+                            public List<WeiboTimelineEntry> call() throws IOException {
+                                return focusBackfill.scanLatest(focusUserId);
+                            }
+                        }).exceptionally(new Function<Throwable, List<WeiboTimelineEntry>>() {
+                            public List<WeiboTimelineEntry> apply(Throwable e) {
+                                System.out.println("用户" + userid + "关注的用户" + focusUserId + "的微博回填失败");
+                                e.printStackTrace();
+                                return null;
+                            }
+                        });
+
+                // 2、写入接收列表
+                return relations.thenCombine(latest, new BiFunction<Void, List<WeiboTimelineEntry>, List<WeiboTimelineEntry>>() {
+                    public List<WeiboTimelineEntry> apply(Void v, List<WeiboTimelineEntry> entries) {
+                        return entries;
+                    }
+                }).thenCompose(new Function<List<WeiboTimelineEntry>, CompletableFuture<Integer>>() {
+                    public CompletableFuture<Integer> apply(final List<WeiboTimelineEntry> entries) {
+                        if (entries == null) {
+                            return CompletableFuture.completedFuture(-1);
+                        }
+                        if (focusBackfill.getDepth() <= 0) {
+                            return CompletableFuture.completedFuture(0);
+                        }
+                        return async(new Callable<Integer>() {
+                            public Integer call() {
+                                try {
+                                    return focusBackfill.write(userid, focusUserId, entries);
+                                } catch (IOException e) {
+                                    System.out.println("用户" + userid + "关注的用户" + focusUserId + "的微博回填失败");
+                                    e.printStackTrace();
+                                    return -1;
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 取消关注：先删除双向关注关系，再删除接收列表中该被关注用户的微博；
+     * 顺序执行，避免正在进行的回填在关注关系删除之前把微博重新写回接收列表
+     * @param userid
+     * @param focusUserId
+     * @return
+     */
+    public CompletableFuture<Void> deleteFocus(final String userid, final String focusUserId) {
+        return limit(WeiboMetrics.DELETE_FOCUS, new Callable<CompletableFuture<Void>>() {
+            public CompletableFuture<Void> call() {
+                return async(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        service.deleteRelations(userid, focusUserId);
+                        return null;
+                    }
+                }).thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                    public CompletableFuture<Void> apply(Void v) {
+                        return async(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                service.removeFromInbox(userid, focusUserId);
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 批量添加关注，见WeiboService.addFocusBatch
+     * @param userid
+     * @param focusUserIds
+     * @return
+     */
+    public CompletableFuture<WeiboFocusBatchResult> addFocusBatch(final String userid, final List<String> focusUserIds) {
+        return call(WeiboMetrics.ADD_FOCUS_BATCH, new Callable<WeiboFocusBatchResult>() {
+            public WeiboFocusBatchResult call() {
+                return service.addFocusBatch(userid, focusUserIds);
+            }
+        });
+    }
+
+    /**
+     * 批量取消关注，见WeiboService.deleteFocusBatch
+     * @param userid
+     * @param focusUserIds
+     * @return
+     */
+    public CompletableFuture<WeiboFocusBatchResult> deleteFocusBatch(final String userid, final List<String> focusUserIds) {
+        return call(WeiboMetrics.DELETE_FOCUS_BATCH, new Callable<WeiboFocusBatchResult>() {
+            public WeiboFocusBatchResult call() {
+                return service.deleteFocusBatch(userid, focusUserIds);
+            }
+        });
+    }
+
+    /**
+     * 查询当前用户的所有关注用户的最新100条微博，见WeiboService.getUserWeiboListResult
+     * @param userid
+     * @return
+     */
+    public CompletableFuture<WeiboHydrator.HydrationResult> getUserWeiboList(final String userid) {
+        return call(WeiboMetrics.GET_USER_WEIBO_LIST, new Callable<WeiboHydrator.HydrationResult>() {
+            public WeiboHydrator.HydrationResult call() {
+                return service.getUserWeiboListResult(userid);
+            }
+        });
+    }
+
+    /**
+     * 分页查询当前用户的所有关注用户的微博，见WeiboService.getUserWeiboList(userid, cursor, limit)
+     * @param userid
+     * @param cursor
+     * @param limit
+     * @return
+     */
+    public CompletableFuture<WeiboTimelinePage> getUserWeiboList(final String userid, final String cursor, final int limit) {
+        return call(WeiboMetrics.GET_USER_WEIBO_PAGE, new Callable<WeiboTimelinePage>() {
+            public WeiboTimelinePage call() {
+                return service.getUserWeiboList(userid, cursor, limit);
+            }
+        });
+    }
+
+    /**
+     * 按标题查询，见WeiboService.getWeiboByTitle
+     * @param title
+     * @param startTime
+     * @param endTime
+     * @param limit
+     * @return
+     */
+    public CompletableFuture<List<Weibo>> getWeiboByTitle(final String title, final long startTime, final long endTime, final int limit) {
+        return call(WeiboMetrics.GET_WEIBO_BY_TITLE, new Callable<List<Weibo>>() {
+            public List<Weibo> call() {
+                return service.getWeiboByTitle(title, startTime, endTime, limit);
+            }
+        });
+    }
+
+    /**
+     * 按用户和标题查询，见WeiboService.getWeiboByUserAndTitle
+     * @param userid
+     * @param title
+     * @param startTime
+     * @param endTime
+     * @param limit
+     * @return
+     */
+    public CompletableFuture<List<Weibo>> getWeiboByUserAndTitle(final String userid, final String title,
+                                                                 final long startTime, final long endTime, final int limit) {
+        return call(WeiboMetrics.GET_WEIBO_BY_USER_AND_DATE, new Callable<List<Weibo>>() {
+            public List<Weibo> call() {
+                return service.getWeiboByUserAndTitle(userid, title, startTime, endTime, limit);
+            }
+        });
+    }
+
+    /**
+     * 全文检索，见WeiboService.searchWeibo
+     * @param query
+     * @param startTime
+     * @param endTime
+     * @param limit
+     * @return
+     */
+    public CompletableFuture<List<Weibo>> searchWeibo(final String query, final long startTime, final long endTime, final int limit) {
+        return call(WeiboMetrics.SEARCH_WEIBO, new Callable<List<Weibo>>() {
+            public List<Weibo> call() {
+                return service.searchWeibo(query, startTime, endTime, limit);
+            }
+        });
+    }
+
+    /**
+     * 当前正在执行的操作数量
+     * @param operation 操作，例如WeiboMetrics.UPLOAD_WEIBO
+     * @return
+     */
+    public int getInFlight(int operation) {
+        return maxConcurrent[operation] - permits[operation].availablePermits();
+    }
+
+    /**
+     * 因超过并发数上限而立即失败的次数
+     * @param operation
+     * @return
+     */
+    public long getRejected(int operation) {
+        return rejected.get(operation);
+    }
+
+    /**
+     * 关闭：等待已经提交的操作执行完成后停止线程，不关闭WeiboService
+     * @param timeoutMs
+     */
+    public void close(long timeoutMs) {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                System.out.println("异步接口关闭超时，还有" + pool.getQueue().size() + "个操作未执行");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * 只有一个步骤的操作：在线程池中调用WeiboService的同步方法(由同步方法记录统计)
+     */
+    private <T> CompletableFuture<T> call(int operation, final Callable<T> task) {
+        return limit(operation, new Callable<CompletableFuture<T>>() {
+            public CompletableFuture<T> call() {
+                return async(task);
+            }
+        });
+    }
+
+    /**
+     * 在线程池中执行一个步骤
+     */
+    private <T> CompletableFuture<T> async(final Callable<T> step) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        future.complete(step.call());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 限制并发数并设置超时：
+     * 1、没有空闲名额时立即失败
+     * 2、body返回的future完成时释放名额；uploadWeibo、addFocus、deleteFocus由这里记录统计
+     * 3、超时后返回给调用方的future以TimeoutException失败
+     */
+    private <T> CompletableFuture<T> limit(final int operation, Callable<CompletableFuture<T>> body) {
+        final Semaphore semaphore = permits[operation];
+        if (!semaphore.tryAcquire()) {
+            rejected.incrementAndGet(operation);
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "操作" + WeiboMetrics.operationName(operation) + "的并发数超过上限"));
+            return future;
+        }
+        final long start = System.nanoTime();
+        CompletableFuture<T> work;
+        try {
+            work = body.call();
+        } catch (Exception e) {
+            work = new CompletableFuture<T>();
+            work.completeExceptionally(e);
+        }
+
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        ScheduledFuture<?> scheduled = null;
+        try {
+            scheduled = timer.schedule(new Runnable() {
+                public void run() {
+                    result.completeExceptionally(new TimeoutException(
+                            "操作" + WeiboMetrics.operationName(operation) + "超过" + timeoutMs[operation] + "ms未完成"));
+                }
+            }, timeoutMs[operation], TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已经关闭，线程池同样已经关闭，work会立即失败
+        }
+        final ScheduledFuture<?> timeout = scheduled;
+        work.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable e) {
+                semaphore.release();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                if (operation == WeiboMetrics.UPLOAD_WEIBO || operation == WeiboMetrics.ADD_FOCUS || operation == WeiboMetrics.DELETE_FOCUS) {
+                    service.getMetrics().record(operation, start, e == null);
+                }
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package com.gtl.hbase.weibo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 全文检索的分词：中日韩文字按二元组(bigram)切分，其他文字按单词切分
+ * 1、先规范化(与标题索引相同：NFKC、转小写，见WeiboTitleIndex.normalize)
+ * 2、连续的中日韩文字切分为重叠的二元组，例如"今天吃饭" -> "今天"、"天吃"、"吃饭"；只有一个字时该字作为一个词
+ * 3、连续的字母、数字作为一个词，例如"HBase2" -> "hbase2"
+ * 4、其他字符(空白、标点、表情等)作为分隔符
+ * 不需要词典，任意位置开始的两个字以上的关键词都能由它的二元组命中；二元组可能不连续，查询结果再按原文过滤。
+ */
+public class WeiboBigramTokenizer {
+
+    //单个词的最大长度(字符)，超过的部分截断，保证UTF-8编码后不超过rowkey中长度字段的上限
+    public static final int MAX_TERM_LENGTH = 32;
+
+    private WeiboBigramTokenizer() {
+    }
+
+    /**
+     * 切分为词以及每个词出现的次数，按首次出现的顺序排列
+     * @param text
+     * @return
+     */
+    public static Map<String, Integer> tokenize(String text) {
+        Map<String, Integer> terms = new LinkedHashMap<String, Integer>();
+        String normalized = WeiboTitleIndex.normalize(text);
+        int length = normalized.length();
+        int i = 0;
+        while (i < length) {
+            int c = normalized.codePointAt(i);
+            if (isCjk(c)) {
+                // 连续的中日韩文字
+                List<String> chars = new ArrayList<String>();
+                while (i < length && isCjk(normalized.codePointAt(i))) {
+                    int cp = normalized.codePointAt(i);
+                    chars.add(new String(Character.toChars(cp)));
+                    i += Character.charCount(cp);
+                }
+                if (chars.size() == 1) {
+                    add(terms, chars.get(0));
+                }
+                for (int k = 0; k + 1 < chars.size(); k++) {
+                    add(terms, chars.get(k) + chars.get(k + 1));
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                // 连续的字母、数字
+                int begin = i;
+                while (i < length && Character.isLetterOrDigit(normalized.codePointAt(i)) && !isCjk(normalized.codePointAt(i))) {
+                    i += Character.charCount(normalized.codePointAt(i));
+                }
+                String word = normalized.substring(begin, i);
+                add(terms, word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word);
+            } else {
+                i += Character.charCount(c);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * 查询语句按空白切分为关键词(已规范化)，用于按原文过滤查询结果
+     * @param query
+     * @return
+     */
+    public static List<String> keywords(String query) {
+        List<String> keywords = new ArrayList<String>();
+        for (String keyword : WeiboTitleIndex.normalize(query).split(" ")) {
+            if (!keyword.isEmpty()) {
+                keywords.add(keyword);
+            }
+        }
+        return keywords;
+    }
+
+    private static void add(Map<String, Integer> terms, String term) {
+        Integer count = terms.get(term);
+        terms.put(term, count == null ? 1 : count + 1);
+    }
+
+    private static boolean isCjk(int c) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(c);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
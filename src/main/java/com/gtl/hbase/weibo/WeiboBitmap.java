@@ -0,0 +1,303 @@
+package com.gtl.hbase.weibo;
+
+import java.util.Arrays;
+
+/**
+ * 非负int的压缩位图(Roaring结构)，用于WeiboFollowGraph中保存每个用户的粉丝和关注用户
+ * 1、按高16位分桶，桶按高16位有序排列，查找时二分
+ * 2、桶内元素不超过4096个时为有序的char数组(每个元素2字节)，超过时转换为65536位的位图(固定8KB)，删除到2048个以下时再转换回数组
+ * 3、遍历时由调用方传入int数组分页读取(fill)，不为每个元素分配对象
+ *
+ * 大多数用户的粉丝很少，只占一个很小的数组桶；大V的粉丝ID连续分布时使用位图桶，每个粉丝约1位。
+ * 非线程安全，由WeiboFollowGraph加锁访问。
+ */
+public class WeiboBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size = 0;
+
+    /**
+     * 添加
+     * @param value 非负整数
+     * @return 原来不存在返回true
+     */
+    public boolean add(int value) {
+        char high = (char) (value >>> 16);
+        int index = indexOf(high);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                containers = Arrays.copyOf(containers, capacity);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(containers, index, containers, index + 1, size - index);
+            keys[index] = high;
+            containers[index] = new ArrayContainer();
+            size++;
+        }
+        Container container = containers[index];
+        int cardinality = container.cardinality();
+        containers[index] = container.add((char) value);
+        return containers[index].cardinality() > cardinality;
+    }
+
+    /**
+     * 删除
+     * @param value
+     * @return 原来存在返回true
+     */
+    public boolean remove(int value) {
+        int index = indexOf((char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int cardinality = container.cardinality();
+        containers[index] = container.remove((char) value);
+        if (containers[index].cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            size--;
+            containers[size] = null;
+            return true;
+        }
+        return containers[index].cardinality() < cardinality;
+    }
+
+    public boolean contains(int value) {
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * 元素个数
+     * @return
+     */
+    public long cardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 分页读取：把大于等于from的元素按升序写入buffer，直到写满
+     * 用法：int n; int from = 0; while ((n = bitmap.fill(from, buffer)) > 0) { ...; from = buffer[n - 1] + 1; }
+     * @param from 起始值(包含)
+     * @param buffer
+     * @return 写入的元素个数，0表示没有更多元素
+     */
+    public int fill(int from, int[] buffer) {
+        if (from < 0) {
+            return 0;
+        }
+        char high = (char) (from >>> 16);
+        int index = indexOf(high);
+        char low = (char) from;
+        if (index < 0) {
+            index = -index - 1;
+            low = 0;
+        }
+        int count = 0;
+        for (; index < size && count < buffer.length; index++) {
+            int base = keys[index] << 16;
+            if (keys[index] != high) {
+                low = 0;
+            }
+            count = containers[index].fill(low, base, buffer, count);
+        }
+        return count;
+    }
+
+    /**
+     * 占用的内存估算(字节)
+     * @return
+     */
+    public long sizeInBytes() {
+        long bytes = 16 + keys.length * 2L + containers.length * 4L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private int indexOf(char high) {
+        int low = 0;
+        int hi = size - 1;
+        while (low <= hi) {
+            int mid = (low + hi) >>> 1;
+            if (keys[mid] < high) {
+                low = mid + 1;
+            } else if (keys[mid] > high) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private interface Container {
+        Container add(char value);
+
+        Container remove(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        /**
+         * 把大于等于from的元素加上base写入buffer的offset之后，直到写满
+         * @return 写入后buffer中的元素个数
+         */
+        int fill(char from, int base, int[] buffer, int offset);
+
+        long sizeInBytes();
+    }
+
+    /**
+     * 有序数组桶
+     */
+    private static class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int cardinality = 0;
+
+        public Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality >= ARRAY_MAX) {
+                return new BitmapContainer(this).add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        public Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        public int cardinality() {
+            return cardinality;
+        }
+
+        public int fill(char from, int base, int[] buffer, int offset) {
+            int index = Arrays.binarySearch(values, 0, cardinality, from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            for (; index < cardinality && offset < buffer.length; index++) {
+                buffer[offset++] = base | values[index];
+            }
+            return offset;
+        }
+
+        public long sizeInBytes() {
+            return 16 + values.length * 2L;
+        }
+    }
+
+    /**
+     * 位图桶
+     */
+    private static class BitmapContainer implements Container {
+        private long[] words = new long[1024];
+        private int cardinality = 0;
+
+        BitmapContainer(ArrayContainer array) {
+            for (int i = 0; i < array.cardinality; i++) {
+                char value = array.values[i];
+                words[value >>> 6] |= 1L << value;
+            }
+            cardinality = array.cardinality;
+        }
+
+        public Container add(char value) {
+            long word = words[value >>> 6];
+            long updated = word | (1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        public Container remove(char value) {
+            long word = words[value >>> 6];
+            long updated = word & ~(1L << value);
+            if (updated == word) {
+                return this;
+            }
+            words[value >>> 6] = updated;
+            cardinality--;
+            if (cardinality > ARRAY_MAX / 2) {
+                return this;
+            }
+            // 元素较少时转换回数组，少于一半再转换，避免在4096附近反复转换
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[Math.max(4, cardinality)];
+            for (int i = 0; i < words.length; i++) {
+                long bits = words[i];
+                while (bits != 0) {
+                    array.values[array.cardinality++] = (char) ((i << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            return array;
+        }
+
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        public int cardinality() {
+            return cardinality;
+        }
+
+        public int fill(char from, int base, int[] buffer, int offset) {
+            int i = from >>> 6;
+            long bits = words[i] & (-1L << from);
+            while (offset < buffer.length) {
+                while (bits == 0) {
+                    if (++i >= words.length) {
+                        return offset;
+                    }
+                    bits = words[i];
+                }
+                buffer[offset++] = base | ((i << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+            return offset;
+        }
+
+        public long sizeInBytes() {
+            return 16 + words.length * 8L;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.*;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 批量导入历史微博和关注关系：在导入进程中生成按分区排好序的HFile，再一次性加载到t_weibo、t_user_relations表和接收列表，
+ * 不经过uploadWeibo/addFocus逐条写入，不占用region server的写入路径(WAL、MemStore、flush、compaction)
+ * 步骤：
+ * 1、创建三张表(已经存在则跳过)，按盐值个数预分区；HFile按表当前的region边界切分，与预分区一致
+ * 2、读取微博文件：按发布时间生成微博ID，rowkey、存储格式(weibo.post.format)与uploadWeibo相同；
+ *    同时在内存中记录每个用户最新的weibo.bulkload.inbox.posts条微博ID(默认20)
+ * 3、读取关注关系文件两遍：第一遍统计粉丝数，粉丝数超过weibo.celebrity.threshold的用户登记为大V(CELEBRITY_ROW)；
+ *    第二遍写入cf1(关注用户)、cf2(粉丝)，并把每个非大V关注用户的最新微博按weibo.inbox.layout写入粉丝的接收列表，
+ *    大V的微博与在线时一样在查询时拉取
+ * 4、每个表、列族、分区的单元格在内存中攒满weibo.bulkload.buffer.cells个后排序，写出一个HFile；
+ *    同一个分区可以有多个HFile，不需要对全部数据排序，内存占用与导入的数据量无关
+ * 5、按t_weibo、t_user_relations、接收列表的顺序加载(LoadIncrementalHFiles)，每个region的所有HFile原子地生效，
+ *    接收列表加载时其中的微博已经存在；加载失败时已加载的HFile已被移走，重新执行load只加载剩余的HFile
+ *
+ * 文件格式按扩展名区分：.json/.jsonl为每行一个JSON对象，其他为CSV(字段可以用双引号括起来，#开头的行和空行跳过)
+ *   微博：userid,发布时间(毫秒),title,content       或 {"userid":..,"time":..,"title":..,"content":..}
+ *   关注关系：userid,被关注用户userid               或 {"userid":..,"focus":..}
+ * 导入的微博不包含图片；导入后用WeiboTitleIndexTool、WeiboSearchIndexTool重建标题索引和全文索引，
+ * 启用关注关系图的服务进程需要重启或等待重新加载(weibo.follow.graph.reload.ms)，用户微博列表缓存过期后可以看到导入的微博。
+ * 微博ID的节点编号取weibo.node.id(未配置时为1023)，同一毫秒的微博依次使用不同的序号，导入时不要让服务进程使用同一个节点编号。
+ * 微博ID的时间部分从WeiboIdGenerator.EPOCH(2019-01-01)开始，发布时间更早的微博无法生成ID，跳过并在读取完成时报告条数。
+ *
+ * 构造时传入Connection和Configuration，可以直接使用HBaseTestingUtility启动的mini-cluster执行。
+ *
+ * 用法：WeiboBulkLoadTool zookeeper地址 import 微博文件 关注关系文件 HFile目录
+ *       WeiboBulkLoadTool zookeeper地址 load HFile目录
+ * 命名空间、盐值个数、接收列表的存储方式从weibo.namespace、weibo.salt.buckets、weibo.inbox.layout读取
+ */
+public class WeiboBulkLoadTool {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String[] POST_FIELDS = {"userid", "time", "title", "content"};
+    private static final String[] RELATION_FIELDS = {"userid", "focus"};
+
+    private Configuration conf;
+    private Connection conn;
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboInboxLayout inbox;
+    private WeiboPostCodec postCodec;
+    private int bufferCells;
+    private int inboxPosts;
+    private int threshold;
+    private long node;
+    private long sequence;
+    private long skippedPosts;
+    private long importTime;
+
+    /**
+     * @param conn
+     * @param conf 命名空间、盐值个数、接收列表的存储方式等参数，key见WeiboConstants
+     */
+    public WeiboBulkLoadTool(Connection conn, Configuration conf) {
+        this.conf = conf;
+        this.conn = conn;
+        this.dao = new WeiboHbaseDaoImpl(conn);
+        this.tables = WeiboTables.create(conf);
+        this.inbox = WeiboInboxLayouts.create(conf, dao, tables);
+        this.postCodec = new WeiboPostCodec(conf.get(WeiboConstants.POST_FORMAT_KEY, WeiboConstants.POST_FORMAT_DEFAULT));
+        this.bufferCells = conf.getInt(WeiboConstants.BULKLOAD_BUFFER_CELLS_KEY, WeiboConstants.BULKLOAD_BUFFER_CELLS_DEFAULT);
+        this.inboxPosts = conf.getInt(WeiboConstants.BULKLOAD_INBOX_POSTS_KEY, WeiboConstants.BULKLOAD_INBOX_POSTS_DEFAULT);
+        this.threshold = conf.getInt(WeiboConstants.CELEBRITY_THRESHOLD_KEY, WeiboConstants.CELEBRITY_THRESHOLD_DEFAULT);
+        this.node = conf.getLong(WeiboConstants.NODE_ID_KEY, WeiboIdGenerator.MAX_NODE);
+        this.importTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 1、创建三张表，按盐值个数预分区
+     * @throws IOException
+     */
+    public void createTables() throws IOException {
+        byte[] ns = tables.getNamespace();
+        if (!dao.namespaceExists(ns)) {
+            dao.createNamespace(ns);
+        }
+        createTable(WeiboConstants.TABLE_WEIBO, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        createTable(WeiboConstants.TABLE_USER_RELATIONS, new byte[][]{WeiboConstants.CF1,WeiboConstants.CF2}, new int[]{1,1});
+        createTable(inbox.getTable().getQualifier(), new byte[][]{WeiboConstants.CF1}, new int[]{inbox.getMaxVersions()});
+    }
+
+    private void createTable(byte[] tn, byte[][] cfs, int[] versions) throws IOException {
+        byte[] ns = tables.getNamespace();
+        if (dao.tableExists(ns, tn)) {
+            System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "已经存在");
+            return;
+        }
+        dao.createTable(ns, tn, cfs, versions, tables.getCodec().splitKeys());
+        System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "创建成功");
+    }
+
+    /**
+     * 2、3、4、生成HFile，每张表一个子目录：HFile目录/表名/列族/HFile
+     * @param postsFile 微博文件
+     * @param relationsFile 关注关系文件
+     * @param outputDir HFile目录，必须在集群使用的文件系统上且不存在
+     * @return 生成的单元格数
+     * @throws IOException
+     */
+    public long generate(String postsFile, String relationsFile, Path outputDir) throws IOException {
+        FileSystem fs = outputDir.getFileSystem(conf);
+        if (fs.exists(outputDir)) {
+            throw new IOException("HFile目录已经存在：" + outputDir);
+        }
+        long cells = 0;
+
+        // 2、微博
+        final Map<String, LatestIds> latest = new HashMap<String, LatestIds>();
+        final HFileBuckets weibo = new HFileBuckets(tables.weiboTable(), fs, outputDir);
+        try {
+            long posts = read(postsFile, POST_FIELDS, new RecordHandler() {
+                public void handle(String[] record) throws IOException {
+                    String userid = record[0];
+                    long time = Long.parseLong(record[1]);
+                    if (time < WeiboIdGenerator.EPOCH) {
+                        skippedPosts++;
+                        return;
+                    }
+                    long id = WeiboIdGenerator.idAt(time, node, sequence++);
+                    weibo.add(postCodec.toPut(tables.weiboRowKey(userid, id), time, userid, record[2], record[3], null));
+                    LatestIds ids = latest.get(userid);
+                    if (ids == null) {
+                        ids = new LatestIds(inboxPosts);
+                        latest.put(userid, ids);
+                    }
+                    ids.add(id);
+                }
+            });
+            System.out.println("读取微博" + posts + "条，" + latest.size() + "个用户");
+            if (skippedPosts > 0) {
+                System.out.println("跳过发布时间早于2019-01-01的微博" + skippedPosts + "条");
+            }
+        } finally {
+            weibo.close();
+        }
+        cells += weibo.getCells();
+
+        // 3、第一遍：统计粉丝数，找出大V
+        final Map<String, int[]> fans = new HashMap<String, int[]>();
+        read(relationsFile, RELATION_FIELDS, new RecordHandler() {
+            public void handle(String[] record) {
+                if (record[0].equals(record[1])) {
+                    return;
+                }
+                int[] count = fans.get(record[1]);
+                if (count == null) {
+                    count = new int[1];
+                    fans.put(record[1], count);
+                }
+                count[0]++;
+            }
+        });
+        final Set<String> celebrities = new HashSet<String>();
+        for (Map.Entry<String, int[]> entry : fans.entrySet()) {
+            if (entry.getValue()[0] > threshold) {
+                celebrities.add(entry.getKey());
+            }
+        }
+        fans.clear();
+
+        //   第二遍：关注关系和接收列表
+        final HFileBuckets relations = new HFileBuckets(tables.userRelationsTable(), fs, outputDir);
+        final HFileBuckets inboxes = new HFileBuckets(inbox.getTable(), fs, outputDir);
+        try {
+            long relationCount = read(relationsFile, RELATION_FIELDS, new RecordHandler() {
+                public void handle(String[] record) throws IOException {
+                    String userid = record[0];
+                    String focusUserId = record[1];
+                    if (userid.equals(focusUserId)) {
+                        return;
+                    }
+                    Put put_focus = new Put(tables.userRowKey(userid), importTime);
+                    put_focus.addColumn(WeiboConstants.CF1, focusUserId.getBytes(), WeiboConstants.DEFAULT_VALUE);
+                    relations.add(put_focus);
+                    Put put_fans = new Put(tables.userRowKey(focusUserId), importTime);
+                    put_fans.addColumn(WeiboConstants.CF2, userid.getBytes(), WeiboConstants.DEFAULT_VALUE);
+                    relations.add(put_fans);
+
+                    LatestIds ids = latest.get(focusUserId);
+                    if (ids == null || ids.size == 0 || celebrities.contains(focusUserId)) {
+                        return;
+                    }
+                    List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>(ids.size);
+                    for (int i = 0; i < ids.size; i++) {
+                        entries.add(new WeiboTimelineEntry(tables.weiboRowKey(focusUserId, ids.ids[i]), ids.ids[i]));
+                    }
+                    for (Put put : inbox.toPuts(userid, entries)) {
+                        inboxes.add(put);
+                    }
+                }
+            });
+            Put put_celebrities = new Put(WeiboConstants.CELEBRITY_ROW, importTime);
+            for (String celebrity : celebrities) {
+                put_celebrities.addColumn(WeiboConstants.CF1, celebrity.getBytes(), WeiboConstants.DEFAULT_VALUE);
+            }
+            if (!put_celebrities.isEmpty()) {
+                relations.add(put_celebrities);
+            }
+            System.out.println("读取关注关系" + relationCount + "条，大V用户" + celebrities.size() + "个");
+        } finally {
+            relations.close();
+            inboxes.close();
+        }
+        cells += relations.getCells() + inboxes.getCells();
+        System.out.println("HFile生成完成：" + cells + "个单元格，目录" + outputDir);
+        return cells;
+    }
+
+    /**
+     * 5、按t_weibo、t_user_relations、接收列表的顺序加载HFile，已经加载的HFile会从目录中移走
+     * @param outputDir generate()的HFile目录
+     * @throws Exception
+     */
+    public void load(Path outputDir) throws Exception {
+        FileSystem fs = outputDir.getFileSystem(conf);
+        LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
+        Admin admin = conn.getAdmin();
+        try {
+            for (TableName tableName : new TableName[]{tables.weiboTable(), tables.userRelationsTable(), inbox.getTable()}) {
+                Path tableDir = new Path(outputDir, tableName.getQualifierAsString());
+                if (!fs.exists(tableDir)) {
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                Table table = conn.getTable(tableName);
+                RegionLocator regionLocator = conn.getRegionLocator(tableName);
+                try {
+                    loader.doBulkLoad(tableDir, admin, table, regionLocator);
+                } finally {
+                    regionLocator.close();
+                    table.close();
+                }
+                System.out.println("表" + tableName + "加载完成，耗时" + (System.currentTimeMillis() - start) + "ms");
+            }
+        } finally {
+            admin.close();
+        }
+    }
+
+    /**
+     * 逐行读取CSV或JSON lines文件
+     * @return 读取的记录数
+     */
+    private long read(String file, String[] fields, RecordHandler handler) throws IOException {
+        boolean json = file.endsWith(".json") || file.endsWith(".jsonl");
+        long records = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] record = json ? parseJson(line, fields) : parseCsv(line, fields.length);
+                if (record == null || record[0] == null || record[1] == null) {
+                    throw new IOException(file + "第" + lineNumber + "行格式错误：" + line);
+                }
+                handler.handle(record);
+                records++;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(file + "中的发布时间格式错误", e);
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static String[] parseJson(String line, String[] fields) throws IOException {
+        JsonNode node = JSON.readTree(line);
+        String[] record = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            JsonNode value = node.get(fields[i]);
+            record[i] = value == null || value.isNull() ? null : value.asText();
+        }
+        return record;
+    }
+
+    /**
+     * 解析一行CSV，双引号括起来的字段中可以包含逗号，两个双引号表示一个双引号
+     * @return 字段数不足时返回null，缺少的title、content为null
+     */
+    static String[] parseCsv(String line, int fieldCount) {
+        String[] record = new String[fieldCount];
+        StringBuilder field = new StringBuilder();
+        int index = 0;
+        boolean quoted = false;
+        for (int i = 0; i < line.length() && index < fieldCount; i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',' && index < fieldCount - 1) {
+                record[index++] = field.toString();
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        record[index] = field.toString();
+        return index < 1 ? null : record;
+    }
+
+    private interface RecordHandler {
+        void handle(String[] record) throws IOException;
+    }
+
+    /**
+     * 一个用户最新的若干条微博ID，无序
+     */
+    private static class LatestIds {
+        long[] ids;
+        int size;
+
+        LatestIds(int capacity) {
+            ids = new long[capacity];
+        }
+
+        void add(long id) {
+            if (size < ids.length) {
+                ids[size++] = id;
+                return;
+            }
+            int min = 0;
+            for (int i = 1; i < size; i++) {
+                if (ids[i] < ids[min]) {
+                    min = i;
+                }
+            }
+            if (size > 0 && id > ids[min]) {
+                ids[min] = id;
+            }
+        }
+    }
+
+    /**
+     * 一张表的HFile：单元格按region和列族分组，每组攒满bufferCells个后排序写出一个HFile
+     * HFile的压缩、块大小、编码和布隆过滤器与列族的设置一致
+     */
+    private class HFileBuckets implements Closeable {
+        private FileSystem fs;
+        private Path tableDir;
+        private byte[][] startKeys;
+        private HTableDescriptor descriptor;
+        private Map<String, List<KeyValue>[]> buffers = new HashMap<String, List<KeyValue>[]>();
+        private CacheConfig cacheConfig;
+        private long cells;
+        private int files;
+
+        HFileBuckets(TableName tableName, FileSystem fs, Path outputDir) throws IOException {
+            this.fs = fs;
+            this.tableDir = new Path(outputDir, tableName.getQualifierAsString());
+            RegionLocator regionLocator = conn.getRegionLocator(tableName);
+            try {
+                this.startKeys = regionLocator.getStartKeys();
+            } finally {
+                regionLocator.close();
+            }
+            Table table = conn.getTable(tableName);
+            try {
+                this.descriptor = table.getTableDescriptor();
+            } finally {
+                table.close();
+            }
+            //生成HFile时不使用块缓存
+            Configuration writerConf = new Configuration(conf);
+            writerConf.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+            this.cacheConfig = new CacheConfig(writerConf);
+        }
+
+        long getCells() {
+            return cells;
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(Put put) throws IOException {
+            int region = regionOf(put.getRow());
+            for (Map.Entry<byte[], List<Cell>> entry : put.getFamilyCellMap().entrySet()) {
+                String family = Bytes.toString(entry.getKey());
+                List<KeyValue>[] familyBuffers = buffers.get(family);
+                if (familyBuffers == null) {
+                    familyBuffers = new List[startKeys.length];
+                    buffers.put(family, familyBuffers);
+                }
+                if (familyBuffers[region] == null) {
+                    familyBuffers[region] = new ArrayList<KeyValue>();
+                }
+                List<KeyValue> buffer = familyBuffers[region];
+                for (Cell cell : entry.getValue()) {
+                    KeyValue kv = KeyValueUtil.ensureKeyValue(cell);
+                    kv.updateLatestStamp(Bytes.toBytes(importTime));
+                    buffer.add(kv);
+                }
+                if (buffer.size() >= bufferCells) {
+                    flush(family, region, buffer);
+                }
+            }
+        }
+
+        private int regionOf(byte[] row) {
+            // startKeys升序，第一个为空；找到最后一个不大于row的起始rowkey
+            int low = 0;
+            int high = startKeys.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (Bytes.compareTo(startKeys[mid], row) <= 0) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        private void flush(String family, int region, List<KeyValue> buffer) throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            Collections.sort(buffer, KeyValue.COMPARATOR);
+            HColumnDescriptor columnDescriptor = descriptor.getFamily(Bytes.toBytes(family));
+            HFileContext context = new HFileContextBuilder()
+                    .withCompression(columnDescriptor.getCompressionType())
+                    .withBlockSize(columnDescriptor.getBlocksize())
+                    .withDataBlockEncoding(columnDescriptor.getDataBlockEncoding())
+                    .build();
+            Path path = new Path(new Path(tableDir, family), "region" + region + "-" + (files++));
+            StoreFile.Writer writer = new StoreFile.WriterBuilder(conf, cacheConfig, fs)
+                    .withFilePath(path)
+                    .withBloomType(columnDescriptor.getBloomFilterType())
+                    .withFileContext(context)
+                    .build();
+            try {
+                for (KeyValue kv : buffer) {
+                    writer.append(kv);
+                }
+                writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+                writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+                writer.appendTrackedTimestampsToMetadata();
+            } finally {
+                writer.close();
+            }
+            cells += buffer.size();
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            for (Map.Entry<String, List<KeyValue>[]> entry : buffers.entrySet()) {
+                List<KeyValue>[] familyBuffers = entry.getValue();
+                for (int region = 0; region < familyBuffers.length; region++) {
+                    if (familyBuffers[region] != null) {
+                        flush(entry.getKey(), region, familyBuffers[region]);
+                    }
+                }
+            }
+            buffers.clear();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean importing = args.length >= 5 && "import".equals(args[1]);
+        boolean loading = args.length >= 3 && "load".equals(args[1]);
+        if (!importing && !loading) {
+            System.out.println("用法：WeiboBulkLoadTool zookeeper地址 import 微博文件 关注关系文件 HFile目录");
+            System.out.println("      WeiboBulkLoadTool zookeeper地址 load HFile目录");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        Connection conn = ConnectionFactory.createConnection(conf);
+        try {
+            WeiboBulkLoadTool tool = new WeiboBulkLoadTool(conn, conf);
+            if (loading) {
+                tool.load(new Path(args[2]));
+                return;
+            }
+            Path outputDir = new Path(args[4]);
+            tool.createTables();
+            tool.generate(args[2], args[3], outputDir);
+            tool.load(outputDir);
+            System.out.println("导入完成，执行WeiboTitleIndexTool、WeiboSearchIndexTool重建标题索引和全文索引");
+        } finally {
+            conn.close();
+        }
+    }
+}
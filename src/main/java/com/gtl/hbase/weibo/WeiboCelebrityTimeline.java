@@ -0,0 +1,236 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 大V用户(粉丝数超过阈值)的微博拉取
+ * 粉丝数超过阈值的用户发布微博时不再推送到粉丝的t_user_weibo_list，而是在粉丝查询微博列表时从t_weibo表中拉取：
+ * 1、大V用户登记在t_user_relations表的CELEBRITY_ROW行中(列名为大V的userid)，本地缓存一份并定时刷新
+ * 2、查询微博列表时，从当前用户的关注用户中找出大V用户(启用关注关系图WeiboFollowGraph时在内存中查找)
+ * 3、对每个大V用户并发执行一次有界的范围扫描(rowkey中的微博ID是倒序的，从游标位置开始扫描N行即为游标之后最新的N条微博)，
+ *    每个大V用户的结果作为一路，与接收列表一起由WeiboTimelineMerger归并
+ * 4、超过时间预算仍未返回的大V用户本次跳过，保证查询延迟
+ *
+ * 用户一旦登记为大V就不再取消，避免粉丝数在阈值附近波动时，接收列表中出现推送和拉取都没有覆盖到的微博。
+ */
+public class WeiboCelebrityTimeline {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboFollowGraph followGraph;
+    private ExecutorService pool;
+    private int threshold;
+    private int postsPerAuthor;
+    private long timeoutMs;
+    private long refreshIntervalMs;
+
+    private volatile Set<String> celebrities = Collections.emptySet();
+    private volatile long lastRefreshTime = 0;
+
+    public WeiboCelebrityTimeline(WeiboDao dao, WeiboTables tables, WeiboFollowGraph followGraph, int threshold, int postsPerAuthor, long timeoutMs,
+                                  long refreshIntervalMs, int threads) {
+        this.dao = dao;
+        this.tables = tables;
+        this.followGraph = followGraph;
+        this.threshold = threshold;
+        this.postsPerAuthor = postsPerAuthor;
+        this.timeoutMs = timeoutMs;
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-celebrity-pull-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 粉丝数阈值，粉丝数超过该值的用户按大V处理
+     * @return
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * 每次查询每个大V用户最多拉取的微博数
+     * @return
+     */
+    public int getPostsPerAuthor() {
+        return postsPerAuthor;
+    }
+
+    /**
+     * 判断用户是否为大V
+     * @param userid
+     * @return
+     */
+    public boolean isCelebrity(String userid) {
+        return getCelebrities().contains(userid);
+    }
+
+    /**
+     * 登记大V用户
+     * @param userid
+     * @throws IOException
+     */
+    public void markCelebrity(String userid) throws IOException {
+        if (isCelebrity(userid)) {
+            return;
+        }
+        Put put = new Put(WeiboConstants.CELEBRITY_ROW);
+        put.addColumn(WeiboConstants.CF1, userid.getBytes(), WeiboConstants.DEFAULT_VALUE);
+        List<Put> puts = new ArrayList<Put>();
+        puts.add(put);
+        dao.putDatas(tables.userRelationsTable(), puts);
+        Set<String> updated = new HashSet<String>(celebrities);
+        updated.add(userid);
+        celebrities = updated;
+        System.out.println("用户" + userid + "粉丝数超过" + threshold + "，发布的微博改为粉丝查询时拉取");
+    }
+
+    private Set<String> getCelebrities() {
+        if (System.currentTimeMillis() - lastRefreshTime > refreshIntervalMs) {
+            refresh();
+        }
+        return celebrities;
+    }
+
+    private synchronized void refresh() {
+        if (System.currentTimeMillis() - lastRefreshTime <= refreshIntervalMs) {
+            return;
+        }
+        try {
+            Get get = new Get(WeiboConstants.CELEBRITY_ROW);
+            get.addFamily(WeiboConstants.CF1);
+            Result result = dao.getOneRowData(tables.userRelationsTable(), get);
+            Set<String> loaded = new HashSet<String>();
+            for (Cell cell : result.rawCells()) {
+                loaded.add(Bytes.toString(CellUtil.cloneQualifier(cell)));
+            }
+            celebrities = loaded;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lastRefreshTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 拉取当前用户关注的大V用户在游标之后的最新微博
+     * @param userid
+     * @param cursor 上一页的最后一条微博，null表示从最新的微博开始
+     * @param perAuthor 每个大V用户最多拉取的微博数
+     * @return 每个大V用户一个列表，按发布时间降序排列
+     */
+    public List<List<WeiboTimelineEntry>> pull(String userid, final WeiboTimelineEntry cursor, final int perAuthor) {
+        List<List<WeiboTimelineEntry>> entries = new ArrayList<List<WeiboTimelineEntry>>();
+        Set<String> all = getCelebrities();
+        if (all.isEmpty()) {
+            return entries;
+        }
+
+        // 1、从当前用户的关注用户中找出大V用户
+        List<String> followed = new ArrayList<String>();
+        if (followGraph != null) {
+            for (String celebrity : all) {
+                if (followGraph.isFollowing(userid, celebrity)) {
+                    followed.add(celebrity);
+                }
+            }
+        } else {
+            try {
+                Get get = new Get(tables.userRowKey(userid));
+                for (String celebrity : all) {
+                    get.addColumn(WeiboConstants.CF1, celebrity.getBytes());
+                }
+                Result result = dao.getOneRowData(tables.userRelationsTable(), get);
+                for (Cell cell : result.rawCells()) {
+                    followed.add(Bytes.toString(CellUtil.cloneQualifier(cell)));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return entries;
+            }
+        }
+
+        // 2、对每个大V用户并发扫描游标之后最新的perAuthor条微博
+        Map<String, Future<List<WeiboTimelineEntry>>> futures = new LinkedHashMap<String, Future<List<WeiboTimelineEntry>>>();
+        for (final String author : followed) {
+            futures.put(author, pool.submit(new Callable<List<WeiboTimelineEntry>>() {
+                public List<WeiboTimelineEntry> call() throws Exception {
+                    return scanLatest(author, cursor, perAuthor);
+                }
+            }));
+        }
+
+        // 3、超过时间预算的大V用户本次跳过
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Map.Entry<String, Future<List<WeiboTimelineEntry>>> entry : futures.entrySet()) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                entries.add(entry.getValue().get(wait, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (TimeoutException e) {
+                System.out.println("拉取大V用户" + entry.getKey() + "的微博超时，本次跳过");
+                entry.getValue().cancel(true);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 扫描一个用户在游标之后最新的limit条微博
+     * 游标之前的微博不扫描；微博ID与游标相同的微博由WeiboTimelineMerger按rowkey过滤
+     * @param author
+     * @param cursor
+     * @param limit
+     * @return
+     * @throws IOException
+     */
+    private List<WeiboTimelineEntry> scanLatest(String author, WeiboTimelineEntry cursor, int limit) throws IOException {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            // rowkey为 盐值 + userid + 倒序微博ID，按用户前缀范围扫描
+            byte[] startRow = cursor == null ? tables.getCodec().weiboScanStart(author) : tables.weiboRowKey(author, cursor.getId());
+            Scan scan = new Scan(startRow, tables.getCodec().weiboScanStop(author));
+            //只需要微博的rowkey，两种存储格式各加一个查找列并且不返回列值
+            WeiboPostCodec.addMarkerColumns(scan);
+            scan.setFilter(new KeyOnlyFilter());
+            scan.setCaching(limit);
+            scan.setSmall(true);
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                entries.add(new WeiboTimelineEntry(result.getRow(), WeiboRowKeyCodec.idOf(result.getRow())));
+                if (entries.size() >= limit) {
+                    break;
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        return entries;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,123 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 接收列表方式二：t_user_weibo_list表
+ * rowkey：用户的rowkey
+ * 列名：关注用户的userid，每个关注用户一个列，保存最新的100个版本
+ * 列值：微博的rowkey
+ * 版本：微博ID
+ *
+ * 读取时每个列即为一路，由WeiboTimelineMerger归并；取消关注时先读出该列所有的版本，再逐个删除这些版本(与方式一、三相同)。
+ * 不使用删除整个列(addColumns)：列删除标记在major compaction之前一直遮盖时间戳不超过它的所有单元格，
+ * 重新关注后回填和WeiboTimelineRebuildTool写回的微博版本都小于标记，全部不可见。
+ * 按版本删除的标记只遮盖相同的版本：取消关注时已经在列表中的微博，重新关注后回填写回的相同版本在major compaction之后才可见，
+ * 其他微博(包括之后推送的微博)不受影响。
+ */
+public class WeiboColumnInboxLayout implements WeiboInboxLayout {
+
+    public static final String NAME = "column";
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+
+    public WeiboColumnInboxLayout(WeiboDao dao, WeiboTables tables) {
+        this.dao = dao;
+        this.tables = tables;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public TableName getTable() {
+        return tables.userWeiboListTable();
+    }
+
+    public int getMaxVersions() {
+        return 100;
+    }
+
+    public List<Put> toPuts(String userid, List<WeiboTimelineEntry> entries) {
+        Put put = new Put(tables.userRowKey(userid));
+        for (WeiboTimelineEntry entry : entries) {
+            put.addColumn(WeiboConstants.CF1, WeiboRowKeyCodec.useridBytesOf(entry.getRowkey()), entry.getId(), entry.getRowkey());
+        }
+        List<Put> puts = new ArrayList<Put>(1);
+        puts.add(put);
+        return puts;
+    }
+
+    public void read(String userid, WeiboTimelineEntry after, int limit, WeiboTimelineMerger merger) throws IOException {
+        // 有游标时每一路多读1条：同一个关注用户的微博ID互不相同，每一路最多有1条与游标的微博ID相同、需要跳过的微博
+        int versions = after == null ? limit : limit + 1;
+        Get get = new Get(tables.userRowKey(userid));
+        get.setMaxVersions(versions);
+        if (after != null) {
+            get.setTimeRange(0, after.getId() + 1);
+        }
+        Result rowData = dao.getOneRowData(getTable(), get);
+        Cell[] cells = rowData.rawCells();
+        if (cells == null) {
+            return;
+        }
+        // 单元格按列升序、版本降序返回，同一个关注用户的单元格即为一路；读满版本数的列可能还有更早的微博
+        int i = 0;
+        while (i < cells.length) {
+            List<WeiboTimelineEntry> run = new ArrayList<WeiboTimelineEntry>();
+            int j = i;
+            while (j < cells.length && CellUtil.matchingQualifier(cells[i], cells[j])) {
+                run.add(new WeiboTimelineEntry(CellUtil.cloneValue(cells[j]), cells[j].getTimestamp()));
+                j++;
+            }
+            merger.addRun(run, run.size() >= versions);
+            i = j;
+        }
+    }
+
+    public void remove(String userid, Collection<String> authors) throws IOException {
+        if (authors.isEmpty()) {
+            return;
+        }
+        // 一次读取所有关注用户的列的全部版本
+        Get get = new Get(tables.userRowKey(userid));
+        for (String author : authors) {
+            get.addColumn(WeiboConstants.CF1, Bytes.toBytes(author));
+        }
+        get.setMaxVersions();
+        Result rowData = dao.getOneRowData(getTable(), get);
+        Cell[] cells = rowData.rawCells();
+        if (cells == null || cells.length == 0) {
+            return;
+        }
+        // 所有版本放在同一个Delete中，只删除读取到的版本
+        Delete delete = new Delete(rowData.getRow());
+        for (Cell cell : cells) {
+            delete.addColumn(WeiboConstants.CF1, CellUtil.cloneQualifier(cell), cell.getTimestamp());
+        }
+        List<Delete> deletes = new ArrayList<Delete>();
+        deletes.add(delete);
+        dao.deleteDatas(getTable(), deletes);
+    }
+
+    public List<WeiboTimelineEntry> entriesOf(Result result) {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>();
+        Cell[] cells = result.rawCells();
+        if (cells != null) {
+            for (Cell cell : cells) {
+                entries.add(new WeiboTimelineEntry(CellUtil.cloneValue(cell), cell.getTimestamp()));
+            }
+        }
+        return entries;
+    }
+}
@@ -3,17 +3,190 @@ package com.gtl.hbase.weibo;
 public class WeiboConstants {
     public static final byte[] NS = "weibo".getBytes();
 
+    //命名空间，默认为NS，复制到盐值个数不同的表时使用新的命名空间
+    public static final String NAMESPACE_KEY = "weibo.namespace";
+    //盐值个数，即三张表的预分区数量，最好是region server数量的整倍数，必须与建表时一致
+    public static final String SALT_BUCKETS_KEY = "weibo.salt.buckets";
+    public static final int SALT_BUCKETS_DEFAULT = 9;
+
     public static final byte[] TABLE_WEIBO = "t_weibo".getBytes();
     public static final byte[] TABLE_USER_RELATIONS = "t_user_relations".getBytes();
     public static final byte[] TABLE_USER_WEIBO_LIST = "t_user_weibo_list".getBytes();
+    //接收列表的另外两种存储方式使用的表，见WeiboInboxLayouts
+    public static final byte[] TABLE_USER_WEIBO_QUEUE = "t_user_weibo_queue".getBytes();
+    public static final byte[] TABLE_USER_WEIBO_TIMELINE = "t_user_weibo_timeline".getBytes();
+    //微博标题的二级索引，见WeiboTitleIndex
+    public static final byte[] TABLE_WEIBO_TITLE_INDEX = "t_weibo_title_index".getBytes();
+    //微博内容的全文索引，见WeiboSearchIndex
+    public static final byte[] TABLE_WEIBO_SEARCH = "t_weibo_search".getBytes();
+    //微博图片，见WeiboImageStore
+    public static final byte[] TABLE_WEIBO_IMAGE = "t_weibo_image".getBytes();
 
     public static final byte[] CF1 = "cf1".getBytes();
     public static final byte[] CF2 = "cf2".getBytes();
 
     public static final byte[] TITLE = "title".getBytes();
     public static final byte[] CONTENT = "content".getBytes();
+    //原来直接保存在t_weibo表中的图片，新发布的微博改为保存图片ID(IMAGE_REF)，图片在t_weibo_image表中
     public static final byte[] IMAGE = "image".getBytes();
+    public static final byte[] IMAGE_REF = "image_ref".getBytes();
     public static final byte[] USERID = "userid".getBytes();
+    //compact格式中保存整条微博的唯一列，见WeiboPostCodec
+    public static final byte[] POST = "p".getBytes();
+
+    //微博的浏览、点赞、转发计数，保存在t_weibo表cf1中，值为8字节long，见WeiboCounterService
+    public static final byte[] VIEWS = "views".getBytes();
+    public static final byte[] LIKES = "likes".getBytes();
+    public static final byte[] REPOSTS = "reposts".getBytes();
 
     public static final byte[] DEFAULT_VALUE = "default_value".getBytes();
+
+    //接收列表方式一(queue)中唯一的列名
+    public static final byte[] INBOX_QUALIFIER = "weibo".getBytes();
+
+    //t_user_relations表中登记大V用户的行，列名为大V用户的userid
+    public static final byte[] CELEBRITY_ROW = "celebrities".getBytes();
+
+    //批量加载微博内容的并发线程数，默认与分区数相同
+    public static final String HYDRATE_THREADS_KEY = "weibo.hydrate.threads";
+    public static final int HYDRATE_THREADS_DEFAULT = 9;
+    //批量加载微博内容的超时时间(毫秒)
+    public static final String HYDRATE_TIMEOUT_MS_KEY = "weibo.hydrate.timeout.ms";
+    public static final long HYDRATE_TIMEOUT_MS_DEFAULT = 3000L;
+
+    //异步推送的后台线程数
+    public static final String FANOUT_THREADS_KEY = "weibo.fanout.threads";
+    public static final int FANOUT_THREADS_DEFAULT = 4;
+    //异步推送队列的容量，队列满时由发布线程直接推送
+    public static final String FANOUT_QUEUE_CAPACITY_KEY = "weibo.fanout.queue.capacity";
+    public static final int FANOUT_QUEUE_CAPACITY_DEFAULT = 10000;
+    //推送时每次从t_user_relations表读取的粉丝数量
+    public static final String FANOUT_PAGE_SIZE_KEY = "weibo.fanout.page.size";
+    public static final int FANOUT_PAGE_SIZE_DEFAULT = 1000;
+    //每批写入t_user_weibo_list表的Put数量
+    public static final String FANOUT_BATCH_SIZE_KEY = "weibo.fanout.batch.size";
+    public static final int FANOUT_BATCH_SIZE_DEFAULT = 500;
+    //每批写入失败后的重试次数以及初始退避时间(毫秒)
+    public static final String FANOUT_MAX_RETRIES_KEY = "weibo.fanout.max.retries";
+    public static final int FANOUT_MAX_RETRIES_DEFAULT = 3;
+    public static final String FANOUT_RETRY_BACKOFF_MS_KEY = "weibo.fanout.retry.backoff.ms";
+    public static final long FANOUT_RETRY_BACKOFF_MS_DEFAULT = 100L;
+    //队列满时提交任务的最长等待时间(毫秒)
+    public static final String FANOUT_OFFER_TIMEOUT_MS_KEY = "weibo.fanout.offer.timeout.ms";
+    public static final long FANOUT_OFFER_TIMEOUT_MS_DEFAULT = 50L;
+    //关闭时等待队列推送完成的最长时间(毫秒)
+    public static final String FANOUT_SHUTDOWN_TIMEOUT_MS_KEY = "weibo.fanout.shutdown.timeout.ms";
+    public static final long FANOUT_SHUTDOWN_TIMEOUT_MS_DEFAULT = 30000L;
+
+    //大V阈值：粉丝数超过该值的用户发布微博时不再推送，改为粉丝查询时拉取
+    public static final String CELEBRITY_THRESHOLD_KEY = "weibo.celebrity.threshold";
+    public static final int CELEBRITY_THRESHOLD_DEFAULT = 10000;
+    //查询微博列表时，每个大V用户拉取的最新微博数量
+    public static final String CELEBRITY_PULL_POSTS_KEY = "weibo.celebrity.pull.posts";
+    public static final int CELEBRITY_PULL_POSTS_DEFAULT = 20;
+    //拉取大V微博的时间预算(毫秒)，超时的大V用户本次跳过
+    public static final String CELEBRITY_PULL_TIMEOUT_MS_KEY = "weibo.celebrity.pull.timeout.ms";
+    public static final long CELEBRITY_PULL_TIMEOUT_MS_DEFAULT = 200L;
+    //拉取大V微博的并发线程数
+    public static final String CELEBRITY_PULL_THREADS_KEY = "weibo.celebrity.pull.threads";
+    public static final int CELEBRITY_PULL_THREADS_DEFAULT = 8;
+    //本地大V列表的刷新间隔(毫秒)
+    public static final String CELEBRITY_REFRESH_MS_KEY = "weibo.celebrity.refresh.ms";
+    public static final long CELEBRITY_REFRESH_MS_DEFAULT = 60000L;
+
+    //用户微博列表缓存最多缓存的用户数
+    public static final String TIMELINE_CACHE_USERS_KEY = "weibo.timeline.cache.users";
+    public static final int TIMELINE_CACHE_USERS_DEFAULT = 100000;
+    //用户微博列表缓存的有效时间(毫秒)，大V的微博不推送，过期后才能看到
+    public static final String TIMELINE_CACHE_TTL_MS_KEY = "weibo.timeline.cache.ttl.ms";
+    public static final long TIMELINE_CACHE_TTL_MS_DEFAULT = 30000L;
+
+    //微博内容缓存最多占用的内存(字节)
+    public static final String POST_CACHE_MAX_BYTES_KEY = "weibo.post.cache.max.bytes";
+    public static final long POST_CACHE_MAX_BYTES_DEFAULT = 256L * 1024 * 1024;
+
+    //定时打印统计快照的间隔，小于等于0时不打印
+    public static final String METRICS_SNAPSHOT_MS_KEY = "weibo.metrics.snapshot.ms";
+    public static final long METRICS_SNAPSHOT_MS_DEFAULT = 60000L;
+
+    //微博ID生成器的节点编号(0~1023)，同时运行的每个服务进程必须不同，未配置时根据进程名计算
+    public static final String NODE_ID_KEY = "weibo.node.id";
+
+    //添加关注时回填到接收列表的微博条数，0表示不回填
+    public static final String BACKFILL_DEPTH_KEY = "weibo.backfill.depth";
+    public static final int BACKFILL_DEPTH_DEFAULT = 10;
+    //异步回填的后台线程数以及等待回填的任务数上限，队列满时由调用线程回填
+    public static final String BACKFILL_THREADS_KEY = "weibo.backfill.threads";
+    public static final int BACKFILL_THREADS_DEFAULT = 2;
+    public static final String BACKFILL_QUEUE_CAPACITY_KEY = "weibo.backfill.queue.capacity";
+    public static final int BACKFILL_QUEUE_CAPACITY_DEFAULT = 10000;
+
+    //异步接口(WeiboAsyncService)执行存储操作的线程数
+    public static final String ASYNC_THREADS_KEY = "weibo.async.threads";
+    public static final int ASYNC_THREADS_DEFAULT = 32;
+    //异步接口每种操作同时执行的最大数量，超过时立即失败；可以按操作单独配置，例如weibo.async.max.concurrent.searchWeibo
+    public static final String ASYNC_MAX_CONCURRENT_KEY = "weibo.async.max.concurrent";
+    public static final int ASYNC_MAX_CONCURRENT_DEFAULT = 256;
+    //异步接口每种操作的超时时间(毫秒)，可以按操作单独配置，例如weibo.async.timeout.ms.uploadWeibo
+    public static final String ASYNC_TIMEOUT_MS_KEY = "weibo.async.timeout.ms";
+    public static final long ASYNC_TIMEOUT_MS_DEFAULT = 5000L;
+
+    //是否在进程内保存关注关系图(WeiboFollowGraph)，推送粉丝、判断关注关系、粉丝数不再读取t_user_relations表
+    public static final String FOLLOW_GRAPH_ENABLED_KEY = "weibo.follow.graph.enabled";
+    public static final boolean FOLLOW_GRAPH_ENABLED_DEFAULT = false;
+    //启动时并发扫描t_user_relations表加载关注关系图的线程数
+    public static final String FOLLOW_GRAPH_LOAD_THREADS_KEY = "weibo.follow.graph.load.threads";
+    public static final int FOLLOW_GRAPH_LOAD_THREADS_DEFAULT = 9;
+    //定时重新加载关注关系图的间隔，多个服务进程同时写入时配置，小于等于0时不重新加载
+    public static final String FOLLOW_GRAPH_RELOAD_MS_KEY = "weibo.follow.graph.reload.ms";
+    public static final long FOLLOW_GRAPH_RELOAD_MS_DEFAULT = 0L;
+
+    //图片分块的字节数
+    public static final String IMAGE_CHUNK_BYTES_KEY = "weibo.image.chunk.bytes";
+    public static final int IMAGE_CHUNK_BYTES_DEFAULT = 512 * 1024;
+
+    //t_weibo表新写入微博的存储格式：columns(每个字段一列)、compact(整条微博编码为一列)，读取时两种格式都支持，见WeiboPostCodec
+    public static final String POST_FORMAT_KEY = "weibo.post.format";
+    public static final String POST_FORMAT_DEFAULT = WeiboPostCodec.FORMAT_COLUMNS;
+
+    //全文检索时每个词最多读取的倒排列表条数
+    public static final String SEARCH_MAX_POSTINGS_KEY = "weibo.search.max.postings";
+    public static final int SEARCH_MAX_POSTINGS_DEFAULT = 20000;
+
+    //批量导入(WeiboBulkLoadTool)时每个分区、每个列族在内存中排序的单元格数，攒满后写出一个HFile
+    public static final String BULKLOAD_BUFFER_CELLS_KEY = "weibo.bulkload.buffer.cells";
+    public static final int BULKLOAD_BUFFER_CELLS_DEFAULT = 200000;
+    //批量导入时每个关注用户写入粉丝接收列表的最新微博条数
+    public static final String BULKLOAD_INBOX_POSTS_KEY = "weibo.bulkload.inbox.posts";
+    public static final int BULKLOAD_INBOX_POSTS_DEFAULT = 20;
+
+    //重建接收列表(WeiboTimelineRebuildTool)时每个关注用户的最新微博条数
+    public static final String REBUILD_POSTS_PER_AUTHOR_KEY = "weibo.rebuild.posts.per.author";
+    public static final int REBUILD_POSTS_PER_AUTHOR_DEFAULT = 20;
+    //重建接收列表时并发执行的盐值(分区)个数，每个盐值一个线程
+    public static final String REBUILD_THREADS_KEY = "weibo.rebuild.threads";
+    public static final int REBUILD_THREADS_DEFAULT = 9;
+    //重建接收列表时每批写入的接收微博条数
+    public static final String REBUILD_BATCH_SIZE_KEY = "weibo.rebuild.batch.size";
+    public static final int REBUILD_BATCH_SIZE_DEFAULT = 5000;
+    //重建接收列表时所有线程每秒最多写入的接收微博条数，小于等于0时不限制
+    public static final String REBUILD_MAX_ENTRIES_PER_SECOND_KEY = "weibo.rebuild.max.entries.per.second";
+    public static final int REBUILD_MAX_ENTRIES_PER_SECOND_DEFAULT = 50000;
+
+    //计数在内存中合并后批量写入t_weibo表的间隔(毫秒)
+    public static final String COUNTER_FLUSH_MS_KEY = "weibo.counter.flush.ms";
+    public static final long COUNTER_FLUSH_MS_DEFAULT = 1000L;
+    //每次批量Increment的微博条数
+    public static final String COUNTER_FLUSH_BATCH_SIZE_KEY = "weibo.counter.flush.batch.size";
+    public static final int COUNTER_FLUSH_BATCH_SIZE_DEFAULT = 500;
+    //热门微博(计数增长最快)的统计条数
+    public static final String COUNTER_HOT_SIZE_KEY = "weibo.counter.hot.size";
+    public static final int COUNTER_HOT_SIZE_DEFAULT = 100;
+    //热门微博计数衰减的半衰期(毫秒)
+    public static final String COUNTER_HOT_HALF_LIFE_MS_KEY = "weibo.counter.hot.half.life.ms";
+    public static final long COUNTER_HOT_HALF_LIFE_MS_DEFAULT = 3600000L;
+
+    //接收列表的存储方式：queue(方式一)、column(方式二)、row(方式三)，修改后需要用WeiboInboxMigration迁移
+    public static final String INBOX_LAYOUT_KEY = "weibo.inbox.layout";
+    public static final String INBOX_LAYOUT_DEFAULT = "column";
 }
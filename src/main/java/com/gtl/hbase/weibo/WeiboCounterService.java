@@ -0,0 +1,445 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 微博的浏览、点赞、转发计数
+ * 热门微博的计数写入非常集中，每次都对t_weibo表执行一次Increment会把压力集中在少数region的同一行上，因此：
+ * 1、计数先累加在内存中：每条微博一组LongAdder(内部按线程分段，并发累加之间没有锁竞争)
+ * 2、后台线程定时把每条微博自上次写入以来的增量合并为一个Increment，按批量写入t_weibo表cf1的views/likes/reposts列
+ * 3、读取计数时，t_weibo表中已经写入的值加上内存中还未写入的增量
+ * 4、写入时顺便用Space-Saving算法统计计数增长最快的微博(按半衰期衰减)，查询热门微博只读取一份已经排好序的快照，
+ *    计数和读取路径上没有额外开销
+ *
+ * 连续没有增量的微博从内存中移除：先标记为retired再移除，此后由写入线程在该微博的锁内确认没有增量才最终丢弃(dropped)；
+ * 累加线程在累加之后发现retired时进入该微博的锁，如果已经丢弃，把丢弃之后的累加转移到新的内存计数，因此不会丢失累加。
+ * 写入失败的增量保留在内存中，下次写入时重试；一批Increment部分成功时重试可能重复计数。
+ * 计数只在本进程内合并，多个服务进程分别写入，结果在t_weibo表中相加；热门微博只统计本进程的计数。
+ */
+public class WeiboCounterService {
+
+    public static final int VIEWS = 0;
+    public static final int LIKES = 1;
+    public static final int REPOSTS = 2;
+    private static final byte[][] QUALIFIERS = {WeiboConstants.VIEWS, WeiboConstants.LIKES, WeiboConstants.REPOSTS};
+    //连续多少次写入没有增量的微博从内存中移除
+    private static final int IDLE_FLUSHES = 2;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private int batchSize;
+    private long halfLifeMs;
+
+    private final ConcurrentHashMap<ByteBuffer, Pending> pending = new ConcurrentHashMap<ByteBuffer, Pending>();
+    //已经从pending中移除、还没有丢弃的微博，移除之前可能有线程刚刚取得它并累加，由写入线程确认没有增量后丢弃
+    private final ConcurrentHashMap<ByteBuffer, Pending> retiring = new ConcurrentHashMap<ByteBuffer, Pending>();
+    private HotPosts hotPosts;
+    private volatile List<HotPost> hotSnapshot = Collections.emptyList();
+    private long lastFlushTime = System.currentTimeMillis();
+    private ScheduledExecutorService flushPool;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedIncrements = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    /**
+     * @param dao
+     * @param tables
+     * @param flushIntervalMs 写入t_weibo表的间隔(毫秒)
+     * @param batchSize 每次批量Increment的微博条数
+     * @param hotSize 统计的热门微博条数
+     * @param halfLifeMs 热门微博计数衰减的半衰期(毫秒)，小于等于0时不衰减
+     */
+    public WeiboCounterService(WeiboDao dao, WeiboTables tables, long flushIntervalMs, int batchSize, int hotSize, long halfLifeMs) {
+        this.dao = dao;
+        this.tables = tables;
+        this.batchSize = batchSize;
+        this.halfLifeMs = halfLifeMs;
+        this.hotPosts = new HotPosts(hotSize);
+        flushPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-counter-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flushPool.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 累加一条微博的计数，只修改内存，由后台线程批量写入
+     * @param rowkey t_weibo表的rowkey
+     * @param counter VIEWS、LIKES或REPOSTS
+     * @param delta 增量，取消点赞时为负数
+     */
+    public void increment(byte[] rowkey, int counter, long delta) {
+        Pending p = pending.get(ByteBuffer.wrap(rowkey));
+        if (p == null) {
+            Pending created = new Pending(rowkey.clone());
+            p = pending.putIfAbsent(ByteBuffer.wrap(created.rowkey), created);
+            if (p == null) {
+                p = created;
+            }
+        }
+        p.adders[counter].add(delta);
+        if (p.retired) {
+            moveLeftover(p);
+        }
+    }
+
+    /**
+     * 累加到已经移除的微博上：写入线程还没有丢弃时，丢弃前会在锁内再读取一次，累加不会丢失；
+     * 已经丢弃时，把丢弃之后的累加(所有线程的)转移到新的内存计数
+     * @param p
+     */
+    private void moveLeftover(Pending p) {
+        long[] leftover;
+        synchronized (p) {
+            if (!p.dropped) {
+                return;
+            }
+            leftover = p.deltas();
+            if (leftover == null) {
+                return;
+            }
+            for (int c = 0; c < leftover.length; c++) {
+                p.flushed.addAndGet(c, leftover[c]);
+            }
+        }
+        for (int c = 0; c < leftover.length; c++) {
+            if (leftover[c] != 0) {
+                increment(p.rowkey, c, leftover[c]);
+            }
+        }
+    }
+
+    /**
+     * 读取一条微博的计数
+     * @param rowkey
+     * @return 下标为VIEWS、LIKES、REPOSTS
+     * @throws IOException
+     */
+    public long[] get(byte[] rowkey) throws IOException {
+        return get(Collections.singletonList(rowkey)).get(0);
+    }
+
+    /**
+     * 批量读取微博的计数：一次批量get读取t_weibo表中已经写入的值，再加上内存中还未写入的增量
+     * @param rowkeys
+     * @return 与rowkeys一一对应，下标为VIEWS、LIKES、REPOSTS
+     * @throws IOException
+     */
+    public List<long[]> get(List<byte[]> rowkeys) throws IOException {
+        List<Get> gets = new ArrayList<Get>(rowkeys.size());
+        for (byte[] rowkey : rowkeys) {
+            Get get = new Get(rowkey);
+            for (byte[] qualifier : QUALIFIERS) {
+                get.addColumn(WeiboConstants.CF1, qualifier);
+            }
+            gets.add(get);
+        }
+        Result[] results = dao.getRowDatas(tables.weiboTable(), gets);
+        List<long[]> counters = new ArrayList<long[]>(rowkeys.size());
+        for (int i = 0; i < rowkeys.size(); i++) {
+            long[] values = new long[QUALIFIERS.length];
+            for (int c = 0; c < QUALIFIERS.length; c++) {
+                byte[] value = results[i].getValue(WeiboConstants.CF1, QUALIFIERS[c]);
+                if (value != null) {
+                    values[c] = Bytes.toLong(value);
+                }
+            }
+            ByteBuffer key = ByteBuffer.wrap(rowkeys.get(i));
+            addDeltas(values, pending.get(key));
+            addDeltas(values, retiring.get(key));
+            counters.add(values);
+        }
+        return counters;
+    }
+
+    private static void addDeltas(long[] values, Pending p) {
+        if (p != null) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] += p.delta(c);
+            }
+        }
+    }
+
+    /**
+     * 计数增长最快的微博，按衰减后的计数降序，读取最近一次写入时生成的快照
+     * @param limit
+     * @return
+     */
+    public List<HotPost> getHotPosts(int limit) {
+        List<HotPost> snapshot = hotSnapshot;
+        return snapshot.size() <= limit ? snapshot : snapshot.subList(0, limit);
+    }
+
+    /**
+     * 把内存中的增量批量写入t_weibo表，由后台线程定时调用，close()时再调用一次
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        List<Pending> flushing = new ArrayList<Pending>();
+        List<long[]> deltas = new ArrayList<long[]>();
+        // 已经移除的微博：在锁内确认没有增量后丢弃，之后的累加由累加线程转移(见moveLeftover)；有增量时写入，下次再检查
+        Iterator<Pending> retiringIterator = retiring.values().iterator();
+        while (retiringIterator.hasNext()) {
+            Pending p = retiringIterator.next();
+            long[] delta;
+            synchronized (p) {
+                delta = p.deltas();
+                if (delta == null) {
+                    p.dropped = true;
+                    retiringIterator.remove();
+                    continue;
+                }
+            }
+            flushing.add(p);
+            deltas.add(delta);
+        }
+        for (Pending p : pending.values()) {
+            long[] delta = p.deltas();
+            if (delta != null) {
+                p.idleFlushes = 0;
+                flushing.add(p);
+                deltas.add(delta);
+            } else if (++p.idleFlushes >= IDLE_FLUSHES) {
+                // 同一条微博同时只有一个正在移除的内存计数；先标记retired再移除，之后的累加线程一定能看到标记
+                ByteBuffer key = ByteBuffer.wrap(p.rowkey);
+                if (!retiring.containsKey(key)) {
+                    p.retired = true;
+                    pending.remove(key, p);
+                    retiring.put(key, p);
+                }
+            }
+        }
+
+        hotPosts.decay(halfLifeMs <= 0 ? 1.0 : Math.pow(0.5, (double) (now - lastFlushTime) / halfLifeMs));
+        lastFlushTime = now;
+        for (int start = 0; start < flushing.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, flushing.size());
+            List<Increment> increments = new ArrayList<Increment>(end - start);
+            for (int i = start; i < end; i++) {
+                Increment increment = new Increment(flushing.get(i).rowkey);
+                long[] delta = deltas.get(i);
+                for (int c = 0; c < QUALIFIERS.length; c++) {
+                    if (delta[c] != 0) {
+                        increment.addColumn(WeiboConstants.CF1, QUALIFIERS[c], delta[c]);
+                    }
+                }
+                increments.add(increment);
+            }
+            try {
+                dao.incrementDatas(tables.weiboTable(), increments);
+            } catch (IOException e) {
+                // 增量仍然保留在内存中(包括已经移除、还没有丢弃的微博)，下次写入时重试
+                failedFlushes.incrementAndGet();
+                System.out.println("批量写入微博计数失败，下次写入时重试");
+                e.printStackTrace();
+                continue;
+            }
+            for (int i = start; i < end; i++) {
+                Pending p = flushing.get(i);
+                long[] delta = deltas.get(i);
+                long weight = 0;
+                for (int c = 0; c < QUALIFIERS.length; c++) {
+                    p.flushed.addAndGet(c, delta[c]);
+                    weight += Math.max(delta[c], 0);
+                }
+                hotPosts.offer(p.rowkey, weight);
+            }
+            flushedIncrements.addAndGet(end - start);
+        }
+        hotSnapshot = hotPosts.snapshot();
+        flushes.incrementAndGet();
+    }
+
+    /**
+     * 内存中等待写入的微博条数
+     * @return
+     */
+    public int getPendingCount() {
+        return pending.size() + retiring.size();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * 累计写入的Increment条数(每条微博每次写入一条)
+     * @return
+     */
+    public long getFlushedIncrementCount() {
+        return flushedIncrements.get();
+    }
+
+    public long getFailedFlushCount() {
+        return failedFlushes.get();
+    }
+
+    /**
+     * 停止后台线程，把内存中剩余的增量写入t_weibo表
+     */
+    public void close() {
+        flushPool.shutdown();
+        try {
+            flushPool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * 一条微博在内存中的计数：adders为累计值，flushed为已经写入t_weibo表的部分，两者之差为待写入的增量
+     * adders从不清零，累加与写入之间不需要同步，也不会丢失写入期间的累加
+     */
+    private static class Pending {
+        final byte[] rowkey;
+        final LongAdder[] adders = new LongAdder[QUALIFIERS.length];
+        final AtomicLongArray flushed = new AtomicLongArray(QUALIFIERS.length);
+        int idleFlushes = 0;
+        //已经从pending中移除
+        volatile boolean retired = false;
+        //写入线程确认没有增量后丢弃，由该对象的锁保护
+        boolean dropped = false;
+
+        Pending(byte[] rowkey) {
+            this.rowkey = rowkey;
+            for (int c = 0; c < adders.length; c++) {
+                adders[c] = new LongAdder();
+            }
+        }
+
+        long delta(int counter) {
+            return adders[counter].sum() - flushed.get(counter);
+        }
+
+        /**
+         * @return 没有增量时返回null
+         */
+        long[] deltas() {
+            long[] delta = new long[adders.length];
+            boolean changed = false;
+            for (int c = 0; c < adders.length; c++) {
+                delta[c] = delta(c);
+                changed |= delta[c] != 0;
+            }
+            return changed ? delta : null;
+        }
+    }
+
+    /**
+     * 热门微博
+     */
+    public static class HotPost {
+        private final byte[] rowkey;
+        private final double count;
+        private final double error;
+
+        HotPost(byte[] rowkey, double count, double error) {
+            this.rowkey = rowkey;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * t_weibo表的rowkey，userid和微博ID见WeiboRowKeyCodec.useridOf()、idOf()
+         * @return
+         */
+        public byte[] getRowkey() {
+            return rowkey;
+        }
+
+        /**
+         * 衰减后的计数(浏览、点赞、转发之和)，可能高估，最多高估getError()
+         * @return
+         */
+        public long getCount() {
+            return Math.round(count);
+        }
+
+        public long getError() {
+            return Math.round(error);
+        }
+    }
+
+    /**
+     * Space-Saving算法：最多跟踪capacity条微博，新微博替换计数最小的一条，并继承其计数作为误差上界
+     * 只由写入线程访问
+     */
+    private static class HotPosts {
+        private final int capacity;
+        private final Map<ByteBuffer, double[]> counts = new HashMap<ByteBuffer, double[]>();
+
+        HotPosts(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(byte[] rowkey, long weight) {
+            if (capacity <= 0 || weight <= 0) {
+                return;
+            }
+            ByteBuffer key = ByteBuffer.wrap(rowkey);
+            double[] entry = counts.get(key);
+            if (entry != null) {
+                entry[0] += weight;
+                return;
+            }
+            if (counts.size() < capacity) {
+                counts.put(key, new double[]{weight, 0});
+                return;
+            }
+            Map.Entry<ByteBuffer, double[]> min = null;
+            for (Map.Entry<ByteBuffer, double[]> e : counts.entrySet()) {
+                if (min == null || e.getValue()[0] < min.getValue()[0]) {
+                    min = e;
+                }
+            }
+            double minCount = min.getValue()[0];
+            counts.remove(min.getKey());
+            counts.put(key, new double[]{minCount + weight, minCount});
+        }
+
+        void decay(double factor) {
+            if (factor >= 1.0) {
+                return;
+            }
+            for (double[] entry : counts.values()) {
+                entry[0] *= factor;
+                entry[1] *= factor;
+            }
+        }
+
+        List<HotPost> snapshot() {
+            List<HotPost> snapshot = new ArrayList<HotPost>(counts.size());
+            for (Map.Entry<ByteBuffer, double[]> e : counts.entrySet()) {
+                snapshot.add(new HotPost(e.getKey().array(), e.getValue()[0], e.getValue()[1]));
+            }
+            Collections.sort(snapshot, new Comparator<HotPost>() {
+                public int compare(HotPost a, HotPost b) {
+                    return Double.compare(b.count, a.count);
+                }
+            });
+            return Collections.unmodifiableList(snapshot);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 微博存储接口
+ * WeiboHbaseDaoImpl：基于HBase集群的实现
+ * WeiboMemoryDaoImpl：基于内存的实现，与HBase的行/列族/列/版本语义一致，不需要集群，用于性能分析和压测业务逻辑
+ */
+public interface WeiboDao extends Closeable {
+
+    /**
+     * 判断命名空间是否存在
+     * @param ns
+     * @return
+     * @throws IOException
+     */
+    boolean namespaceExists(byte[] ns) throws IOException;
+
+    /**
+     * 创建命名空间
+     * @param ns
+     * @throws IOException
+     */
+    void createNamespace(byte[] ns) throws IOException;
+
+    /**
+     * 判断表是否存在
+     * @param ns
+     * @param tn
+     * @return
+     * @throws IOException
+     */
+    boolean tableExists(byte[] ns, byte[] tn) throws IOException;
+
+    /**
+     * 创建表：预分区
+     * @param ns
+     * @param tn
+     * @param cfs
+     * @param versions
+     * @param splitKeys 预分区的切分点，由WeiboRowKeyCodec.splitKeys()生成
+     * @throws IOException
+     */
+    void createTable(byte[] ns, byte[] tn, byte[][] cfs, int[] versions, byte[][] splitKeys) throws IOException;
+
+    /**
+     * 新增数据
+     * @param tableName
+     * @param puts
+     * @throws IOException
+     */
+    void putDatas(TableName tableName, List<Put> puts) throws IOException;
+
+    /**
+     * 批量增加计数器(Increment)，列值为8字节的long，不存在时从0开始
+     * @param tableName
+     * @param increments
+     * @throws IOException
+     */
+    void incrementDatas(TableName tableName, List<Increment> increments) throws IOException;
+
+    /**
+     * 删除数据
+     * @param tableName
+     * @param deletes
+     * @throws IOException
+     */
+    void deleteDatas(TableName tableName, List<Delete> deletes) throws IOException;
+
+    /**
+     * 查询一行数据
+     * @param tableName
+     * @param get
+     * @return
+     * @throws IOException
+     */
+    Result getOneRowData(TableName tableName, Get get) throws IOException;
+
+    /**
+     * 批量查询多行数据(multi-get)，返回结果与gets一一对应，不存在的行返回空的Result
+     * @param tableName
+     * @param gets
+     * @return
+     * @throws IOException
+     */
+    Result[] getRowDatas(TableName tableName, List<Get> gets) throws IOException;
+
+    /**
+     * 查询多行数据
+     * @param tableName
+     * @param scan
+     * @return
+     * @throws IOException
+     */
+    WeiboResultScanner getDatas(TableName tableName, Scan scan) throws IOException;
+}
@@ -0,0 +1,403 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 微博异步推送(fan-out on write)
+ * 发布微博时只写t_weibo表，然后把推送任务放入有界队列立即返回，由后台线程完成推送：
+ * 1、粉丝数超过大V阈值的作者登记为大V，不再推送(由粉丝查询时拉取)
+ * 2、从t_user_relations表中分页读取作者的粉丝用户，边读边对每个粉丝用户在接收列表中新增接收微博数据(存储方式见WeiboInboxLayout)，
+ *    Put攒够batchSize条批量写入一次(类似BufferedMutator)，推送时占用的内存与粉丝数无关
+ * 3、写入失败按指数退避重试，超过重试次数后放弃该批数据并记录失败数，放弃的数据可以用WeiboTimelineRebuildTool修复
+ * 启用关注关系图(WeiboFollowGraph)时，粉丝数和粉丝列表从内存位图中读取，按整数ID分页写入复用的数组，不再读取t_user_relations表。
+ *
+ * 背压：队列满时submit()最多等待offerTimeoutMs，仍然放不进去则由调用线程自己完成推送，发布变慢但不会丢推送。
+ * 关闭：shutdown()不再接收新任务，后台线程把队列中剩余的任务推送完再退出，JVM退出时通过shutdown hook自动调用。
+ *       submit()把任务放入队列与shutdown()互斥，关闭之后提交的任务由调用线程推送，不会留在队列中无人处理。
+ * 单个任务推送时抛出的任何异常只记录日志，不会终止后台线程。
+ */
+public class WeiboFanoutPipeline {
+
+    private static final FanoutTask POISON = new FanoutTask(null, null, 0, 0);
+    //后台线程等待任务的间隔，关闭时队列已满、放不进POISON的情况下，后台线程按该间隔检查是否已经关闭
+    private static final long POLL_MS = 100;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboInboxLayout inbox;
+    private WeiboCelebrityTimeline celebrityTimeline;
+    private WeiboTimelineCache timelineCache;
+    private WeiboMetrics metrics;
+    private WeiboFollowGraph followGraph;
+    private BlockingQueue<FanoutTask> queue;
+    private ExecutorService workers;
+    private int threads;
+    private int pageSize;
+    private int batchSize;
+    private int maxRetries;
+    private long retryBackoffMs;
+    private long offerTimeoutMs;
+    private long shutdownTimeoutMs;
+    private volatile boolean running = true;
+    //submit()放入队列时持有读锁，shutdown()修改running时持有写锁
+    private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+    //JVM退出时调用shutdown()，shutdown()时移除，避免每个实例的线程和队列一直被引用到JVM退出
+    private final Thread shutdownHook;
+
+    private AtomicLong submittedTasks = new AtomicLong();
+    private AtomicLong completedTasks = new AtomicLong();
+    private AtomicLong callerRunsTasks = new AtomicLong();
+    private AtomicLong deliveredCells = new AtomicLong();
+    private AtomicLong failedCells = new AtomicLong();
+    private volatile long lastLagMs = 0;
+    private AtomicLong maxLagMs = new AtomicLong();
+
+    public WeiboFanoutPipeline(WeiboDao dao, WeiboTables tables, WeiboInboxLayout inbox, WeiboCelebrityTimeline celebrityTimeline, WeiboTimelineCache timelineCache, WeiboMetrics metrics,
+                               WeiboFollowGraph followGraph, int threads, int queueCapacity,
+                               int pageSize, int batchSize, int maxRetries, long retryBackoffMs, long offerTimeoutMs, long shutdownTimeoutMs) {
+        this.dao = dao;
+        this.tables = tables;
+        this.inbox = inbox;
+        this.celebrityTimeline = celebrityTimeline;
+        this.timelineCache = timelineCache;
+        this.metrics = metrics;
+        this.followGraph = followGraph;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.queue = new ArrayBlockingQueue<FanoutTask>(queueCapacity);
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-fanout-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+        }
+        shutdownHook = new Thread("weibo-fanout-shutdown") {
+            public void run() {
+                shutdown();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * 提交推送任务
+     * @param userid 发布微博的用户
+     * @param rowkey_weibo 微博的rowkey
+     * @param id 微博ID，作为接收列表中单元格的版本
+     */
+    public void submit(String userid, byte[] rowkey_weibo, long id) {
+        FanoutTask task = new FanoutTask(userid, rowkey_weibo, id, System.currentTimeMillis());
+        submittedTasks.incrementAndGet();
+        boolean offered = false;
+        submitLock.readLock().lock();
+        try {
+            if (running) {
+                offered = queue.offer(task, offerTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            submitLock.readLock().unlock();
+        }
+        if (!offered) {
+            // 队列已满或已经关闭，由调用线程自己完成推送
+            callerRunsTasks.incrementAndGet();
+            System.out.println("推送队列已满，用户" + userid + "的微博由发布线程直接推送");
+            fanout(task);
+        }
+    }
+
+    private void work() {
+        while (true) {
+            FanoutTask task;
+            try {
+                task = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == POISON) {
+                return;
+            }
+            if (task == null) {
+                // 关闭之后不会再有新任务，队列为空即可退出
+                if (!running && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                fanout(task);
+            } catch (Throwable t) {
+                System.out.println("用户" + task.userid + "的微博推送异常");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 推送一条微博到所有粉丝的接收列表
+     * @param task
+     */
+    private void fanout(FanoutTask task) {
+        WeiboFollowerPages pages = null;
+        try {
+            if (celebrityTimeline.isCelebrity(task.userid)) {
+                return;
+            }
+
+            // 1、判断粉丝数是否超过大V阈值，超过则登记为大V，不再推送
+            if (hasMoreFansThan(task.userid, celebrityTimeline.getThreshold())) {
+                celebrityTimeline.markCelebrity(task.userid);
+                return;
+            }
+
+            // 2、分页读取粉丝，每读到一页就生成对应的接收微博数据，攒够batchSize条写一次，同一时间只持有一页粉丝
+            WeiboTimelineEntry entry = new WeiboTimelineEntry(task.rowkey, task.id);
+            List<Put> putList = new ArrayList<Put>();
+            List<String> fanList = new ArrayList<String>();
+            List<WeiboTimelineEntry> entries = Collections.singletonList(entry);
+            long count = 0;
+            if (followGraph != null) {
+                // 粉丝按整数ID分页读取到复用的数组中，userid为字典中已有的字符串
+                int[] ids = new int[pageSize];
+                String[] userids = new String[pageSize];
+                int from = 0;
+                int n;
+                while ((n = followGraph.followers(task.userid, from, ids, userids)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        deliver(userids[i], entries, putList, fanList);
+                    }
+                    count += n;
+                    from = ids[n - 1] + 1;
+                }
+            } else {
+                pages = new WeiboFollowerPages(dao, tables, task.userid, pageSize);
+                List<byte[]> fans;
+                while ((fans = pages.next()) != null) {
+                    for (byte[] fan : fans) {
+                        deliver(Bytes.toString(fan), entries, putList, fanList);
+                    }
+                }
+                count = pages.getCount();
+            }
+            if (!putList.isEmpty()) {
+                flush(putList, fanList, entry);
+            }
+            metrics.recordFanoutSize(count);
+        } catch (IOException e) {
+            System.out.println("用户" + task.userid + "的微博推送失败");
+            e.printStackTrace();
+        } finally {
+            if (pages != null) {
+                pages.close();
+            }
+            completedTasks.incrementAndGet();
+            long lag = System.currentTimeMillis() - task.submitTime;
+            lastLagMs = lag;
+            long max = maxLagMs.get();
+            while (lag > max && !maxLagMs.compareAndSet(max, lag)) {
+                max = maxLagMs.get();
+            }
+        }
+    }
+
+    /**
+     * 生成一个粉丝的接收微博数据，攒够batchSize条写入一次
+     * @param fanUserid
+     * @param entries 推送的微博(只有一条)
+     * @param putList 待写入的数据，写入后清空
+     * @param fanList 与putList对应的粉丝userid，写入后清空
+     */
+    private void deliver(String fanUserid, List<WeiboTimelineEntry> entries, List<Put> putList, List<String> fanList) {
+        putList.addAll(inbox.toPuts(fanUserid, entries));
+        fanList.add(fanUserid);
+        if (putList.size() >= batchSize) {
+            flush(putList, fanList, entries.get(0));
+            putList.clear();
+            fanList.clear();
+        }
+    }
+
+    /**
+     * 判断用户的粉丝数是否超过limit：启用关注关系图时直接比较位图中的粉丝数；
+     * 否则跳过前limit个粉丝后只取1个列名，服务端只返回一个单元格
+     * @param userid
+     * @param limit
+     * @return
+     * @throws IOException
+     */
+    private boolean hasMoreFansThan(String userid, int limit) throws IOException {
+        if (followGraph != null) {
+            return followGraph.followerCount(userid) > limit;
+        }
+        Get get = new Get(tables.userRowKey(userid));
+        get.addFamily(WeiboConstants.CF2);
+        get.setFilter(new FilterList(new ColumnPaginationFilter(1, limit), new KeyOnlyFilter()));
+        Result result = dao.getOneRowData(tables.userRelationsTable(), get);
+        return !result.isEmpty();
+    }
+
+    /**
+     * 批量写入接收列表，失败按指数退避重试
+     * 写入成功后把微博追加到已缓存的粉丝微博列表中，最终写入失败则使这些粉丝的缓存失效
+     * @param puts
+     * @param fans 与puts一一对应的粉丝userid
+     * @param entry
+     */
+    private void flush(List<Put> puts, List<String> fans, WeiboTimelineEntry entry) {
+        long backoff = retryBackoffMs;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                dao.putDatas(inbox.getTable(), puts);
+                deliveredCells.addAndGet(puts.size());
+                for (String fan : fans) {
+                    timelineCache.append(fan, entry);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxRetries) {
+                    failedCells.addAndGet(puts.size());
+                    for (String fan : fans) {
+                        timelineCache.invalidate(fan);
+                    }
+                    System.out.println("写入" + puts.size() + "条接收微博数据失败，已重试" + maxRetries + "次");
+                    e.printStackTrace();
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * 停止接收新任务，等待队列中剩余的任务推送完成，最多等待shutdownTimeoutMs
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        // 等待正在放入队列的submit()完成，之后提交的任务都由调用线程推送
+        submitLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM正在退出，hook会自行执行
+            }
+        }
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+        try {
+            // POISON让空闲的后台线程立即退出；队列已满时不等待，后台线程推送完队列中的任务后自行退出
+            for (int i = 0; i < threads; i++) {
+                if (!queue.offer(POISON)) {
+                    break;
+                }
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+        List<FanoutTask> leftover = new ArrayList<FanoutTask>();
+        queue.drainTo(leftover);
+        leftover.removeAll(Collections.singletonList(POISON));
+        if (!leftover.isEmpty()) {
+            System.out.println("推送队列关闭超时，还有" + leftover.size() + "条微博未推送，可以用WeiboTimelineRebuildTool修复");
+        }
+    }
+
+    /**
+     * 队列中等待推送的微博数量
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 最近一次完成的推送从提交到完成的耗时(毫秒)
+     * @return
+     */
+    public long getLastLagMs() {
+        return lastLagMs;
+    }
+
+    public long getMaxLagMs() {
+        return maxLagMs.get();
+    }
+
+    public long getSubmittedTasks() {
+        return submittedTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public long getCallerRunsTasks() {
+        return callerRunsTasks.get();
+    }
+
+    public long getDeliveredCells() {
+        return deliveredCells.get();
+    }
+
+    public long getFailedCells() {
+        return failedCells.get();
+    }
+
+    private static class FanoutTask {
+        private String userid;
+        private byte[] rowkey;
+        private long id;
+        private long submitTime;
+
+        FanoutTask(String userid, byte[] rowkey, long id, long submitTime) {
+            this.userid = userid;
+            this.rowkey = rowkey;
+            this.id = id;
+            this.submitTime = submitTime;
+        }
+    }
+}
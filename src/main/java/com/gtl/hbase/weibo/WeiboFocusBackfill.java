@@ -0,0 +1,304 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PageFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 添加关注时的异步回填：把被关注用户最近的depth条微博写入当前用户的接收列表
+ * 1、只扫描被关注用户的rowkey范围(盐值 + userid前缀)，最新的微博在最前面
+ * 2、PageFilter在服务端限制返回的行数，KeyOnlyFilter不返回列值，caching等于depth，一次RPC即可返回全部结果
+ * 3、由后台线程执行，addFocus写入关注关系后立即返回，耗时与t_weibo表的大小、被关注用户的微博数无关；
+ *    队列满时由调用线程执行(与推送队列的背压一致)
+ * 4、写入前确认关注关系仍然存在，避免回填晚于取消关注时把已删除的微博重新写回接收列表；
+ *    启用关注关系图(WeiboFollowGraph)时直接在内存中确认，不读取t_user_relations表
+ * 5、批量添加关注时(backfillBatch)，各被关注用户的扫描在线程池中并发执行，
+ *    合并后一次确认关注关系、一次写入接收列表(方式一、二为一个多列的Put)
+ */
+public class WeiboFocusBackfill {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboInboxLayout inbox;
+    private WeiboTimelineCache timelineCache;
+    private WeiboFollowGraph followGraph;
+    private int depth;
+    private ThreadPoolExecutor pool;
+
+    private AtomicLong submittedTasks = new AtomicLong();
+    private AtomicLong completedTasks = new AtomicLong();
+    private AtomicLong failedTasks = new AtomicLong();
+
+    /**
+     * @param followGraph 关注关系图，未启用时为null
+     * @param depth 回填的微博条数，0表示不回填
+     * @param threads 后台线程数
+     * @param queueCapacity 等待回填的任务数上限
+     */
+    public WeiboFocusBackfill(WeiboDao dao, WeiboTables tables, WeiboInboxLayout inbox, WeiboTimelineCache timelineCache,
+                              WeiboFollowGraph followGraph, int depth, int threads, int queueCapacity) {
+        this.dao = dao;
+        this.tables = tables;
+        this.inbox = inbox;
+        this.timelineCache = timelineCache;
+        this.followGraph = followGraph;
+        this.depth = depth;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-backfill-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * 提交回填任务
+     * @param userid 当前用户
+     * @param focusUserId 被关注用户
+     */
+    public void submit(final String userid, final String focusUserId) {
+        if (depth <= 0) {
+            return;
+        }
+        submittedTasks.incrementAndGet();
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        backfill(userid, focusUserId);
+                    } catch (IOException e) {
+                        failedTasks.incrementAndGet();
+                        System.out.println("用户" + userid + "关注的用户" + focusUserId + "的微博回填失败");
+                        e.printStackTrace();
+                    } finally {
+                        completedTasks.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+            completedTasks.incrementAndGet();
+            failedTasks.incrementAndGet();
+        }
+    }
+
+    /**
+     * 回填被关注用户最近的depth条微博
+     * @param userid
+     * @param focusUserId
+     * @return 回填的微博条数
+     * @throws IOException
+     */
+    public int backfill(String userid, String focusUserId) throws IOException {
+        // 1、从t_weibo表中获取被关注用户最近的depth条微博
+        return write(userid, focusUserId, scanLatest(focusUserId));
+    }
+
+    /**
+     * 回填的第2、3步：确认关注关系仍然存在后，把扫描到的微博写入当前用户的接收列表
+     * 第1步可以与写入关注关系并发执行，见WeiboAsyncService.addFocus
+     * @param userid
+     * @param focusUserId
+     * @param entries scanLatest()的结果
+     * @return 回填的微博条数
+     * @throws IOException
+     */
+    int write(String userid, String focusUserId, List<WeiboTimelineEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            System.out.println("用户" + userid + "关注的用户" + focusUserId + "未发布过微博,不需要同步微博到接收列表");
+            return 0;
+        }
+
+        // 2、确认关注关系仍然存在
+        boolean following;
+        if (followGraph != null) {
+            following = followGraph.isFollowing(userid, focusUserId);
+        } else {
+            Get get = new Get(tables.userRowKey(userid));
+            get.addColumn(WeiboConstants.CF1, focusUserId.getBytes());
+            following = !dao.getOneRowData(tables.userRelationsTable(), get).isEmpty();
+        }
+        if (!following) {
+            System.out.println("用户" + userid + "已取消关注" + focusUserId + "，不再回填");
+            return 0;
+        }
+
+        // 3、在接收列表中，给当前用户新增被关注用户最近的微博
+        dao.putDatas(inbox.getTable(), inbox.toPuts(userid, entries));
+        timelineCache.invalidate(userid);
+        System.out.println("用户" + userid + "关注的用户" + focusUserId + "的最近" + entries.size() + "条微博已同步成功");
+        return entries.size();
+    }
+
+    /**
+     * 批量回填：并发扫描每个被关注用户最近的depth条微博，合并后一次写入当前用户的接收列表
+     * 在调用线程中等待扫描完成；线程池队列满时由调用线程执行扫描
+     * @param userid
+     * @param focusUserIds 被关注用户，不能重复
+     * @return 回填失败的被关注用户
+     */
+    public List<String> backfillBatch(String userid, List<String> focusUserIds) {
+        List<String> failed = new ArrayList<String>();
+        if (depth <= 0 || focusUserIds.isEmpty()) {
+            return failed;
+        }
+        if (pool.isShutdown()) {
+            // 已经关闭，CallerRunsPolicy会丢弃任务
+            failed.addAll(focusUserIds);
+            return failed;
+        }
+
+        // 1、并发扫描每个被关注用户最近的depth条微博
+        Map<String, Future<List<WeiboTimelineEntry>>> futures = new LinkedHashMap<String, Future<List<WeiboTimelineEntry>>>();
+        for (final String focusUserId : focusUserIds) {
+            futures.put(focusUserId, pool.submit(new Callable<List<WeiboTimelineEntry>>() {
+                public List<WeiboTimelineEntry> call() throws IOException {
+                    return scanLatest(focusUserId);
+                }
+            }));
+        }
+        Map<String, List<WeiboTimelineEntry>> scanned = new LinkedHashMap<String, List<WeiboTimelineEntry>>();
+        for (Map.Entry<String, Future<List<WeiboTimelineEntry>>> future : futures.entrySet()) {
+            try {
+                List<WeiboTimelineEntry> entries = future.getValue().get();
+                if (!entries.isEmpty()) {
+                    scanned.put(future.getKey(), entries);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add(future.getKey());
+            } catch (ExecutionException e) {
+                System.out.println("用户" + userid + "关注的用户" + future.getKey() + "的微博回填失败");
+                e.getCause().printStackTrace();
+                failed.add(future.getKey());
+            }
+        }
+        if (scanned.isEmpty()) {
+            return failed;
+        }
+
+        try {
+            // 2、一次get确认关注关系仍然存在(启用关注关系图时在内存中确认)
+            Result relations = null;
+            if (followGraph == null) {
+                Get get = new Get(tables.userRowKey(userid));
+                for (String focusUserId : scanned.keySet()) {
+                    get.addColumn(WeiboConstants.CF1, focusUserId.getBytes());
+                }
+                relations = dao.getOneRowData(tables.userRelationsTable(), get);
+            }
+            List<WeiboTimelineEntry> merged = new ArrayList<WeiboTimelineEntry>();
+            for (Map.Entry<String, List<WeiboTimelineEntry>> entries : scanned.entrySet()) {
+                boolean following = relations == null
+                        ? followGraph.isFollowing(userid, entries.getKey())
+                        : relations.containsColumn(WeiboConstants.CF1, entries.getKey().getBytes());
+                if (following) {
+                    merged.addAll(entries.getValue());
+                }
+            }
+            if (merged.isEmpty()) {
+                return failed;
+            }
+
+            // 3、合并后一次写入接收列表
+            dao.putDatas(inbox.getTable(), inbox.toPuts(userid, merged));
+            timelineCache.invalidate(userid);
+            System.out.println("用户" + userid + "关注的" + scanned.size() + "个用户的最近" + merged.size() + "条微博已同步成功");
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed.addAll(scanned.keySet());
+        }
+        return failed;
+    }
+
+    /**
+     * 从t_weibo表中获取用户最近的depth条微博的rowkey
+     * @param focusUserId
+     * @return
+     * @throws IOException
+     */
+    List<WeiboTimelineEntry> scanLatest(String focusUserId) throws IOException {
+        return scanLatest(dao, tables, focusUserId, depth);
+    }
+
+    /**
+     * 从t_weibo表中获取用户最近的depth条微博的rowkey，重建接收列表(WeiboTimelineRebuildTool)时也使用
+     * @param dao
+     * @param tables
+     * @param focusUserId
+     * @param depth
+     * @return
+     * @throws IOException
+     */
+    static List<WeiboTimelineEntry> scanLatest(WeiboDao dao, WeiboTables tables, String focusUserId, int depth) throws IOException {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan(tables.getCodec().weiboScanStart(focusUserId), tables.getCodec().weiboScanStop(focusUserId));
+            //只需要微博的rowkey，两种存储格式各加一个查找列并且不返回列值
+            WeiboPostCodec.addMarkerColumns(scan);
+            scan.setFilter(new FilterList(new PageFilter(depth), new KeyOnlyFilter()));
+            scan.setCaching(depth);
+            scan.setSmall(true);
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                byte[] rowkey_weibo = result.getRow();
+                entries.add(new WeiboTimelineEntry(rowkey_weibo, WeiboRowKeyCodec.idOf(rowkey_weibo)));
+                if (entries.size() >= depth) {
+                    break;
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        return entries;
+    }
+
+    public long getSubmittedTasks() {
+        return submittedTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public long getFailedTasks() {
+        return failedTasks.get();
+    }
+
+    /**
+     * 等待队列中的回填任务完成后关闭
+     * @param timeoutMs
+     */
+    public void close(long timeoutMs) {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                System.out.println("回填队列关闭超时，还有" + pool.getQueue().size() + "个回填任务未执行");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.gtl.hbase.weibo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量添加/取消关注的结果，逐个用户返回成功或失败
+ * succeeded：关注关系(双向)已写入或已删除的用户
+ * failed：关注关系写入或删除失败的用户，可以重试
+ * skipped：重复的用户、当前用户自己
+ * backfillFailed：批量添加关注时，关注关系已写入、但回填最近的微博失败的用户(也包含在succeeded中)
+ */
+public class WeiboFocusBatchResult {
+
+    private List<String> succeeded = new ArrayList<String>();
+    private List<String> failed = new ArrayList<String>();
+    private List<String> skipped = new ArrayList<String>();
+    private List<String> backfillFailed = new ArrayList<String>();
+
+    public List<String> getSucceeded() {
+        return succeeded;
+    }
+
+    public List<String> getFailed() {
+        return failed;
+    }
+
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    public List<String> getBackfillFailed() {
+        return backfillFailed;
+    }
+
+    public boolean isComplete() {
+        return failed.isEmpty() && backfillFailed.isEmpty();
+    }
+}
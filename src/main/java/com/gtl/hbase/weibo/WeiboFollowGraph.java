@@ -0,0 +1,434 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 进程内的关注关系图，t_user_relations表的一份内存副本
+ * 1、userid映射为连续的整数ID(WeiboUserDictionary)，每个用户的粉丝和关注用户各保存为一个压缩位图(WeiboBitmap)
+ * 2、启动时按盐值(分区)并发扫描t_user_relations表加载，cf1(关注用户)和cf2(粉丝)两个方向合并，只要一边存在就认为关注关系存在
+ * 3、addFocus、deleteFocus等写入t_user_relations表成功后同步更新(write-through)
+ * 4、推送时按整数ID分页读取粉丝，userid直接取字典中的字符串，不再为每个粉丝复制列名、创建字符串；
+ *    判断关注关系、粉丝数只是内存中的位图查找，不需要访问HBase
+ *
+ * 其他进程写入的关注关系只有重新加载(load)后才能看到，多个服务进程同时写入时设置weibo.follow.graph.reload.ms定时重新加载；
+ * 重新加载期间的写入先记录下来，加载完成后重放到新的位图中再替换，整数ID保持不变。
+ */
+public class WeiboFollowGraph {
+
+    //加载时每次从一行中读取的列数，以及每批合并到图中的关注关系数
+    private static final int LOAD_BATCH = 1000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private WeiboUserDictionary dictionary = new WeiboUserDictionary();
+    private Edges edges = new Edges();
+    //重新加载期间的写入，加载完成后重放；不在加载时为null
+    private List<Object[]> journal;
+    private ScheduledExecutorService reloadPool;
+
+    /**
+     * 添加关注关系
+     * @param userid 当前用户
+     * @param focusUserId 被关注用户
+     */
+    public void follow(String userid, String focusUserId) {
+        lock.writeLock().lock();
+        try {
+            edges.add(dictionary.id(userid), dictionary.id(focusUserId));
+            if (journal != null) {
+                journal.add(new Object[]{Boolean.TRUE, userid, focusUserId});
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除关注关系
+     * @param userid 当前用户
+     * @param focusUserId 被关注用户
+     */
+    public void unfollow(String userid, String focusUserId) {
+        lock.writeLock().lock();
+        try {
+            int user = dictionary.idOf(userid);
+            int focus = dictionary.idOf(focusUserId);
+            if (user >= 0 && focus >= 0) {
+                edges.remove(user, focus);
+            }
+            if (journal != null) {
+                journal.add(new Object[]{Boolean.FALSE, userid, focusUserId});
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 判断当前用户是否关注了focusUserId
+     * @param userid
+     * @param focusUserId
+     * @return
+     */
+    public boolean isFollowing(String userid, String focusUserId) {
+        lock.readLock().lock();
+        try {
+            int user = dictionary.idOf(userid);
+            int focus = dictionary.idOf(focusUserId);
+            if (user < 0 || focus < 0) {
+                return false;
+            }
+            WeiboBitmap followees = edges.followees(user);
+            return followees != null && followees.contains(focus);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 粉丝数
+     * @param userid
+     * @return
+     */
+    public long followerCount(String userid) {
+        lock.readLock().lock();
+        try {
+            int user = dictionary.idOf(userid);
+            WeiboBitmap followers = user < 0 ? null : edges.followers(user);
+            return followers == null ? 0 : followers.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 关注用户数
+     * @param userid
+     * @return
+     */
+    public long followeeCount(String userid) {
+        lock.readLock().lock();
+        try {
+            int user = dictionary.idOf(userid);
+            WeiboBitmap followees = user < 0 ? null : edges.followees(user);
+            return followees == null ? 0 : followees.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分页读取粉丝：整数ID大于等于from的粉丝按整数ID升序写入ids和userids，直到写满
+     * 用法：int n; int from = 0; while ((n = graph.followers(userid, from, ids, userids)) > 0) { ...; from = ids[n - 1] + 1; }
+     * 两个数组由调用方重复使用，userids中的字符串为字典中的对象，读取时不分配内存
+     * @param userid
+     * @param from 起始整数ID(包含)
+     * @param ids 粉丝的整数ID
+     * @param userids 粉丝的userid，长度不小于ids
+     * @return 写入的粉丝数，0表示没有更多粉丝
+     */
+    public int followers(String userid, int from, int[] ids, String[] userids) {
+        lock.readLock().lock();
+        try {
+            int user = dictionary.idOf(userid);
+            WeiboBitmap followers = user < 0 ? null : edges.followers(user);
+            if (followers == null) {
+                return 0;
+            }
+            int n = followers.fill(from, ids);
+            for (int i = 0; i < n; i++) {
+                userids[i] = dictionary.userid(ids[i]);
+            }
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 已知的用户数(整数ID个数)
+     * @return
+     */
+    public int getUserCount() {
+        lock.readLock().lock();
+        try {
+            return dictionary.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 位图占用的内存估算(字节)，不包括字典
+     * @return
+     */
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return edges.sizeInBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从t_user_relations表加载(或重新加载)关注关系
+     * 1、每个盐值(分区)一个扫描任务并发执行，大行按LOAD_BATCH列分批返回
+     * 2、每批关注关系加写锁合并到新的位图中(整数ID使用同一个字典)
+     * 3、全部扫描完成后，重放加载期间的写入，替换原来的位图
+     * @param dao
+     * @param tables
+     * @param threads 并发扫描的线程数
+     * @return 加载的关注关系数
+     * @throws IOException
+     */
+    public synchronized long load(final WeiboDao dao, final WeiboTables tables, int threads) throws IOException {
+        long start = System.currentTimeMillis();
+        final Edges loaded = new Edges();
+        lock.writeLock().lock();
+        try {
+            journal = new ArrayList<Object[]>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        boolean success = false;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-follow-graph-load-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // 1、每个盐值一个扫描任务
+            int buckets = tables.getCodec().getSaltBuckets();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int salt = 0; salt < buckets; salt++) {
+                final byte[] startRow = new byte[]{(byte) salt};
+                final byte[] stopRow = salt + 1 < buckets ? new byte[]{(byte) (salt + 1)} : new byte[0];
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return scan(dao, tables, startRow, stopRow, loaded);
+                    }
+                }));
+            }
+            long relations = 0;
+            for (Future<Long> future : futures) {
+                try {
+                    relations += future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("加载关注关系被中断", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+
+            // 3、重放加载期间的写入后替换
+            lock.writeLock().lock();
+            try {
+                for (Object[] op : journal) {
+                    int user = dictionary.id((String) op[1]);
+                    int focus = dictionary.id((String) op[2]);
+                    if ((Boolean) op[0]) {
+                        loaded.add(user, focus);
+                    } else {
+                        loaded.remove(user, focus);
+                    }
+                }
+                edges = loaded;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            success = true;
+            System.out.println("关注关系加载完成：" + relations + "条，" + getUserCount() + "个用户，位图约" + sizeInBytes() / 1024
+                    + "KB，耗时" + (System.currentTimeMillis() - start) + "ms");
+            return relations;
+        } finally {
+            pool.shutdownNow();
+            lock.writeLock().lock();
+            try {
+                journal = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (!success) {
+                System.out.println("关注关系加载失败，继续使用原来的数据");
+            }
+        }
+    }
+
+    /**
+     * 2、扫描一个盐值范围，每LOAD_BATCH条关注关系合并一次
+     */
+    private long scan(WeiboDao dao, WeiboTables tables, byte[] startRow, byte[] stopRow, Edges loaded) throws IOException {
+        long relations = 0;
+        List<String> batch = new ArrayList<String>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan(startRow, stopRow);
+            scan.addFamily(WeiboConstants.CF1);
+            scan.addFamily(WeiboConstants.CF2);
+            scan.setBatch(LOAD_BATCH);
+            scan.setCaching(10);
+            resultScanner = dao.getDatas(tables.userRelationsTable(), scan);
+            for (Result result : resultScanner) {
+                byte[] row = result.getRow();
+                if (Bytes.equals(row, WeiboConstants.CELEBRITY_ROW) || row.length < 2 || 2 + (row[1] & 0xFF) != row.length) {
+                    continue;
+                }
+                String userid = WeiboRowKeyCodec.useridOf(row);
+                for (Cell cell : result.rawCells()) {
+                    String other = Bytes.toString(CellUtil.cloneQualifier(cell));
+                    // cf1：userid关注了other；cf2：other是userid的粉丝
+                    if (CellUtil.matchingFamily(cell, WeiboConstants.CF1)) {
+                        batch.add(userid);
+                        batch.add(other);
+                    } else {
+                        batch.add(other);
+                        batch.add(userid);
+                    }
+                }
+                if (batch.size() >= LOAD_BATCH * 2) {
+                    relations += merge(batch, loaded);
+                    batch.clear();
+                }
+            }
+            relations += merge(batch, loaded);
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        return relations;
+    }
+
+    private int merge(List<String> batch, Edges loaded) {
+        lock.writeLock().lock();
+        try {
+            int added = 0;
+            for (int i = 0; i < batch.size(); i += 2) {
+                if (loaded.add(dictionary.id(batch.get(i)), dictionary.id(batch.get(i + 1)))) {
+                    added++;
+                }
+            }
+            return added;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 定时重新加载，用于多个服务进程同时写入t_user_relations表的情况
+     * @param dao
+     * @param tables
+     * @param threads
+     * @param intervalMs 小于等于0时不重新加载
+     */
+    public synchronized void startReloads(final WeiboDao dao, final WeiboTables tables, final int threads, long intervalMs) {
+        if (intervalMs <= 0 || reloadPool != null) {
+            return;
+        }
+        reloadPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-follow-graph-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reloadPool.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    load(dao, tables, threads);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        ScheduledExecutorService pool;
+        synchronized (this) {
+            pool = reloadPool;
+            reloadPool = null;
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 按整数ID索引的粉丝位图和关注用户位图
+     */
+    private static class Edges {
+        private WeiboBitmap[] followers = new WeiboBitmap[1024];
+        private WeiboBitmap[] followees = new WeiboBitmap[1024];
+
+        /**
+         * user关注focus
+         * @return 原来不存在返回true
+         */
+        boolean add(int user, int focus) {
+            ensureCapacity(Math.max(user, focus) + 1);
+            if (followees[user] == null) {
+                followees[user] = new WeiboBitmap();
+            }
+            if (followers[focus] == null) {
+                followers[focus] = new WeiboBitmap();
+            }
+            followers[focus].add(user);
+            return followees[user].add(focus);
+        }
+
+        void remove(int user, int focus) {
+            if (user < followees.length && followees[user] != null) {
+                followees[user].remove(focus);
+                if (followees[user].isEmpty()) {
+                    followees[user] = null;
+                }
+            }
+            if (focus < followers.length && followers[focus] != null) {
+                followers[focus].remove(user);
+                if (followers[focus].isEmpty()) {
+                    followers[focus] = null;
+                }
+            }
+        }
+
+        WeiboBitmap followers(int user) {
+            return user < followers.length ? followers[user] : null;
+        }
+
+        WeiboBitmap followees(int user) {
+            return user < followees.length ? followees[user] : null;
+        }
+
+        long sizeInBytes() {
+            long bytes = (followers.length + followees.length) * 4L;
+            for (int i = 0; i < followers.length; i++) {
+                bytes += (followers[i] == null ? 0 : followers[i].sizeInBytes()) + (followees[i] == null ? 0 : followees[i].sizeInBytes());
+            }
+            return bytes;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > followers.length) {
+                int length = Math.max(capacity, followers.length * 2);
+                followers = Arrays.copyOf(followers, length);
+                followees = Arrays.copyOf(followees, length);
+            }
+        }
+    }
+}
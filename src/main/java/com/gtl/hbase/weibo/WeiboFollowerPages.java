@@ -0,0 +1,73 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分页读取一个用户的所有粉丝(t_user_relations表cf2列族下的列名)
+ * 使用单行Scan + setBatch(pageSize)：每个Result最多包含pageSize个列，每次RPC只返回一页，
+ * 粉丝再多，客户端同一时间也只持有一页粉丝，而不是一次Get把整行读回来。
+ *
+ * 用法：
+ * while ((page = pages.next()) != null) { ... }
+ */
+public class WeiboFollowerPages implements Closeable {
+
+    private WeiboResultScanner resultScanner;
+    private long count = 0;
+
+    /**
+     * @param dao
+     * @param tables
+     * @param userid
+     * @param pageSize 每页粉丝数量
+     * @throws IOException
+     */
+    public WeiboFollowerPages(WeiboDao dao, WeiboTables tables, String userid, int pageSize) throws IOException {
+        byte[] row = tables.userRowKey(userid);
+        Scan scan = new Scan(row, Bytes.add(row, new byte[]{0}));
+        scan.addFamily(WeiboConstants.CF2);
+        scan.setBatch(pageSize);
+        //每次RPC只取一页
+        scan.setCaching(1);
+        this.resultScanner = dao.getDatas(tables.userRelationsTable(), scan);
+    }
+
+    /**
+     * 读取下一页粉丝的userid
+     * @return 没有更多粉丝时返回null
+     * @throws IOException
+     */
+    public List<byte[]> next() throws IOException {
+        Result result = resultScanner.next();
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        Cell[] cells = result.rawCells();
+        List<byte[]> page = new ArrayList<byte[]>(cells.length);
+        for (Cell cell : cells) {
+            page.add(CellUtil.cloneQualifier(cell));
+        }
+        count += page.size();
+        return page;
+    }
+
+    /**
+     * 已经读取的粉丝数量
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void close() {
+        resultScanner.close();
+    }
+}
@@ -1,24 +1,63 @@
 package com.gtl.hbase.weibo;
 
-import com.sun.org.apache.bcel.internal.generic.ConversionInstruction;
-import org.apache.commons.io.filefilter.FalseFileFilter;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.*;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
 import java.util.List;
 
-public class WeiboHbaseDaoImpl {
+/**
+ * 基于HBase集群的微博存储
+ * 每次操作从Connection获取Table，操作完成后关闭(Table是轻量级对象，Connection是线程安全的重量级对象，整个进程共享一个)
+ */
+public class WeiboHbaseDaoImpl implements WeiboDao {
+
+    private Connection conn;
+    private boolean ownConnection;
+
+    /**
+     * 使用已有的Connection，close()时不关闭该Connection
+     * @param conn
+     */
+    public WeiboHbaseDaoImpl(Connection conn) {
+        this.conn = conn;
+        this.ownConnection = false;
+    }
+
+    /**
+     * 根据配置创建Connection，close()时关闭该Connection
+     * @param conf
+     * @throws IOException
+     */
+    public WeiboHbaseDaoImpl(Configuration conf) throws IOException {
+        this.conn = ConnectionFactory.createConnection(conf);
+        this.ownConnection = true;
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
 
     /**
      * 判断命名空间是否存在
      * @param ns
-     * @param admin
      * @return
      * @throws IOException
      */
-    public static boolean namespaceExists(byte[] ns, HBaseAdmin admin){
+    public boolean namespaceExists(byte[] ns) throws IOException {
+        HBaseAdmin admin = (HBaseAdmin) conn.getAdmin();
+        try {
+            return namespaceExists(ns, admin);
+        } finally {
+            admin.close();
+        }
+    }
+
+    private static boolean namespaceExists(byte[] ns, HBaseAdmin admin){
         // 使用getNamespaceDescriptor()方法获取NamespaceDescriptor时，
         // 如果传入的命名空间不存在，则会抛出NamespaceNotFoundException，如果存在，则返回该命名空间的NamespaceDescriptor。
         // 因此，不能根据返回值是否为null来判断该命名空间是否存在，而是通过捕获NamespaceNotFoundException来判断是否存在
@@ -63,24 +102,33 @@ public class WeiboHbaseDaoImpl {
     /**
      * 创建命名空间
      * @param ns
-     * @param admin
      * @throws IOException
      */
-    public static void createNamespace(byte[] ns,HBaseAdmin admin) throws IOException {
-        NamespaceDescriptor namespaceDescriptor = NamespaceDescriptor.create(Bytes.toString(ns)).build();
-        admin.createNamespace(namespaceDescriptor);
+    public void createNamespace(byte[] ns) throws IOException {
+        HBaseAdmin admin = (HBaseAdmin) conn.getAdmin();
+        try {
+            NamespaceDescriptor namespaceDescriptor = NamespaceDescriptor.create(Bytes.toString(ns)).build();
+            admin.createNamespace(namespaceDescriptor);
+        } finally {
+            admin.close();
+        }
     }
 
     /**
      * 判断表是否存在
      * @param ns
-     * @param admin
+     * @param tn
      * @return
      * @throws IOException
      */
-    public static boolean tableExists(byte[] ns,byte[] tn,HBaseAdmin admin) throws IOException {
-        boolean exists = admin.tableExists(TableName.valueOf(Bytes.toString(ns) + ":" + Bytes.toString(tn)));
-        return exists;
+    public boolean tableExists(byte[] ns,byte[] tn) throws IOException {
+        HBaseAdmin admin = (HBaseAdmin) conn.getAdmin();
+        try {
+            boolean exists = admin.tableExists(TableName.valueOf(Bytes.toString(ns) + ":" + Bytes.toString(tn)));
+            return exists;
+        } finally {
+            admin.close();
+        }
     }
 
     /**
@@ -89,13 +137,11 @@ public class WeiboHbaseDaoImpl {
      * @param tn
      * @param cfs
      * @param versions
-     * @param admin
+     * @param splitKeys
      * @throws IOException
      */
-    public static void createTable(byte[] ns, byte[] tn, byte[][] cfs, int[] versions, HBaseAdmin admin) throws IOException {
-        //hbase集群有三个节点，最好将分区数设置为节点数量的整倍数，此处设置9个分区
-        byte[][] splitKeys = {"0|".getBytes(),"1|".getBytes(),"2|".getBytes(),"3|".getBytes(),"4|".getBytes(),"5|".getBytes(),
-                "6|".getBytes(),"7|".getBytes()};
+    public void createTable(byte[] ns, byte[] tn, byte[][] cfs, int[] versions, byte[][] splitKeys) throws IOException {
+        //hbase集群有三个节点，最好将分区数设置为节点数量的整倍数(盐值个数)，rowkey的第一个字节为盐值，每个盐值一个分区
 
         HTableDescriptor tableDescriptor = new HTableDescriptor(TableName.valueOf(Bytes.toString(ns) + ":" + Bytes.toString(tn)));
         for (int i = 0; i < cfs.length; i++) {
@@ -104,50 +150,139 @@ public class WeiboHbaseDaoImpl {
             columnDescriptor.setMinVersions(versions[i]);
             tableDescriptor.addFamily(columnDescriptor);
         }
-        admin.createTable(tableDescriptor,splitKeys);
+        HBaseAdmin admin = (HBaseAdmin) conn.getAdmin();
+        try {
+            if (splitKeys.length > 0) {
+                admin.createTable(tableDescriptor,splitKeys);
+            } else {
+                admin.createTable(tableDescriptor);
+            }
+        } finally {
+            admin.close();
+        }
     }
 
     /**
      * 新增数据
-     * @param hTable
+     * @param tableName
      * @param puts
      * @throws IOException
      */
-    public static void PutDatas(HTable hTable, List<Put> puts) throws IOException {
-        hTable.put(puts);
+    public void putDatas(TableName tableName, List<Put> puts) throws IOException {
+        Table table = conn.getTable(tableName);
+        try {
+            table.put(puts);
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * 批量增加计数器，一次batch按region拆分发送
+     * @param tableName
+     * @param increments
+     * @throws IOException
+     */
+    public void incrementDatas(TableName tableName, List<Increment> increments) throws IOException {
+        Table table = conn.getTable(tableName);
+        try {
+            table.batch(increments, new Object[increments.size()]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("批量增加计数器被中断");
+        } finally {
+            table.close();
+        }
     }
 
     /**
      * 删除数据
-     * @param hTable
+     * @param tableName
      * @param deletes
      * @throws IOException
      */
-    public static void deleteDatas(HTable hTable, List<Delete> deletes) throws IOException {
-        hTable.delete(deletes);
+    public void deleteDatas(TableName tableName, List<Delete> deletes) throws IOException {
+        Table table = conn.getTable(tableName);
+        try {
+            table.delete(deletes);
+        } finally {
+            table.close();
+        }
     }
 
     /**
      * 查询一行数据
-     * @param hTable
+     * @param tableName
      * @param get
      * @return
      * @throws IOException
      */
-    public static Result getOneRowData(HTable hTable, Get get) throws IOException {
-        Result result = hTable.get(get);
-        return result;
+    public Result getOneRowData(TableName tableName, Get get) throws IOException {
+        Table table = conn.getTable(tableName);
+        try {
+            Result result = table.get(get);
+            return result;
+        } finally {
+            table.close();
+        }
     }
 
     /**
-     * 查询多行数据
-     * @param hTable
+     * 批量查询多行数据(multi-get)，返回结果与gets一一对应，不存在的行返回空的Result
+     * @param tableName
+     * @param gets
+     * @return
+     * @throws IOException
+     */
+    public Result[] getRowDatas(TableName tableName, List<Get> gets) throws IOException {
+        Table table = conn.getTable(tableName);
+        try {
+            Result[] results = table.get(gets);
+            return results;
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * 查询多行数据，关闭返回的scanner时同时关闭Table
+     * @param tableName
      * @param scan
      * @return
      * @throws IOException
      */
-    public static ResultScanner getDatas(HTable hTable, Scan scan) throws IOException {
-        ResultScanner resultScanner = hTable.getScanner(scan);
-        return  resultScanner;
+    public WeiboResultScanner getDatas(TableName tableName, Scan scan) throws IOException {
+        final Table table = conn.getTable(tableName);
+        final ResultScanner resultScanner;
+        try {
+            resultScanner = table.getScanner(scan);
+        } catch (IOException e) {
+            table.close();
+            throw e;
+        }
+        return new WeiboResultScanner() {
+            public Result next() throws IOException {
+                return resultScanner.next();
+            }
+
+            public Iterator<Result> iterator() {
+                return resultScanner.iterator();
+            }
+
+            public void close() {
+                resultScanner.close();
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        if (ownConnection) {
+            conn.close();
+        }
     }
 }
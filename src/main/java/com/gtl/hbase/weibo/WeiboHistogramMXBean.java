@@ -0,0 +1,19 @@
+package com.gtl.hbase.weibo;
+
+/**
+ * 通过JMX查看的直方图统计，百分位数的相对误差不超过1/16
+ */
+public interface WeiboHistogramMXBean {
+
+    long getCount();
+
+    long getMax();
+
+    double getMean();
+
+    long get50thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+}
@@ -0,0 +1,228 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 微博内容批量加载(hydration)
+ * 步骤：
+ * 1、先查微博内容缓存，未命中的微博rowkey按盐值(rowkey前缀，即所在分区)分组；
+ *    其他线程正在加载的微博不重复加载，等待其结果即可
+ * 2、每个分组使用一次批量get(multi-get)，不同分组并发执行，只读取摘要列(不读取图片)，加载到的微博写入缓存
+ * 3、按传入rowkey的顺序(即时间线顺序)组装结果，不存在的rowkey和加载失败的rowkey单独返回
+ *
+ * 原来的做法是每个rowkey调用一次getOneRowData()，100条微博就是100次串行RPC；
+ * 分组后同一分区的rowkey在一次RPC中返回，不同分区之间并发，耗时约等于最慢的那个分区。
+ */
+public class WeiboHydrator {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboPostCache postCache;
+    private ExecutorService pool;
+    private long timeoutMs;
+
+    /**
+     * @param dao
+     * @param tables
+     * @param postCache 微博内容缓存
+     * @param threads 并发加载的线程数，一般设置为分区数
+     * @param timeoutMs 单次加载的超时时间，超时的分组按加载失败处理
+     */
+    public WeiboHydrator(WeiboDao dao, WeiboTables tables, WeiboPostCache postCache, int threads, long timeoutMs) {
+        this.dao = dao;
+        this.tables = tables;
+        this.postCache = postCache;
+        this.timeoutMs = timeoutMs;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-hydrator-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 批量加载微博内容
+     * @param rowkeys t_weibo表的rowkey，按时间线顺序排列
+     * @return
+     */
+    public HydrationResult hydrate(List<byte[]> rowkeys) {
+        final Weibo[] weibos = new Weibo[rowkeys.size()];
+        final boolean[] failed = new boolean[rowkeys.size()];
+        HydrationResult hydrationResult = new HydrationResult();
+        if (rowkeys.isEmpty()) {
+            return hydrationResult;
+        }
+
+        // 1、先查微博内容缓存；未命中的微博如果其他线程正在加载则等待其结果，否则由本线程加载，
+        //    把本线程加载的rowkey按盐值分组，分组内记录rowkey在时间线中的位置
+        Map<Integer, WeiboPostCache.Flight> waiting = new LinkedHashMap<Integer, WeiboPostCache.Flight>();
+        Map<Integer, List<Integer>> groups = new TreeMap<Integer, List<Integer>>();
+        for (int i = 0; i < rowkeys.size(); i++) {
+            byte[] rowkey = rowkeys.get(i);
+            weibos[i] = postCache.get(rowkey);
+            if (weibos[i] != null) {
+                continue;
+            }
+            WeiboPostCache.Flight flight = postCache.join(rowkey);
+            if (flight != null) {
+                waiting.put(i, flight);
+                continue;
+            }
+            // 成为owner之前，其他线程可能刚刚加载完成
+            weibos[i] = postCache.get(rowkey);
+            if (weibos[i] != null) {
+                postCache.complete(rowkey, weibos[i], false);
+                continue;
+            }
+            int salt = WeiboRowKeyCodec.saltOf(rowkey);
+            List<Integer> group = groups.get(salt);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(salt, group);
+            }
+            group.add(i);
+        }
+
+        // 2、每个分组使用一次批量get，不同分组并发执行
+        Map<List<Integer>, Future<Result[]>> futures = new LinkedHashMap<List<Integer>, Future<Result[]>>();
+        for (List<Integer> group : groups.values()) {
+            final List<Get> gets = new ArrayList<Get>();
+            for (Integer index : group) {
+                gets.add(summaryGet(rowkeys.get(index)));
+            }
+            futures.put(group, pool.submit(new Callable<Result[]>() {
+                public Result[] call() throws Exception {
+                    return multiGet(gets);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Map.Entry<List<Integer>, Future<Result[]>> entry : futures.entrySet()) {
+            List<Integer> group = entry.getKey();
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                Result[] groupResults = entry.getValue().get(wait, TimeUnit.MILLISECONDS);
+                for (int i = 0; i < group.size(); i++) {
+                    int index = group.get(i);
+                    if (!groupResults[i].isEmpty()) {
+                        weibos[index] = toWeibo(groupResults[i]);
+                    }
+                    postCache.complete(rowkeys.get(index), weibos[index], false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+                markFailed(rowkeys, group, failed);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                markFailed(rowkeys, group, failed);
+            } catch (TimeoutException e) {
+                System.out.println("加载分区" + WeiboRowKeyCodec.saltOf(rowkeys.get(group.get(0))) + "的" + group.size() + "条微博超时");
+                entry.getValue().cancel(true);
+                markFailed(rowkeys, group, failed);
+            }
+        }
+
+        // 3、等待其他线程加载的微博
+        for (Map.Entry<Integer, WeiboPostCache.Flight> entry : waiting.entrySet()) {
+            int index = entry.getKey();
+            WeiboPostCache.Flight flight = entry.getValue();
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                if (flight.await(wait) && !flight.isFailed()) {
+                    weibos[index] = flight.getWeibo();
+                } else {
+                    failed[index] = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed[index] = true;
+            }
+        }
+
+        // 4、按时间线顺序组装结果
+        for (int i = 0; i < weibos.length; i++) {
+            if (weibos[i] != null) {
+                if (!WeiboRowKeyCodec.isLegacy(rowkeys.get(i))) {
+                    weibos[i].setId(WeiboRowKeyCodec.idOf(rowkeys.get(i)));
+                }
+                hydrationResult.weibos.add(weibos[i]);
+            } else if (failed[i]) {
+                hydrationResult.failedRowKeys.add(rowkeys.get(i));
+            } else {
+                hydrationResult.missingRowKeys.add(rowkeys.get(i));
+            }
+        }
+        return hydrationResult;
+    }
+
+    private Result[] multiGet(List<Get> gets) throws IOException {
+        return dao.getRowDatas(tables.weiboTable(), gets);
+    }
+
+    private void markFailed(List<byte[]> rowkeys, List<Integer> group, boolean[] failed) {
+        for (Integer index : group) {
+            failed[index] = true;
+            postCache.complete(rowkeys.get(index), null, true);
+        }
+    }
+
+    /**
+     * 只读取摘要列(compact格式的cf1:p，或者标题、内容、用户、图片ID)，不读取原来直接保存在cf1:image中的图片
+     * @param rowkey
+     * @return
+     */
+    public static Get summaryGet(byte[] rowkey) {
+        return WeiboPostCodec.addSummaryColumns(new Get(rowkey));
+    }
+
+    /**
+     * 把t_weibo表的一行数据转换为Weibo，两种存储格式都支持，见WeiboPostCodec
+     * @param result
+     * @return
+     */
+    public static Weibo toWeibo(Result result) {
+        return WeiboPostCodec.toWeibo(result);
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * 批量加载的结果
+     * weibos：加载成功的微博，按时间线顺序排列
+     * missingRowKeys：t_weibo表中已经不存在的rowkey
+     * failedRowKeys：加载失败(异常或超时)的rowkey，调用方可以选择重试
+     */
+    public static class HydrationResult {
+        private List<Weibo> weibos = new ArrayList<Weibo>();
+        private List<byte[]> missingRowKeys = new ArrayList<byte[]>();
+        private List<byte[]> failedRowKeys = new ArrayList<byte[]>();
+
+        public List<Weibo> getWeibos() {
+            return weibos;
+        }
+
+        public List<byte[]> getMissingRowKeys() {
+            return missingRowKeys;
+        }
+
+        public List<byte[]> getFailedRowKeys() {
+            return failedRowKeys;
+        }
+
+        public boolean isComplete() {
+            return missingRowKeys.isEmpty() && failedRowKeys.isEmpty();
+        }
+    }
+}
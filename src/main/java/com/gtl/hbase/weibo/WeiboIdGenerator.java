@@ -0,0 +1,114 @@
+package com.gtl.hbase.weibo;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 微博ID生成器，无锁，同一个生成器生成的ID严格递增
+ * ID(63位) = 毫秒时间(相对EPOCH，41位) + 节点编号(10位) + 序号(12位)
+ *
+ * 1、同一毫秒内最多生成4096个ID，超过时借用下一毫秒(时间部分可能略微超前于实际时间)，不会等待，也不会重复
+ * 2、系统时钟回拨时继续使用上一次的时间部分递增，不会生成重复或变小的ID
+ * 3、不同的进程必须使用不同的节点编号(weibo.node.id，0~1023)，未配置时根据进程名(pid@主机名)计算
+ *
+ * ID按时间递增，t_weibo表的rowkey使用倒序的ID，接收列表中单元格的版本使用ID，
+ * 同一用户同一毫秒发布的多条微博、不同用户同一毫秒发布的微博都不会互相覆盖。
+ */
+public class WeiboIdGenerator {
+
+    //2019-01-01 00:00:00 UTC
+    public static final long EPOCH = 1546300800000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    private final long node;
+    //上一次生成的 时间部分 << SEQUENCE_BITS | 序号
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param node 节点编号，0~1023
+     */
+    public WeiboIdGenerator(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("节点编号必须在0~" + MAX_NODE + "之间：" + node);
+        }
+        this.node = node;
+    }
+
+    /**
+     * 根据进程名计算节点编号
+     * @return
+     */
+    public static long defaultNode() {
+        return (ManagementFactory.getRuntimeMXBean().getName().hashCode() & 0x7fffffff) % (MAX_NODE + 1);
+    }
+
+    public long getNode() {
+        return node;
+    }
+
+    /**
+     * 生成下一个ID
+     * @return
+     */
+    public long nextId() {
+        while (true) {
+            long prev = last.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            long next;
+            if (now > (prev >>> SEQUENCE_BITS)) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                //同一毫秒或时钟回拨：序号加1，序号用完时进位到时间部分
+                next = prev + 1;
+            }
+            if (last.compareAndSet(prev, next)) {
+                return ((next >>> SEQUENCE_BITS) << TIME_SHIFT) | (node << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 按指定的时间、节点编号和序号组成ID，用于导入历史微博(WeiboBulkLoadTool)
+     * @param time 发布时间(毫秒)，不能早于EPOCH：更早的时间无法表示，按minIdAt截断为0后ID只剩序号不同，会互相覆盖且不再按时间排序
+     * @param node 节点编号，0~1023
+     * @param sequence 序号，只取低12位
+     * @return
+     */
+    public static long idAt(long time, long node, long sequence) {
+        if (time < EPOCH) {
+            throw new IllegalArgumentException("发布时间早于" + EPOCH + "(2019-01-01)，无法生成微博ID：" + time);
+        }
+        return minIdAt(time) | ((node & MAX_NODE) << SEQUENCE_BITS) | (sequence & SEQUENCE_MASK);
+    }
+
+    /**
+     * 从ID中解析发布时间(毫秒)
+     * @param id
+     * @return
+     */
+    public static long timeOf(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    /**
+     * 该毫秒内可能生成的最小ID
+     * @param time 毫秒
+     * @return
+     */
+    public static long minIdAt(long time) {
+        return Math.max(0, time - EPOCH) << TIME_SHIFT;
+    }
+
+    /**
+     * 该毫秒内可能生成的最大ID
+     * @param time 毫秒
+     * @return
+     */
+    public static long maxIdAt(long time) {
+        return minIdAt(time) | ((1L << TIME_SHIFT) - 1);
+    }
+}
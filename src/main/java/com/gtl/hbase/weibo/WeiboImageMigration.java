@@ -0,0 +1,128 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把原来直接保存在t_weibo表cf1:image中的图片迁移到t_weibo_image表
+ * 步骤：
+ * 1、创建t_weibo_image表(已经存在则跳过)
+ * 2、扫描t_weibo表的cf1:image列，非空的图片写入t_weibo_image表(内容相同的只保存一份)，
+ *    在t_weibo表中写入cf1:image_ref(时间戳与原来的单元格相同，微博的发布时间不变)
+ * 3、删除cf1:image列(空图片直接删除)
+ * 迁移前后批量加载的微博都不包含图片，迁移后可以通过Weibo.getImageId()读取
+ *
+ * 用法：WeiboImageMigration zookeeper地址
+ */
+public class WeiboImageMigration {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboImageStore imageStore;
+    private int batchSize;
+
+    public WeiboImageMigration(WeiboDao dao, WeiboTables tables, WeiboImageStore imageStore, int batchSize) {
+        this.dao = dao;
+        this.tables = tables;
+        this.imageStore = imageStore;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 1、创建t_weibo_image表
+     * @throws IOException
+     */
+    public void createImageTable() throws IOException {
+        byte[] ns = tables.getNamespace();
+        if (dao.tableExists(ns, WeiboConstants.TABLE_WEIBO_IMAGE)) {
+            System.out.println("表" + imageStore.getTable() + "已经存在");
+            return;
+        }
+        dao.createTable(ns, WeiboConstants.TABLE_WEIBO_IMAGE, new byte[][]{WeiboConstants.CF1}, new int[]{1},
+                tables.getCodec().splitKeys());
+        System.out.println("表" + imageStore.getTable() + "创建成功");
+    }
+
+    /**
+     * 2、3、迁移图片
+     * @return 迁移的图片数
+     * @throws IOException
+     */
+    public long migrate() throws IOException {
+        long images = 0;
+        List<Put> puts = new ArrayList<Put>();
+        List<Delete> deletes = new ArrayList<Delete>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.addColumn(WeiboConstants.CF1, WeiboConstants.IMAGE);
+            //图片可能很大，每次只取少量行
+            scan.setCaching(Math.max(1, batchSize / 10));
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                Cell cell = result.rawCells()[0];
+                byte[] image = CellUtil.cloneValue(cell);
+                if (image.length > 0) {
+                    String imageId = imageStore.put(image);
+                    Put put = new Put(result.getRow());
+                    put.addColumn(WeiboConstants.CF1, WeiboConstants.IMAGE_REF, cell.getTimestamp(), Bytes.toBytes(imageId));
+                    puts.add(put);
+                    images++;
+                }
+                Delete delete = new Delete(result.getRow());
+                delete.addColumns(WeiboConstants.CF1, WeiboConstants.IMAGE);
+                deletes.add(delete);
+                if (deletes.size() >= batchSize) {
+                    flush(puts, deletes);
+                    puts = new ArrayList<Put>();
+                    deletes = new ArrayList<Delete>();
+                }
+            }
+            if (!deletes.isEmpty()) {
+                flush(puts, deletes);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("图片迁移完成：" + images + "张");
+        return images;
+    }
+
+    private void flush(List<Put> puts, List<Delete> deletes) throws IOException {
+        // 先写入图片ID，再删除原来的图片
+        if (!puts.isEmpty()) {
+            dao.putDatas(tables.weiboTable(), puts);
+        }
+        dao.deleteDatas(tables.weiboTable(), deletes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("用法：WeiboImageMigration zookeeper地址");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboTables tables = WeiboTables.create(conf);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboImageStore imageStore = new WeiboImageStore(dao, tables,
+                    conf.getInt(WeiboConstants.IMAGE_CHUNK_BYTES_KEY, WeiboConstants.IMAGE_CHUNK_BYTES_DEFAULT));
+            WeiboImageMigration migration = new WeiboImageMigration(dao, tables, imageStore, 500);
+            migration.createImageTable();
+            migration.migrate();
+        } finally {
+            dao.close();
+        }
+    }
+}
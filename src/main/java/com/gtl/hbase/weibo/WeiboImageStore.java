@@ -0,0 +1,209 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 微博图片的存储：t_weibo_image表，与t_weibo表分开，t_weibo表只保存图片ID(cf1:image_ref)
+ * rowkey：盐值(1字节) + 图片内容的SHA-256(32字节)，盐值 = 哈希第一个字节 % 盐值个数
+ * 列：cf1:size 图片的字节数(8字节)；cf1:0、cf1:1、... 图片按chunkSize切分的分块(列名为4字节的分块序号)
+ * 图片ID为rowkey中SHA-256的十六进制字符串
+ *
+ * 1、内容相同的图片只保存一份：写入前先查询cf1:size，已经存在则直接返回图片ID
+ * 2、分块先写入，cf1:size最后写入，读取时cf1:size存在说明所有分块都已写入完成
+ * 3、读取时按需逐块get，大图片不需要一次加载到内存；微博列表、检索等读取t_weibo表时不再读取图片，
+ *    图片的单元格也不会进入t_weibo表的BlockCache
+ */
+public class WeiboImageStore {
+
+    private static final byte[] SIZE = "size".getBytes();
+    private static final int HASH_LENGTH = 32;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private int chunkSize;
+
+    /**
+     * @param dao
+     * @param tables
+     * @param chunkSize 分块的字节数
+     */
+    public WeiboImageStore(WeiboDao dao, WeiboTables tables, int chunkSize) {
+        this.dao = dao;
+        this.tables = tables;
+        this.chunkSize = chunkSize;
+    }
+
+    public TableName getTable() {
+        return tables.imageTable();
+    }
+
+    /**
+     * 保存图片，内容相同的图片已经存在时不再写入
+     * @param image
+     * @return 图片ID
+     * @throws IOException
+     */
+    public String put(byte[] image) throws IOException {
+        byte[] hash = sha256(image);
+        byte[] rowkey = rowKey(hash);
+        Get get = new Get(rowkey);
+        get.addColumn(WeiboConstants.CF1, SIZE);
+        if (!dao.getOneRowData(getTable(), get).isEmpty()) {
+            return toHex(hash);
+        }
+
+        // 先写入分块，最后写入size
+        List<Put> puts = new ArrayList<Put>();
+        for (int chunk = 0; chunk * chunkSize < image.length; chunk++) {
+            int from = chunk * chunkSize;
+            Put put = new Put(rowkey);
+            put.addColumn(WeiboConstants.CF1, Bytes.toBytes(chunk), Bytes.copy(image, from, Math.min(chunkSize, image.length - from)));
+            puts.add(put);
+        }
+        if (!puts.isEmpty()) {
+            dao.putDatas(getTable(), puts);
+        }
+        Put put_size = new Put(rowkey);
+        put_size.addColumn(WeiboConstants.CF1, SIZE, Bytes.toBytes((long) image.length));
+        List<Put> sizePuts = new ArrayList<Put>();
+        sizePuts.add(put_size);
+        dao.putDatas(getTable(), sizePuts);
+        return toHex(hash);
+    }
+
+    /**
+     * 图片的字节数
+     * @param imageId
+     * @return 图片不存在时返回-1
+     * @throws IOException
+     */
+    public long size(String imageId) throws IOException {
+        Get get = new Get(rowKey(fromHex(imageId)));
+        get.addColumn(WeiboConstants.CF1, SIZE);
+        Result result = dao.getOneRowData(getTable(), get);
+        byte[] size = result.getValue(WeiboConstants.CF1, SIZE);
+        return size == null ? -1 : Bytes.toLong(size);
+    }
+
+    /**
+     * 打开图片，读取时按需逐块加载
+     * @param imageId
+     * @return 图片不存在时返回null
+     * @throws IOException
+     */
+    public InputStream open(String imageId) throws IOException {
+        long size = size(imageId);
+        if (size < 0) {
+            return null;
+        }
+        return new ChunkInputStream(rowKey(fromHex(imageId)), size);
+    }
+
+    /**
+     * 按当前盐值个数重新计算t_weibo_image表rowkey的盐值，用于迁移到盐值个数不同的表
+     * @param rowkey
+     * @return
+     */
+    public byte[] resalt(byte[] rowkey) {
+        return rowKey(Bytes.copy(rowkey, 1, HASH_LENGTH));
+    }
+
+    private byte[] rowKey(byte[] hash) {
+        byte[] rowkey = new byte[1 + HASH_LENGTH];
+        rowkey[0] = (byte) ((hash[0] & 0xFF) % tables.getCodec().getSaltBuckets());
+        System.arraycopy(hash, 0, rowkey, 1, HASH_LENGTH);
+        return rowkey;
+    }
+
+    private static byte[] sha256(byte[] image) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(image);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() != HASH_LENGTH * 2) {
+            throw new IllegalArgumentException("无效的图片ID：" + hex);
+        }
+        byte[] bytes = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("无效的图片ID：" + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * 逐块读取图片，每次只get一个分块
+     */
+    private class ChunkInputStream extends InputStream {
+        private final byte[] rowkey;
+        private final long size;
+        private long position = 0;
+        private byte[] chunk;
+        private int chunkOffset;
+        //按顺序读取分块，不依赖当前配置的分块大小
+        private int nextChunk = 0;
+
+        ChunkInputStream(byte[] rowkey, long size) {
+            this.rowkey = rowkey;
+            this.size = size;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunk == null || chunkOffset >= chunk.length) {
+                int index = nextChunk++;
+                Get get = new Get(rowkey);
+                get.addColumn(WeiboConstants.CF1, Bytes.toBytes(index));
+                chunk = dao.getOneRowData(getTable(), get).getValue(WeiboConstants.CF1, Bytes.toBytes(index));
+                if (chunk == null) {
+                    throw new IOException("图片分块" + index + "不存在");
+                }
+                chunkOffset = 0;
+            }
+            int n = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, n);
+            chunkOffset += n;
+            position += n;
+            return n;
+        }
+
+        public int available() {
+            return chunk == null ? 0 : chunk.length - chunkOffset;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 用户接收微博列表的存储方式(见"微博概述"中的方式一、二、三)
+ * WeiboQueueInboxLayout：方式一，每个用户一行，只有一个列，按版本保存最新的100条微博
+ * WeiboColumnInboxLayout：方式二，每个用户一行，每个关注用户一个列，每列保存最新的100条微博
+ * WeiboRowInboxLayout：方式三，每条接收的微博一行，rowkey为 用户 + 倒序微博ID，按范围扫描读取
+ *
+ * 三种方式中单元格的版本都是微博ID，接收的微博都可以从单元格还原为WeiboTimelineEntry，迁移见WeiboInboxMigration。
+ */
+public interface WeiboInboxLayout {
+
+    /**
+     * 存储方式的名称，即weibo.inbox.layout的取值
+     * @return
+     */
+    String getName();
+
+    /**
+     * 存储接收列表的表
+     * @return
+     */
+    TableName getTable();
+
+    /**
+     * 建表时列族保存的版本数
+     * @return
+     */
+    int getMaxVersions();
+
+    /**
+     * 生成把微博写入一个用户接收列表的Put，发布微博时推送和添加关注时回填都使用
+     * @param userid 接收微博的用户
+     * @param entries 微博的rowkey和微博ID，发布微博的用户从rowkey中解析
+     * @return
+     */
+    List<Put> toPuts(String userid, List<WeiboTimelineEntry> entries);
+
+    /**
+     * 读取用户接收列表中游标之后的微博，每一路加入merger
+     * @param userid
+     * @param after 上一页的最后一条微博，null表示第一页
+     * @param limit 本页最多需要的条数
+     * @param merger
+     * @throws IOException
+     */
+    void read(String userid, WeiboTimelineEntry after, int limit, WeiboTimelineMerger merger) throws IOException;
+
+    /**
+     * 删除用户接收列表中若干关注用户的所有微博(取消关注)，批量取消关注时一次删除
+     * @param userid
+     * @param authors 被取消关注的用户
+     * @throws IOException
+     */
+    void remove(String userid, Collection<String> authors) throws IOException;
+
+    /**
+     * 从扫描到的一行中还原接收的微博，用于迁移和复制
+     * 接收微博的用户为WeiboRowKeyCodec.useridOf(result.getRow())
+     * @param result
+     * @return
+     */
+    List<WeiboTimelineEntry> entriesOf(Result result);
+}
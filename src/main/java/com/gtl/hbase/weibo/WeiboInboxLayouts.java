@@ -0,0 +1,45 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * 根据名称创建接收列表的存储方式
+ * queue：方式一，WeiboQueueInboxLayout
+ * column：方式二，WeiboColumnInboxLayout(默认)
+ * row：方式三，WeiboRowInboxLayout
+ */
+public class WeiboInboxLayouts {
+
+    private WeiboInboxLayouts() {
+    }
+
+    /**
+     * @param name
+     * @param dao
+     * @param tables
+     * @return
+     */
+    public static WeiboInboxLayout create(String name, WeiboDao dao, WeiboTables tables) {
+        if (WeiboQueueInboxLayout.NAME.equals(name)) {
+            return new WeiboQueueInboxLayout(dao, tables);
+        }
+        if (WeiboColumnInboxLayout.NAME.equals(name)) {
+            return new WeiboColumnInboxLayout(dao, tables);
+        }
+        if (WeiboRowInboxLayout.NAME.equals(name)) {
+            return new WeiboRowInboxLayout(dao, tables);
+        }
+        throw new IllegalArgumentException("未知的接收列表存储方式：" + name + "，可选queue、column、row");
+    }
+
+    /**
+     * 根据weibo.inbox.layout创建
+     * @param conf
+     * @param dao
+     * @param tables
+     * @return
+     */
+    public static WeiboInboxLayout create(Configuration conf, WeiboDao dao, WeiboTables tables) {
+        return create(conf.get(WeiboConstants.INBOX_LAYOUT_KEY, WeiboConstants.INBOX_LAYOUT_DEFAULT), dao, tables);
+    }
+}
@@ -0,0 +1,144 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在两种接收列表存储方式之间迁移，复制期间原来的接收列表正常读写
+ * 步骤：
+ * 1、创建新存储方式的表(已经存在则跳过)
+ * 2、全量复制：扫描原来的表(所有版本)，用原来的存储方式把每一行还原为接收的微博，再用新的存储方式写入新表
+ * 3、增量复制：只复制全量复制开始之后推送的微博(单元格的版本是微博ID，起始时间换算为该毫秒内最小的微博ID)
+ * 4、把weibo.inbox.layout改为新的存储方式并重启服务，再执行一次增量复制，确认无误后删除原来的表
+ *
+ * 三种存储方式中单元格的版本都是微博ID，发布微博的用户可以从微博的rowkey中解析，因此迁移不会丢失信息；
+ * 但方式一只保存每个用户最新的100条，迁移到方式一时更早的微博会被覆盖。
+ * 与WeiboResaltTool一样，复制期间的取消关注不会同步到新表，需要在切换后重新执行。
+ * WeiboResaltTool复制接收列表时也使用这里的复制，微博的rowkey按新表的盐值个数重新编码。
+ *
+ * 用法：WeiboInboxMigration zookeeper地址 新的存储方式(queue/column/row) [增量复制的起始时间戳]
+ * 原来的存储方式从weibo.inbox.layout读取(默认column)
+ */
+public class WeiboInboxMigration {
+
+    private WeiboDao dao;
+    private WeiboInboxLayout source;
+    private WeiboInboxLayout target;
+    private WeiboRowKeyCodec targetCodec;
+    private int batchSize;
+
+    /**
+     * @param dao
+     * @param source 原来的存储方式
+     * @param target 新的存储方式
+     * @param targetCodec 新表的rowkey编码，接收的微博的rowkey按它重新计算盐值
+     * @param batchSize
+     */
+    public WeiboInboxMigration(WeiboDao dao, WeiboInboxLayout source, WeiboInboxLayout target, WeiboRowKeyCodec targetCodec, int batchSize) {
+        if (source.getTable().equals(target.getTable())) {
+            throw new IllegalArgumentException("新的接收列表必须位于不同的表：" + target.getTable());
+        }
+        this.dao = dao;
+        this.source = source;
+        this.target = target;
+        this.targetCodec = targetCodec;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 1、创建新存储方式的表
+     * @param splitKeys 预分区的切分点
+     * @throws IOException
+     */
+    public void createTargetTable(byte[][] splitKeys) throws IOException {
+        TableName table = target.getTable();
+        if (dao.tableExists(table.getNamespace(), table.getQualifier())) {
+            System.out.println("表" + table + "已经存在");
+            return;
+        }
+        dao.createTable(table.getNamespace(), table.getQualifier(), new byte[][]{WeiboConstants.CF1},
+                new int[]{target.getMaxVersions()}, splitKeys);
+        System.out.println("表" + table + "创建成功");
+    }
+
+    /**
+     * 2、3、复制接收列表
+     * @param minTimestamp 只复制该时间之后推送的微博，0表示全量复制
+     * @return 复制的微博条数
+     * @throws IOException
+     */
+    public long copy(long minTimestamp) throws IOException {
+        long entries = 0;
+        List<Put> puts = new ArrayList<Put>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.addFamily(WeiboConstants.CF1);
+            scan.setMaxVersions();
+            scan.setCaching(batchSize);
+            if (minTimestamp > 0) {
+                scan.setTimeRange(WeiboIdGenerator.minIdAt(minTimestamp), Long.MAX_VALUE);
+            }
+            resultScanner = dao.getDatas(source.getTable(), scan);
+            for (Result result : resultScanner) {
+                String userid = WeiboRowKeyCodec.useridOf(result.getRow());
+                List<WeiboTimelineEntry> resalted = new ArrayList<WeiboTimelineEntry>();
+                for (WeiboTimelineEntry entry : source.entriesOf(result)) {
+                    resalted.add(new WeiboTimelineEntry(targetCodec.resalt(entry.getRowkey()), entry.getId()));
+                }
+                puts.addAll(target.toPuts(userid, resalted));
+                entries += resalted.size();
+                if (puts.size() >= batchSize) {
+                    dao.putDatas(target.getTable(), puts);
+                    puts = new ArrayList<Put>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                dao.putDatas(target.getTable(), puts);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("接收列表" + source.getTable() + "(" + source.getName() + ")复制到" + target.getTable()
+                + "(" + target.getName() + ")：" + entries + "条");
+        return entries;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("用法：WeiboInboxMigration zookeeper地址 新的存储方式(queue/column/row) [增量复制的起始时间戳]");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboTables tables = WeiboTables.create(conf);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboInboxLayout source = WeiboInboxLayouts.create(conf, dao, tables);
+            WeiboInboxLayout target = WeiboInboxLayouts.create(args[1], dao, tables);
+            WeiboInboxMigration migration = new WeiboInboxMigration(dao, source, target, tables.getCodec(), 500);
+            if (args.length > 2) {
+                long since = Long.parseLong(args[2]);
+                System.out.println("增量复制完成，共" + migration.copy(since) + "条");
+                return;
+            }
+            migration.createTargetTable(tables.getCodec().splitKeys());
+            //减去1分钟，避免服务器之间的时钟误差漏掉单元格
+            long startTime = System.currentTimeMillis() - 60000L;
+            System.out.println("全量复制完成，共" + migration.copy(0) + "条");
+            System.out.println("增量复制完成，共" + migration.copy(startTime) + "条");
+            System.out.println("切换配置 " + WeiboConstants.INBOX_LAYOUT_KEY + "=" + args[1]
+                    + " 并重启服务后，再执行一次增量复制：WeiboInboxMigration " + args[0] + " " + args[1] + " " + startTime);
+        } finally {
+            dao.close();
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 基于内存的微博存储，线程安全，与HBase的语义保持一致：
+ * 1、行按rowkey字节序排列，列族、列按字节序排列，同一列的多个版本按时间戳降序排列
+ * 2、每个列族最多保留建表时指定的版本数，写入时超出的旧版本被淘汰
+ * 3、Put/Delete未指定时间戳时使用当前时间；Delete支持删除单个版本、整列、整个列族、整行
+ *    删除时记录删除标记(整行/列族、列、单个版本的时间戳)，之后写入的被标记遮盖的单元格不可见，与HBase相同；
+ *    标记只有调用majorCompact()时才清除，对应HBase的major compaction
+ * 4、Get/Scan支持列族/列、最大版本数、时间范围、每个列族的列偏移/数量限制、setBatch，
+ *    以及HBase的过滤器(过滤器在客户端按服务端的调用顺序执行：filterRowKey、filterKeyValue、transformCell、filterRow)
+ * 5、每张表只有一个有序的数据集，建表时的预分区切分点不起作用
+ *
+ * 不需要网络和集群，用于单独测试和分析WeiboService的业务逻辑。
+ */
+public class WeiboMemoryDaoImpl implements WeiboDao {
+
+    private final Set<String> namespaces = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<TableName, MemTable> tables = new ConcurrentHashMap<TableName, MemTable>();
+
+    public boolean namespaceExists(byte[] ns) {
+        return namespaces.contains(Bytes.toString(ns));
+    }
+
+    public void createNamespace(byte[] ns) throws IOException {
+        if (!namespaces.add(Bytes.toString(ns))) {
+            throw new IOException("namespace " + Bytes.toString(ns) + " already exists");
+        }
+    }
+
+    public boolean tableExists(byte[] ns, byte[] tn) {
+        return tables.containsKey(TableName.valueOf(ns, tn));
+    }
+
+    public void createTable(byte[] ns, byte[] tn, byte[][] cfs, int[] versions, byte[][] splitKeys) throws IOException {
+        if (!namespaceExists(ns)) {
+            throw new IOException("namespace " + Bytes.toString(ns) + " not found");
+        }
+        Map<byte[], Integer> families = new TreeMap<byte[], Integer>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < cfs.length; i++) {
+            families.put(cfs[i], versions[i]);
+        }
+        if (tables.putIfAbsent(TableName.valueOf(ns, tn), new MemTable(families)) != null) {
+            throw new IOException("table " + Bytes.toString(ns) + ":" + Bytes.toString(tn) + " already exists");
+        }
+    }
+
+    public void putDatas(TableName tableName, List<Put> puts) throws IOException {
+        MemTable table = table(tableName);
+        for (Put put : puts) {
+            table.put(put);
+        }
+    }
+
+    public void incrementDatas(TableName tableName, List<Increment> increments) throws IOException {
+        MemTable table = table(tableName);
+        for (Increment increment : increments) {
+            table.increment(increment);
+        }
+    }
+
+    public void deleteDatas(TableName tableName, List<Delete> deletes) throws IOException {
+        MemTable table = table(tableName);
+        for (Delete delete : deletes) {
+            table.delete(delete);
+        }
+    }
+
+    public Result getOneRowData(TableName tableName, Get get) throws IOException {
+        return table(tableName).get(get);
+    }
+
+    public Result[] getRowDatas(TableName tableName, List<Get> gets) throws IOException {
+        MemTable table = table(tableName);
+        Result[] results = new Result[gets.size()];
+        for (int i = 0; i < gets.size(); i++) {
+            results[i] = table.get(gets.get(i));
+        }
+        return results;
+    }
+
+    public WeiboResultScanner getDatas(TableName tableName, Scan scan) throws IOException {
+        return table(tableName).scan(scan);
+    }
+
+    /**
+     * 清除表中所有的删除标记，对应HBase的major compaction，之后写入的单元格不再被原来的删除遮盖
+     * @param tableName
+     * @throws IOException
+     */
+    public void majorCompact(TableName tableName) throws IOException {
+        table(tableName).majorCompact();
+    }
+
+    public void close() {
+    }
+
+    private MemTable table(TableName tableName) throws IOException {
+        MemTable table = tables.get(tableName);
+        if (table == null) {
+            throw new IOException("table " + tableName.getNameAsString() + " not found");
+        }
+        return table;
+    }
+
+    /**
+     * 一张表：rowkey -> 行
+     */
+    private static class MemTable {
+        private final Map<byte[], Integer> families;
+        private final ConcurrentSkipListMap<byte[], MemRow> rows = new ConcurrentSkipListMap<byte[], MemRow>(Bytes.BYTES_COMPARATOR);
+
+        MemTable(Map<byte[], Integer> families) {
+            this.families = families;
+        }
+
+        private MemRow row(byte[] rowkey) {
+            MemRow row = rows.get(rowkey);
+            if (row == null) {
+                MemRow created = new MemRow();
+                row = rows.putIfAbsent(rowkey, created);
+                if (row == null) {
+                    row = created;
+                }
+            }
+            return row;
+        }
+
+        void put(Put put) throws IOException {
+            long now = System.currentTimeMillis();
+            MemRow row = row(put.getRow());
+            synchronized (row) {
+                for (Map.Entry<byte[], List<Cell>> entry : put.getFamilyCellMap().entrySet()) {
+                    Integer maxVersions = families.get(entry.getKey());
+                    if (maxVersions == null) {
+                        throw new IOException("column family " + Bytes.toString(entry.getKey()) + " does not exist");
+                    }
+                    for (Cell cell : entry.getValue()) {
+                        long ts = cell.getTimestamp() == HConstants.LATEST_TIMESTAMP ? now : cell.getTimestamp();
+                        byte[] qualifier = CellUtil.cloneQualifier(cell);
+                        if (row.isDeleted(entry.getKey(), qualifier, ts)) {
+                            // 被删除标记遮盖，major compaction之前不可见，之后被清除，因此直接丢弃
+                            continue;
+                        }
+                        TreeMap<Long, byte[]> versions = row.column(entry.getKey(), qualifier);
+                        versions.put(ts, CellUtil.cloneValue(cell));
+                        while (versions.size() > maxVersions) {
+                            versions.pollLastEntry();
+                        }
+                    }
+                }
+            }
+        }
+
+        void increment(Increment increment) throws IOException {
+            long now = System.currentTimeMillis();
+            MemRow row = row(increment.getRow());
+            synchronized (row) {
+                for (Map.Entry<byte[], List<Cell>> entry : increment.getFamilyCellMap().entrySet()) {
+                    Integer maxVersions = families.get(entry.getKey());
+                    if (maxVersions == null) {
+                        throw new IOException("column family " + Bytes.toString(entry.getKey()) + " does not exist");
+                    }
+                    for (Cell cell : entry.getValue()) {
+                        TreeMap<Long, byte[]> versions = row.column(entry.getKey(), CellUtil.cloneQualifier(cell));
+                        long value = Bytes.toLong(CellUtil.cloneValue(cell));
+                        // 与HBase一致：在最新版本的值上累加，新版本的时间戳大于原来的最新版本
+                        long ts = now;
+                        if (!versions.isEmpty()) {
+                            value += Bytes.toLong(versions.firstEntry().getValue());
+                            ts = Math.max(now, versions.firstKey() + 1);
+                        }
+                        if (row.isDeleted(entry.getKey(), CellUtil.cloneQualifier(cell), ts)) {
+                            continue;
+                        }
+                        versions.put(ts, Bytes.toBytes(value));
+                        while (versions.size() > maxVersions) {
+                            versions.pollLastEntry();
+                        }
+                    }
+                }
+            }
+        }
+
+        void delete(Delete delete) {
+            // 行不存在时同样要记录删除标记，遮盖之后写入的旧版本
+            MemRow row = row(delete.getRow());
+            long now = System.currentTimeMillis();
+            synchronized (row) {
+                if (delete.getFamilyCellMap().isEmpty()) {
+                    // 删除整行：每个列族删除所有时间戳不大于delete时间戳的版本，与HBase一样记录为列族删除标记
+                    long ts = delete.getTimeStamp() == HConstants.LATEST_TIMESTAMP ? now : delete.getTimeStamp();
+                    for (byte[] family : families.keySet()) {
+                        row.deleteFamily(family, ts);
+                    }
+                    row.compact();
+                    return;
+                }
+                for (Map.Entry<byte[], List<Cell>> entry : delete.getFamilyCellMap().entrySet()) {
+                    byte[] family = entry.getKey();
+                    for (Cell cell : entry.getValue()) {
+                        byte type = cell.getTypeByte();
+                        long ts = cell.getTimestamp();
+                        if (type == KeyValue.Type.DeleteFamily.getCode()) {
+                            row.deleteFamily(family, ts == HConstants.LATEST_TIMESTAMP ? now : ts);
+                        } else if (type == KeyValue.Type.DeleteColumn.getCode()) {
+                            // 删除该列所有时间戳不大于ts的版本
+                            row.deleteColumn(family, CellUtil.cloneQualifier(cell), ts == HConstants.LATEST_TIMESTAMP ? now : ts);
+                        } else if (type == KeyValue.Type.Delete.getCode()) {
+                            // 删除单个版本，未指定时间戳时删除最新的版本(没有版本时不记录标记)
+                            row.deleteVersion(family, CellUtil.cloneQualifier(cell), ts);
+                        }
+                    }
+                }
+                row.compact();
+            }
+        }
+
+        void majorCompact() {
+            for (MemRow row : rows.values()) {
+                synchronized (row) {
+                    row.clearDeletes();
+                }
+            }
+        }
+
+        Result get(Get get) throws IOException {
+            MemRow row = rows.get(get.getRow());
+            if (row == null) {
+                return Result.create(new ArrayList<Cell>());
+            }
+            Filter filter = get.getFilter();
+            if (filter != null) {
+                filter.reset();
+                if (filter.filterRowKey(get.getRow(), 0, get.getRow().length)) {
+                    return Result.create(new ArrayList<Cell>());
+                }
+            }
+            List<Cell> cells = row.read(get.getRow(), get.getFamilyMap(), get.getMaxVersions(), get.getTimeRange(),
+                    get.getMaxResultsPerColumnFamily(), get.getRowOffsetPerColumnFamily(), filter);
+            if (filter != null && filter.hasFilterRow()) {
+                filter.filterRowCells(cells);
+                if (filter.filterRow()) {
+                    cells.clear();
+                }
+            }
+            return Result.create(cells);
+        }
+
+        WeiboResultScanner scan(Scan scan) {
+            byte[] start = scan.getStartRow();
+            byte[] stop = scan.getStopRow();
+            NavigableMap<byte[], MemRow> range = rows;
+            if (scan.isReversed()) {
+                // 倒序扫描：startRow是较大的rowkey(包含)，stopRow是较小的rowkey(不包含)
+                range = rows.descendingMap();
+                if (start.length > 0) {
+                    range = range.tailMap(start, true);
+                }
+                if (stop.length > 0) {
+                    range = range.headMap(stop, false);
+                }
+            } else {
+                if (start.length > 0) {
+                    range = range.tailMap(start, true);
+                }
+                if (stop.length > 0) {
+                    range = range.headMap(stop, false);
+                }
+            }
+            return new MemScanner(range.entrySet().iterator(), scan);
+        }
+    }
+
+    /**
+     * 按行读取，每次读取一行；设置了batch时，一行按batch个单元格拆分成多个Result
+     */
+    private static class MemScanner implements WeiboResultScanner {
+        private final Iterator<Map.Entry<byte[], MemRow>> rowIterator;
+        private final Scan scan;
+        private final Filter filter;
+        private final LinkedList<Result> pending = new LinkedList<Result>();
+        private boolean done = false;
+
+        MemScanner(Iterator<Map.Entry<byte[], MemRow>> rowIterator, Scan scan) {
+            this.rowIterator = rowIterator;
+            this.scan = scan;
+            this.filter = scan.getFilter();
+        }
+
+        public Result next() throws IOException {
+            while (pending.isEmpty() && !done) {
+                fill();
+            }
+            return pending.poll();
+        }
+
+        private void fill() throws IOException {
+            if (!rowIterator.hasNext() || (filter != null && filter.filterAllRemaining())) {
+                done = true;
+                return;
+            }
+            Map.Entry<byte[], MemRow> entry = rowIterator.next();
+            byte[] rowkey = entry.getKey();
+            if (filter != null) {
+                filter.reset();
+                if (filter.filterRowKey(rowkey, 0, rowkey.length)) {
+                    return;
+                }
+            }
+            List<Cell> cells = entry.getValue().read(rowkey, scan.getFamilyMap(), scan.getMaxVersions(), scan.getTimeRange(),
+                    scan.getMaxResultsPerColumnFamily(), scan.getRowOffsetPerColumnFamily(), filter);
+            if (filter != null && filter.hasFilterRow()) {
+                filter.filterRowCells(cells);
+                if (filter.filterRow()) {
+                    return;
+                }
+            }
+            if (cells.isEmpty()) {
+                return;
+            }
+            int batch = scan.getBatch();
+            if (batch <= 0) {
+                pending.add(Result.create(cells));
+                return;
+            }
+            for (int i = 0; i < cells.size(); i += batch) {
+                pending.add(Result.create(new ArrayList<Cell>(cells.subList(i, Math.min(cells.size(), i + batch)))));
+            }
+        }
+
+        public Iterator<Result> iterator() {
+            return new Iterator<Result>() {
+                private Result nextResult;
+
+                public boolean hasNext() {
+                    if (nextResult == null) {
+                        try {
+                            nextResult = MemScanner.this.next();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return nextResult != null;
+                }
+
+                public Result next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Result result = nextResult;
+                    nextResult = null;
+                    return result;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        public void close() {
+            done = true;
+            pending.clear();
+        }
+    }
+
+    /**
+     * 一行数据：列族 -> 列 -> 时间戳(降序) -> 值
+     */
+    private static class MemRow {
+        private final TreeMap<byte[], TreeMap<byte[], TreeMap<Long, byte[]>>> families =
+                new TreeMap<byte[], TreeMap<byte[], TreeMap<Long, byte[]>>>(Bytes.BYTES_COMPARATOR);
+        //删除标记：列族 -> 时间戳(整行、整个列族)；列族 -> 列 -> 时间戳(整列)；列族 -> 列 -> 时间戳集合(单个版本)
+        private final TreeMap<byte[], Long> familyDeletes = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        private final TreeMap<byte[], TreeMap<byte[], Long>> columnDeletes =
+                new TreeMap<byte[], TreeMap<byte[], Long>>(Bytes.BYTES_COMPARATOR);
+        private final TreeMap<byte[], TreeMap<byte[], Set<Long>>> versionDeletes =
+                new TreeMap<byte[], TreeMap<byte[], Set<Long>>>(Bytes.BYTES_COMPARATOR);
+
+        /**
+         * 单元格是否被删除标记遮盖
+         */
+        boolean isDeleted(byte[] family, byte[] qualifier, long ts) {
+            Long familyTs = familyDeletes.get(family);
+            if (familyTs != null && ts <= familyTs) {
+                return true;
+            }
+            TreeMap<byte[], Long> columns = columnDeletes.get(family);
+            Long columnTs = columns == null ? null : columns.get(qualifier);
+            if (columnTs != null && ts <= columnTs) {
+                return true;
+            }
+            TreeMap<byte[], Set<Long>> versions = versionDeletes.get(family);
+            Set<Long> timestamps = versions == null ? null : versions.get(qualifier);
+            return timestamps != null && timestamps.contains(ts);
+        }
+
+        void deleteFamily(byte[] family, long ts) {
+            Long old = familyDeletes.get(family);
+            if (old == null || old < ts) {
+                familyDeletes.put(family, ts);
+            }
+            TreeMap<byte[], TreeMap<Long, byte[]>> qualifiers = families.get(family);
+            if (qualifiers != null) {
+                for (TreeMap<Long, byte[]> versions : qualifiers.values()) {
+                    versions.tailMap(ts, true).clear();
+                }
+            }
+        }
+
+        void deleteColumn(byte[] family, byte[] qualifier, long ts) {
+            TreeMap<byte[], Long> columns = columnDeletes.get(family);
+            if (columns == null) {
+                columns = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+                columnDeletes.put(family, columns);
+            }
+            Long old = columns.get(qualifier);
+            if (old == null || old < ts) {
+                columns.put(qualifier, ts);
+            }
+            TreeMap<Long, byte[]> versions = existingColumn(family, qualifier);
+            if (versions != null) {
+                versions.tailMap(ts, true).clear();
+            }
+        }
+
+        void deleteVersion(byte[] family, byte[] qualifier, long ts) {
+            TreeMap<Long, byte[]> versions = existingColumn(family, qualifier);
+            if (ts == HConstants.LATEST_TIMESTAMP) {
+                if (versions == null || versions.isEmpty()) {
+                    return;
+                }
+                ts = versions.firstKey();
+            }
+            TreeMap<byte[], Set<Long>> columns = versionDeletes.get(family);
+            if (columns == null) {
+                columns = new TreeMap<byte[], Set<Long>>(Bytes.BYTES_COMPARATOR);
+                versionDeletes.put(family, columns);
+            }
+            Set<Long> timestamps = columns.get(qualifier);
+            if (timestamps == null) {
+                timestamps = new HashSet<Long>();
+                columns.put(qualifier, timestamps);
+            }
+            timestamps.add(ts);
+            if (versions != null) {
+                versions.remove(ts);
+            }
+        }
+
+        void clearDeletes() {
+            familyDeletes.clear();
+            columnDeletes.clear();
+            versionDeletes.clear();
+        }
+
+        private TreeMap<Long, byte[]> existingColumn(byte[] family, byte[] qualifier) {
+            TreeMap<byte[], TreeMap<Long, byte[]>> qualifiers = families.get(family);
+            return qualifiers == null ? null : qualifiers.get(qualifier);
+        }
+
+        TreeMap<Long, byte[]> column(byte[] family, byte[] qualifier) {
+            TreeMap<byte[], TreeMap<Long, byte[]>> qualifiers = families.get(family);
+            if (qualifiers == null) {
+                qualifiers = new TreeMap<byte[], TreeMap<Long, byte[]>>(Bytes.BYTES_COMPARATOR);
+                families.put(family, qualifiers);
+            }
+            TreeMap<Long, byte[]> versions = qualifiers.get(qualifier);
+            if (versions == null) {
+                versions = new TreeMap<Long, byte[]>(Collections.<Long>reverseOrder());
+                qualifiers.put(qualifier, versions);
+            }
+            return versions;
+        }
+
+        /**
+         * 去掉已经没有版本的列和没有列的列族
+         */
+        void compact() {
+            Iterator<TreeMap<byte[], TreeMap<Long, byte[]>>> familyIterator = families.values().iterator();
+            while (familyIterator.hasNext()) {
+                TreeMap<byte[], TreeMap<Long, byte[]>> qualifiers = familyIterator.next();
+                Iterator<TreeMap<Long, byte[]>> qualifierIterator = qualifiers.values().iterator();
+                while (qualifierIterator.hasNext()) {
+                    if (qualifierIterator.next().isEmpty()) {
+                        qualifierIterator.remove();
+                    }
+                }
+                if (qualifiers.isEmpty()) {
+                    familyIterator.remove();
+                }
+            }
+        }
+
+        /**
+         * 按Get/Scan的条件读取一行中的单元格，顺序与HBase一致：列族升序、列升序、时间戳降序
+         */
+        synchronized List<Cell> read(byte[] rowkey, Map<byte[], NavigableSet<byte[]>> familyMap, int maxVersions,
+                                     TimeRange timeRange, int maxResultsPerFamily, int offsetPerFamily,
+                                     Filter filter) throws IOException {
+            List<Cell> cells = new ArrayList<Cell>();
+            for (Map.Entry<byte[], TreeMap<byte[], TreeMap<Long, byte[]>>> familyEntry : families.entrySet()) {
+                byte[] family = familyEntry.getKey();
+                NavigableSet<byte[]> wanted = null;
+                if (familyMap != null && !familyMap.isEmpty()) {
+                    if (!familyMap.containsKey(family)) {
+                        continue;
+                    }
+                    wanted = familyMap.get(family);
+                }
+                int columnIndex = 0;
+                int familyResults = 0;
+                columns:
+                for (Map.Entry<byte[], TreeMap<Long, byte[]>> columnEntry : familyEntry.getValue().entrySet()) {
+                    byte[] qualifier = columnEntry.getKey();
+                    if (wanted != null && !wanted.isEmpty() && !wanted.contains(qualifier)) {
+                        continue;
+                    }
+                    int versionCount = 0;
+                    for (Map.Entry<Long, byte[]> version : columnEntry.getValue().entrySet()) {
+                        long ts = version.getKey();
+                        if (timeRange != null && !timeRange.withinTimeRange(ts)) {
+                            continue;
+                        }
+                        if (versionCount >= maxVersions) {
+                            break;
+                        }
+                        Cell cell = new KeyValue(rowkey, family, qualifier, ts, version.getValue());
+                        Filter.ReturnCode code = filter == null ? Filter.ReturnCode.INCLUDE : filter.filterKeyValue(cell);
+                        if (code == Filter.ReturnCode.SKIP || code == Filter.ReturnCode.SEEK_NEXT_USING_HINT) {
+                            continue;
+                        }
+                        if (code == Filter.ReturnCode.NEXT_COL) {
+                            break;
+                        }
+                        if (code == Filter.ReturnCode.NEXT_ROW) {
+                            return cells;
+                        }
+                        versionCount++;
+                        // 每个列族的列偏移/数量限制按单元格计数，与HBase的setRowOffsetPerColumnFamily/setMaxResultsPerColumnFamily一致
+                        if (columnIndex++ < offsetPerFamily) {
+                            if (code == Filter.ReturnCode.INCLUDE_AND_NEXT_COL) {
+                                break;
+                            }
+                            continue;
+                        }
+                        if (maxResultsPerFamily >= 0 && familyResults >= maxResultsPerFamily) {
+                            break columns;
+                        }
+                        cells.add(filter == null ? cell : filter.transformCell(cell));
+                        familyResults++;
+                        if (code == Filter.ReturnCode.INCLUDE_AND_NEXT_COL) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return cells;
+        }
+    }
+}
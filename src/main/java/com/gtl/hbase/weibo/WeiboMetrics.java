@@ -0,0 +1,255 @@
+package com.gtl.hbase.weibo;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * WeiboService的运行统计
+ * 1、每个操作的耗时直方图(微秒)和失败次数
+ * 2、各类存储请求的次数以及读取的单元格数(由WeiboMetricsDao统计)
+ * 3、每条微博推送的粉丝数、每次加载微博列表读取的单元格数
+ *
+ * 操作和请求类型用int常量表示，记录时只是数组下标访问和原子自增，不分配对象。
+ * 统计通过JMX导出(domain为com.gtl.hbase.weibo)，也可以定时打印快照。
+ */
+public class WeiboMetrics implements WeiboMetricsMXBean {
+
+    public static final int CREATE_TABLE = 0;
+    public static final int UPLOAD_WEIBO = 1;
+    public static final int ADD_FOCUS = 2;
+    public static final int DELETE_FOCUS = 3;
+    public static final int GET_USER_WEIBO_LIST = 4;
+    public static final int GET_WEIBO_BY_USER_AND_DATE = 5;
+    public static final int GET_USER_WEIBO_PAGE = 6;
+    public static final int ADD_FOCUS_BATCH = 7;
+    public static final int DELETE_FOCUS_BATCH = 8;
+    public static final int GET_WEIBO_BY_TITLE = 9;
+    public static final int SEARCH_WEIBO = 10;
+    private static final String[] OPERATIONS = {"createTable", "uploadWeibo", "addFocus", "deleteFocus",
+            "getUserWeiboList", "getWeiboByUserAndDate", "getUserWeiboPage", "addFocusBatch", "deleteFocusBatch",
+            "getWeiboByTitle", "searchWeibo"};
+
+    public static final int RPC_PUT = 0;
+    public static final int RPC_DELETE = 1;
+    public static final int RPC_GET = 2;
+    public static final int RPC_MULTI_GET = 3;
+    public static final int RPC_SCAN = 4;
+    public static final int RPC_ADMIN = 5;
+    public static final int RPC_INCREMENT = 6;
+    private static final String[] RPCS = {"put", "delete", "get", "multiGet", "scan", "admin", "increment"};
+
+    private static final String DOMAIN = "com.gtl.hbase.weibo";
+
+    private final WeiboHistogram[] latencies = new WeiboHistogram[OPERATIONS.length];
+    private final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray rpcs = new AtomicLongArray(RPCS.length);
+    private final AtomicLong cellsRead = new AtomicLong();
+    private final WeiboHistogram fanoutSizes = new WeiboHistogram();
+    private final WeiboHistogram timelineCells = new WeiboHistogram();
+
+    private List<ObjectName> registered = new ArrayList<ObjectName>();
+    private ScheduledExecutorService snapshotPool;
+
+    public WeiboMetrics() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new WeiboHistogram();
+        }
+    }
+
+    /**
+     * 操作的名称，例如UPLOAD_WEIBO为uploadWeibo
+     * @param operation
+     * @return
+     */
+    public static String operationName(int operation) {
+        return OPERATIONS[operation];
+    }
+
+    public static int operationCount() {
+        return OPERATIONS.length;
+    }
+
+    /**
+     * 记录一次操作
+     * @param operation 操作，例如UPLOAD_WEIBO
+     * @param startNanos 操作开始时的System.nanoTime()
+     * @param success 是否成功
+     */
+    public void record(int operation, long startNanos, boolean success) {
+        latencies[operation].record((System.nanoTime() - startNanos) / 1000);
+        if (!success) {
+            errors.incrementAndGet(operation);
+        }
+    }
+
+    /**
+     * 记录一次存储请求
+     * @param rpc 请求类型，例如RPC_GET
+     */
+    public void rpc(int rpc) {
+        rpcs.incrementAndGet(rpc);
+    }
+
+    public void cellsRead(long cells) {
+        cellsRead.addAndGet(cells);
+    }
+
+    /**
+     * 记录一条微博推送的粉丝数
+     * @param fans
+     */
+    public void recordFanoutSize(long fans) {
+        fanoutSizes.record(fans);
+    }
+
+    /**
+     * 记录一次加载微博列表读取的单元格数(接收列表中的单元格 + 拉取的大V微博)
+     * @param cells
+     */
+    public void recordTimelineCells(long cells) {
+        timelineCells.record(cells);
+    }
+
+    public WeiboHistogram getLatency(int operation) {
+        return latencies[operation];
+    }
+
+    public long getErrors(int operation) {
+        return errors.get(operation);
+    }
+
+    public long getRpcs(int rpc) {
+        return rpcs.get(rpc);
+    }
+
+    public WeiboHistogram getFanoutSizes() {
+        return fanoutSizes;
+    }
+
+    public WeiboHistogram getTimelineCells() {
+        return timelineCells;
+    }
+
+    public Map<String, Long> getRpcs() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < RPCS.length; i++) {
+            map.put(RPCS[i], rpcs.get(i));
+        }
+        return map;
+    }
+
+    public Map<String, Long> getErrors() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            map.put(OPERATIONS[i], errors.get(i));
+        }
+        return map;
+    }
+
+    public long getCellsRead() {
+        return cellsRead.get();
+    }
+
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            WeiboHistogram latency = latencies[i];
+            sb.append(OPERATIONS[i])
+                    .append(" count=").append(latency.getCount())
+                    .append(" errors=").append(errors.get(i))
+                    .append(" p50=").append(latency.get50thPercentile()).append("us")
+                    .append(" p99=").append(latency.get99thPercentile()).append("us")
+                    .append(" p999=").append(latency.get999thPercentile()).append("us")
+                    .append(" max=").append(latency.getMax()).append("us\n");
+        }
+        sb.append("rpcs=").append(getRpcs()).append(" cellsRead=").append(cellsRead.get()).append("\n");
+        sb.append("fanoutSize p50=").append(fanoutSizes.get50thPercentile())
+                .append(" p99=").append(fanoutSizes.get99thPercentile())
+                .append(" max=").append(fanoutSizes.getMax()).append("\n");
+        sb.append("timelineCells p50=").append(timelineCells.get50thPercentile())
+                .append(" p99=").append(timelineCells.get99thPercentile())
+                .append(" max=").append(timelineCells.getMax());
+        return sb.toString();
+    }
+
+    /**
+     * 注册到JMX
+     * 步骤：
+     * 1、计数器注册为 com.gtl.hbase.weibo:type=WeiboMetrics,name=服务名
+     * 2、每个操作的耗时直方图注册为 com.gtl.hbase.weibo:type=WeiboLatency,service=服务名,name=操作名
+     * 3、推送粉丝数、加载微博列表读取的单元格数注册为 com.gtl.hbase.weibo:type=WeiboHistogram,service=服务名,name=fanoutSize/timelineCells
+     * @param name 服务名，同一个JVM中有多个WeiboService时用于区分
+     */
+    public synchronized void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=WeiboMetrics,name=" + name), this);
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                register(server, new ObjectName(DOMAIN + ":type=WeiboLatency,service=" + name + ",name=" + OPERATIONS[i]), latencies[i]);
+            }
+            register(server, new ObjectName(DOMAIN + ":type=WeiboHistogram,service=" + name + ",name=fanoutSize"), fanoutSizes);
+            register(server, new ObjectName(DOMAIN + ":type=WeiboHistogram,service=" + name + ",name=timelineCells"), timelineCells);
+        } catch (JMException e) {
+            System.out.println("注册JMX统计" + name + "失败");
+            e.printStackTrace();
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+        server.registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    /**
+     * 定时打印统计快照
+     * @param intervalMs 打印间隔，小于等于0时不打印
+     */
+    public synchronized void startSnapshots(long intervalMs) {
+        if (intervalMs <= 0 || snapshotPool != null) {
+            return;
+        }
+        snapshotPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-metrics-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        snapshotPool.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.out.println(getSnapshot());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定时打印，从JMX注销
+     */
+    public synchronized void close() {
+        if (snapshotPool != null) {
+            snapshotPool.shutdown();
+            snapshotPool = null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 统计存储请求次数和读取单元格数的WeiboDao，其余逻辑交给被包装的WeiboDao
+ * 每次调用按一次请求统计(multi-get按一次统计，实际可能按region拆分为多次RPC；scan按打开scanner统计)
+ */
+public class WeiboMetricsDao implements WeiboDao {
+
+    private WeiboDao dao;
+    private WeiboMetrics metrics;
+
+    public WeiboMetricsDao(WeiboDao dao, WeiboMetrics metrics) {
+        this.dao = dao;
+        this.metrics = metrics;
+    }
+
+    public boolean namespaceExists(byte[] ns) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_ADMIN);
+        return dao.namespaceExists(ns);
+    }
+
+    public void createNamespace(byte[] ns) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_ADMIN);
+        dao.createNamespace(ns);
+    }
+
+    public boolean tableExists(byte[] ns, byte[] tn) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_ADMIN);
+        return dao.tableExists(ns, tn);
+    }
+
+    public void createTable(byte[] ns, byte[] tn, byte[][] cfs, int[] versions, byte[][] splitKeys) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_ADMIN);
+        dao.createTable(ns, tn, cfs, versions, splitKeys);
+    }
+
+    public void putDatas(TableName tableName, List<Put> puts) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_PUT);
+        dao.putDatas(tableName, puts);
+    }
+
+    public void incrementDatas(TableName tableName, List<Increment> increments) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_INCREMENT);
+        dao.incrementDatas(tableName, increments);
+    }
+
+    public void deleteDatas(TableName tableName, List<Delete> deletes) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_DELETE);
+        dao.deleteDatas(tableName, deletes);
+    }
+
+    public Result getOneRowData(TableName tableName, Get get) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_GET);
+        Result result = dao.getOneRowData(tableName, get);
+        metrics.cellsRead(result.size());
+        return result;
+    }
+
+    public Result[] getRowDatas(TableName tableName, List<Get> gets) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_MULTI_GET);
+        Result[] results = dao.getRowDatas(tableName, gets);
+        long cells = 0;
+        for (Result result : results) {
+            cells += result.size();
+        }
+        metrics.cellsRead(cells);
+        return results;
+    }
+
+    public WeiboResultScanner getDatas(TableName tableName, Scan scan) throws IOException {
+        metrics.rpc(WeiboMetrics.RPC_SCAN);
+        final WeiboResultScanner resultScanner = dao.getDatas(tableName, scan);
+        return new WeiboResultScanner() {
+            public Result next() throws IOException {
+                Result result = resultScanner.next();
+                if (result != null) {
+                    metrics.cellsRead(result.size());
+                }
+                return result;
+            }
+
+            public Iterator<Result> iterator() {
+                final Iterator<Result> iterator = resultScanner.iterator();
+                return new Iterator<Result>() {
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    public Result next() {
+                        Result result = iterator.next();
+                        metrics.cellsRead(result.size());
+                        return result;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public void close() {
+                resultScanner.close();
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        dao.close();
+    }
+}
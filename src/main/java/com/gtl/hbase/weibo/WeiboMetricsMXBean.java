@@ -0,0 +1,33 @@
+package com.gtl.hbase.weibo;
+
+import java.util.Map;
+
+/**
+ * 通过JMX查看的计数器，各操作的耗时直方图单独注册(type=WeiboLatency)
+ */
+public interface WeiboMetricsMXBean {
+
+    /**
+     * 各类存储请求的次数，key为请求类型(put/delete/get/multiGet/scan/admin/increment)
+     * @return
+     */
+    Map<String, Long> getRpcs();
+
+    /**
+     * 各操作失败的次数，key为操作名
+     * @return
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * 从存储中读取的单元格总数
+     * @return
+     */
+    long getCellsRead();
+
+    /**
+     * 所有统计的文本快照
+     * @return
+     */
+    String getSnapshot();
+}
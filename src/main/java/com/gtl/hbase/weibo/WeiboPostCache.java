@@ -0,0 +1,262 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 微博内容缓存(进程内)，key为t_weibo表的rowkey
+ *
+ * 存储：每条微博编码为一个byte[](发布时间 + userid + title + content + image + imageId)，而不是缓存Weibo对象，
+ * 每条微博只占一个数组对象，减少GC扫描的对象数量，也可以精确统计占用的内存。
+ * 淘汰：分为多个段，每个段是按访问顺序的LRU，段内占用的字节数超过maxBytes/段数时淘汰最久未访问的微博。
+ * 合并加载(single-flight)：多个线程同时加载同一条未缓存的微博时，只有第一个线程(owner)查询HBase，其他线程等待其结果。
+ */
+public class WeiboPostCache {
+
+    private static final int SEGMENTS = 16;
+    //每个缓存项除key和value数组之外的大致开销(LinkedHashMap节点、ByteBuffer、数组头)
+    private static final int ENTRY_OVERHEAD = 112;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ConcurrentMap<ByteBuffer, Flight> inflight = new ConcurrentHashMap<ByteBuffer, Flight>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalescedLoads = new AtomicLong();
+
+    /**
+     * @param maxBytes 缓存最多占用的字节数
+     */
+    public WeiboPostCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    /**
+     * 查询缓存
+     * @param rowkey
+     * @return 未缓存时返回null
+     */
+    public Weibo get(byte[] rowkey) {
+        ByteBuffer key = ByteBuffer.wrap(rowkey);
+        byte[] packed = segmentFor(key).get(key);
+        if (packed == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return decode(packed);
+    }
+
+    public void put(byte[] rowkey, Weibo weibo) {
+        ByteBuffer key = ByteBuffer.wrap(rowkey);
+        segmentFor(key).put(key, encode(weibo));
+    }
+
+    /**
+     * 开始加载一条未缓存的微博
+     * @param rowkey
+     * @return 如果已有其他线程正在加载，返回其Flight，调用方等待即可；否则返回null，调用方成为owner，
+     *         加载完成后必须调用complete()
+     */
+    public Flight join(byte[] rowkey) {
+        Flight flight = new Flight();
+        Flight existing = inflight.putIfAbsent(ByteBuffer.wrap(rowkey), flight);
+        if (existing != null) {
+            coalescedLoads.incrementAndGet();
+        }
+        return existing;
+    }
+
+    /**
+     * owner加载完成，weibo为null表示该微博不存在，failed为true表示加载失败
+     * @param rowkey
+     * @param weibo
+     * @param failed
+     */
+    public void complete(byte[] rowkey, Weibo weibo, boolean failed) {
+        if (weibo != null) {
+            put(rowkey, weibo);
+        }
+        Flight flight = inflight.remove(ByteBuffer.wrap(rowkey));
+        if (flight != null) {
+            flight.weibo = weibo;
+            flight.failed = failed;
+            flight.latch.countDown();
+        }
+    }
+
+    private Segment segmentFor(ByteBuffer key) {
+        return segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * 因其他线程正在加载同一条微博而被合并的加载次数
+     * @return
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    /**
+     * 缓存当前占用的字节数
+     * @return
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.usedBytes();
+        }
+        return used;
+    }
+
+    /**
+     * 编码格式：time(8字节) + userid + title + content + image + imageId，每个字段为 长度(4字节，-1表示null) + 内容
+     * @param weibo
+     * @return
+     */
+    static byte[] encode(Weibo weibo) {
+        byte[] userid = weibo.getUserid() == null ? null : Bytes.toBytes(weibo.getUserid());
+        byte[] title = weibo.getTitle() == null ? null : Bytes.toBytes(weibo.getTitle());
+        byte[] content = weibo.getContent() == null ? null : Bytes.toBytes(weibo.getContent());
+        byte[] image = weibo.getImage();
+        byte[] imageId = weibo.getImageId() == null ? null : Bytes.toBytes(weibo.getImageId());
+        byte[] packed = new byte[Bytes.SIZEOF_LONG + 5 * Bytes.SIZEOF_INT
+                + length(userid) + length(title) + length(content) + length(image) + length(imageId)];
+        int offset = Bytes.putLong(packed, 0, weibo.getTime());
+        offset = putField(packed, offset, userid);
+        offset = putField(packed, offset, title);
+        offset = putField(packed, offset, content);
+        offset = putField(packed, offset, image);
+        putField(packed, offset, imageId);
+        return packed;
+    }
+
+    static Weibo decode(byte[] packed) {
+        Weibo weibo = new Weibo();
+        weibo.setTime(Bytes.toLong(packed, 0));
+        int offset = Bytes.SIZEOF_LONG;
+        byte[] userid = getField(packed, offset);
+        offset += Bytes.SIZEOF_INT + length(userid);
+        byte[] title = getField(packed, offset);
+        offset += Bytes.SIZEOF_INT + length(title);
+        byte[] content = getField(packed, offset);
+        offset += Bytes.SIZEOF_INT + length(content);
+        weibo.setUserid(userid == null ? null : Bytes.toString(userid));
+        weibo.setTitle(title == null ? null : Bytes.toString(title));
+        weibo.setContent(content == null ? null : Bytes.toString(content));
+        byte[] image = getField(packed, offset);
+        offset += Bytes.SIZEOF_INT + length(image);
+        byte[] imageId = getField(packed, offset);
+        weibo.setImage(image);
+        weibo.setImageId(imageId == null ? null : Bytes.toString(imageId));
+        return weibo;
+    }
+
+    private static int length(byte[] field) {
+        return field == null ? 0 : field.length;
+    }
+
+    private static int putField(byte[] packed, int offset, byte[] field) {
+        if (field == null) {
+            return Bytes.putInt(packed, offset, -1);
+        }
+        offset = Bytes.putInt(packed, offset, field.length);
+        return Bytes.putBytes(packed, offset, field, 0, field.length);
+    }
+
+    private static byte[] getField(byte[] packed, int offset) {
+        int length = Bytes.toInt(packed, offset);
+        if (length < 0) {
+            return null;
+        }
+        return Bytes.copy(packed, offset + Bytes.SIZEOF_INT, length);
+    }
+
+    /**
+     * 正在进行的一次加载
+     */
+    public static class Flight {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Weibo weibo;
+        private volatile boolean failed;
+
+        /**
+         * 等待owner加载完成
+         * @param timeoutMs
+         * @return 是否在超时前完成
+         * @throws InterruptedException
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public Weibo getWeibo() {
+            return weibo;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private class Segment {
+        private final long maxBytes;
+        private long usedBytes = 0;
+        private final LinkedHashMap<ByteBuffer, byte[]> map = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true);
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(ByteBuffer key) {
+            return map.get(key);
+        }
+
+        synchronized void put(ByteBuffer key, byte[] packed) {
+            byte[] old = map.put(key, packed);
+            if (old != null) {
+                usedBytes -= sizeOf(key, old);
+            }
+            usedBytes += sizeOf(key, packed);
+            Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = map.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<ByteBuffer, byte[]> eldest = iterator.next();
+                usedBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized long usedBytes() {
+            return usedBytes;
+        }
+
+        private long sizeOf(ByteBuffer key, byte[] packed) {
+            return key.capacity() + packed.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * t_weibo表中一条微博的两种存储格式
+ * columns：原来的格式，title、content、image_ref、userid各一个单元格，每个单元格都重复保存rowkey、列族、列名和时间戳，
+ *          userid与rowkey中的userid重复
+ * compact：只有一个单元格cf1:p，值为带版本号的二进制编码，userid从rowkey中取出，发布时间为单元格的时间戳
+ *
+ * compact格式(版本1)：
+ *   版本号(1字节) + 标志(1字节，第0位有标题、第1位有内容、第2位有图片)
+ *   + [标题字节数(varint) + 标题(UTF-8)] + [内容字节数(varint) + 内容(UTF-8)] + [图片ID(SHA-256，32字节)]
+ *
+ * 写入格式由weibo.post.format选择，读取时两种格式都支持，可以用WeiboPostFormatTool在两种格式之间转换。
+ * 转换之后执行WeiboImageMigration写入的cf1:image_ref同样可以读取，再执行一次转换即可合并到cf1:p中。
+ */
+public class WeiboPostCodec {
+
+    public static final String FORMAT_COLUMNS = "columns";
+    public static final String FORMAT_COMPACT = "compact";
+
+    public static final byte VERSION = 1;
+
+    private static final int HAS_TITLE = 1;
+    private static final int HAS_CONTENT = 1 << 1;
+    private static final int HAS_IMAGE = 1 << 2;
+    private static final int IMAGE_ID_LENGTH = 32;
+
+    private boolean compact;
+
+    /**
+     * @param format 写入格式：columns 或 compact
+     */
+    public WeiboPostCodec(String format) {
+        if (FORMAT_COMPACT.equals(format)) {
+            compact = true;
+        } else if (FORMAT_COLUMNS.equals(format)) {
+            compact = false;
+        } else {
+            throw new IllegalArgumentException("不支持的微博存储格式：" + format + "，可选值：" + FORMAT_COLUMNS + "、" + FORMAT_COMPACT);
+        }
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * 按写入格式生成t_weibo表的Put
+     * @param rowkey
+     * @param time 发布时间，即单元格的时间戳
+     * @param userid
+     * @param title
+     * @param content
+     * @param imageId 没有图片时为null
+     * @return
+     */
+    public Put toPut(byte[] rowkey, long time, String userid, String title, String content, String imageId) {
+        Put put = new Put(rowkey, time);
+        if (compact) {
+            put.addColumn(WeiboConstants.CF1, WeiboConstants.POST, encode(title, content, imageId));
+            return put;
+        }
+        if (title != null) {
+            put.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE, title.getBytes());
+        }
+        if (content != null) {
+            put.addColumn(WeiboConstants.CF1, WeiboConstants.CONTENT, content.getBytes());
+        }
+        if (imageId != null) {
+            put.addColumn(WeiboConstants.CF1, WeiboConstants.IMAGE_REF, Bytes.toBytes(imageId));
+        }
+        put.addColumn(WeiboConstants.CF1, WeiboConstants.USERID, userid.getBytes());
+        return put;
+    }
+
+    /**
+     * 编码为compact格式
+     * @param title
+     * @param content
+     * @param imageId
+     * @return
+     */
+    public static byte[] encode(String title, String content, String imageId) {
+        byte[] titleBytes = title == null ? null : Bytes.toBytes(title);
+        byte[] contentBytes = content == null ? null : Bytes.toBytes(content);
+        int flags = (titleBytes == null ? 0 : HAS_TITLE) | (contentBytes == null ? 0 : HAS_CONTENT) | (imageId == null ? 0 : HAS_IMAGE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + (titleBytes == null ? 0 : titleBytes.length + 2)
+                + (contentBytes == null ? 0 : contentBytes.length + 2) + (imageId == null ? 0 : IMAGE_ID_LENGTH));
+        out.write(VERSION);
+        out.write(flags);
+        if (titleBytes != null) {
+            WeiboPostingList.writeVarLong(out, titleBytes.length);
+            out.write(titleBytes, 0, titleBytes.length);
+        }
+        if (contentBytes != null) {
+            WeiboPostingList.writeVarLong(out, contentBytes.length);
+            out.write(contentBytes, 0, contentBytes.length);
+        }
+        if (imageId != null) {
+            out.write(WeiboImageStore.fromHex(imageId), 0, IMAGE_ID_LENGTH);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码compact格式
+     * @param rowkey t_weibo表的rowkey，用于取出userid
+     * @param value cf1:p的值
+     * @param time 单元格的时间戳
+     * @return
+     */
+    public static Weibo decode(byte[] rowkey, byte[] value, long time) {
+        if (value.length < 2 || value[0] != VERSION) {
+            throw new IllegalArgumentException("不支持的微博编码版本：" + (value.length == 0 ? "空值" : String.valueOf(value[0])));
+        }
+        int flags = value[1];
+        int[] offset = new int[]{2};
+        Weibo weibo = new Weibo();
+        weibo.setUserid(WeiboRowKeyCodec.useridOf(rowkey));
+        weibo.setTime(time);
+        if ((flags & HAS_TITLE) != 0) {
+            weibo.setTitle(readString(value, offset));
+        }
+        if ((flags & HAS_CONTENT) != 0) {
+            weibo.setContent(readString(value, offset));
+        }
+        if ((flags & HAS_IMAGE) != 0) {
+            weibo.setImageId(WeiboImageStore.toHex(Bytes.copy(value, offset[0], IMAGE_ID_LENGTH)));
+        }
+        return weibo;
+    }
+
+    private static String readString(byte[] value, int[] offset) {
+        int length = (int) WeiboPostingList.readVarLong(value, offset);
+        String s = Bytes.toString(value, offset[0], length);
+        offset[0] += length;
+        return s;
+    }
+
+    /**
+     * 把t_weibo表的一行数据转换为Weibo，两种格式都支持
+     * @param result
+     * @return
+     */
+    public static Weibo toWeibo(Result result) {
+        Cell post = result.getColumnLatestCell(WeiboConstants.CF1, WeiboConstants.POST);
+        byte[] imageRef = result.getValue(WeiboConstants.CF1, WeiboConstants.IMAGE_REF);
+        Weibo weibo;
+        if (post != null) {
+            weibo = decode(result.getRow(), CellUtil.cloneValue(post), post.getTimestamp());
+        } else {
+            weibo = new Weibo();
+            weibo.setTitle(Bytes.toString(result.getValue(WeiboConstants.CF1, WeiboConstants.TITLE)));
+            weibo.setContent(Bytes.toString(result.getValue(WeiboConstants.CF1, WeiboConstants.CONTENT)));
+            weibo.setImage(result.getValue(WeiboConstants.CF1, WeiboConstants.IMAGE));
+            weibo.setTime(result.rawCells()[0].getTimestamp());
+            weibo.setUserid(Bytes.toString(result.getValue(WeiboConstants.CF1, WeiboConstants.USERID)));
+        }
+        if (weibo.getImageId() == null && imageRef != null) {
+            weibo.setImageId(Bytes.toString(imageRef));
+        }
+        return weibo;
+    }
+
+    /**
+     * 添加读取微博摘要需要的列(两种格式)，不读取原来直接保存在cf1:image中的图片
+     * @param get
+     * @return
+     */
+    public static Get addSummaryColumns(Get get) {
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.POST);
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE);
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.CONTENT);
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.USERID);
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.IMAGE_REF);
+        return get;
+    }
+
+    /**
+     * 添加读取微博摘要需要的列(两种格式)
+     * @param scan
+     * @return
+     */
+    public static Scan addSummaryColumns(Scan scan) {
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.POST);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.CONTENT);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.USERID);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.IMAGE_REF);
+        return scan;
+    }
+
+    /**
+     * 只需要判断微博是否存在(例如按用户扫描微博的rowkey)时使用的列：每种格式各一个必定存在的列
+     * @param scan
+     * @return
+     */
+    public static Scan addMarkerColumns(Scan scan) {
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.POST);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.USERID);
+        return scan;
+    }
+
+    /**
+     * 写入格式中每条微博必定存在的列，用于确认转换后的数据可以读取
+     * @return
+     */
+    public byte[] getMarkerColumn() {
+        return compact ? WeiboConstants.POST : WeiboConstants.USERID;
+    }
+
+    /**
+     * 一行数据是否需要转换为目标格式
+     * @param result 按addSummaryColumns读取的一行数据
+     * @return
+     */
+    public boolean needsConversion(Result result) {
+        boolean hasPost = result.containsColumn(WeiboConstants.CF1, WeiboConstants.POST);
+        boolean hasColumns = result.containsColumn(WeiboConstants.CF1, WeiboConstants.TITLE)
+                || result.containsColumn(WeiboConstants.CF1, WeiboConstants.CONTENT)
+                || result.containsColumn(WeiboConstants.CF1, WeiboConstants.USERID)
+                || result.containsColumn(WeiboConstants.CF1, WeiboConstants.IMAGE_REF);
+        return compact ? hasColumns : hasPost;
+    }
+
+    /**
+     * 把一行数据按目标格式重新写入，时间戳不变
+     * @param result 按addSummaryColumns读取的一行数据
+     * @return
+     */
+    public Put convert(Result result) {
+        Weibo weibo = toWeibo(result);
+        return toPut(result.getRow(), weibo.getTime(), weibo.getUserid(), weibo.getTitle(), weibo.getContent(), weibo.getImageId());
+    }
+
+    /**
+     * 转换后删除另一种格式的列，只删除读取到的版本(时间戳相同的单元格)
+     * 不能删除整个列：不指定时间戳的删除标记在major compaction之前一直遮盖时间戳更早的单元格，
+     * 转换后的单元格保留微博的发布时间，之后再写入该列(例如WeiboImageMigration写入image_ref，或者转换回原来的格式)会被遮盖
+     * @param result 按addSummaryColumns读取的一行数据
+     * @return
+     */
+    public Delete deleteOther(Result result) {
+        Delete delete = new Delete(result.getRow());
+        for (Cell cell : result.rawCells()) {
+            boolean post = CellUtil.matchingQualifier(cell, WeiboConstants.POST);
+            if (compact != post) {
+                delete.addColumn(WeiboConstants.CF1, CellUtil.cloneQualifier(cell), cell.getTimestamp());
+            }
+        }
+        return delete;
+    }
+}
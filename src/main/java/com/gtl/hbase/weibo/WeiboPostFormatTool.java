@@ -0,0 +1,131 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把t_weibo表中的微博转换为另一种存储格式，见WeiboPostCodec，执行期间服务正常读写
+ * 步骤：
+ * 1、把weibo.post.format改为目标格式并重启服务，之后发布的微博按目标格式写入
+ * 2、扫描t_weibo表的摘要列，按目标格式重新写入(时间戳与原来的单元格相同，微博的发布时间不变)
+ * 3、确认按目标格式写入的数据可以读取后，删除另一种格式中读取到的版本；已经是目标格式的行跳过，可以多次执行
+ * 删除标记在major compaction之前一直遮盖时间戳相同的单元格，因此转换之后如果要再转换回原来的格式，
+ * 需要先对t_weibo表执行major compaction；否则重新写入的数据不可见，这些微博保留原来的格式并在结束时报告，compaction后重新执行即可
+ * 原来直接保存在cf1:image中的图片不转换，用WeiboImageMigration迁移
+ *
+ * 用法：WeiboPostFormatTool zookeeper地址 compact|columns
+ * 命名空间和盐值个数从weibo.namespace、weibo.salt.buckets读取(默认weibo、9)
+ */
+public class WeiboPostFormatTool {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboPostCodec codec;
+    private int batchSize;
+
+    /**
+     * @param dao
+     * @param tables
+     * @param format 目标格式：compact 或 columns
+     * @param batchSize
+     */
+    public WeiboPostFormatTool(WeiboDao dao, WeiboTables tables, String format, int batchSize) {
+        this.dao = dao;
+        this.tables = tables;
+        this.codec = new WeiboPostCodec(format);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 2、3、转换存储格式
+     * @return 转换的微博条数
+     * @throws IOException
+     */
+    public long convert() throws IOException {
+        long weibos = 0;
+        long blocked = 0;
+        List<Put> puts = new ArrayList<Put>();
+        List<Delete> deletes = new ArrayList<Delete>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = WeiboPostCodec.addSummaryColumns(new Scan());
+            scan.setCaching(batchSize);
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                if (!codec.needsConversion(result)) {
+                    continue;
+                }
+                puts.add(codec.convert(result));
+                deletes.add(codec.deleteOther(result));
+                weibos++;
+                if (puts.size() >= batchSize) {
+                    blocked += flush(puts, deletes);
+                    puts = new ArrayList<Put>();
+                    deletes = new ArrayList<Delete>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                blocked += flush(puts, deletes);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("表" + tables.weiboTable() + "转换为" + (codec.isCompact() ? WeiboPostCodec.FORMAT_COMPACT : WeiboPostCodec.FORMAT_COLUMNS)
+                + "格式完成：" + (weibos - blocked) + "条微博");
+        if (blocked > 0) {
+            System.out.println(blocked + "条微博按目标格式写入的数据被之前转换留下的删除标记遮盖，保留原来的格式；对表" + tables.weiboTable()
+                    + "执行major compaction后重新执行");
+        }
+        return weibos - blocked;
+    }
+
+    /**
+     * 先写入新格式，确认可以读取后再删除原来的列，转换期间每条微博至少有一种格式可以读取
+     * @param puts
+     * @param deletes 与puts一一对应
+     * @return 新格式不可读取、没有删除原来的列的微博条数
+     * @throws IOException
+     */
+    private int flush(List<Put> puts, List<Delete> deletes) throws IOException {
+        dao.putDatas(tables.weiboTable(), puts);
+        List<Get> gets = new ArrayList<Get>(puts.size());
+        for (Put put : puts) {
+            Get get = new Get(put.getRow());
+            get.addColumn(WeiboConstants.CF1, codec.getMarkerColumn());
+            gets.add(get);
+        }
+        Result[] results = dao.getRowDatas(tables.weiboTable(), gets);
+        List<Delete> visible = new ArrayList<Delete>(deletes.size());
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isEmpty()) {
+                visible.add(deletes.get(i));
+            }
+        }
+        if (!visible.isEmpty()) {
+            dao.deleteDatas(tables.weiboTable(), visible);
+        }
+        return deletes.size() - visible.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(WeiboPostCodec.FORMAT_COMPACT.equals(args[1]) || WeiboPostCodec.FORMAT_COLUMNS.equals(args[1]))) {
+            System.out.println("用法：WeiboPostFormatTool zookeeper地址 compact|columns");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            new WeiboPostFormatTool(dao, WeiboTables.create(conf), args[1], 500).convert();
+        } finally {
+            dao.close();
+        }
+    }
+}
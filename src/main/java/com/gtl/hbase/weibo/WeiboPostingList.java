@@ -0,0 +1,130 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 倒排列表的压缩编码，一个词在一天内出现过的所有微博
+ * 格式：微博条数(varint) + 每条微博 [ID差值(varint) + 出现次数(varint) + userid长度(varint) + userid(UTF-8)]
+ * 微博按ID降序排列，第一条保存ID本身，之后保存与前一条的差值；
+ * 同一天的微博ID高位相同，差值通常只有3~5个字节，而原始的ID是8个字节。
+ * varint每个字节保存7位，最高位为1表示后面还有字节。
+ */
+public class WeiboPostingList {
+
+    /**
+     * 按微博ID降序
+     */
+    public static final Comparator<Posting> NEWEST_FIRST = new Comparator<Posting>() {
+        public int compare(Posting a, Posting b) {
+            return a.getId() > b.getId() ? -1 : (a.getId() < b.getId() ? 1 : 0);
+        }
+    };
+
+    private WeiboPostingList() {
+    }
+
+    /**
+     * 编码
+     * @param postings 同一个微博ID只能出现一次
+     * @return
+     */
+    public static byte[] encode(List<Posting> postings) {
+        List<Posting> sorted = new ArrayList<Posting>(postings);
+        Collections.sort(sorted, NEWEST_FIRST);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.size() * 16);
+        writeVarLong(out, sorted.size());
+        long previous = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            Posting posting = sorted.get(i);
+            writeVarLong(out, i == 0 ? posting.getId() : previous - posting.getId());
+            writeVarLong(out, posting.getFrequency());
+            byte[] userid = Bytes.toBytes(posting.getUserid());
+            writeVarLong(out, userid.length);
+            out.write(userid, 0, userid.length);
+            previous = posting.getId();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码
+     * @param bytes
+     * @return 按微博ID降序
+     */
+    public static List<Posting> decode(byte[] bytes) {
+        int[] offset = new int[]{0};
+        int count = (int) readVarLong(bytes, offset);
+        List<Posting> postings = new ArrayList<Posting>(count);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = readVarLong(bytes, offset);
+            long id = i == 0 ? delta : previous - delta;
+            int frequency = (int) readVarLong(bytes, offset);
+            int length = (int) readVarLong(bytes, offset);
+            String userid = Bytes.toString(bytes, offset[0], length);
+            offset[0] += length;
+            postings.add(new Posting(id, userid, frequency));
+            previous = id;
+        }
+        return postings;
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(byte[] bytes, int[] offset) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = bytes[offset[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * 倒排列表中的一条微博
+     */
+    public static class Posting {
+        private long id;
+        private String userid;
+        private int frequency;
+
+        /**
+         * @param id 微博ID
+         * @param userid 发布微博的用户
+         * @param frequency 词在微博中出现的次数
+         */
+        public Posting(long id, String userid, int frequency) {
+            this.id = id;
+            this.userid = userid;
+            this.frequency = frequency;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getUserid() {
+            return userid;
+        }
+
+        public int getFrequency() {
+            return frequency;
+        }
+    }
+}
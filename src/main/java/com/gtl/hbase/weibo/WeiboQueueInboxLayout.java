@@ -0,0 +1,117 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 接收列表方式一：t_user_weibo_queue表
+ * rowkey：用户的rowkey
+ * 列名：只有一个，固定为weibo，保存最新的100个版本，类似长度为100的队列，最新的微博覆盖最旧的微博
+ * 列值：微博的rowkey
+ * 版本：微博ID
+ *
+ * 读取只需要一个列，已经按版本降序排列，不需要归并；所有关注用户共用100条，关注用户多时能看到的历史微博最少。
+ * 取消关注时需要读出所有版本，逐个删除该关注用户的微博。
+ * 迁移的旧微博同一毫秒的微博ID相同，写入同一个列时会互相覆盖。
+ */
+public class WeiboQueueInboxLayout implements WeiboInboxLayout {
+
+    public static final String NAME = "queue";
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private TableName table;
+
+    public WeiboQueueInboxLayout(WeiboDao dao, WeiboTables tables) {
+        this.dao = dao;
+        this.tables = tables;
+        this.table = TableName.valueOf(tables.getNamespace(), WeiboConstants.TABLE_USER_WEIBO_QUEUE);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public TableName getTable() {
+        return table;
+    }
+
+    public int getMaxVersions() {
+        return 100;
+    }
+
+    public List<Put> toPuts(String userid, List<WeiboTimelineEntry> entries) {
+        Put put = new Put(tables.userRowKey(userid));
+        for (WeiboTimelineEntry entry : entries) {
+            put.addColumn(WeiboConstants.CF1, WeiboConstants.INBOX_QUALIFIER, entry.getId(), entry.getRowkey());
+        }
+        List<Put> puts = new ArrayList<Put>(1);
+        puts.add(put);
+        return puts;
+    }
+
+    public void read(String userid, WeiboTimelineEntry after, int limit, WeiboTimelineMerger merger) throws IOException {
+        // 有游标时多读1条：同一个列中版本互不相同，最多有1条与游标的微博ID相同、需要跳过的微博
+        int versions = after == null ? limit : limit + 1;
+        Get get = new Get(tables.userRowKey(userid));
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.INBOX_QUALIFIER);
+        get.setMaxVersions(versions);
+        if (after != null) {
+            get.setTimeRange(0, after.getId() + 1);
+        }
+        Result rowData = dao.getOneRowData(table, get);
+        List<WeiboTimelineEntry> run = entriesOf(rowData);
+        merger.addRun(run, run.size() >= versions);
+    }
+
+    public void remove(String userid, Collection<String> authors) throws IOException {
+        Get get = new Get(tables.userRowKey(userid));
+        get.addColumn(WeiboConstants.CF1, WeiboConstants.INBOX_QUALIFIER);
+        get.setMaxVersions();
+        Result rowData = dao.getOneRowData(table, get);
+        Cell[] cells = rowData.rawCells();
+        if (cells == null || cells.length == 0) {
+            return;
+        }
+        Set<ByteBuffer> authorSet = new HashSet<ByteBuffer>();
+        for (String author : authors) {
+            authorSet.add(ByteBuffer.wrap(Bytes.toBytes(author)));
+        }
+        Delete delete = new Delete(rowData.getRow());
+        boolean found = false;
+        for (Cell cell : cells) {
+            if (authorSet.contains(ByteBuffer.wrap(WeiboRowKeyCodec.useridBytesOf(CellUtil.cloneValue(cell))))) {
+                // 只删除该版本
+                delete.addColumn(WeiboConstants.CF1, WeiboConstants.INBOX_QUALIFIER, cell.getTimestamp());
+                found = true;
+            }
+        }
+        if (found) {
+            List<Delete> deletes = new ArrayList<Delete>();
+            deletes.add(delete);
+            dao.deleteDatas(table, deletes);
+        }
+    }
+
+    public List<WeiboTimelineEntry> entriesOf(Result result) {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>();
+        Cell[] cells = result.rawCells();
+        if (cells != null) {
+            for (Cell cell : cells) {
+                entries.add(new WeiboTimelineEntry(CellUtil.cloneValue(cell), cell.getTimestamp()));
+            }
+        }
+        return entries;
+    }
+}
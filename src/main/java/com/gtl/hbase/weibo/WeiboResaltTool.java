@@ -0,0 +1,174 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在线增加盐值个数：把三张表复制到新命名空间下按新盐值个数预分区的表中，复制期间原来的表正常读写
+ * 步骤：
+ * 1、在新命名空间下创建三张表，预分区数量为新的盐值个数
+ * 2、全量复制：扫描原来的表(所有版本)，按新盐值重新编码rowkey后写入新表；登记大V的CELEBRITY_ROW原样复制；
+ *    接收列表由WeiboInboxMigration按同一种存储方式复制，其中保存的t_weibo表的rowkey同样重新编码
+ * 3、增量复制：只复制全量复制开始之后写入的单元格(按时间戳过滤)，可以多次执行，直到切换配置
+ * 4、把weibo.namespace、weibo.salt.buckets改为新的值并重启服务，再执行一次增量复制
+ *
+ * 增量复制只能复制新写入的单元格，复制期间的删除(取消关注)不会同步到新表，需要在切换后重新执行。
+ * t_weibo_image表一起复制(rowkey的盐值由图片哈希重新计算)；标题索引和全文索引不复制，切换后用WeiboTitleIndexTool、WeiboSearchIndexTool在新命名空间下重建。
+ *
+ * 用法：WeiboResaltTool zookeeper地址 新命名空间 新盐值个数 [增量复制的起始时间戳]
+ * 原来的命名空间和盐值个数从weibo.namespace、weibo.salt.buckets读取(默认weibo、9)，接收列表的存储方式从weibo.inbox.layout读取
+ */
+public class WeiboResaltTool {
+
+    private WeiboDao dao;
+    private WeiboTables source;
+    private WeiboTables target;
+    private WeiboInboxLayout sourceInbox;
+    private WeiboInboxLayout targetInbox;
+    private int batchSize;
+
+    /**
+     * @param dao
+     * @param source 原来的表
+     * @param target 新的表
+     * @param inboxLayout 接收列表的存储方式，见WeiboInboxLayouts
+     * @param batchSize
+     */
+    public WeiboResaltTool(WeiboDao dao, WeiboTables source, WeiboTables target, String inboxLayout, int batchSize) {
+        if (Bytes.equals(source.getNamespace(), target.getNamespace())) {
+            throw new IllegalArgumentException("新表必须位于不同的命名空间");
+        }
+        this.dao = dao;
+        this.source = source;
+        this.target = target;
+        this.sourceInbox = WeiboInboxLayouts.create(inboxLayout, dao, source);
+        this.targetInbox = WeiboInboxLayouts.create(inboxLayout, dao, target);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 1、在新命名空间下创建三张表以及t_weibo_image表，按新盐值个数预分区
+     * @throws IOException
+     */
+    public void createTargetTables() throws IOException {
+        byte[] ns = target.getNamespace();
+        if (!dao.namespaceExists(ns)) {
+            dao.createNamespace(ns);
+        }
+        createTable(WeiboConstants.TABLE_WEIBO, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        createTable(WeiboConstants.TABLE_USER_RELATIONS, new byte[][]{WeiboConstants.CF1,WeiboConstants.CF2}, new int[]{1,1});
+        createTable(targetInbox.getTable().getQualifier(), new byte[][]{WeiboConstants.CF1}, new int[]{targetInbox.getMaxVersions()});
+        createTable(WeiboConstants.TABLE_WEIBO_IMAGE, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+    }
+
+    private void createTable(byte[] tn, byte[][] cfs, int[] versions) throws IOException {
+        byte[] ns = target.getNamespace();
+        if (dao.tableExists(ns, tn)) {
+            System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "已经存在");
+            return;
+        }
+        dao.createTable(ns, tn, cfs, versions, target.getCodec().splitKeys());
+        System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "创建成功，分区数：" + target.getCodec().getSaltBuckets());
+    }
+
+    /**
+     * 2、3、复制三张表以及t_weibo_image表
+     * @param minTimestamp 只复制时间戳大于等于该值的单元格，0表示全量复制
+     * @return 复制的行数(接收列表为微博条数)
+     * @throws IOException
+     */
+    public long copy(long minTimestamp) throws IOException {
+        long rows = 0;
+        rows += copyTable(source.weiboTable(), target.weiboTable(), minTimestamp);
+        rows += copyTable(source.userRelationsTable(), target.userRelationsTable(), minTimestamp);
+        rows += new WeiboInboxMigration(dao, sourceInbox, targetInbox, target.getCodec(), batchSize).copy(minTimestamp);
+        rows += copyTable(source.imageTable(), target.imageTable(), minTimestamp);
+        return rows;
+    }
+
+    private long copyTable(TableName from, TableName to, long minTimestamp) throws IOException {
+        WeiboRowKeyCodec codec = target.getCodec();
+        WeiboImageStore targetImages = new WeiboImageStore(dao, target, WeiboConstants.IMAGE_CHUNK_BYTES_DEFAULT);
+        boolean images = to.equals(target.imageTable());
+        long rows = 0;
+        List<Put> puts = new ArrayList<Put>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.setMaxVersions();
+            scan.setCaching(batchSize);
+            if (minTimestamp > 0) {
+                scan.setTimeRange(minTimestamp, Long.MAX_VALUE);
+            }
+            resultScanner = dao.getDatas(from, scan);
+            for (Result result : resultScanner) {
+                byte[] row = result.getRow();
+                //登记大V的行不是按用户编码的rowkey，原样复制
+                byte[] newRow;
+                if (images) {
+                    newRow = targetImages.resalt(row);
+                } else {
+                    newRow = Bytes.equals(row, WeiboConstants.CELEBRITY_ROW) ? row : codec.resalt(row);
+                }
+                Put put = new Put(newRow);
+                for (Cell cell : result.rawCells()) {
+                    put.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell), cell.getTimestamp(), CellUtil.cloneValue(cell));
+                }
+                puts.add(put);
+                rows++;
+                if (puts.size() >= batchSize) {
+                    dao.putDatas(to, puts);
+                    puts = new ArrayList<Put>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                dao.putDatas(to, puts);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("表" + from + "复制到" + to + "：" + rows + "行");
+        return rows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("用法：WeiboResaltTool zookeeper地址 新命名空间 新盐值个数 [增量复制的起始时间戳]");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboTables source = WeiboTables.create(conf);
+        WeiboTables target = new WeiboTables(Bytes.toBytes(args[1]), Integer.parseInt(args[2]));
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboResaltTool tool = new WeiboResaltTool(dao, source, target,
+                    conf.get(WeiboConstants.INBOX_LAYOUT_KEY, WeiboConstants.INBOX_LAYOUT_DEFAULT), 500);
+            if (args.length > 3) {
+                long since = Long.parseLong(args[3]);
+                System.out.println("增量复制完成，共" + tool.copy(since) + "行");
+                return;
+            }
+            tool.createTargetTables();
+            //减去1分钟，避免服务器之间的时钟误差漏掉单元格
+            long startTime = System.currentTimeMillis() - 60000L;
+            System.out.println("全量复制完成，共" + tool.copy(0) + "行");
+            System.out.println("增量复制完成，共" + tool.copy(startTime) + "行");
+            System.out.println("切换配置 " + WeiboConstants.NAMESPACE_KEY + "=" + args[1] + " " + WeiboConstants.SALT_BUCKETS_KEY + "=" + args[2]
+                    + " 并重启服务后，再执行一次增量复制：WeiboResaltTool " + args[0] + " " + args[1] + " " + args[2] + " " + startTime);
+        } finally {
+            dao.close();
+        }
+    }
+}
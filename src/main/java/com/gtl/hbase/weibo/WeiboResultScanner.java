@@ -0,0 +1,21 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.client.Result;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * WeiboDao.getDatas()返回的扫描结果，用法与HBase的ResultScanner相同
+ */
+public interface WeiboResultScanner extends Closeable, Iterable<Result> {
+
+    /**
+     * 读取下一行
+     * @return 没有更多数据时返回null
+     * @throws IOException
+     */
+    Result next() throws IOException;
+
+    void close();
+}
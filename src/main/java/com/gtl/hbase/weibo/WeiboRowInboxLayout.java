@@ -0,0 +1,149 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.MultipleColumnPrefixFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 接收列表方式三：t_user_weibo_timeline表
+ * rowkey：用户 + (Long.MAX_VALUE - 微博ID)，编码与t_weibo表的rowkey相同(WeiboRowKeyCodec.weiboRowKey)
+ * 列名：微博的rowkey，微博ID相同的多条微博(迁移的旧微博)在同一行的不同列中，不会互相覆盖
+ * 列值：空
+ * 版本：微博ID
+ *
+ * 同一个用户接收的微博在同一个分区内按发布时间降序连续存放，读取一页就是从游标位置开始的一次范围扫描，
+ * 只读取这一页需要的行，不需要归并；每个用户的接收列表不限制条数。
+ * 取消关注时按用户范围扫描，用MultipleColumnPrefixFilter在服务端只返回被取消关注的用户的微博(列名以这些用户的rowkey前缀开头)，再逐条删除。
+ */
+public class WeiboRowInboxLayout implements WeiboInboxLayout {
+
+    public static final String NAME = "row";
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private TableName table;
+
+    public WeiboRowInboxLayout(WeiboDao dao, WeiboTables tables) {
+        this.dao = dao;
+        this.tables = tables;
+        this.table = TableName.valueOf(tables.getNamespace(), WeiboConstants.TABLE_USER_WEIBO_TIMELINE);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public TableName getTable() {
+        return table;
+    }
+
+    public int getMaxVersions() {
+        return 1;
+    }
+
+    public List<Put> toPuts(String userid, List<WeiboTimelineEntry> entries) {
+        List<Put> puts = new ArrayList<Put>(entries.size());
+        for (WeiboTimelineEntry entry : entries) {
+            Put put = new Put(tables.weiboRowKey(userid, entry.getId()));
+            put.addColumn(WeiboConstants.CF1, entry.getRowkey(), entry.getId(), EMPTY);
+            puts.add(put);
+        }
+        return puts;
+    }
+
+    public void read(String userid, WeiboTimelineEntry after, int limit, WeiboTimelineMerger merger) throws IOException {
+        WeiboRowKeyCodec codec = tables.getCodec();
+        // 有游标时从游标的微博ID所在的行开始扫描(包含)，该行中排在游标之前的微博由WeiboTimelineMerger跳过
+        byte[] startRow = after == null ? codec.weiboScanStart(userid) : tables.weiboRowKey(userid, after.getId());
+        Scan scan = new Scan(startRow, codec.weiboScanStop(userid));
+        scan.addFamily(WeiboConstants.CF1);
+        scan.setCaching(limit + 1);
+        List<WeiboTimelineEntry> run = new ArrayList<WeiboTimelineEntry>();
+        boolean truncated = false;
+        WeiboResultScanner resultScanner = null;
+        try {
+            resultScanner = dao.getDatas(table, scan);
+            int newer = 0;
+            for (Result result : resultScanner) {
+                for (Cell cell : result.rawCells()) {
+                    WeiboTimelineEntry entry = new WeiboTimelineEntry(CellUtil.cloneQualifier(cell), cell.getTimestamp());
+                    run.add(entry);
+                    if (after == null || WeiboTimelineMerger.NEWEST_FIRST.compare(entry, after) > 0) {
+                        newer++;
+                    }
+                }
+                if (newer >= limit) {
+                    truncated = true;
+                    break;
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        merger.addRun(run, truncated);
+    }
+
+    public void remove(String userid, Collection<String> authors) throws IOException {
+        if (authors.isEmpty()) {
+            return;
+        }
+        WeiboRowKeyCodec codec = tables.getCodec();
+        Scan scan = new Scan(codec.weiboScanStart(userid), codec.weiboScanStop(userid));
+        scan.addFamily(WeiboConstants.CF1);
+        // 一次扫描匹配所有被取消关注的用户
+        byte[][] prefixes = new byte[authors.size()][];
+        int i = 0;
+        for (String author : authors) {
+            prefixes[i++] = tables.userRowKey(author);
+        }
+        scan.setFilter(new MultipleColumnPrefixFilter(prefixes));
+        scan.setCaching(DELETE_BATCH_SIZE);
+        List<Delete> deletes = new ArrayList<Delete>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            resultScanner = dao.getDatas(table, scan);
+            for (Result result : resultScanner) {
+                Delete delete = new Delete(result.getRow());
+                for (Cell cell : result.rawCells()) {
+                    // 单元格的版本是微博ID，必须指定时间戳
+                    delete.addColumn(WeiboConstants.CF1, CellUtil.cloneQualifier(cell), cell.getTimestamp());
+                }
+                deletes.add(delete);
+                if (deletes.size() >= DELETE_BATCH_SIZE) {
+                    dao.deleteDatas(table, deletes);
+                    deletes = new ArrayList<Delete>();
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        if (!deletes.isEmpty()) {
+            dao.deleteDatas(table, deletes);
+        }
+    }
+
+    public List<WeiboTimelineEntry> entriesOf(Result result) {
+        List<WeiboTimelineEntry> entries = new ArrayList<WeiboTimelineEntry>();
+        Cell[] cells = result.rawCells();
+        if (cells != null) {
+            for (Cell cell : cells) {
+                entries.add(new WeiboTimelineEntry(CellUtil.cloneQualifier(cell), cell.getTimestamp()));
+            }
+        }
+        return entries;
+    }
+}
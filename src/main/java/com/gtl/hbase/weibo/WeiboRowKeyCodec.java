@@ -0,0 +1,222 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * 三张表的rowkey编码
+ * t_user_relations、t_user_weibo_list：盐值(1字节) + userid长度(1字节) + userid(UTF-8)
+ * t_weibo：                            盐值(1字节) + userid长度(1字节) + userid(UTF-8) + (Long.MAX_VALUE - 微博ID)(8字节，大端)
+ *
+ * 1、盐值 = |userid.hashCode() % 盐值个数|，即所在分区，预分区的切分点为 {1},{2},...,{盐值个数-1}，每个盐值正好一个分区；
+ *    盐值个数由weibo.salt.buckets配置(最多256个)，修改后需要用WeiboResaltTool把数据复制到按新盐值个数预分区的表中
+ * 2、userid带长度前缀，一个用户的rowkey前缀不会是另一个用户rowkey的前缀，按用户扫描不会扫到其他用户的微博
+ * 3、倒序的微博ID固定8字节，微博ID按发布时间递增(见WeiboIdGenerator)，按字节序升序即为按发布时间降序
+ *
+ * 原来的字符串rowkey(如 "3_zhangsan_9223370463...")中倒序时间是19位十进制数，二进制编码后一条微博的rowkey少12个字节以上，
+ * t_user_weibo_list表中保存的是t_weibo表的rowkey，接收列表的单元格同样变小。
+ * 编码时直接写入一个长度正好的数组，userid为ASCII时不经过String.getBytes()的中间数组。
+ */
+public class WeiboRowKeyCodec {
+
+    public static final int MAX_SALT_BUCKETS = 256;
+    public static final int ID_LENGTH = 8;
+    public static final int MAX_USERID_LENGTH = 255;
+
+    private final int saltBuckets;
+
+    /**
+     * @param saltBuckets 盐值个数，即预分区的数量，1~256
+     */
+    public WeiboRowKeyCodec(int saltBuckets) {
+        if (saltBuckets < 1 || saltBuckets > MAX_SALT_BUCKETS) {
+            throw new IllegalArgumentException("盐值个数必须在1~" + MAX_SALT_BUCKETS + "之间：" + saltBuckets);
+        }
+        this.saltBuckets = saltBuckets;
+    }
+
+    public int getSaltBuckets() {
+        return saltBuckets;
+    }
+
+    /**
+     * 盐值，即rowkey所在的分区
+     * @param userid
+     * @return
+     */
+    public int salt(String userid) {
+        return Math.abs(userid.hashCode() % saltBuckets);
+    }
+
+    /**
+     * 获取rowkey的盐值
+     * @param rowkey
+     * @return
+     */
+    public static int saltOf(byte[] rowkey) {
+        return rowkey[0] & 0xFF;
+    }
+
+    /**
+     * 预分区的切分点，每个盐值一个分区
+     * @return
+     */
+    public byte[][] splitKeys() {
+        byte[][] splitKeys = new byte[saltBuckets - 1][];
+        for (int i = 1; i < saltBuckets; i++) {
+            splitKeys[i - 1] = new byte[]{(byte) i};
+        }
+        return splitKeys;
+    }
+
+    /**
+     * t_user_relations表和t_user_weibo_list表的rowkey
+     * @param userid
+     * @return
+     */
+    public byte[] userRowKey(String userid) {
+        int length = useridLength(userid);
+        byte[] rowkey = new byte[2 + length];
+        writeUser(rowkey, userid, length);
+        return rowkey;
+    }
+
+    /**
+     * t_weibo表的rowkey
+     * @param userid
+     * @param id 微博ID
+     * @return
+     */
+    public byte[] weiboRowKey(String userid, long id) {
+        int length = useridLength(userid);
+        byte[] rowkey = new byte[2 + length + ID_LENGTH];
+        int offset = writeUser(rowkey, userid, length);
+        Bytes.putLong(rowkey, offset, Long.MAX_VALUE - id);
+        return rowkey;
+    }
+
+    /**
+     * 扫描一个用户所有微博的起始rowkey(包含)，即最新的微博
+     * @param userid
+     * @return
+     */
+    public byte[] weiboScanStart(String userid) {
+        return userRowKey(userid);
+    }
+
+    /**
+     * 扫描一个用户所有微博的结束rowkey(不包含)
+     * 倒序的微博ID不超过Long.MAX_VALUE，第一个字节不超过0x7F，因此用户前缀 + 0x80 大于该用户所有微博的rowkey
+     * @param userid
+     * @return
+     */
+    public byte[] weiboScanStop(String userid) {
+        int length = useridLength(userid);
+        byte[] rowkey = new byte[2 + length + 1];
+        int offset = writeUser(rowkey, userid, length);
+        rowkey[offset] = (byte) 0x80;
+        return rowkey;
+    }
+
+    /**
+     * 从t_weibo表的rowkey中解析userid
+     * @param rowkey
+     * @return
+     */
+    public static String useridOf(byte[] rowkey) {
+        return Bytes.toString(rowkey, 2, rowkey[1] & 0xFF);
+    }
+
+    /**
+     * 从t_weibo表的rowkey中取出userid的字节(UTF-8)
+     * @param rowkey
+     * @return
+     */
+    public static byte[] useridBytesOf(byte[] rowkey) {
+        return Arrays.copyOfRange(rowkey, 2, 2 + (rowkey[1] & 0xFF));
+    }
+
+    /**
+     * 从t_weibo表的rowkey中解析微博ID
+     * @param rowkey
+     * @return
+     */
+    public static long idOf(byte[] rowkey) {
+        return Long.MAX_VALUE - Bytes.toLong(rowkey, 2 + (rowkey[1] & 0xFF));
+    }
+
+    /**
+     * 按当前盐值个数重新编码一个二进制rowkey(t_weibo表或用户表的rowkey均可)，用于迁移到盐值个数不同的表
+     * @param rowkey
+     * @return
+     */
+    public byte[] resalt(byte[] rowkey) {
+        byte[] resalted = rowkey.clone();
+        resalted[0] = (byte) salt(useridOf(rowkey));
+        return resalted;
+    }
+
+    /**
+     * 判断是否为原来的字符串rowkey(以十进制盐值开头)
+     * 盐值个数超过48时，二进制盐值可能与字符'0'~'9'相同，无法区分，因此必须在增加盐值个数之前完成字符串rowkey的迁移
+     * @param rowkey
+     * @return
+     */
+    public static boolean isLegacy(byte[] rowkey) {
+        return rowkey.length > 1 && rowkey[0] >= '0' && rowkey[0] <= '9';
+    }
+
+    /**
+     * 把原来的t_weibo表rowkey "盐值_userid_倒序时间" 转换为二进制rowkey
+     * userid中可能包含"_"，因此userid为第一个"_"和最后一个"_"之间的部分；
+     * 原来同一用户同一毫秒只能有一条微博，微博ID取该毫秒内最小的ID
+     * @param legacy
+     * @return
+     */
+    public byte[] fromLegacyWeiboRowKey(byte[] legacy) {
+        String key = Bytes.toString(legacy);
+        int first = key.indexOf('_');
+        int last = key.lastIndexOf('_');
+        String userid = key.substring(first + 1, last);
+        long time = Long.MAX_VALUE - Long.parseLong(key.substring(last + 1));
+        return weiboRowKey(userid, WeiboIdGenerator.minIdAt(time));
+    }
+
+    /**
+     * 把原来的t_user_relations表和t_user_weibo_list表的rowkey "盐值_userid" 转换为二进制rowkey
+     * @param legacy
+     * @return
+     */
+    public byte[] fromLegacyUserRowKey(byte[] legacy) {
+        String key = Bytes.toString(legacy);
+        return userRowKey(key.substring(key.indexOf('_') + 1));
+    }
+
+    private static int useridLength(String userid) {
+        int length = userid.length();
+        for (int i = 0; i < userid.length(); i++) {
+            if (userid.charAt(i) >= 0x80) {
+                length = Bytes.toBytes(userid).length;
+                break;
+            }
+        }
+        if (length > MAX_USERID_LENGTH) {
+            throw new IllegalArgumentException("userid超过" + MAX_USERID_LENGTH + "字节：" + userid);
+        }
+        return length;
+    }
+
+    private int writeUser(byte[] rowkey, String userid, int length) {
+        rowkey[0] = (byte) salt(userid);
+        rowkey[1] = (byte) length;
+        if (length == userid.length()) {
+            for (int i = 0; i < length; i++) {
+                rowkey[2 + i] = (byte) userid.charAt(i);
+            }
+        } else {
+            System.arraycopy(Bytes.toBytes(userid), 0, rowkey, 2, length);
+        }
+        return 2 + length;
+    }
+}
@@ -0,0 +1,129 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把三张表中原来的字符串rowkey("盐值_userid[_倒序时间]")迁移为WeiboRowKeyCodec的二进制rowkey
+ * 步骤(每张表)：
+ * 1、扫描以十进制盐值开头的行(原来的rowkey)，读取所有版本
+ * 2、按新rowkey写入同样的列和时间戳；t_user_weibo_list表的列值是t_weibo表的rowkey，同样转换为新rowkey，单元格的版本改为微博ID
+ * 3、新行写入成功后删除原来的行
+ *
+ * 新rowkey的第一个字节是盐值(小于48)，排在原来的rowkey('0'~'9')之前，扫描不会读到刚写入的新行；
+ * 已经迁移过的行不会再被扫描到，中途失败后重新执行即可。
+ * t_user_relations表中登记大V的CELEBRITY_ROW不以数字开头，不需要迁移。
+ *
+ * 盐值个数超过48时，二进制rowkey可能以'0'~'9'开头，无法与原来的rowkey区分，因此必须在增加盐值个数之前迁移。
+ *
+ * 用法：WeiboRowKeyMigration hadoop102,hadoop103,hadoop104
+ */
+public class WeiboRowKeyMigration {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private int batchSize;
+
+    public WeiboRowKeyMigration(WeiboDao dao, WeiboTables tables, int batchSize) {
+        if (tables.getCodec().getSaltBuckets() > '0') {
+            throw new IllegalArgumentException("盐值个数超过48时无法区分原来的rowkey，请先用默认盐值个数迁移");
+        }
+        this.dao = dao;
+        this.tables = tables;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 迁移三张表
+     * @return 迁移的行数
+     * @throws IOException
+     */
+    public long migrate() throws IOException {
+        long rows = 0;
+        rows += migrateTable(tables.weiboTable());
+        rows += migrateTable(tables.userRelationsTable());
+        rows += migrateTable(tables.userWeiboListTable());
+        return rows;
+    }
+
+    private long migrateTable(TableName tableName) throws IOException {
+        WeiboRowKeyCodec codec = tables.getCodec();
+        boolean weiboTable = tableName.equals(tables.weiboTable());
+        boolean inboxTable = tableName.equals(tables.userWeiboListTable());
+        long rows = 0;
+        List<Put> puts = new ArrayList<Put>();
+        List<Delete> deletes = new ArrayList<Delete>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            // 1、原来的rowkey以十进制盐值开头，范围为["0", ":")
+            Scan scan = new Scan("0".getBytes(), ":".getBytes());
+            scan.setMaxVersions();
+            scan.setCaching(batchSize);
+            resultScanner = dao.getDatas(tableName, scan);
+            for (Result result : resultScanner) {
+                byte[] row = result.getRow();
+                if (!WeiboRowKeyCodec.isLegacy(row)) {
+                    continue;
+                }
+                // 2、按新rowkey写入同样的列和时间戳
+                byte[] newRow = weiboTable ? codec.fromLegacyWeiboRowKey(row) : codec.fromLegacyUserRowKey(row);
+                Put put = new Put(newRow);
+                for (Cell cell : result.rawCells()) {
+                    byte[] value = CellUtil.cloneValue(cell);
+                    long timestamp = cell.getTimestamp();
+                    if (inboxTable && WeiboRowKeyCodec.isLegacy(value)) {
+                        value = codec.fromLegacyWeiboRowKey(value);
+                        //接收列表中单元格的版本改为微博ID
+                        timestamp = WeiboRowKeyCodec.idOf(value);
+                    }
+                    put.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell), timestamp, value);
+                }
+                puts.add(put);
+                deletes.add(new Delete(row));
+                rows++;
+                if (puts.size() >= batchSize) {
+                    flush(tableName, puts, deletes);
+                    puts = new ArrayList<Put>();
+                    deletes = new ArrayList<Delete>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                flush(tableName, puts, deletes);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("表" + tableName + "迁移" + rows + "行");
+        return rows;
+    }
+
+    /**
+     * 3、先写入新行，成功后再删除原来的行
+     */
+    private void flush(TableName tableName, List<Put> puts, List<Delete> deletes) throws IOException {
+        dao.putDatas(tableName, puts);
+        dao.deleteDatas(tableName, deletes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args.length > 0 ? args[0] : "hadoop102,hadoop103,hadoop104");
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            long rows = new WeiboRowKeyMigration(dao, WeiboTables.create(conf), 500).migrate();
+            System.out.println("rowkey迁移完成，共" + rows + "行");
+        } finally {
+            dao.close();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 微博内容的全文检索：t_weibo_search表中的二元组倒排索引，发布微博时由WeiboService增量写入
+ * rowkey：盐值(1字节) + 词长度(1字节) + 词(UTF-8) + (Integer.MAX_VALUE - 天数)(4字节)，天数为UTC日期距1970-01-01的天数
+ * 列：
+ * 1、新写入的微博每条一列，列名为 (Long.MAX_VALUE - 微博ID)(8字节) + userid，列值为词出现的次数(varint)
+ * 2、合并后的倒排列表按微博ID降序切分为块，每块最多BLOCK_POSTINGS条(见WeiboPostingList)，
+ *    列名为 0xFF + 块序号(4字节)，序号0的块最新；由compact()把一行中单独的列和原有的块重新合并切分
+ *    列名的第一个字节0xFF大于所有单独列的第一个字节，一行中的列依次为：单独的列(新到旧)、块(新到旧)
+ *
+ * 同一个词的行在同一个分区内按日期降序连续存放，查询一个词在某个时间范围内的倒排列表就是一次范围扫描，不需要扫描t_weibo表。
+ * 查询步骤：
+ * 1、查询语句按WeiboBigramTokenizer切分为词，每个词一次范围扫描读取时间范围内的倒排列表，
+ *    每个词最多读取maxPostingsPerTerm条(从最新的一天开始)，读满时更早的微博视为未知
+ * 2、从倒排列表最短的词开始求交集：候选微博必须包含所有词(未知的按包含处理)
+ * 3、按BM25计算得分(词在微博中出现的次数、词的稀有程度)，得分相同时较新的在前
+ * 二元组命中不代表关键词连续出现，WeiboService在加载微博内容后再按关键词过滤。
+ * 只有一个汉字的关键词只能命中单独出现的该字(连续的汉字只索引二元组)。
+ */
+public class WeiboSearchIndex {
+
+    private static final byte BLOCK_PREFIX = (byte) 0xFF;
+    //每个块最多的微博条数，编码后约十几KB，避免一行合并成一个无限增长的大列
+    private static final int BLOCK_POSTINGS = 1000;
+    //查询时每个Result最多的列数，读满maxPostingsPerTerm后不再读取剩下的块
+    private static final int READ_BATCH = 16;
+    private static final long DAY_MS = 86400000L;
+    private static final double K1 = 1.2;
+    //合并时每批写入、删除的行数
+    private static final int COMPACT_BATCH_SIZE = 500;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private int maxPostingsPerTerm;
+
+    /**
+     * @param dao
+     * @param tables
+     * @param maxPostingsPerTerm 查询时每个词最多读取的倒排列表条数
+     */
+    public WeiboSearchIndex(WeiboDao dao, WeiboTables tables, int maxPostingsPerTerm) {
+        this.dao = dao;
+        this.tables = tables;
+        this.maxPostingsPerTerm = maxPostingsPerTerm;
+    }
+
+    public TableName getTable() {
+        return tables.searchIndexTable();
+    }
+
+    /**
+     * 生成一条微博的倒排索引，每个词一个Put
+     * @param userid 发布微博的用户
+     * @param content 微博内容
+     * @param id 微博ID
+     * @return
+     */
+    public List<Put> toPuts(String userid, String content, long id) {
+        long time = WeiboIdGenerator.timeOf(id);
+        int day = (int) (time / DAY_MS);
+        byte[] qualifier = Bytes.add(Bytes.toBytes(Long.MAX_VALUE - id), Bytes.toBytes(userid));
+        List<Put> puts = new ArrayList<Put>();
+        for (Map.Entry<String, Integer> term : WeiboBigramTokenizer.tokenize(content).entrySet()) {
+            ByteArrayOutputStream frequency = new ByteArrayOutputStream(2);
+            WeiboPostingList.writeVarLong(frequency, term.getValue());
+            Put put = new Put(rowKey(term.getKey(), day), time);
+            put.addColumn(WeiboConstants.CF1, qualifier, frequency.toByteArray());
+            puts.add(put);
+        }
+        return puts;
+    }
+
+    /**
+     * 查询包含所有关键词的微博，按得分降序
+     * @param query 查询语句
+     * @param startTime 起始时间(毫秒，包含)
+     * @param endTime 结束时间(毫秒，不包含)
+     * @return t_weibo表的rowkey
+     * @throws IOException
+     */
+    public List<byte[]> search(String query, long startTime, long endTime) throws IOException {
+        List<byte[]> rowkeys = new ArrayList<byte[]>();
+        Set<String> terms = WeiboBigramTokenizer.tokenize(query).keySet();
+        if (terms.isEmpty() || endTime <= startTime) {
+            return rowkeys;
+        }
+
+        // 1、每个词读取时间范围内的倒排列表
+        List<TermPostings> termPostings = new ArrayList<TermPostings>();
+        Set<Long> seen = new HashSet<Long>();
+        for (String term : terms) {
+            TermPostings postings = read(term, startTime, endTime);
+            termPostings.add(postings);
+            seen.addAll(postings.postings.keySet());
+        }
+        Collections.sort(termPostings, new Comparator<TermPostings>() {
+            public int compare(TermPostings a, TermPostings b) {
+                return a.postings.size() - b.postings.size();
+            }
+        });
+
+        // 2、从最短的倒排列表开始求交集，同时 3、计算得分
+        double documents = seen.size();
+        final Map<WeiboPostingList.Posting, Double> scores = new HashMap<WeiboPostingList.Posting, Double>();
+        TermPostings rarest = termPostings.get(0);
+        for (WeiboPostingList.Posting candidate : rarest.postings.values()) {
+            double score = 0;
+            boolean matched = true;
+            for (TermPostings postings : termPostings) {
+                WeiboPostingList.Posting posting = postings.postings.get(candidate.getId());
+                int frequency;
+                if (posting != null) {
+                    frequency = posting.getFrequency();
+                } else if (candidate.getId() < postings.coveredFrom) {
+                    // 该词的倒排列表没有读到这么早，按出现一次计算
+                    frequency = 1;
+                } else {
+                    matched = false;
+                    break;
+                }
+                double df = postings.postings.size();
+                double idf = Math.log(1 + (documents - df + 0.5) / (df + 0.5));
+                score += idf * frequency * (K1 + 1) / (frequency + K1);
+            }
+            if (matched) {
+                scores.put(candidate, score);
+            }
+        }
+        List<WeiboPostingList.Posting> ranked = new ArrayList<WeiboPostingList.Posting>(scores.keySet());
+        Collections.sort(ranked, new Comparator<WeiboPostingList.Posting>() {
+            public int compare(WeiboPostingList.Posting a, WeiboPostingList.Posting b) {
+                int c = Double.compare(scores.get(b), scores.get(a));
+                return c != 0 ? c : WeiboPostingList.NEWEST_FIRST.compare(a, b);
+            }
+        });
+        for (WeiboPostingList.Posting posting : ranked) {
+            rowkeys.add(tables.weiboRowKey(posting.getUserid(), posting.getId()));
+        }
+        return rowkeys;
+    }
+
+    /**
+     * 把每一行中单独的列和原有的块合并后重新切分为块，然后删除单独的列和多余的块
+     * 合并期间新写入的列不会被删除，下次合并时处理
+     * @return 合并的行数
+     * @throws IOException
+     */
+    public long compact() throws IOException {
+        long rows = 0;
+        List<Put> puts = new ArrayList<Put>();
+        List<Delete> deletes = new ArrayList<Delete>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            scan.addFamily(WeiboConstants.CF1);
+            scan.setCaching(COMPACT_BATCH_SIZE);
+            resultScanner = dao.getDatas(getTable(), scan);
+            for (Result result : resultScanner) {
+                Cell[] cells = result.rawCells();
+                // 单独的列和旧格式的列0xFF排在块之前，第一列已经是块说明这一行没有需要合并的列
+                if (cells == null || cells.length == 0
+                        || Bytes.equals(CellUtil.cloneQualifier(cells[0]), blockQualifier(0))) {
+                    continue;
+                }
+                // 重建索引时同一条微博可能既在块中又有单独的列，按微博ID去重
+                Map<Long, WeiboPostingList.Posting> postings = new HashMap<Long, WeiboPostingList.Posting>();
+                for (Cell cell : cells) {
+                    for (WeiboPostingList.Posting posting : postingsOf(cell)) {
+                        postings.put(posting.getId(), posting);
+                    }
+                }
+                List<WeiboPostingList.Posting> sorted = new ArrayList<WeiboPostingList.Posting>(postings.values());
+                Collections.sort(sorted, WeiboPostingList.NEWEST_FIRST);
+                Put put = new Put(result.getRow());
+                Set<byte[]> written = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                for (int from = 0, block = 0; from < sorted.size(); from += BLOCK_POSTINGS, block++) {
+                    byte[] qualifier = blockQualifier(block);
+                    put.addColumn(WeiboConstants.CF1, qualifier,
+                            WeiboPostingList.encode(sorted.subList(from, Math.min(sorted.size(), from + BLOCK_POSTINGS))));
+                    written.add(qualifier);
+                }
+                puts.add(put);
+                // 删除单独的列，以及这次没有重写的块(包括旧格式的列0xFF)；重写的块由新版本覆盖
+                Delete delete = new Delete(result.getRow());
+                for (Cell cell : cells) {
+                    byte[] qualifier = CellUtil.cloneQualifier(cell);
+                    if (!written.contains(qualifier)) {
+                        delete.addColumn(WeiboConstants.CF1, qualifier, cell.getTimestamp());
+                    }
+                }
+                deletes.add(delete);
+                rows++;
+                if (puts.size() >= COMPACT_BATCH_SIZE) {
+                    flush(puts, deletes);
+                    puts = new ArrayList<Put>();
+                    deletes = new ArrayList<Delete>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                flush(puts, deletes);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("全文索引" + getTable() + "合并完成：" + rows + "行");
+        return rows;
+    }
+
+    private void flush(List<Put> puts, List<Delete> deletes) throws IOException {
+        // 先写入新的块，再删除单独的列和多余的块，查询不会漏掉微博(重复的按微博ID去重)
+        dao.putDatas(getTable(), puts);
+        dao.deleteDatas(getTable(), deletes);
+    }
+
+    /**
+     * 读取一个词在时间范围内的倒排列表，从最新的一天开始，最多maxPostingsPerTerm条
+     * setBatch使一行的列分多个Result返回，读满后不再读取该行剩下的块和更早的天
+     */
+    private TermPostings read(String term, long startTime, long endTime) throws IOException {
+        TermPostings termPostings = new TermPostings();
+        long minId = WeiboIdGenerator.minIdAt(startTime);
+        long maxId = endTime - 1 >= WeiboIdGenerator.timeOf(Long.MAX_VALUE) ? Long.MAX_VALUE : WeiboIdGenerator.maxIdAt(endTime - 1);
+        int firstDay = (int) (Math.max(0, startTime) / DAY_MS);
+        int lastDay = (int) Math.min(Integer.MAX_VALUE - 1, (endTime - 1) / DAY_MS);
+        //结束行为前一天(不包含)；firstDay为0时Integer.MAX_VALUE + 1溢出为0x80000000，仍大于所有天数
+        Scan scan = new Scan(rowKey(term, lastDay), rowKey(term, firstDay - 1));
+        scan.addFamily(WeiboConstants.CF1);
+        scan.setCaching(32);
+        scan.setBatch(READ_BATCH);
+        WeiboResultScanner resultScanner = null;
+        try {
+            resultScanner = dao.getDatas(getTable(), scan);
+            for (Result result : resultScanner) {
+                Cell[] cells = result.rawCells();
+                if (cells == null) {
+                    continue;
+                }
+                for (Cell cell : cells) {
+                    List<WeiboPostingList.Posting> postings = postingsOf(cell);
+                    for (WeiboPostingList.Posting posting : postings) {
+                        if (posting.getId() >= minId && posting.getId() <= maxId) {
+                            termPostings.postings.put(posting.getId(), posting);
+                        }
+                    }
+                    if (termPostings.postings.size() >= maxPostingsPerTerm && !postings.isEmpty()) {
+                        // 一行中的列按微博ID从新到旧读取(单独的列都是上次合并之后写入的，比块中的新)，
+                        // 刚读完的列中最早的微博之前的微博未知
+                        termPostings.coveredFrom = postings.get(postings.size() - 1).getId();
+                        return termPostings;
+                    }
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        return termPostings;
+    }
+
+    /**
+     * 一列中的倒排列表：块中的多条微博或者单独的一条微博，按微博ID降序
+     */
+    private List<WeiboPostingList.Posting> postingsOf(Cell cell) {
+        byte[] qualifier = CellUtil.cloneQualifier(cell);
+        byte[] value = CellUtil.cloneValue(cell);
+        if (isBlock(qualifier)) {
+            return WeiboPostingList.decode(value);
+        }
+        long id = Long.MAX_VALUE - Bytes.toLong(qualifier, 0);
+        String userid = Bytes.toString(qualifier, WeiboRowKeyCodec.ID_LENGTH, qualifier.length - WeiboRowKeyCodec.ID_LENGTH);
+        return Collections.singletonList(
+                new WeiboPostingList.Posting(id, userid, (int) WeiboPostingList.readVarLong(value, new int[]{0})));
+    }
+
+    /**
+     * 块的列名：0xFF + 块序号；单独的列的第一个字节是(Long.MAX_VALUE - 微博ID)的最高字节，不会是0xFF
+     * 旧格式的整行合并列0xFF也按块处理，下次合并时切分
+     */
+    private static boolean isBlock(byte[] qualifier) {
+        return qualifier.length > 0 && qualifier[0] == BLOCK_PREFIX && (qualifier.length == 1 || qualifier.length == 5);
+    }
+
+    private static byte[] blockQualifier(int block) {
+        return Bytes.add(new byte[]{BLOCK_PREFIX}, Bytes.toBytes(block));
+    }
+
+    /**
+     * 盐值 + 词长度 + 词 + (Integer.MAX_VALUE - 天数)
+     */
+    private byte[] rowKey(String term, int day) {
+        byte[] termBytes = Bytes.toBytes(term);
+        byte[] rowkey = new byte[2 + termBytes.length + 4];
+        rowkey[0] = (byte) tables.getCodec().salt(term);
+        rowkey[1] = (byte) termBytes.length;
+        System.arraycopy(termBytes, 0, rowkey, 2, termBytes.length);
+        Bytes.putInt(rowkey, 2 + termBytes.length, Integer.MAX_VALUE - day);
+        return rowkey;
+    }
+
+    /**
+     * 一个词读取到的倒排列表
+     */
+    private static class TermPostings {
+        private Map<Long, WeiboPostingList.Posting> postings = new HashMap<Long, WeiboPostingList.Posting>();
+        //倒排列表读满时，只有微博ID大于等于该值的微博是完整的
+        private long coveredFrom = 0;
+    }
+}
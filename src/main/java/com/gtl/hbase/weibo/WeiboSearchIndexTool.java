@@ -0,0 +1,123 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 维护微博内容的全文索引(t_weibo_search表)，执行期间服务正常读写
+ * rebuild：创建t_weibo_search表(已经存在则跳过)，扫描t_weibo表的content列，按WeiboSearchIndex生成倒排索引批量写入，
+ *          可以只重建某个时间之后发布的微博；在已有数据上上线全文检索、以及WeiboResaltTool切换之后需要执行一次全量重建
+ * compact：把每一行中单独写入的列合并为压缩的倒排列表，建议每天执行一次，查询时每行读取的单元格数和字节数都会减少
+ *
+ * 用法：WeiboSearchIndexTool zookeeper地址 rebuild [起始时间戳]
+ *       WeiboSearchIndexTool zookeeper地址 compact
+ * 命名空间和盐值个数从weibo.namespace、weibo.salt.buckets读取(默认weibo、9)
+ */
+public class WeiboSearchIndexTool {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboSearchIndex searchIndex;
+    private int batchSize;
+
+    public WeiboSearchIndexTool(WeiboDao dao, WeiboTables tables, int batchSize) {
+        this.dao = dao;
+        this.tables = tables;
+        this.searchIndex = new WeiboSearchIndex(dao, tables, WeiboConstants.SEARCH_MAX_POSTINGS_DEFAULT);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 创建t_weibo_search表
+     * @throws IOException
+     */
+    public void createIndexTable() throws IOException {
+        TableName table = tables.searchIndexTable();
+        if (dao.tableExists(table.getNamespace(), table.getQualifier())) {
+            System.out.println("表" + table + "已经存在");
+            return;
+        }
+        dao.createTable(table.getNamespace(), table.getQualifier(), new byte[][]{WeiboConstants.CF1},
+                new int[]{1}, tables.getCodec().splitKeys());
+        System.out.println("表" + table + "创建成功");
+    }
+
+    /**
+     * 重建索引
+     * @param minTimestamp 只重建该时间之后发布的微博，0表示全量重建
+     * @return 重建索引的微博条数
+     * @throws IOException
+     */
+    public long rebuild(long minTimestamp) throws IOException {
+        long weibos = 0;
+        List<Put> puts = new ArrayList<Put>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            //两种存储格式的内容都要读取，见WeiboPostCodec
+            scan.addColumn(WeiboConstants.CF1, WeiboConstants.POST);
+            scan.addColumn(WeiboConstants.CF1, WeiboConstants.CONTENT);
+            scan.setCaching(batchSize);
+            if (minTimestamp > 0) {
+                scan.setTimeRange(minTimestamp, Long.MAX_VALUE);
+            }
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                byte[] row = result.getRow();
+                String content = WeiboPostCodec.toWeibo(result).getContent();
+                puts.addAll(searchIndex.toPuts(WeiboRowKeyCodec.useridOf(row), content, WeiboRowKeyCodec.idOf(row)));
+                weibos++;
+                if (puts.size() >= batchSize) {
+                    dao.putDatas(searchIndex.getTable(), puts);
+                    puts = new ArrayList<Put>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                dao.putDatas(searchIndex.getTable(), puts);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("全文索引" + searchIndex.getTable() + "重建完成：" + weibos + "条微博");
+        return weibos;
+    }
+
+    /**
+     * 合并倒排列表
+     * @return 合并的行数
+     * @throws IOException
+     */
+    public long compact() throws IOException {
+        return searchIndex.compact();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("rebuild".equals(args[1]) || "compact".equals(args[1]))) {
+            System.out.println("用法：WeiboSearchIndexTool zookeeper地址 rebuild [起始时间戳]");
+            System.out.println("      WeiboSearchIndexTool zookeeper地址 compact");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboSearchIndexTool tool = new WeiboSearchIndexTool(dao, WeiboTables.create(conf), 500);
+            if ("compact".equals(args[1])) {
+                tool.compact();
+                return;
+            }
+            tool.createIndexTable();
+            tool.rebuild(args.length > 2 ? Long.parseLong(args[2]) : 0);
+        } finally {
+            dao.close();
+        }
+    }
+}
@@ -1,23 +1,18 @@
 package com.gtl.hbase.weibo;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
-import org.apache.hadoop.hbase.filter.CompareFilter;
-import org.apache.hadoop.hbase.filter.PrefixFilter;
-import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 1) 创建命名空间以及表名的定义
@@ -37,18 +32,265 @@ import java.util.List;
  *      ②由于userid是随机生成的，即不同的用户散列再各个分区，被关注的用户数据分布在不同的region，导致读取数据性能较差。
  * 2、创建了该表后，可以实时把每个被关注用户的最新微博新增到t_user_weibo_list表中，假定每个被关注用户可以保存100条微博，新微博会覆盖就微博，
  *    那么，既保证了最新微博的查询范围，也保证了每个用户的所有被关注用户的最新微博在同一个region(该表以userid为rowkey)。
+ * 3、该表的存储方式("微博概述"中的方式一、二、三)由weibo.inbox.layout选择，默认为方式二，见WeiboInboxLayout。
+ *
+ * weibo.follow.graph.enabled为true时，启动时把t_user_relations表加载为进程内的关注关系图(WeiboFollowGraph)，
+ * 关注、取消关注写入t_user_relations表成功后同步更新；推送、回填、大V拉取和关注关系查询直接读取内存中的位图。
+ *
+ * 微博的浏览、点赞、转发计数在内存中合并后定时批量写入t_weibo表，见WeiboCounterService。
  *
  */
 public class WeiboService {
 
-    private static Configuration conf = null;
-    private static Connection conn = null;
+    private Configuration conf;
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboInboxLayout inbox;
+    private WeiboTitleIndex titleIndex;
+    private WeiboSearchIndex searchIndex;
+    private WeiboImageStore imageStore;
+    private WeiboPostCodec postCodec;
+    private WeiboPostCache postCache;
+    private WeiboHydrator hydrator;
+    private WeiboCelebrityTimeline celebrityTimeline;
+    private WeiboTimelineCache timelineCache;
+    private WeiboFanoutPipeline fanoutPipeline;
+    private WeiboFocusBackfill focusBackfill;
+    private WeiboMetrics metrics;
+    private WeiboIdGenerator idGenerator;
+    private WeiboFollowGraph followGraph;
+    private WeiboCounterService counterService;
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    //用户微博列表缓存的条数，也是分页查询每页的最大条数
+    private static final int TIMELINE_SIZE = 100;
+
+    /**
+     * @param dao 存储实现：WeiboHbaseDaoImpl(HBase集群) 或 WeiboMemoryDaoImpl(内存)
+     * @param conf 命名空间、盐值个数、缓存大小、线程数等参数，key见WeiboConstants
+     */
+    public WeiboService(WeiboDao dao, Configuration conf) {
+        this.conf = conf;
+        this.tables = WeiboTables.create(conf);
+        idGenerator = new WeiboIdGenerator(conf.getLong(WeiboConstants.NODE_ID_KEY, WeiboIdGenerator.defaultNode()));
+        // 存储请求次数和读取的单元格数统计在WeiboMetrics中
+        metrics = new WeiboMetrics();
+        metrics.register("weibo-" + INSTANCES.incrementAndGet());
+        metrics.startSnapshots(conf.getLong(WeiboConstants.METRICS_SNAPSHOT_MS_KEY, WeiboConstants.METRICS_SNAPSHOT_MS_DEFAULT));
+        this.dao = new WeiboMetricsDao(dao, metrics);
+        inbox = WeiboInboxLayouts.create(conf, this.dao, tables);
+        postCodec = new WeiboPostCodec(conf.get(WeiboConstants.POST_FORMAT_KEY, WeiboConstants.POST_FORMAT_DEFAULT));
+        titleIndex = new WeiboTitleIndex(this.dao, tables);
+        imageStore = new WeiboImageStore(this.dao, tables,
+                conf.getInt(WeiboConstants.IMAGE_CHUNK_BYTES_KEY, WeiboConstants.IMAGE_CHUNK_BYTES_DEFAULT));
+        searchIndex = new WeiboSearchIndex(this.dao, tables,
+                conf.getInt(WeiboConstants.SEARCH_MAX_POSTINGS_KEY, WeiboConstants.SEARCH_MAX_POSTINGS_DEFAULT));
+        postCache = new WeiboPostCache(conf.getLong(WeiboConstants.POST_CACHE_MAX_BYTES_KEY, WeiboConstants.POST_CACHE_MAX_BYTES_DEFAULT));
+        followGraph = createFollowGraph(conf);
+        hydrator = new WeiboHydrator(this.dao, tables, postCache,
+                conf.getInt(WeiboConstants.HYDRATE_THREADS_KEY, WeiboConstants.HYDRATE_THREADS_DEFAULT),
+                conf.getLong(WeiboConstants.HYDRATE_TIMEOUT_MS_KEY, WeiboConstants.HYDRATE_TIMEOUT_MS_DEFAULT));
+        celebrityTimeline = new WeiboCelebrityTimeline(this.dao, tables, followGraph,
+                conf.getInt(WeiboConstants.CELEBRITY_THRESHOLD_KEY, WeiboConstants.CELEBRITY_THRESHOLD_DEFAULT),
+                conf.getInt(WeiboConstants.CELEBRITY_PULL_POSTS_KEY, WeiboConstants.CELEBRITY_PULL_POSTS_DEFAULT),
+                conf.getLong(WeiboConstants.CELEBRITY_PULL_TIMEOUT_MS_KEY, WeiboConstants.CELEBRITY_PULL_TIMEOUT_MS_DEFAULT),
+                conf.getLong(WeiboConstants.CELEBRITY_REFRESH_MS_KEY, WeiboConstants.CELEBRITY_REFRESH_MS_DEFAULT),
+                conf.getInt(WeiboConstants.CELEBRITY_PULL_THREADS_KEY, WeiboConstants.CELEBRITY_PULL_THREADS_DEFAULT));
+        timelineCache = new WeiboTimelineCache(
+                conf.getInt(WeiboConstants.TIMELINE_CACHE_USERS_KEY, WeiboConstants.TIMELINE_CACHE_USERS_DEFAULT),
+                TIMELINE_SIZE,
+                conf.getLong(WeiboConstants.TIMELINE_CACHE_TTL_MS_KEY, WeiboConstants.TIMELINE_CACHE_TTL_MS_DEFAULT));
+        fanoutPipeline = new WeiboFanoutPipeline(this.dao, tables, inbox, celebrityTimeline, timelineCache, metrics, followGraph,
+                conf.getInt(WeiboConstants.FANOUT_THREADS_KEY, WeiboConstants.FANOUT_THREADS_DEFAULT),
+                conf.getInt(WeiboConstants.FANOUT_QUEUE_CAPACITY_KEY, WeiboConstants.FANOUT_QUEUE_CAPACITY_DEFAULT),
+                conf.getInt(WeiboConstants.FANOUT_PAGE_SIZE_KEY, WeiboConstants.FANOUT_PAGE_SIZE_DEFAULT),
+                conf.getInt(WeiboConstants.FANOUT_BATCH_SIZE_KEY, WeiboConstants.FANOUT_BATCH_SIZE_DEFAULT),
+                conf.getInt(WeiboConstants.FANOUT_MAX_RETRIES_KEY, WeiboConstants.FANOUT_MAX_RETRIES_DEFAULT),
+                conf.getLong(WeiboConstants.FANOUT_RETRY_BACKOFF_MS_KEY, WeiboConstants.FANOUT_RETRY_BACKOFF_MS_DEFAULT),
+                conf.getLong(WeiboConstants.FANOUT_OFFER_TIMEOUT_MS_KEY, WeiboConstants.FANOUT_OFFER_TIMEOUT_MS_DEFAULT),
+                conf.getLong(WeiboConstants.FANOUT_SHUTDOWN_TIMEOUT_MS_KEY, WeiboConstants.FANOUT_SHUTDOWN_TIMEOUT_MS_DEFAULT));
+        focusBackfill = new WeiboFocusBackfill(this.dao, tables, inbox, timelineCache, followGraph,
+                conf.getInt(WeiboConstants.BACKFILL_DEPTH_KEY, WeiboConstants.BACKFILL_DEPTH_DEFAULT),
+                conf.getInt(WeiboConstants.BACKFILL_THREADS_KEY, WeiboConstants.BACKFILL_THREADS_DEFAULT),
+                conf.getInt(WeiboConstants.BACKFILL_QUEUE_CAPACITY_KEY, WeiboConstants.BACKFILL_QUEUE_CAPACITY_DEFAULT));
+        counterService = new WeiboCounterService(this.dao, tables,
+                conf.getLong(WeiboConstants.COUNTER_FLUSH_MS_KEY, WeiboConstants.COUNTER_FLUSH_MS_DEFAULT),
+                conf.getInt(WeiboConstants.COUNTER_FLUSH_BATCH_SIZE_KEY, WeiboConstants.COUNTER_FLUSH_BATCH_SIZE_DEFAULT),
+                conf.getInt(WeiboConstants.COUNTER_HOT_SIZE_KEY, WeiboConstants.COUNTER_HOT_SIZE_DEFAULT),
+                conf.getLong(WeiboConstants.COUNTER_HOT_HALF_LIFE_MS_KEY, WeiboConstants.COUNTER_HOT_HALF_LIFE_MS_DEFAULT));
+    }
 
-    static {
-        conf = HBaseConfiguration.create();
-        conf.set("hbase.zookeeper.quorum","hadoop102,hadoop103,hadoop104");
+    /**
+     * 启用时创建关注关系图，t_user_relations表已经存在则并发扫描加载，加载失败时不使用关注关系图
+     * @param conf
+     * @return 未启用或加载失败时返回null
+     */
+    private WeiboFollowGraph createFollowGraph(Configuration conf) {
+        if (!conf.getBoolean(WeiboConstants.FOLLOW_GRAPH_ENABLED_KEY, WeiboConstants.FOLLOW_GRAPH_ENABLED_DEFAULT)) {
+            return null;
+        }
+        WeiboFollowGraph graph = new WeiboFollowGraph();
+        int threads = conf.getInt(WeiboConstants.FOLLOW_GRAPH_LOAD_THREADS_KEY, WeiboConstants.FOLLOW_GRAPH_LOAD_THREADS_DEFAULT);
         try {
-            conn = ConnectionFactory.createConnection(conf);
+            if (dao.tableExists(tables.getNamespace(), WeiboConstants.TABLE_USER_RELATIONS)) {
+                graph.load(dao, tables, threads);
+            }
+        } catch (IOException e) {
+            System.out.println("加载关注关系图失败，关注关系从t_user_relations表中读取");
+            e.printStackTrace();
+            return null;
+        }
+        graph.startReloads(dao, tables, threads,
+                conf.getLong(WeiboConstants.FOLLOW_GRAPH_RELOAD_MS_KEY, WeiboConstants.FOLLOW_GRAPH_RELOAD_MS_DEFAULT));
+        return graph;
+    }
+
+    /**
+     * 连接HBase集群创建WeiboService
+     * @param zookeeperQuorum 例如 hadoop102,hadoop103,hadoop104
+     * @return
+     * @throws IOException
+     */
+    public static WeiboService createHbaseService(String zookeeperQuorum) throws IOException {
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum",zookeeperQuorum);
+        return new WeiboService(new WeiboHbaseDaoImpl(conf), conf);
+    }
+
+    /**
+     * 创建基于内存存储的WeiboService，不需要集群和网络，命名空间和三张表已经创建好
+     * @param conf
+     * @return
+     */
+    public static WeiboService createMemoryService(Configuration conf) {
+        WeiboService service = new WeiboService(new WeiboMemoryDaoImpl(), conf);
+        service.createTables();
+        return service;
+    }
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    public WeiboDao getDao() {
+        return dao;
+    }
+
+    /**
+     * 获取表名和rowkey编码
+     * @return
+     */
+    public WeiboTables getTables() {
+        return tables;
+    }
+
+    /**
+     * 获取接收列表的存储方式
+     * @return
+     */
+    public WeiboInboxLayout getInbox() {
+        return inbox;
+    }
+
+    /**
+     * 获取微博标题索引
+     * @return
+     */
+    public WeiboTitleIndex getTitleIndex() {
+        return titleIndex;
+    }
+
+    /**
+     * 获取微博内容的全文索引
+     * @return
+     */
+    public WeiboSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * 获取图片存储
+     * @return
+     */
+    public WeiboImageStore getImageStore() {
+        return imageStore;
+    }
+
+    /**
+     * 获取t_weibo表的存储格式
+     * @return
+     */
+    public WeiboPostCodec getPostCodec() {
+        return postCodec;
+    }
+
+    public WeiboIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * 获取微博内容缓存，可以查看命中、未命中、淘汰次数以及占用的内存
+     * @return
+     */
+    public WeiboPostCache getPostCache() {
+        return postCache;
+    }
+
+    /**
+     * 获取用户微博列表缓存，可以查看命中、未命中、淘汰次数
+     * @return
+     */
+    public WeiboTimelineCache getTimelineCache() {
+        return timelineCache;
+    }
+
+    /**
+     * 获取运行统计：各操作耗时、存储请求次数、推送粉丝数等，同时通过JMX导出
+     * @return
+     */
+    public WeiboMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 获取微博异步推送队列，可以查看队列深度、推送延迟等指标
+     * @return
+     */
+    public WeiboFanoutPipeline getFanoutPipeline() {
+        return fanoutPipeline;
+    }
+
+    public WeiboFocusBackfill getFocusBackfill() {
+        return focusBackfill;
+    }
+
+    /**
+     * 获取进程内的关注关系图
+     * @return 未启用时返回null
+     */
+    public WeiboFollowGraph getFollowGraph() {
+        return followGraph;
+    }
+
+    public WeiboCounterService getCounterService() {
+        return counterService;
+    }
+
+    /**
+     * 关闭：等待异步推送和回填完成，写入剩余的计数，停止后台线程，关闭存储
+     */
+    public void close() {
+        fanoutPipeline.shutdown();
+        counterService.close();
+        focusBackfill.close(conf.getLong(WeiboConstants.FANOUT_SHUTDOWN_TIMEOUT_MS_KEY, WeiboConstants.FANOUT_SHUTDOWN_TIMEOUT_MS_DEFAULT));
+        hydrator.close();
+        celebrityTimeline.close();
+        if (followGraph != null) {
+            followGraph.close();
+        }
+        metrics.close();
+        try {
+            dao.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -60,16 +302,13 @@ public class WeiboService {
      * 2、不存在则创建该命名空间
      * @param ns
      */
-    public static void createNamespace(byte[] ns){
-        HBaseAdmin admin = null;
+    public void createNamespace(byte[] ns){
         try {
-            admin = (HBaseAdmin) conn.getAdmin();
-
             // 1、判断该命名空间是否存在
-            boolean exists = WeiboHbaseDaoImpl.namespaceExists(ns, admin);
+            boolean exists = dao.namespaceExists(ns);
             if (!exists) {
                 // 2、如果不存在则创建该命名空间
-                WeiboHbaseDaoImpl.createNamespace(ns,admin);
+                dao.createNamespace(ns);
                 System.out.println("创建namespace："+ Bytes.toString(ns)+"成功");
             }else {
                 System.out.println("namespace："+ Bytes.toString(ns)+"已经存在");
@@ -77,140 +316,144 @@ public class WeiboService {
         } catch (IOException e) {
             System.out.println("创建namespace："+ Bytes.toString(ns)+"失败");
             e.printStackTrace();
-        } finally {
-            if (admin != null) {
-                try {
-                    admin.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
+    /**
+     * 在配置的命名空间下创建命名空间以及三张表(接收列表的表由weibo.inbox.layout决定)，已经存在的跳过
+     */
+    public void createTables(){
+        byte[] ns = tables.getNamespace();
+        createNamespace(ns);
+        createTable(ns, WeiboConstants.TABLE_WEIBO, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        createTable(ns, WeiboConstants.TABLE_USER_RELATIONS, new byte[][]{WeiboConstants.CF1,WeiboConstants.CF2}, new int[]{1,1});
+        createTable(ns, inbox.getTable().getQualifier(), new byte[][]{WeiboConstants.CF1}, new int[]{inbox.getMaxVersions()});
+        createTable(ns, WeiboConstants.TABLE_WEIBO_TITLE_INDEX, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        createTable(ns, WeiboConstants.TABLE_WEIBO_SEARCH, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        createTable(ns, WeiboConstants.TABLE_WEIBO_IMAGE, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+    }
+
     /**
      * 步骤：
      * 1、判断该表是否已经存在
-     * 2、不存在则创建该表
+     * 2、不存在则创建该表，按盐值个数预分区
      * @param ns
      * @param tn
      * @param cfs
      */
-    public static void createTable(byte[] ns,byte[] tn,byte[][] cfs,int[] versions){
-        HBaseAdmin admin = null;
+    public void createTable(byte[] ns,byte[] tn,byte[][] cfs,int[] versions){
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            admin = (HBaseAdmin) conn.getAdmin();
-
             // 1、判断该表是否已经存在
-            boolean exists = WeiboHbaseDaoImpl.tableExists(ns, tn, admin);
+            boolean exists = dao.tableExists(ns, tn);
             if (exists) {
                 System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "已经存在");
             } else {
-              WeiboHbaseDaoImpl.createTable(ns,tn,cfs,versions,admin);
+                // 2、不存在则创建该表
+                dao.createTable(ns,tn,cfs,versions,tables.getCodec().splitKeys());
                 System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "创建成功");
             }
+            success = true;
         } catch (IOException e) {
             System.out.println("表" + Bytes.toString(ns) + ":" + Bytes.toString(tn) + "创建失败");
             e.printStackTrace();
         } finally {
-            if (admin != null) {
-                try {
-                    admin.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            metrics.record(WeiboMetrics.CREATE_TABLE, start, success);
         }
+    }
 
-
-        // 2、不存在则创建该表
+    /**
+     * 上传微博，image为字符串形式的图片(按UTF-8转换为字节)，为null时不保存图片
+     * @param userid
+     * @param title
+     * @param content
+     * @param image
+     */
+    public void uploadWeibo(String userid,String title,String content,String image){
+        uploadWeibo(userid, title, content, image == null ? null : image.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
      * 上传微博
      * 步骤：
-     * 1、在t_weibo表中新增该条微博数据
-     * 2、从t_user_relations表中查询该用户所有的粉丝用户
-     * 3、遍历粉丝用户，在t_user_weibo_list表中，对每个粉丝用户新增接收微博数据
+     * 1、有图片时先保存到t_weibo_image表(内容相同的图片只保存一份)，见WeiboImageStore
+     * 2、在t_weibo表中新增该条微博数据，图片只保存图片ID；按weibo.post.format每个字段一列或者整条微博编码为一列，见WeiboPostCodec
+     * 3、在t_weibo_title_index表中新增标题索引，见WeiboTitleIndex；在t_weibo_search表中新增内容的倒排索引，见WeiboSearchIndex
+     * 4、把推送任务交给异步推送队列后立即返回，由后台线程从t_user_relations表中查询该用户所有的粉丝用户，
+     *    并在接收列表中对每个粉丝用户新增接收微博数据
      * @param userid
      * @param title
      * @param content
      * @param image
      */
-    public static void uploadWeibo(String userid,String title,String content,String image){
-
-        HTable hTable_weibo = null;
-        HTable hTable_user_relations = null;
-        HTable table_user_weibo_list = null;
+    public void uploadWeibo(String userid,String title,String content,byte[] image){
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            // 1、在t_weibo表中新增该条微博数据
-            hTable_weibo = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS, WeiboConstants.TABLE_WEIBO));
-            byte[] rowkey_weibo = createWeiboRowKey(userid);
-            Put put_weibo = new Put(rowkey_weibo);
-            put_weibo.addColumn(WeiboConstants.CF1,WeiboConstants.TITLE,title.getBytes());
-            put_weibo.addColumn(WeiboConstants.CF1,WeiboConstants.CONTENT,content.getBytes());
-            put_weibo.addColumn(WeiboConstants.CF1,WeiboConstants.IMAGE,image.getBytes());
-            put_weibo.addColumn(WeiboConstants.CF1,WeiboConstants.USERID,userid.getBytes());
-            List<Put> puts = new ArrayList<Put>();
-            puts.add(put_weibo);
-            WeiboHbaseDaoImpl.PutDatas(hTable_weibo, puts);
-            System.out.println("用户" + userid + "发布微博成功");
-
-            // 2、从t_user_relations表中查询该用户所有的粉丝用户
-            List<byte[]> fans = new ArrayList<byte[]>();
-            hTable_user_relations = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_RELATIONS));
-            byte[] rowkey_relation = createUserRowKey(userid);
-            Get get = new Get(rowkey_relation);
-            get.addFamily(WeiboConstants.CF2);
-            Result result_relation = WeiboHbaseDaoImpl.getOneRowData(hTable_user_relations, get);
-            Cell[] cells = result_relation.rawCells();
-            for (Cell cell : cells) {
-                //获取粉丝用户列族下所有的列名，即为所有的粉丝userid
-                byte[] row = CellUtil.cloneQualifier(cell);
-                fans.add(row);
-            }
+            // 1、保存图片
+            String imageId = image == null || image.length == 0 ? null : imageStore.put(image);
 
-            //3、遍历粉丝用户，在t_user_weibo_list表中，对每个粉丝用户新增接收微博数据
-            if (!fans.isEmpty()) {
-                table_user_weibo_list = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS, WeiboConstants.TABLE_USER_WEIBO_LIST));
-                List<Put> putList = new ArrayList<Put>();
-                for (byte[] fan : fans) {
-                    byte[] rowkey_user_weibo_list = createUserRowKey(Bytes.toString(fan));
-                    Put put_user_weibo_list = new Put(rowkey_user_weibo_list);
-                    put_user_weibo_list.addColumn(WeiboConstants.CF1,userid.getBytes(),put_weibo.getTimeStamp(),rowkey_weibo);
-                    putList.add(put_user_weibo_list);
-                }
-                WeiboHbaseDaoImpl.PutDatas(table_user_weibo_list,putList);
-            } else {
-                System.out.println("用户" + userid + "没有粉丝，不需要同步微博到其粉丝的接收列表");
-            }
+            // 2、在t_weibo表中新增该条微博数据，4、写入成功后交给异步推送队列
+            long id = idGenerator.nextId();
+            writeWeibo(userid, id, title, content, imageId);
 
+            // 3、新增标题索引和全文索引，失败时微博仍然发布成功
+            writeTitleIndex(userid, title, id);
+            writeSearchIndex(userid, content, id);
+            success = true;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (hTable_weibo != null) {
-                try {
-                    hTable_weibo.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            metrics.record(WeiboMetrics.UPLOAD_WEIBO, start, success);
+        }
+    }
 
-            if (hTable_user_relations != null) {
-                try {
-                    hTable_user_relations.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * 在t_weibo表中新增一条微博，写入成功后交给异步推送队列，同步和异步接口(WeiboAsyncService)共用
+     * @param userid
+     * @param id 微博ID
+     * @param title
+     * @param content
+     * @param imageId 没有图片时为null
+     * @throws IOException
+     */
+    void writeWeibo(String userid, long id, String title, String content, String imageId) throws IOException {
+        byte[] rowkey_weibo = createWeiboRowKey(userid, id);
+        List<Put> puts = new ArrayList<Put>();
+        puts.add(postCodec.toPut(rowkey_weibo, WeiboIdGenerator.timeOf(id), userid, title, content, imageId));
+        dao.putDatas(tables.weiboTable(), puts);
+        System.out.println("用户" + userid + "发布微博成功");
+        fanoutPipeline.submit(userid, rowkey_weibo, id);
+    }
 
-            if (table_user_weibo_list != null) {
-                try {
-                    table_user_weibo_list.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * 在t_weibo_title_index表中新增标题索引，失败时只打印日志，由WeiboTitleIndexTool重建
+     * @param userid
+     * @param title
+     * @param id
+     */
+    void writeTitleIndex(String userid, String title, long id) {
+        try {
+            dao.putDatas(titleIndex.getTable(), titleIndex.toPuts(userid, title, id));
+        } catch (IOException e) {
+            System.out.println("用户" + userid + "的微博标题索引写入失败");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 在t_weibo_search表中新增内容的倒排索引，失败时只打印日志，由WeiboSearchIndexTool重建
+     * @param userid
+     * @param content
+     * @param id
+     */
+    void writeSearchIndex(String userid, String content, long id) {
+        try {
+            dao.putDatas(searchIndex.getTable(), searchIndex.toPuts(userid, content, id));
+        } catch (IOException e) {
+            System.out.println("用户" + userid + "的微博全文索引写入失败");
+            e.printStackTrace();
         }
     }
 
@@ -219,95 +462,55 @@ public class WeiboService {
      * 步骤：
      * 1、在t_user_relations表中，新增该用户的关注用户
      * 2、在t_user_relations表中，新增被关注用户的粉丝用户
-     * 3、从t_weibo表中获取被关注用户最近的10条微博
-     * 4、在t_user_weibo_list表中，给当前用户新增被关注用户的最近的10条微博
+     * 3、异步回填：从t_weibo表中获取被关注用户最近的weibo.backfill.depth条微博(默认10条)，新增到当前用户的接收列表，
+     *    只扫描被关注用户的rowkey范围并在服务端限制行数，见WeiboFocusBackfill
      * @param userid
      * @param focusUserId
      */
-    public static void addFocus(String userid,String focusUserId){
-        HTable table_relations = null;
-        HTable table_weibo = null;
-        HTable table_user_weibo_list = null;
-
+    public void addFocus(String userid,String focusUserId){
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            table_relations = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_RELATIONS));
-            List<Put> puts = new ArrayList<Put>();
-
-            // 1、在t_user_relations表中，新增该用户的关注用户
-            Put put_focus = new Put(createUserRowKey(userid));
-            put_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes(),WeiboConstants.DEFAULT_VALUE);
-            puts.add(put_focus);
+            // 1、2、写入双向关注关系
+            writeRelations(userid, focusUserId);
 
-            //2、在t_user_relations表中，新增被关注用户的粉丝用户
-            Put put_fans = new Put(createUserRowKey(focusUserId));
-            put_fans.addColumn(WeiboConstants.CF2,userid.getBytes(),WeiboConstants.DEFAULT_VALUE);
-            puts.add(put_fans);
-
-            WeiboHbaseDaoImpl.PutDatas(table_relations,puts);
-            System.out.println("用户" + userid + "的关注用户" +  focusUserId + "已添加");
-            System.out.println("用户" + focusUserId + "的粉丝用户" +  userid + "已添加");
-
-            // 3、从t_weibo表中获取被关注用户最近的10条微博
-            table_weibo = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_WEIBO));
-            PrefixFilter filter = new PrefixFilter(Bytes.toBytes(Math.abs(focusUserId.hashCode() % 9) + "_" + focusUserId));
-            Scan scan = new Scan();
-            //后续只需要发布微博的rowkey和timestap，因此加上查找列可以少返回数据，提升性能
-            scan.addColumn(WeiboConstants.CF1,WeiboConstants.USERID);
-            scan.setFilter(filter);
-            ResultScanner resultScanner = WeiboHbaseDaoImpl.getDatas(table_weibo, scan);
-
-            // 4、在t_user_weibo_list表中，给当前用户新增被关注用户的最近的10条微博
-            List<Cell> cells = new ArrayList<Cell>();
-            int count = 0;
-            for (Result result : resultScanner) {
-                if (count < 10){
-                    Cell cell = result.rawCells()[0];
-                    cells.add(cell);
-                    count++;
-                } else {
-                    break;
-                }
-            }
-            if (!cells.isEmpty()) {
-                table_user_weibo_list = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_WEIBO_LIST));
-                List<Put> putList = new ArrayList<Put>();
-                Put put_user_weibo_list = new Put(createUserRowKey(userid));
-                for (Cell cell : cells) {
-                    put_user_weibo_list.addColumn(WeiboConstants.CF1,focusUserId.getBytes(),cell.getTimestamp(),CellUtil.cloneRow(cell));
-                }
-                putList.add(put_user_weibo_list);
-                WeiboHbaseDaoImpl.PutDatas(table_user_weibo_list,putList);
-                System.out.println("用户" + userid + "关注的用户" + focusUserId + "的最近10条微博已同步成功");
-            } else {
-                System.out.println("用户" + userid + "关注的用户" + focusUserId + "未发布过微博,不需要同步微博到接收列表");
-            }
+            // 3、异步回填被关注用户最近的微博
+            focusBackfill.submit(userid, focusUserId);
+            success = true;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (table_relations != null) {
-                try {
-                    table_relations.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            metrics.record(WeiboMetrics.ADD_FOCUS, start, success);
+        }
+    }
 
-            if (table_weibo != null) {
-                try {
-                    table_weibo.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * 添加关注的第1、2步：在t_user_relations表中写入双向关注关系，并更新关注关系图、使当前用户的微博列表缓存失效
+     * 同步和异步接口(WeiboAsyncService)共用
+     * @param userid
+     * @param focusUserId
+     * @throws IOException
+     */
+    void writeRelations(String userid, String focusUserId) throws IOException {
+        List<Put> puts = new ArrayList<Put>();
 
-            if (table_user_weibo_list != null) {
-                try {
-                    table_user_weibo_list.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        // 1、在t_user_relations表中，新增该用户的关注用户
+        Put put_focus = new Put(createUserRowKey(userid));
+        put_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes(),WeiboConstants.DEFAULT_VALUE);
+        puts.add(put_focus);
+
+        //2、在t_user_relations表中，新增被关注用户的粉丝用户
+        Put put_fans = new Put(createUserRowKey(focusUserId));
+        put_fans.addColumn(WeiboConstants.CF2,userid.getBytes(),WeiboConstants.DEFAULT_VALUE);
+        puts.add(put_fans);
+
+        dao.putDatas(tables.userRelationsTable(),puts);
+        if (followGraph != null) {
+            followGraph.follow(userid, focusUserId);
         }
+        timelineCache.invalidate(userid);
+        System.out.println("用户" + userid + "的关注用户" +  focusUserId + "已添加");
+        System.out.println("用户" + focusUserId + "的粉丝用户" +  userid + "已添加");
     }
 
     /**
@@ -315,146 +518,467 @@ public class WeiboService {
      * 步骤：
      * 1、在t_user_relations表中，删除当前用户的该关注用户
      * 2、在t_user_relations表中，删除该被关注用户的当前粉丝用户
-     * 3、在t_user_weibo_list表中，删除当前用户下该被关注用户的所有数据(该表中，以被关注用户userid作为列名，所以相当于删除整个列)
+     * 3、在接收列表中，删除当前用户下该被关注用户的所有数据(方式二中以被关注用户userid作为列名，相当于删除整个列)
      * @param userid
      * @param focusUserId
      */
-    public static void deleteFocus(String userid,String focusUserId){
-        HTable table_relations = null;
-        HTable table_user_weibo_list = null;
+    public void deleteFocus(String userid,String focusUserId){
+        long start = System.nanoTime();
+        boolean success = false;
         try {
+            // 1、2、删除双向关注关系
+            deleteRelations(userid, focusUserId);
 
-            table_relations = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_RELATIONS));
-            List<Delete> deletes = new ArrayList<Delete>();
+            // 3、在接收列表中，删除当前用户下该被关注用户的所有数据
+            removeFromInbox(userid, focusUserId);
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.record(WeiboMetrics.DELETE_FOCUS, start, success);
+        }
+    }
+
+    /**
+     * 取消关注的第1、2步：在t_user_relations表中删除双向关注关系，并更新关注关系图
+     * 同步和异步接口(WeiboAsyncService)共用
+     * @param userid
+     * @param focusUserId
+     * @throws IOException
+     */
+    void deleteRelations(String userid, String focusUserId) throws IOException {
+        List<Delete> deletes = new ArrayList<Delete>();
+
+        // 1、在t_user_relations表中，删除当前用户的该关注用户
+        Delete delete_focus = new Delete(createUserRowKey(userid));
+        delete_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes());
+        deletes.add(delete_focus);
+
+        // 2、在t_user_relations表中，删除该被关注用户的当前粉丝用户
+        Delete delete_fans = new Delete(createUserRowKey(focusUserId));
+        delete_fans.addColumn(WeiboConstants.CF2,userid.getBytes());
+        deletes.add(delete_fans);
+
+        dao.deleteDatas(tables.userRelationsTable(),deletes);
+        if (followGraph != null) {
+            followGraph.unfollow(userid, focusUserId);
+        }
+        System.out.println("用户" + userid + "的关注用户" +  focusUserId + "已删除");
+        System.out.println("用户" + focusUserId + "的粉丝用户" +  userid + "已删除");
+    }
+
+    /**
+     * 取消关注的第3步：在接收列表中删除当前用户下该被关注用户的所有数据，并使当前用户的微博列表缓存失效
+     * 同步和异步接口(WeiboAsyncService)共用
+     * @param userid
+     * @param focusUserId
+     * @throws IOException
+     */
+    void removeFromInbox(String userid, String focusUserId) throws IOException {
+        inbox.remove(userid, Collections.singletonList(focusUserId));
+        timelineCache.invalidate(userid);
+        System.out.println("用户" + userid + "关注的用户" + focusUserId + "的接收列表中所有微博已删除成功");
+    }
+
+    /**
+     * 批量添加关注(例如新用户一次关注推荐的多个用户)
+     * 步骤：
+     * 1、在t_user_relations表中，当前用户的所有关注用户合并为一个多列的Put
+     * 2、在t_user_relations表中，被关注用户的粉丝按盐值(所在分区)分组，每个分区一次批量写入；
+     *    写入失败的分组撤销第1步中对应的关注用户，保持双向关系一致，这些用户作为失败返回
+     * 3、回填：并发扫描每个被关注用户最近的weibo.backfill.depth条微博，合并后一次写入当前用户的接收列表，见WeiboFocusBackfill.backfillBatch
+     * 逐个调用addFocus需要2N次写入和N次回填写入，批量调用约为 1 + 分区数 次写入和1次回填写入
+     * @param userid
+     * @param focusUserIds 被关注用户，重复的用户和当前用户自己会被跳过
+     * @return 每个被关注用户的结果
+     */
+    public WeiboFocusBatchResult addFocusBatch(String userid, List<String> focusUserIds){
+        long start = System.nanoTime();
+        WeiboFocusBatchResult batchResult = new WeiboFocusBatchResult();
+        List<String> targets = distinctFocus(userid, focusUserIds, batchResult);
+        if (targets.isEmpty()) {
+            metrics.record(WeiboMetrics.ADD_FOCUS_BATCH, start, true);
+            return batchResult;
+        }
+
+        // 1、在t_user_relations表中，新增该用户的所有关注用户
+        try {
+            Put put_focus = new Put(createUserRowKey(userid));
+            for (String focusUserId : targets) {
+                put_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes(),WeiboConstants.DEFAULT_VALUE);
+            }
+            List<Put> puts = new ArrayList<Put>();
+            puts.add(put_focus);
+            dao.putDatas(tables.userRelationsTable(),puts);
+            timelineCache.invalidate(userid);
+        } catch (IOException e) {
+            e.printStackTrace();
+            batchResult.getFailed().addAll(targets);
+            metrics.record(WeiboMetrics.ADD_FOCUS_BATCH, start, false);
+            return batchResult;
+        }
 
-            // 1、在t_user_relations表中，删除当前用户的该关注用户
+        // 2、在t_user_relations表中，按分区批量新增被关注用户的粉丝用户
+        for (List<String> group : groupBySalt(targets).values()) {
+            List<Put> puts = new ArrayList<Put>();
+            for (String focusUserId : group) {
+                Put put_fans = new Put(createUserRowKey(focusUserId));
+                put_fans.addColumn(WeiboConstants.CF2,userid.getBytes(),WeiboConstants.DEFAULT_VALUE);
+                puts.add(put_fans);
+            }
+            try {
+                dao.putDatas(tables.userRelationsTable(),puts);
+                batchResult.getSucceeded().addAll(group);
+                if (followGraph != null) {
+                    for (String focusUserId : group) {
+                        followGraph.follow(userid, focusUserId);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                batchResult.getFailed().addAll(group);
+            }
+        }
+        if (!batchResult.getFailed().isEmpty()) {
+            // 撤销粉丝写入失败的关注用户
             Delete delete_focus = new Delete(createUserRowKey(userid));
-            delete_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes());
+            for (String focusUserId : batchResult.getFailed()) {
+                delete_focus.addColumns(WeiboConstants.CF1,focusUserId.getBytes());
+            }
+            List<Delete> deletes = new ArrayList<Delete>();
             deletes.add(delete_focus);
+            try {
+                dao.deleteDatas(tables.userRelationsTable(),deletes);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("用户" + userid + "批量添加关注：成功" + batchResult.getSucceeded().size() + "个，失败" + batchResult.getFailed().size() + "个");
 
-            // 2、在t_user_relations表中，删除该被关注用户的当前粉丝用户
-            Delete delete_fans = new Delete(createUserRowKey(focusUserId));
-            delete_fans.addColumn(WeiboConstants.CF2,userid.getBytes());
-            deletes.add(delete_fans);
-
-            WeiboHbaseDaoImpl.deleteDatas(table_relations,deletes);
-            System.out.println("用户" + userid + "的关注用户" +  focusUserId + "已删除");
-            System.out.println("用户" + focusUserId + "的粉丝用户" +  userid + "已删除");
-
-            // 3、在t_user_weibo_list表中，删除当前用户下该被关注用户的所有数据(该表中，以被关注用户userid作为列名，所以相当于删除整个列)
-            table_user_weibo_list = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_WEIBO_LIST));
-            List<Delete> deleteList = new ArrayList<Delete>();
-            Delete delete_user_weibo_list = new Delete(createUserRowKey(userid));
-            // addColumns() 因为需要删除整个列所有的单元格，所以需要s
-            delete_user_weibo_list.addColumns(WeiboConstants.CF1,focusUserId.getBytes());
-            deleteList.add(delete_user_weibo_list);
-            WeiboHbaseDaoImpl.deleteDatas(table_user_weibo_list,deleteList);
-            System.out.println("用户" + userid + "关注的用户" + focusUserId + "的接收列表中所有微博已删除成功");
+        // 3、并发回填被关注用户最近的微博，合并后一次写入
+        batchResult.getBackfillFailed().addAll(focusBackfill.backfillBatch(userid, batchResult.getSucceeded()));
+        metrics.record(WeiboMetrics.ADD_FOCUS_BATCH, start, batchResult.isComplete());
+        return batchResult;
+    }
+
+    /**
+     * 批量取消关注
+     * 步骤：
+     * 1、在t_user_relations表中，当前用户的所有关注用户合并为一个Delete
+     * 2、在t_user_relations表中，被关注用户的粉丝按盐值(所在分区)分组，每个分区一次批量删除；
+     *    删除失败的分组恢复第1步中对应的关注用户，保持双向关系一致(与addFocusBatch相同)，这些用户作为失败返回，仍然是关注状态；
+     *    只有双向关系都已删除的用户才从关注关系图中移除
+     * 3、在接收列表中，一次删除当前用户下所有已取消关注用户的微博(方式二为一个多列的Delete，方式三为一次扫描)，
+     *    删除失败时这些用户作为失败返回(关注关系已删除，重试即可)
+     * @param userid
+     * @param focusUserIds 被取消关注的用户，重复的用户和当前用户自己会被跳过
+     * @return 每个被取消关注用户的结果
+     */
+    public WeiboFocusBatchResult deleteFocusBatch(String userid, List<String> focusUserIds){
+        long start = System.nanoTime();
+        WeiboFocusBatchResult batchResult = new WeiboFocusBatchResult();
+        List<String> targets = distinctFocus(userid, focusUserIds, batchResult);
+        if (targets.isEmpty()) {
+            metrics.record(WeiboMetrics.DELETE_FOCUS_BATCH, start, true);
+            return batchResult;
+        }
+
+        // 1、在t_user_relations表中，删除当前用户的所有关注用户
+        try {
+            Delete delete_focus = new Delete(createUserRowKey(userid));
+            for (String focusUserId : targets) {
+                delete_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes());
+            }
+            List<Delete> deletes = new ArrayList<Delete>();
+            deletes.add(delete_focus);
+            dao.deleteDatas(tables.userRelationsTable(),deletes);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (table_relations != null) {
-                try {
-                    table_relations.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            batchResult.getFailed().addAll(targets);
+            metrics.record(WeiboMetrics.DELETE_FOCUS_BATCH, start, false);
+            return batchResult;
+        }
+
+        // 2、在t_user_relations表中，按分区批量删除被关注用户的当前粉丝用户
+        List<String> removed = new ArrayList<String>();
+        for (List<String> group : groupBySalt(targets).values()) {
+            List<Delete> deletes = new ArrayList<Delete>();
+            for (String focusUserId : group) {
+                Delete delete_fans = new Delete(createUserRowKey(focusUserId));
+                delete_fans.addColumn(WeiboConstants.CF2,userid.getBytes());
+                deletes.add(delete_fans);
+            }
+            try {
+                dao.deleteDatas(tables.userRelationsTable(),deletes);
+                removed.addAll(group);
+                if (followGraph != null) {
+                    for (String focusUserId : group) {
+                        followGraph.unfollow(userid, focusUserId);
+                    }
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+                batchResult.getFailed().addAll(group);
+            }
+        }
+        if (!batchResult.getFailed().isEmpty()) {
+            // 恢复粉丝删除失败的关注用户
+            Put put_focus = new Put(createUserRowKey(userid));
+            for (String focusUserId : batchResult.getFailed()) {
+                put_focus.addColumn(WeiboConstants.CF1,focusUserId.getBytes(),WeiboConstants.DEFAULT_VALUE);
             }
+            List<Put> puts = new ArrayList<Put>();
+            puts.add(put_focus);
+            try {
+                dao.putDatas(tables.userRelationsTable(),puts);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-            if (table_user_weibo_list != null) {
-                try {
-                    table_user_weibo_list.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        // 3、在接收列表中，删除当前用户下所有已取消关注用户的微博
+        try {
+            if (!removed.isEmpty()) {
+                inbox.remove(userid, removed);
             }
+            batchResult.getSucceeded().addAll(removed);
+        } catch (IOException e) {
+            e.printStackTrace();
+            batchResult.getFailed().addAll(removed);
+        } finally {
+            timelineCache.invalidate(userid);
         }
+        System.out.println("用户" + userid + "批量取消关注：成功" + batchResult.getSucceeded().size() + "个，失败" + batchResult.getFailed().size() + "个");
+        metrics.record(WeiboMetrics.DELETE_FOCUS_BATCH, start, batchResult.isComplete());
+        return batchResult;
     }
 
     /**
-     * 查询当前用户的所有关注用户的最新100条微博
-     * 1、从表t_user_weibo_list中获取当前用户所关注用户的最新100条微博的rowkey
-     * 2、根据查到的rowkey从表t_weibo中查询微博具体内容
+     * 判断当前用户是否关注了focusUserId，启用关注关系图时不读取t_user_relations表
      * @param userid
+     * @param focusUserId
      * @return
      */
-    public static List<Weibo> getUserWeiboList(String userid){
-        List<Weibo> weibo_list = new ArrayList<Weibo>();
-        HTable table_user_weibo_list = null;
-        HTable table_weibo = null;
+    public boolean isFocus(String userid,String focusUserId){
+        if (followGraph != null) {
+            return followGraph.isFollowing(userid, focusUserId);
+        }
         try {
-            // 1、从表t_user_weibo_list中获取当前用户所关注用户的最新100条微博的rowkey
-            table_user_weibo_list = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_USER_WEIBO_LIST));
             Get get = new Get(createUserRowKey(userid));
-            get.setMaxVersions(100);
-            Result rowData = WeiboHbaseDaoImpl.getOneRowData(table_user_weibo_list, get);
-            Cell[] cells = rowData.rawCells();
-
-            if (cells != null && cells.length > 0) {
-                Arrays.sort(cells, new Comparator<Cell>() {
-                    public int compare(Cell o1, Cell o2) {
-                        return -(int) (o1.getTimestamp() - o2.getTimestamp());
-                    }
-                });
-                List<byte[]> rowkey_lst = new ArrayList<byte[]>();
-                int count = 0;
-                for (Cell cell : cells) {
-                    if(count < 100){
-                        byte[] value = CellUtil.cloneValue(cell);
-                        rowkey_lst.add(value);
-                    }
-                }
-                // 2、根据查到的rowkey从表t_weibo中查询微博具体内容
-                if (!rowkey_lst.isEmpty()) {
-                    table_weibo = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_WEIBO));
-                    for (byte[] rowkey : rowkey_lst) {
-                        Get get_weibo = new Get(rowkey);
-                        Result result = WeiboHbaseDaoImpl.getOneRowData(table_weibo, get_weibo);
-                        if (!result.isEmpty()) {
-                            Weibo weibo = new Weibo();
-                            weibo.setTitle(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.TITLE)));
-                            weibo.setContent(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.CONTENT)));
-                            weibo.setImage(result.getValue(WeiboConstants.CF1,WeiboConstants.IMAGE));
-                            weibo.setTime(result.rawCells()[0].getTimestamp());
-                            weibo.setUserid(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.USERID)));
-                            weibo_list.add(weibo);
-                        }
-                    }
-                }
-            } else {
-                System.out.println("用户" + userid + "接收列表为空");
-            }
+            get.addColumn(WeiboConstants.CF1,focusUserId.getBytes());
+            return !dao.getOneRowData(tables.userRelationsTable(),get).isEmpty();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (table_user_weibo_list != null) {
-                try {
-                    table_user_weibo_list.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            return false;
+        }
+    }
+
+    /**
+     * 查询用户的粉丝数，启用关注关系图时为位图中的元素个数，否则读取t_user_relations表中cf2的列数(不返回列值)
+     * @param userid
+     * @return
+     */
+    public long getFansCount(String userid){
+        if (followGraph != null) {
+            return followGraph.followerCount(userid);
+        }
+        try {
+            Get get = new Get(createUserRowKey(userid));
+            get.addFamily(WeiboConstants.CF2);
+            get.setFilter(new KeyOnlyFilter());
+            return dao.getOneRowData(tables.userRelationsTable(),get).size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * 去掉重复的用户和当前用户自己，跳过的用户记录到batchResult
+     * @param userid
+     * @param focusUserIds
+     * @param batchResult
+     * @return
+     */
+    private List<String> distinctFocus(String userid, List<String> focusUserIds, WeiboFocusBatchResult batchResult){
+        Set<String> seen = new LinkedHashSet<String>();
+        for (String focusUserId : focusUserIds) {
+            if (focusUserId.equals(userid) || !seen.add(focusUserId)) {
+                batchResult.getSkipped().add(focusUserId);
             }
+        }
+        return new ArrayList<String>(seen);
+    }
 
-            if (table_weibo != null) {
-                try {
-                    table_weibo.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * 用户按t_user_relations表中rowkey的盐值(所在分区)分组
+     * @param userids
+     * @return
+     */
+    private Map<Integer, List<String>> groupBySalt(List<String> userids){
+        Map<Integer, List<String>> groups = new TreeMap<Integer, List<String>>();
+        for (String userid : userids) {
+            int salt = WeiboRowKeyCodec.saltOf(createUserRowKey(userid));
+            List<String> group = groups.get(salt);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(salt, group);
             }
+            group.add(userid);
         }
+        return groups;
+    }
 
-        return weibo_list;
+    /**
+     * 查询当前用户的所有关注用户的最新100条微博
+     * @param userid
+     * @return
+     */
+    public List<Weibo> getUserWeiboList(String userid){
+        return getUserWeiboListResult(userid).getWeibos();
+    }
+
+    /**
+     * 查询当前用户的所有关注用户的最新100条微博，同时返回已不存在或加载失败的微博rowkey
+     * 1、查询用户微博列表缓存，命中则直接使用缓存中的微博rowkey
+     * 2、未命中时，从接收列表中获取当前用户所关注用户的最新微博的rowkey(推送)，
+     *    从表t_weibo中拉取当前用户关注的大V用户的最新微博的rowkey(拉取)，多路归并出最新的100条，并写入缓存
+     * 3、根据rowkey从表t_weibo中批量查询微博具体内容(按分区分组并发multi-get，结果保持时间线顺序)
+     * @param userid
+     * @return
+     */
+    public WeiboHydrator.HydrationResult getUserWeiboListResult(String userid){
+        long start = System.nanoTime();
+
+        // 1、查询用户微博列表缓存
+        List<WeiboTimelineEntry> merged = timelineCache.get(userid);
+        if (merged == null) {
+            // 2、从HBase加载
+            Object token = timelineCache.startLoad(userid);
+            WeiboTimelineMerger merger = loadTimeline(userid, null, TIMELINE_SIZE);
+            if (merger == null) {
+                timelineCache.invalidate(userid);
+                metrics.record(WeiboMetrics.GET_USER_WEIBO_LIST, start, false);
+                return new WeiboHydrator.HydrationResult();
+            }
+            merged = merger.merge(TIMELINE_SIZE);
+            timelineCache.finishLoad(userid, token, merged);
+        }
+
+        // 3、根据rowkey从表t_weibo中批量查询微博具体内容
+        WeiboHydrator.HydrationResult hydrationResult = hydrate(userid, merged);
+        metrics.record(WeiboMetrics.GET_USER_WEIBO_LIST, start, hydrationResult.getFailedRowKeys().isEmpty());
+        return hydrationResult;
+    }
+
+    /**
+     * 分页查询当前用户的所有关注用户的微博，用于无限滚动
+     * 1、第一页：用户微博列表缓存中的微博多于limit条时，直接取缓存中的前limit条
+     * 2、否则从游标位置读取：接收列表只读取游标之后的微博(方式一、二按时间范围只读取版本不大于游标微博ID的单元格，方式三从游标位置开始扫描)；
+     *    大V用户从游标位置开始扫描；各路由WeiboTimelineMerger归并出最新的limit条，每页只读取这一页需要的数据
+     * 3、根据rowkey从表t_weibo中批量查询微博具体内容
+     * @param userid
+     * @param cursor 上一页返回的游标，null表示第一页
+     * @param limit 每页条数，1~100
+     * @return 加载失败时返回没有微博、游标为null的页
+     */
+    public WeiboTimelinePage getUserWeiboList(String userid, String cursor, int limit){
+        if (limit < 1 || limit > TIMELINE_SIZE) {
+            throw new IllegalArgumentException("每页条数必须在1~" + TIMELINE_SIZE + "之间：" + limit);
+        }
+        long start = System.nanoTime();
+        WeiboTimelineEntry after = WeiboTimelineCursor.decode(cursor);
+        List<WeiboTimelineEntry> entries = null;
+        boolean hasMore = false;
+
+        // 1、第一页优先使用缓存
+        if (after == null) {
+            List<WeiboTimelineEntry> cached = timelineCache.get(userid);
+            if (cached != null && cached.size() > limit) {
+                entries = cached.subList(0, limit);
+                hasMore = true;
+            }
+        }
+
+        // 2、从游标位置读取并归并
+        if (entries == null) {
+            WeiboTimelineMerger merger = loadTimeline(userid, after, limit);
+            if (merger == null) {
+                metrics.record(WeiboMetrics.GET_USER_WEIBO_PAGE, start, false);
+                return new WeiboTimelinePage(new WeiboHydrator.HydrationResult(), null);
+            }
+            entries = merger.merge(limit);
+            hasMore = merger.hasMore();
+        }
+
+        // 3、批量查询微博具体内容
+        WeiboHydrator.HydrationResult hydrationResult = hydrate(userid, entries);
+        String nextCursor = hasMore && !entries.isEmpty() ? WeiboTimelineCursor.encode(entries.get(entries.size() - 1)) : null;
+        metrics.record(WeiboMetrics.GET_USER_WEIBO_PAGE, start, hydrationResult.getFailedRowKeys().isEmpty());
+        return new WeiboTimelinePage(hydrationResult, nextCursor);
+    }
+
+    /**
+     * 根据rowkey从表t_weibo中批量查询微博具体内容
+     * @param userid
+     * @param entries
+     * @return
+     */
+    private WeiboHydrator.HydrationResult hydrate(String userid, List<WeiboTimelineEntry> entries){
+        if (entries.isEmpty()) {
+            System.out.println("用户" + userid + "接收列表为空");
+            return new WeiboHydrator.HydrationResult();
+        }
+        List<byte[]> rowkey_lst = new ArrayList<byte[]>(entries.size());
+        for (WeiboTimelineEntry entry : entries) {
+            rowkey_lst.add(entry.getRowkey());
+        }
+        WeiboHydrator.HydrationResult hydrationResult = hydrator.hydrate(rowkey_lst);
+        if (!hydrationResult.isComplete()) {
+            System.out.println("用户" + userid + "接收列表中有" + hydrationResult.getMissingRowKeys().size() + "条微博已不存在，"
+                    + hydrationResult.getFailedRowKeys().size() + "条微博加载失败");
+        }
+        return hydrationResult;
+    }
+
+    /**
+     * 从HBase读取当前用户在游标之后的最新微博的rowkey，接收列表按存储方式分为一路或多路，每个大V用户各为一路
+     * 1、从接收列表中读取推送的微博，见WeiboInboxLayout.read()
+     * 2、从表t_weibo中拉取当前用户关注的大V用户的微博
+     * @param userid
+     * @param after 上一页的最后一条微博，null表示第一页
+     * @param limit
+     * @return 调用merge(limit)得到按发布时间降序排列的结果，加载失败返回null
+     */
+    private WeiboTimelineMerger loadTimeline(String userid, WeiboTimelineEntry after, int limit){
+        try {
+            // 1、从接收列表中读取推送的微博
+            WeiboTimelineMerger merger = new WeiboTimelineMerger(after);
+            inbox.read(userid, after, limit, merger);
+
+            // 2、拉取关注的大V用户的微博
+            // 有游标时每个大V用户多读1条：同一个用户的微博ID互不相同，最多有1条与游标的微博ID相同、需要跳过的微博
+            int perAuthor = Math.min(limit, celebrityTimeline.getPostsPerAuthor()) + (after == null ? 0 : 1);
+            for (List<WeiboTimelineEntry> run : celebrityTimeline.pull(userid, after, perAuthor)) {
+                merger.addRun(run, run.size() >= perAuthor);
+            }
+            metrics.recordTimelineCells(merger.getEntriesRead());
+            return merger;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
      * 创建t_weibo表的rowkey
      * @param userid
+     * @param id 微博ID
      * @return
      */
-    private static byte[] createWeiboRowKey(String userid){
-        //Long.MAX_VALUE - System.currentTimeMillis() 是为了将同一用户的数据降序排序，因为hbase默认分区region内部升序排列。在获取用户最新微博时就可以获取最前面的微博了。
-        return (Math.abs(userid.hashCode() % 9) + "_" + userid + "_" + (Long.MAX_VALUE - System.currentTimeMillis())).getBytes();
+    private byte[] createWeiboRowKey(String userid, long id){
+        //Long.MAX_VALUE - id 是为了将同一用户的数据降序排序，因为hbase默认分区region内部升序排列。在获取用户最新微博时就可以获取最前面的微博了。
+        return tables.weiboRowKey(userid, id);
     }
 
     /**
@@ -462,56 +986,184 @@ public class WeiboService {
      * @param userid
      * @return
      */
-    private static byte[] createUserRowKey(String userid){
-        return (Math.abs(userid.hashCode() % 9) + "_" + userid).getBytes();
+    private byte[] createUserRowKey(String userid){
+        return tables.userRowKey(userid);
     }
 
     /**
      * 根据用户userid、日期、title查询微博数据
+     * 通过标题索引查询该用户当天标题相同的微博，见getWeiboByUserAndTitle
      * @param userid
-     * @param date
+     * @param date yyyyMMdd
      * @param title
      * @return
      */
-    public static List<Weibo> getWeiboByUserAndDate(String userid, String date,String title){
+    public List<Weibo> getWeiboByUserAndDate(String userid, String date,String title){
+        long dayTime;
+        try {
+            dayTime = new SimpleDateFormat("yyyyMMdd").parse(date).getTime();
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return new ArrayList<Weibo>();
+        }
+        return getWeiboByUserAndTitle(userid, title, dayTime, dayTime + 86400000L, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 查询某个用户在时间范围内标题相同的微博，按发布时间降序
+     * 步骤：
+     * 1、在t_weibo_title_index表中按 标题 + 用户 + 时间范围 扫描，最多读取limit行
+     * 2、根据rowkey从表t_weibo中批量查询微博具体内容，去掉索引已过期(微博不存在或标题不同)的微博
+     * @param userid
+     * @param title 标题，比较前先规范化(见WeiboTitleIndex.normalize)
+     * @param startTime 起始时间(毫秒，包含)
+     * @param endTime 结束时间(毫秒，不包含)
+     * @param limit 最多返回的条数
+     * @return
+     */
+    public List<Weibo> getWeiboByUserAndTitle(String userid, String title, long startTime, long endTime, int limit){
+        return findByTitle(title, userid, startTime, endTime, limit);
+    }
+
+    /**
+     * 查询所有用户中标题相同的最新微博，按发布时间降序
+     * @param title 标题，比较前先规范化(见WeiboTitleIndex.normalize)
+     * @param startTime 起始时间(毫秒，包含)，0表示不限
+     * @param endTime 结束时间(毫秒，不包含)，Long.MAX_VALUE表示不限
+     * @param limit 最多返回的条数
+     * @return
+     */
+    public List<Weibo> getWeiboByTitle(String title, long startTime, long endTime, int limit){
+        return findByTitle(title, null, startTime, endTime, limit);
+    }
+
+    /**
+     * 浏览一条微博，计数先在内存中合并，定时批量写入t_weibo表
+     * @param userid 发布微博的用户
+     * @param id 微博ID(Weibo.getId())
+     */
+    public void viewWeibo(String userid, long id){
+        counterService.increment(createWeiboRowKey(userid, id), WeiboCounterService.VIEWS, 1);
+    }
+
+    public void likeWeibo(String userid, long id){
+        counterService.increment(createWeiboRowKey(userid, id), WeiboCounterService.LIKES, 1);
+    }
+
+    public void unlikeWeibo(String userid, long id){
+        counterService.increment(createWeiboRowKey(userid, id), WeiboCounterService.LIKES, -1);
+    }
+
+    public void repostWeibo(String userid, long id){
+        counterService.increment(createWeiboRowKey(userid, id), WeiboCounterService.REPOSTS, 1);
+    }
+
+    /**
+     * 读取一条微博的浏览、点赞、转发计数，包括内存中还未写入t_weibo表的部分
+     * @param userid
+     * @param id
+     * @return 下标为WeiboCounterService.VIEWS、LIKES、REPOSTS
+     * @throws IOException
+     */
+    public long[] getWeiboCounters(String userid, long id) throws IOException {
+        return counterService.get(createWeiboRowKey(userid, id));
+    }
+
+    /**
+     * 查询最近计数增长最快的微博，按热度降序，已删除的微博不返回
+     * @param limit 最多返回的条数，不超过weibo.counter.hot.size
+     * @return
+     */
+    public List<Weibo> getHotWeibos(int limit){
+        List<byte[]> rowkeys = new ArrayList<byte[]>();
+        for (WeiboCounterService.HotPost hotPost : counterService.getHotPosts(limit)) {
+            rowkeys.add(hotPost.getRowkey());
+        }
+        if (rowkeys.isEmpty()) {
+            return new ArrayList<Weibo>();
+        }
+        return hydrator.hydrate(rowkeys).getWeibos();
+    }
+
+    /**
+     * 读取微博的图片(Weibo.getImageId())，按需逐块从t_weibo_image表中加载，调用方负责关闭
+     * @param imageId
+     * @return 图片不存在时返回null
+     * @throws IOException
+     */
+    public InputStream getImage(String imageId) throws IOException {
+        return imageStore.open(imageId);
+    }
+
+    /**
+     * 全文检索：查询时间范围内内容包含所有关键词的微博，按相关度降序
+     * 步骤：
+     * 1、在t_weibo_search表中按二元组倒排索引查询候选微博并计算得分，见WeiboSearchIndex
+     * 2、按得分顺序分批从表t_weibo中批量查询微博具体内容，只保留内容包含每个关键词(按空白分隔)的微博，直到满limit条
+     * @param query 查询语句，多个关键词用空白分隔
+     * @param startTime 起始时间(毫秒，包含)
+     * @param endTime 结束时间(毫秒，不包含)
+     * @param limit 最多返回的条数
+     * @return
+     */
+    public List<Weibo> searchWeibo(String query, long startTime, long endTime, int limit){
+        long start = System.nanoTime();
+        boolean success = false;
         List<Weibo> weibo_list = new ArrayList<Weibo>();
-        HTable table = null;
         try {
-            table = (HTable) conn.getTable(TableName.valueOf(WeiboConstants.NS,WeiboConstants.TABLE_WEIBO));
-            long dayTime=new SimpleDateFormat("yyyyMMdd").parse(date).getTime()+86400000L;
-            String startkey=Math.abs(userid.hashCode() % 9) + "_" + userid + "_" + (Long.MAX_VALUE-dayTime);
-            String endkey=Math.abs(userid.hashCode() % 9) + "_" + userid + "_" + (Long.MAX_VALUE-dayTime+86400000L);
-            Scan scan = new Scan(startkey.getBytes(),endkey.getBytes());
-
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(WeiboConstants.CF1,WeiboConstants.TITLE,CompareFilter.CompareOp.EQUAL,title.getBytes());
-            scan.setFilter(filter);
-
-            ResultScanner resultScanner = WeiboHbaseDaoImpl.getDatas(table, scan);
-            for (Result result : resultScanner) {
-                if (!result.isEmpty()) {
-                    Weibo weibo = new Weibo();
-                    weibo.setTitle(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.TITLE)));
-                    weibo.setContent(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.CONTENT)));
-                    weibo.setImage(result.getValue(WeiboConstants.CF1,WeiboConstants.IMAGE));
-                    weibo.setTime(result.rawCells()[0].getTimestamp());
-                    weibo.setUserid(Bytes.toString(result.getValue(WeiboConstants.CF1,WeiboConstants.USERID)));
-                    weibo_list.add(weibo);
+            // 1、查询候选微博
+            List<byte[]> rowkeys = searchIndex.search(query, startTime, endTime);
+
+            // 2、按得分顺序分批加载并按关键词过滤
+            List<String> keywords = WeiboBigramTokenizer.keywords(query);
+            success = true;
+            for (int from = 0; from < rowkeys.size() && weibo_list.size() < limit; from += limit) {
+                WeiboHydrator.HydrationResult hydrationResult = hydrator.hydrate(rowkeys.subList(from, Math.min(rowkeys.size(), from + limit)));
+                for (Weibo weibo : hydrationResult.getWeibos()) {
+                    String content = WeiboTitleIndex.normalize(weibo.getContent());
+                    boolean matched = true;
+                    for (String keyword : keywords) {
+                        if (!content.contains(keyword)) {
+                            matched = false;
+                            break;
+                        }
+                    }
+                    if (matched && weibo_list.size() < limit) {
+                        weibo_list.add(weibo);
+                    }
                 }
+                success = success && hydrationResult.getFailedRowKeys().isEmpty();
             }
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ParseException e) {
-            e.printStackTrace();
         } finally {
-            if (table != null) {
-                try {
-                    table.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            metrics.record(WeiboMetrics.SEARCH_WEIBO, start, success);
+        }
+        return weibo_list;
+    }
+
+    private List<Weibo> findByTitle(String title, String userid, long startTime, long endTime, int limit){
+        long start = System.nanoTime();
+        boolean success = false;
+        List<Weibo> weibo_list = new ArrayList<Weibo>();
+        try {
+            // 1、在标题索引中查找微博的rowkey
+            List<byte[]> rowkeys = titleIndex.find(title, userid, startTime, endTime, limit);
+
+            // 2、批量查询微博具体内容
+            WeiboHydrator.HydrationResult hydrationResult = hydrator.hydrate(rowkeys);
+            String normalized = WeiboTitleIndex.normalize(title);
+            for (Weibo weibo : hydrationResult.getWeibos()) {
+                if (normalized.equals(WeiboTitleIndex.normalize(weibo.getTitle()))) {
+                    weibo_list.add(weibo);
                 }
             }
+            success = hydrationResult.getFailedRowKeys().isEmpty();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.record(userid == null ? WeiboMetrics.GET_WEIBO_BY_TITLE : WeiboMetrics.GET_WEIBO_BY_USER_AND_DATE, start, success);
         }
-
         return weibo_list;
     }
 }
@@ -0,0 +1,119 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 三张表的表名和rowkey编码，命名空间和盐值个数都来自配置：
+ * weibo.namespace(默认weibo)、weibo.salt.buckets(默认9)
+ * 建表时的预分区切分点也由这里的WeiboRowKeyCodec生成，rowkey的盐值和分区始终一一对应。
+ */
+public class WeiboTables {
+
+    private byte[] namespace;
+    private WeiboRowKeyCodec codec;
+    private TableName weiboTable;
+    private TableName userRelationsTable;
+    private TableName userWeiboListTable;
+    private TableName titleIndexTable;
+    private TableName searchIndexTable;
+    private TableName imageTable;
+
+    public WeiboTables(byte[] namespace, int saltBuckets) {
+        this.namespace = namespace;
+        this.codec = new WeiboRowKeyCodec(saltBuckets);
+        this.weiboTable = TableName.valueOf(namespace, WeiboConstants.TABLE_WEIBO);
+        this.userRelationsTable = TableName.valueOf(namespace, WeiboConstants.TABLE_USER_RELATIONS);
+        this.userWeiboListTable = TableName.valueOf(namespace, WeiboConstants.TABLE_USER_WEIBO_LIST);
+        this.titleIndexTable = TableName.valueOf(namespace, WeiboConstants.TABLE_WEIBO_TITLE_INDEX);
+        this.searchIndexTable = TableName.valueOf(namespace, WeiboConstants.TABLE_WEIBO_SEARCH);
+        this.imageTable = TableName.valueOf(namespace, WeiboConstants.TABLE_WEIBO_IMAGE);
+    }
+
+    /**
+     * 根据配置创建
+     * @param conf
+     * @return
+     */
+    public static WeiboTables create(Configuration conf) {
+        String namespace = conf.get(WeiboConstants.NAMESPACE_KEY, Bytes.toString(WeiboConstants.NS));
+        return new WeiboTables(Bytes.toBytes(namespace),
+                conf.getInt(WeiboConstants.SALT_BUCKETS_KEY, WeiboConstants.SALT_BUCKETS_DEFAULT));
+    }
+
+    public byte[] getNamespace() {
+        return namespace;
+    }
+
+    public WeiboRowKeyCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * t_weibo表
+     * @return
+     */
+    public TableName weiboTable() {
+        return weiboTable;
+    }
+
+    /**
+     * t_user_relations表
+     * @return
+     */
+    public TableName userRelationsTable() {
+        return userRelationsTable;
+    }
+
+    /**
+     * t_user_weibo_list表
+     * @return
+     */
+    public TableName userWeiboListTable() {
+        return userWeiboListTable;
+    }
+
+    /**
+     * t_weibo_title_index表
+     * @return
+     */
+    public TableName titleIndexTable() {
+        return titleIndexTable;
+    }
+
+    /**
+     * t_weibo_search表
+     * @return
+     */
+    public TableName searchIndexTable() {
+        return searchIndexTable;
+    }
+
+    /**
+     * t_weibo_image表
+     * @return
+     */
+    public TableName imageTable() {
+        return imageTable;
+    }
+
+    /**
+     * t_user_relations表和t_user_weibo_list表的rowkey
+     * @param userid
+     * @return
+     */
+    public byte[] userRowKey(String userid) {
+        return codec.userRowKey(userid);
+    }
+
+    /**
+     * t_weibo表的rowkey
+     * @param userid
+     * @param id 微博ID
+     * @return
+     */
+    public byte[] weiboRowKey(String userid, long id) {
+        return codec.weiboRowKey(userid, id);
+    }
+}
@@ -1,42 +1,106 @@
 package com.gtl.hbase.weibo;
 
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 public class WeiboTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        WeiboService weiboService = WeiboService.createHbaseService("hadoop102,hadoop103,hadoop104");
+        //不连接集群，使用内存存储测试
+        //WeiboService weiboService = WeiboService.createMemoryService(new Configuration());
+
+        //测试：按配置(weibo.namespace、weibo.salt.buckets)创建命名空间以及三张表
+        //weiboService.createTables();
+
         //测试：创建命名空间
-        //WeiboService.createNamespace(WeiboConstants.NS);
+        //weiboService.createNamespace(WeiboConstants.NS);
 
         //测试：创建表t_weibo
-        //WeiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_WEIBO, new byte[][]{WeiboConstants.CF1}, new int[]{1});
+        //weiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_WEIBO, new byte[][]{WeiboConstants.CF1}, new int[]{1});
 
         //测试：创建表t_user_relations
-        //WeiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_USER_RELATIONS, new byte[][]{WeiboConstants.CF1,WeiboConstants.CF2}, new int[]{1,1});
+        //weiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_USER_RELATIONS, new byte[][]{WeiboConstants.CF1,WeiboConstants.CF2}, new int[]{1,1});
 
         //测试：创建表t_user_weibo_list
-        //WeiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_USER_WEIBO_LIST, new byte[][]{WeiboConstants.CF1}, new int[]{100});
+        //weiboService.createTable(WeiboConstants.NS, WeiboConstants.TABLE_USER_WEIBO_LIST, new byte[][]{WeiboConstants.CF1}, new int[]{100});
 
         //测试：上传微博
-        //WeiboService.uploadWeibo("zhaoliu","吃饭了吗?","zhaoliu_weibo2","");
+        //weiboService.uploadWeibo("zhaoliu","吃饭了吗?","zhaoliu_weibo2","");
+
+        //测试：上传带图片的微博，微博列表中只有图片ID，按需读取图片
+//        weiboService.uploadWeibo("zhaoliu","吃饭了吗?","zhaoliu_weibo3", java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("lunch.jpg")));
+//        for(Weibo weibo:weiboService.getUserWeiboList("zhangsan")){
+//            if (weibo.getImageId() != null) {
+//                java.nio.file.Files.copy(weiboService.getImage(weibo.getImageId()), java.nio.file.Paths.get(weibo.getImageId() + ".jpg"));
+//            }
+//        }
 
 
         //测试：添加关注用户
-        //WeiboService.addFocus("zhangsan","zhaoliu");
+        //weiboService.addFocus("zhangsan","zhaoliu");
 
         //测试：删除关注
-        WeiboService.deleteFocus("zhangsan","zhaoliu");
+        weiboService.deleteFocus("zhangsan","zhaoliu");
+
+        //测试：批量添加关注、批量取消关注
+//        WeiboFocusBatchResult batchResult = weiboService.addFocusBatch("zhangsan", Arrays.asList("lisi","wangwu","zhaoliu"));
+//        System.out.println("成功：" + batchResult.getSucceeded() + " 失败：" + batchResult.getFailed() + " 回填失败：" + batchResult.getBackfillFailed());
+//        weiboService.deleteFocusBatch("zhangsan", Arrays.asList("lisi","wangwu"));
 
         //测试：微博列表
-//        List<Weibo> weiboList =WeiboService.getUserWeiboList("zhangsan");
+//        List<Weibo> weiboList =weiboService.getUserWeiboList("zhangsan");
 //        for(Weibo weibo:weiboList){
 //            System.out.println("title："+weibo.getTitle()+"" + " time: "+weibo.getTime() + " content : " + weibo.getContent());
 //        }
 
+        //测试：批量加载微博列表，统计耗时以及不存在/加载失败的微博
+//        long start = System.currentTimeMillis();
+//        WeiboHydrator.HydrationResult hydrationResult = weiboService.getUserWeiboListResult("zhangsan");
+//        System.out.println("加载" + hydrationResult.getWeibos().size() + "条微博耗时：" + (System.currentTimeMillis() - start) + "ms"
+//                + " 不存在：" + hydrationResult.getMissingRowKeys().size() + " 失败：" + hydrationResult.getFailedRowKeys().size());
+
+        //测试：分页查询微博列表，每页20条，直到没有更多微博
+//        String cursor = null;
+//        do {
+//            WeiboTimelinePage page = weiboService.getUserWeiboList("zhangsan", cursor, 20);
+//            for(Weibo weibo:page.getWeibos()){
+//                System.out.println("title："+weibo.getTitle()+"" + " time: "+weibo.getTime());
+//            }
+//            cursor = page.getNextCursor();
+//        } while (cursor != null);
+
         //测试：filter
-//        List<Weibo> weiboList2 =WeiboService.getWeiboByUserAndDate("lisi","20191107","吃饭了吗?");
+//        List<Weibo> weiboList2 =weiboService.getWeiboByUserAndDate("lisi","20191107","吃饭了吗?");
 //        for(Weibo weibo:weiboList2){
 //            System.out.println("title："+weibo.getTitle()+"" + " time: "+weibo.getTime());
 //        }
+
+        //测试：按标题查询，不限用户的最新20条、某个用户最近7天的最新20条
+//        List<Weibo> weiboList3 = weiboService.getWeiboByTitle("吃饭了吗?", 0, Long.MAX_VALUE, 20);
+//        long now = System.currentTimeMillis();
+//        List<Weibo> weiboList4 = weiboService.getWeiboByUserAndTitle("lisi", "吃饭了吗?", now - 7 * 86400000L, now, 20);
+
+        //测试：全文检索最近30天内容包含"吃饭"的最相关的20条微博
+//        List<Weibo> weiboList5 = weiboService.searchWeibo("吃饭", System.currentTimeMillis() - 30 * 86400000L, Long.MAX_VALUE, 20);
+
+        //测试：各操作耗时、存储请求次数等统计(也可以通过jconsole查看com.gtl.hbase.weibo下的MBean)
+//        System.out.println(weiboService.getMetrics().getSnapshot());
+
+        //测试：异步接口，发布微博和添加关注不占用调用线程，全部完成后再查询微博列表
+//        WeiboAsyncService asyncService = new WeiboAsyncService(weiboService);
+//        java.util.concurrent.CompletableFuture.allOf(
+//                asyncService.uploadWeibo("lisi","吃饭了吗?","lisi_weibo4",null),
+//                asyncService.addFocus("wangwu","lisi")).join();
+//        System.out.println(asyncService.getUserWeiboList("wangwu").join().getWeibos().size());
+//        asyncService.close(30000L);
+
+        //测试：关注关系查询(创建WeiboService时设置weibo.follow.graph.enabled为true，则从内存中的关注关系图读取)
+//        System.out.println(weiboService.isFocus("wangwu","lisi") + " " + weiboService.getFansCount("lisi"));
+
+        weiboService.close();
     }
 }
 
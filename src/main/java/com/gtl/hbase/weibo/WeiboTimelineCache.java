@@ -0,0 +1,173 @@
+package com.gtl.hbase.weibo;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户微博列表缓存(进程内)
+ * key为userid，value为该用户接收列表中最新的微博rowkey及发布时间(已经合并了拉取的大V微博)，微博内容仍由批量加载获取。
+ *
+ * 淘汰：按访问顺序的LRU，超过maxUsers个用户时淘汰最久未访问的用户；写入超过ttlMs的缓存视为过期。
+ * 一致性：
+ * 1、发布微博时，推送成功的粉丝如果已经缓存，则把新微博追加到缓存中
+ * 2、添加关注、取消关注时，使当前用户的缓存失效
+ * 3、大V的微博不推送，依靠ttlMs过期后重新拉取
+ * 4、从HBase加载期间如果发生了追加或失效，加载结果不写入缓存(startLoad/finishLoad)，避免旧数据覆盖新数据
+ */
+public class WeiboTimelineCache {
+
+    private final int maxUsers;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final LinkedHashMap<String, CachedTimeline> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param maxUsers 最多缓存的用户数
+     * @param maxEntries 每个用户最多缓存的微博数
+     * @param ttlMs 缓存的有效时间(毫秒)
+     */
+    public WeiboTimelineCache(final int maxUsers, int maxEntries, long ttlMs) {
+        this.maxUsers = maxUsers;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.cache = new LinkedHashMap<String, CachedTimeline>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTimeline> eldest) {
+                if (size() > maxUsers) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 查询缓存
+     * @param userid
+     * @return 未缓存或已过期时返回null
+     */
+    public synchronized List<WeiboTimelineEntry> get(String userid) {
+        CachedTimeline cached = cache.get(userid);
+        if (cached == null || cached.entries == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.loadTime > ttlMs) {
+            cache.remove(userid);
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<WeiboTimelineEntry>(cached.entries);
+    }
+
+    /**
+     * 开始从HBase加载，返回的token在finishLoad()时使用
+     * @param userid
+     * @return
+     */
+    public synchronized Object startLoad(String userid) {
+        CachedTimeline loading = new CachedTimeline();
+        loading.token = new Object();
+        cache.put(userid, loading);
+        return loading.token;
+    }
+
+    /**
+     * 加载完成，如果加载期间该用户的缓存没有被追加或失效，则写入缓存
+     * @param userid
+     * @param token
+     * @param entries 按发布时间降序排列
+     */
+    public synchronized void finishLoad(String userid, Object token, List<WeiboTimelineEntry> entries) {
+        CachedTimeline cached = cache.get(userid);
+        if (cached == null || cached.token != token) {
+            return;
+        }
+        List<WeiboTimelineEntry> copy = new ArrayList<WeiboTimelineEntry>(entries.subList(0, Math.min(entries.size(), maxEntries)));
+        cached.entries = copy;
+        cached.loadTime = System.currentTimeMillis();
+        cached.token = null;
+    }
+
+    /**
+     * 追加一条新推送的微博，该用户未缓存或缓存中已经有这条微博时不做任何处理
+     * @param userid
+     * @param entry
+     */
+    public synchronized void append(String userid, WeiboTimelineEntry entry) {
+        CachedTimeline cached = cache.get(userid);
+        if (cached == null) {
+            return;
+        }
+        if (cached.entries == null) {
+            // 正在加载，加载结果可能不包含这条微博，直接放弃本次加载
+            cache.remove(userid);
+            return;
+        }
+        List<WeiboTimelineEntry> entries = cached.entries;
+        // 推送在写入接收列表之后才追加到缓存，期间未命中的查询可能已经加载到这条微博
+        for (WeiboTimelineEntry cachedEntry : entries) {
+            if (Arrays.equals(cachedEntry.getRowkey(), entry.getRowkey())) {
+                return;
+            }
+        }
+        int index = 0;
+        while (index < entries.size() && entries.get(index).getId() > entry.getId()) {
+            index++;
+        }
+        entries.add(index, entry);
+        if (entries.size() > maxEntries) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    /**
+     * 使用户的缓存失效
+     * @param userid
+     */
+    public synchronized void invalidate(String userid) {
+        cache.remove(userid);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 因超过maxUsers被淘汰的次数
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * 因超过ttlMs过期的次数
+     * @return
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    private static class CachedTimeline {
+        //为null表示正在加载
+        private List<WeiboTimelineEntry> entries;
+        private long loadTime;
+        private Object token;
+    }
+}
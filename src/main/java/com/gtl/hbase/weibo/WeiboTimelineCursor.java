@@ -0,0 +1,48 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Base64;
+
+/**
+ * 用户微博列表分页的游标：上一页最后一条微博的微博ID + rowkey，编码为URL安全的Base64字符串
+ * 对调用方来说游标是不透明的，只需要原样传给下一次查询。
+ * 下一页只读取排在该微博之后(更早)的微博，顺序见WeiboTimelineMerger.NEWEST_FIRST；
+ * rowkey用于区分微博ID相同的微博(迁移的旧微博，同一毫秒的微博ID相同)。
+ */
+public class WeiboTimelineCursor {
+
+    private WeiboTimelineCursor() {
+    }
+
+    /**
+     * 生成游标
+     * @param last 当前页的最后一条微博
+     * @return
+     */
+    public static String encode(WeiboTimelineEntry last) {
+        byte[] rowkey = last.getRowkey();
+        byte[] bytes = new byte[8 + rowkey.length];
+        Bytes.putLong(bytes, 0, last.getId());
+        System.arraycopy(rowkey, 0, bytes, 8, rowkey.length);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * 解析游标
+     * @param cursor
+     * @return 游标对应的微博(只有rowkey和微博ID)，cursor为null时返回null
+     */
+    public static WeiboTimelineEntry decode(String cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+        if (bytes.length <= 8) {
+            throw new IllegalArgumentException("无效的游标：" + cursor);
+        }
+        byte[] rowkey = new byte[bytes.length - 8];
+        System.arraycopy(bytes, 8, rowkey, 0, rowkey.length);
+        return new WeiboTimelineEntry(rowkey, Bytes.toLong(bytes, 0));
+    }
+}
@@ -0,0 +1,30 @@
+package com.gtl.hbase.weibo;
+
+/**
+ * 接收列表中的一条记录：微博的rowkey以及微博ID(WeiboIdGenerator生成，按发布时间递增)
+ */
+public class WeiboTimelineEntry {
+    private byte[] rowkey;
+    private long id;
+
+    public WeiboTimelineEntry(byte[] rowkey, long id) {
+        this.rowkey = rowkey;
+        this.id = id;
+    }
+
+    public byte[] getRowkey() {
+        return rowkey;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * 发布时间
+     * @return
+     */
+    public long getTime() {
+        return WeiboIdGenerator.timeOf(id);
+    }
+}
@@ -0,0 +1,135 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * 用户微博列表的多路归并
+ * 每一路是一个已经按发布时间降序排列的列表：接收列表中一个关注用户的列(单元格按版本降序返回)，或一个大V用户的扫描结果。
+ * 各路的当前记录放在堆中，每次取出最新的一条，取满limit条即停止，不需要把读到的所有记录放在一起排序。
+ * 1、只保留游标之后(更早)的记录
+ * 2、去掉重复的rowkey(用户成为大V之前推送的微博也会被拉取到)
+ * 3、某一路读取时达到了条数上限(截断)，该路取完后停止归并：比它更早的记录还没有读取，继续归并会漏掉这一路的微博，
+ *    此时返回的条数可能少于limit，但hasMore()为true，下一页从该位置继续读取
+ */
+public class WeiboTimelineMerger {
+
+    /**
+     * 微博列表的顺序：微博ID降序，微博ID相同时rowkey升序
+     */
+    public static final Comparator<WeiboTimelineEntry> NEWEST_FIRST = new Comparator<WeiboTimelineEntry>() {
+        public int compare(WeiboTimelineEntry o1, WeiboTimelineEntry o2) {
+            int cmp = Long.compare(o2.getId(), o1.getId());
+            return cmp != 0 ? cmp : Bytes.compareTo(o1.getRowkey(), o2.getRowkey());
+        }
+    };
+
+    private WeiboTimelineEntry cursor;
+    private List<Run> runs = new ArrayList<Run>();
+    private int entriesRead = 0;
+    private boolean hasMore = false;
+
+    /**
+     * @param cursor 上一页的最后一条微博，null表示第一页
+     */
+    public WeiboTimelineMerger(WeiboTimelineEntry cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * 添加一路
+     * @param entries 按NEWEST_FIRST排列
+     * @param truncated 读取时是否达到了条数上限(更早的记录没有读取)
+     */
+    public void addRun(List<WeiboTimelineEntry> entries, boolean truncated) {
+        entriesRead += entries.size();
+        int start = 0;
+        if (cursor != null) {
+            while (start < entries.size() && NEWEST_FIRST.compare(entries.get(start), cursor) <= 0) {
+                start++;
+            }
+        }
+        if (start < entries.size()) {
+            runs.add(new Run(entries, start, truncated));
+        }
+    }
+
+    /**
+     * 读取的记录数(包括游标之前被跳过的记录)
+     * @return
+     */
+    public int getEntriesRead() {
+        return entriesRead;
+    }
+
+    /**
+     * 归并出最多limit条
+     * @param limit
+     * @return 按NEWEST_FIRST排列
+     */
+    public List<WeiboTimelineEntry> merge(int limit) {
+        List<WeiboTimelineEntry> merged = new ArrayList<WeiboTimelineEntry>(Math.min(limit, 128));
+        if (runs.isEmpty()) {
+            return merged;
+        }
+        PriorityQueue<Run> heap = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+            public int compare(Run o1, Run o2) {
+                return NEWEST_FIRST.compare(o1.head(), o2.head());
+            }
+        });
+        heap.addAll(runs);
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        while (!heap.isEmpty()) {
+            if (merged.size() >= limit) {
+                hasMore = true;
+                break;
+            }
+            Run run = heap.poll();
+            WeiboTimelineEntry entry = run.next();
+            if (seen.add(ByteBuffer.wrap(entry.getRowkey()))) {
+                merged.add(entry);
+            }
+            if (run.hasNext()) {
+                heap.add(run);
+            } else if (run.truncated) {
+                hasMore = true;
+                break;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * merge()之后调用，是否还有更早的微博
+     * @return
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    private static class Run {
+        private List<WeiboTimelineEntry> entries;
+        private int index;
+        private boolean truncated;
+
+        Run(List<WeiboTimelineEntry> entries, int index, boolean truncated) {
+            this.entries = entries;
+            this.index = index;
+            this.truncated = truncated;
+        }
+
+        WeiboTimelineEntry head() {
+            return entries.get(index);
+        }
+
+        WeiboTimelineEntry next() {
+            return entries.get(index++);
+        }
+
+        boolean hasNext() {
+            return index < entries.size();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.gtl.hbase.weibo;
+
+import java.util.List;
+
+/**
+ * 用户微博列表的一页
+ */
+public class WeiboTimelinePage {
+    private WeiboHydrator.HydrationResult result;
+    private String nextCursor;
+
+    public WeiboTimelinePage(WeiboHydrator.HydrationResult result, String nextCursor) {
+        this.result = result;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Weibo> getWeibos() {
+        return result.getWeibos();
+    }
+
+    /**
+     * 本页已不存在或加载失败的微博rowkey
+     * @return
+     */
+    public WeiboHydrator.HydrationResult getResult() {
+        return result;
+    }
+
+    /**
+     * 查询下一页时传入的游标，没有更多微博时为null
+     * @return
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,379 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重建/修复接收列表：推送中途失败(重试次数用完后放弃)或者接收列表数据丢失时，根据t_user_relations表和t_weibo表重新生成
+ * 步骤：
+ * 1、每个盐值(分区)一个任务，在线程池中并发扫描t_user_relations表的cf1(当前用户的关注用户)
+ * 2、对每个用户，从t_weibo表中读取每个关注用户最新的weibo.rebuild.posts.per.author条微博(默认20)，
+ *    大V用户跳过(查询时拉取)；每个任务缓存最近读取过的关注用户的结果，被很多人关注的用户只扫描一次
+ * 3、按模式处理：
+ *    dryrun：读取用户接收列表中最新的100条，与重新计算的结果比较，报告缺少的微博和已取消关注用户的微博，不写入
+ *    repair：同dryrun比较，只处理不一致的用户：删除已取消关注用户的微博，写入重新计算的微博
+ *    rebuild：不读取接收列表，直接写入所有用户重新计算的微博(接收列表整体丢失时使用)
+ * 4、写入攒够weibo.rebuild.batch.size条接收微博后批量写入一次，所有线程每秒最多写入weibo.rebuild.max.entries.per.second条
+ * 5、每批写入后把该盐值已经处理完的最后一个用户的rowkey记录到检查点文件，中断后再次执行从检查点之后继续，已完成的盐值跳过
+ *
+ * 写入的单元格与推送、回填写入的相同(版本为微博ID)，重复写入不会产生重复的微博，执行期间服务正常读写。
+ * 没有关注任何用户的用户不在扫描范围内；各服务进程中的用户微博列表缓存过期后可以看到修复的结果。
+ *
+ * 用法：WeiboTimelineRebuildTool zookeeper地址 dryrun|repair|rebuild [检查点文件]
+ * 命名空间、盐值个数、接收列表的存储方式从weibo.namespace、weibo.salt.buckets、weibo.inbox.layout读取
+ */
+public class WeiboTimelineRebuildTool {
+
+    public static final String DRY_RUN = "dryrun";
+    public static final String REPAIR = "repair";
+    public static final String REBUILD = "rebuild";
+
+    //比较的条数，与WeiboService中用户微博列表的条数相同
+    private static final int VIEW_SIZE = 100;
+    //每个任务缓存的关注用户的最新微博数
+    private static final int AUTHOR_CACHE_SIZE = 10000;
+    private static final String DONE = "done";
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboInboxLayout inbox;
+    private int postsPerAuthor;
+    private int threads;
+    private int batchSize;
+    private int maxEntriesPerSecond;
+    private File checkpointFile;
+    private Properties checkpoint = new Properties();
+    private Set<String> celebrities = new HashSet<String>();
+
+    private AtomicLong users = new AtomicLong();
+    private AtomicLong divergentUsers = new AtomicLong();
+    private AtomicLong writtenEntries = new AtomicLong();
+
+    /**
+     * @param dao
+     * @param conf 命名空间、盐值个数、接收列表的存储方式以及weibo.rebuild.*参数，key见WeiboConstants
+     * @param checkpointFile 检查点文件，null表示不记录检查点
+     * @throws IOException 读取检查点文件失败
+     */
+    public WeiboTimelineRebuildTool(WeiboDao dao, Configuration conf, File checkpointFile) throws IOException {
+        this.dao = dao;
+        this.tables = WeiboTables.create(conf);
+        this.inbox = WeiboInboxLayouts.create(conf, dao, tables);
+        this.postsPerAuthor = conf.getInt(WeiboConstants.REBUILD_POSTS_PER_AUTHOR_KEY, WeiboConstants.REBUILD_POSTS_PER_AUTHOR_DEFAULT);
+        this.threads = conf.getInt(WeiboConstants.REBUILD_THREADS_KEY, WeiboConstants.REBUILD_THREADS_DEFAULT);
+        this.batchSize = conf.getInt(WeiboConstants.REBUILD_BATCH_SIZE_KEY, WeiboConstants.REBUILD_BATCH_SIZE_DEFAULT);
+        this.maxEntriesPerSecond = conf.getInt(WeiboConstants.REBUILD_MAX_ENTRIES_PER_SECOND_KEY,
+                WeiboConstants.REBUILD_MAX_ENTRIES_PER_SECOND_DEFAULT);
+        this.checkpointFile = checkpointFile;
+        if (checkpointFile != null && checkpointFile.exists()) {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public long getUsers() {
+        return users.get();
+    }
+
+    /**
+     * 接收列表与重新计算的结果不一致的用户数
+     * @return
+     */
+    public long getDivergentUsers() {
+        return divergentUsers.get();
+    }
+
+    /**
+     * 写入的接收微博条数
+     * @return
+     */
+    public long getWrittenEntries() {
+        return writtenEntries.get();
+    }
+
+    /**
+     * 执行重建/修复
+     * @param mode dryrun、repair 或 rebuild
+     * @return 处理的用户数
+     * @throws IOException 某个盐值处理失败，已完成的部分记录在检查点中
+     */
+    public long run(final String mode) throws IOException {
+        if (!DRY_RUN.equals(mode) && !REPAIR.equals(mode) && !REBUILD.equals(mode)) {
+            throw new IllegalArgumentException("未知的模式：" + mode + "，可选" + DRY_RUN + "、" + REPAIR + "、" + REBUILD);
+        }
+        long start = System.currentTimeMillis();
+        loadCelebrities();
+        final int buckets = tables.getCodec().getSaltBuckets();
+        final int workers = Math.max(1, Math.min(threads, buckets));
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int index = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "weibo-timeline-rebuild-" + (index++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // 1、每个盐值一个任务
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int salt = 0; salt < buckets; salt++) {
+                final int bucket = salt;
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return new Worker(bucket, buckets, mode, workers).call();
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("重建接收列表被中断", e);
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            System.out.println("接收列表" + inbox.getTable() + "(" + mode + ")：" + users.get() + "个用户，不一致" + divergentUsers.get()
+                    + "个，写入" + writtenEntries.get() + "条，耗时" + (System.currentTimeMillis() - start) + "ms");
+            if (failure != null) {
+                throw failure;
+            }
+            return users.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void loadCelebrities() throws IOException {
+        Get get = new Get(WeiboConstants.CELEBRITY_ROW);
+        get.addFamily(WeiboConstants.CF1);
+        Result result = dao.getOneRowData(tables.userRelationsTable(), get);
+        Cell[] cells = result.rawCells();
+        if (cells != null) {
+            for (Cell cell : cells) {
+                celebrities.add(Bytes.toString(CellUtil.cloneQualifier(cell)));
+            }
+        }
+    }
+
+    private synchronized String getCheckpoint(int salt) {
+        return checkpoint.getProperty("salt." + salt);
+    }
+
+    /**
+     * 5、记录检查点：先写临时文件再替换，中途退出不会留下不完整的检查点文件
+     */
+    private synchronized void saveCheckpoint(int salt, String value) throws IOException {
+        checkpoint.setProperty("salt." + salt, value);
+        if (checkpointFile == null) {
+            return;
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            checkpoint.store(out, "WeiboTimelineRebuildTool " + inbox.getTable());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpointFile) && !(checkpointFile.delete() && tmp.renameTo(checkpointFile))) {
+            throw new IOException("写入检查点文件失败：" + checkpointFile);
+        }
+    }
+
+    /**
+     * 处理一个盐值范围内的用户
+     */
+    private class Worker {
+        private int salt;
+        private int buckets;
+        private String mode;
+        private long entriesPerSecond;
+        private Map<String, List<WeiboTimelineEntry>> authorCache = new LinkedHashMap<String, List<WeiboTimelineEntry>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, List<WeiboTimelineEntry>> eldest) {
+                return size() > AUTHOR_CACHE_SIZE;
+            }
+        };
+        private List<Put> puts = new ArrayList<Put>();
+        private int pending = 0;
+        private long written = 0;
+        private long startNanos = System.nanoTime();
+
+        Worker(int salt, int buckets, String mode, int workers) {
+            this.salt = salt;
+            this.buckets = buckets;
+            this.mode = mode;
+            this.entriesPerSecond = maxEntriesPerSecond <= 0 ? 0 : Math.max(1, maxEntriesPerSecond / workers);
+        }
+
+        long call() throws IOException {
+            String resume = getCheckpoint(salt);
+            if (DONE.equals(resume)) {
+                return 0;
+            }
+            byte[] startRow = resume == null ? new byte[]{(byte) salt} : Bytes.add(Bytes.toBytesBinary(resume), new byte[]{0});
+            byte[] stopRow = salt + 1 < buckets ? new byte[]{(byte) (salt + 1)} : new byte[0];
+            long processed = 0;
+            int sinceCheckpoint = 0;
+            byte[] lastRow = null;
+            WeiboResultScanner resultScanner = null;
+            try {
+                Scan scan = new Scan(startRow, stopRow);
+                scan.addFamily(WeiboConstants.CF1);
+                scan.setCaching(100);
+                resultScanner = dao.getDatas(tables.userRelationsTable(), scan);
+                for (Result result : resultScanner) {
+                    byte[] row = result.getRow();
+                    if (Bytes.equals(row, WeiboConstants.CELEBRITY_ROW) || row.length < 2 || 2 + (row[1] & 0xFF) != row.length) {
+                        continue;
+                    }
+                    process(WeiboRowKeyCodec.useridOf(row), result);
+                    processed++;
+                    users.incrementAndGet();
+                    lastRow = row;
+                    sinceCheckpoint++;
+                    if (pending >= batchSize || sinceCheckpoint >= batchSize) {
+                        flush();
+                        saveCheckpoint(salt, Bytes.toStringBinary(lastRow));
+                        sinceCheckpoint = 0;
+                    }
+                }
+                flush();
+                saveCheckpoint(salt, DONE);
+            } finally {
+                if (resultScanner != null) {
+                    resultScanner.close();
+                }
+            }
+            return processed;
+        }
+
+        /**
+         * 2、3、处理一个用户
+         */
+        private void process(String userid, Result relations) throws IOException {
+            Set<String> followees = new HashSet<String>();
+            WeiboTimelineMerger expectedMerger = new WeiboTimelineMerger(null);
+            List<WeiboTimelineEntry> expected = new ArrayList<WeiboTimelineEntry>();
+            for (Cell cell : relations.rawCells()) {
+                String focusUserId = Bytes.toString(CellUtil.cloneQualifier(cell));
+                followees.add(focusUserId);
+                if (celebrities.contains(focusUserId)) {
+                    continue;
+                }
+                List<WeiboTimelineEntry> latest = latest(focusUserId);
+                expected.addAll(latest);
+                expectedMerger.addRun(latest, latest.size() >= postsPerAuthor);
+            }
+
+            if (!REBUILD.equals(mode)) {
+                // 比较接收列表中最新的VIEW_SIZE条
+                WeiboTimelineMerger actualMerger = new WeiboTimelineMerger(null);
+                inbox.read(userid, null, VIEW_SIZE, actualMerger);
+                List<WeiboTimelineEntry> actual = actualMerger.merge(VIEW_SIZE);
+                Set<ByteBuffer> actualRowKeys = new HashSet<ByteBuffer>();
+                Set<String> stale = new LinkedHashSet<String>();
+                for (WeiboTimelineEntry entry : actual) {
+                    actualRowKeys.add(ByteBuffer.wrap(entry.getRowkey()));
+                    String author = WeiboRowKeyCodec.useridOf(entry.getRowkey());
+                    if (!followees.contains(author)) {
+                        stale.add(author);
+                    }
+                }
+                // 接收列表已满时，比其中最早的一条更早的微博本来就看不到，不算缺少
+                long oldest = actual.size() >= VIEW_SIZE ? actual.get(actual.size() - 1).getId() : Long.MIN_VALUE;
+                int missing = 0;
+                for (WeiboTimelineEntry entry : expectedMerger.merge(VIEW_SIZE)) {
+                    if (entry.getId() >= oldest && !actualRowKeys.contains(ByteBuffer.wrap(entry.getRowkey()))) {
+                        missing++;
+                    }
+                }
+                if (missing == 0 && stale.isEmpty()) {
+                    return;
+                }
+                divergentUsers.incrementAndGet();
+                System.out.println("用户" + userid + "的接收列表不一致：缺少" + missing + "条微博，包含" + stale.size() + "个未关注用户的微博" + stale);
+                if (DRY_RUN.equals(mode)) {
+                    return;
+                }
+                if (!stale.isEmpty()) {
+                    inbox.remove(userid, stale);
+                }
+            }
+            if (!expected.isEmpty()) {
+                puts.addAll(inbox.toPuts(userid, expected));
+                pending += expected.size();
+            }
+        }
+
+        /**
+         * 关注用户最新的postsPerAuthor条微博
+         */
+        private List<WeiboTimelineEntry> latest(String focusUserId) throws IOException {
+            List<WeiboTimelineEntry> latest = authorCache.get(focusUserId);
+            if (latest == null) {
+                latest = WeiboFocusBackfill.scanLatest(dao, tables, focusUserId, postsPerAuthor);
+                authorCache.put(focusUserId, latest);
+            }
+            return latest;
+        }
+
+        /**
+         * 4、批量写入，按每秒最多写入的条数限速
+         */
+        private void flush() throws IOException {
+            if (puts.isEmpty()) {
+                return;
+            }
+            dao.putDatas(inbox.getTable(), puts);
+            written += pending;
+            writtenEntries.addAndGet(pending);
+            puts = new ArrayList<Put>();
+            pending = 0;
+            if (entriesPerSecond > 0) {
+                long aheadMs = written * 1000L / entriesPerSecond - (System.nanoTime() - startNanos) / 1000000L;
+                if (aheadMs > 0) {
+                    try {
+                        Thread.sleep(aheadMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("重建接收列表被中断");
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(DRY_RUN.equals(args[1]) || REPAIR.equals(args[1]) || REBUILD.equals(args[1]))) {
+            System.out.println("用法：WeiboTimelineRebuildTool zookeeper地址 dryrun|repair|rebuild [检查点文件]");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboTimelineRebuildTool tool = new WeiboTimelineRebuildTool(dao, conf, args.length > 2 ? new File(args[2]) : null);
+            tool.run(args[1]);
+        } finally {
+            dao.close();
+        }
+    }
+}
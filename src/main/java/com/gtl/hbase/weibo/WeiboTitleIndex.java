@@ -0,0 +1,165 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 微博标题的二级索引：t_weibo_title_index表，发布微博时由WeiboService写入，WeiboTitleIndexTool可以重建
+ * 每条微博写入两行，列cf1:title保存规范化后的标题：
+ * 1、按标题查询：盐值(1字节) + 0x00 + 标题哈希(8字节) + (Long.MAX_VALUE - 微博ID)(8字节) + t_weibo表的rowkey
+ * 2、按标题和用户查询：盐值(1字节) + 0x01 + 标题哈希(8字节) + userid长度(1字节) + userid + (Long.MAX_VALUE - 微博ID)(8字节)
+ *
+ * 标题先规范化(NFKC、去掉首尾空白、连续空白合并为一个空格、转小写)，标题哈希为规范化标题MD5的前8字节；
+ * 盐值由规范化标题计算，同一个标题的索引行在同一个分区内按发布时间降序连续存放，
+ * 一次查询就是一次有界的范围扫描，PageFilter在服务端限制行数，不再像SingleColumnValueFilter那样读取范围内的每一条微博。
+ * 哈希冲突时不同标题的索引行会交错在一起，扫描时比较cf1:title跳过。
+ */
+public class WeiboTitleIndex {
+
+    private static final byte TYPE_TITLE = 0;
+    private static final byte TYPE_TITLE_USER = 1;
+    private static final int HASH_LENGTH = 8;
+    //单次扫描的caching上限
+    private static final int MAX_CACHING = 1000;
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+
+    public WeiboTitleIndex(WeiboDao dao, WeiboTables tables) {
+        this.dao = dao;
+        this.tables = tables;
+    }
+
+    public TableName getTable() {
+        return tables.titleIndexTable();
+    }
+
+    /**
+     * 生成一条微博的两行索引
+     * @param userid 发布微博的用户
+     * @param title
+     * @param id 微博ID
+     * @return
+     */
+    public List<Put> toPuts(String userid, String title, long id) {
+        String normalized = normalize(title);
+        byte[] value = Bytes.toBytes(normalized);
+        long time = WeiboIdGenerator.timeOf(id);
+        List<Put> puts = new ArrayList<Put>();
+
+        Put put_title = new Put(Bytes.add(prefix(normalized, TYPE_TITLE, null), Bytes.toBytes(Long.MAX_VALUE - id),
+                tables.weiboRowKey(userid, id)), time);
+        put_title.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE, value);
+        puts.add(put_title);
+
+        Put put_user = new Put(Bytes.add(prefix(normalized, TYPE_TITLE_USER, userid), Bytes.toBytes(Long.MAX_VALUE - id)), time);
+        put_user.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE, value);
+        puts.add(put_user);
+        return puts;
+    }
+
+    /**
+     * 查询标题相同的微博，按发布时间降序
+     * @param title
+     * @param userid 发布微博的用户，null表示所有用户
+     * @param startTime 起始时间(毫秒，包含)
+     * @param endTime 结束时间(毫秒，不包含)
+     * @param limit 最多返回的条数
+     * @return t_weibo表的rowkey
+     * @throws IOException
+     */
+    public List<byte[]> find(String title, String userid, long startTime, long endTime, int limit) throws IOException {
+        List<byte[]> rowkeys = new ArrayList<byte[]>();
+        if (limit <= 0 || endTime <= startTime) {
+            return rowkeys;
+        }
+        String normalized = normalize(title);
+        byte[] value = Bytes.toBytes(normalized);
+        byte[] prefix = prefix(normalized, userid == null ? TYPE_TITLE : TYPE_TITLE_USER, userid);
+
+        // 微博ID范围[minId, maxId]，倒序后最新的在前
+        long minId = WeiboIdGenerator.minIdAt(startTime);
+        long maxId = endTime - 1 >= WeiboIdGenerator.timeOf(Long.MAX_VALUE) ? Long.MAX_VALUE : WeiboIdGenerator.maxIdAt(endTime - 1);
+        byte[] startRow = Bytes.add(prefix, Bytes.toBytes(Long.MAX_VALUE - maxId));
+        //倒序的微博ID第一个字节不超过0x7F，minId为0时用 前缀 + 0x80 作为结束
+        byte[] stopRow = minId == 0 ? Bytes.add(prefix, new byte[]{(byte) 0x80})
+                : Bytes.add(prefix, Bytes.toBytes(Long.MAX_VALUE - (minId - 1)));
+
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE);
+        scan.setFilter(new PageFilter(limit));
+        scan.setCaching(Math.min(limit, MAX_CACHING));
+        WeiboResultScanner resultScanner = null;
+        try {
+            resultScanner = dao.getDatas(getTable(), scan);
+            for (Result result : resultScanner) {
+                // 跳过哈希冲突的其他标题
+                if (!Bytes.equals(result.getValue(WeiboConstants.CF1, WeiboConstants.TITLE), value)) {
+                    continue;
+                }
+                rowkeys.add(weiboRowKeyOf(result.getRow(), prefix.length, userid));
+                if (rowkeys.size() >= limit) {
+                    break;
+                }
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        return rowkeys;
+    }
+
+    /**
+     * 标题规范化：NFKC(全角转半角等)、去掉首尾空白、连续空白合并为一个空格、转小写
+     * @param title
+     * @return
+     */
+    public static String normalize(String title) {
+        if (title == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(title, Normalizer.Form.NFKC).trim().replaceAll("\\s+", " ");
+        return normalized.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 盐值 + 类型 + 标题哈希 [+ userid长度 + userid]
+     */
+    private byte[] prefix(String normalized, byte type, String userid) {
+        byte[] salt = new byte[]{(byte) tables.getCodec().salt(normalized), type};
+        byte[] prefix = Bytes.add(salt, hash(normalized));
+        if (type == TYPE_TITLE_USER) {
+            // userRowKey = 盐值 + userid长度 + userid，去掉盐值
+            byte[] user = tables.userRowKey(userid);
+            prefix = Bytes.add(prefix, Bytes.tail(user, user.length - 1));
+        }
+        return prefix;
+    }
+
+    private byte[] weiboRowKeyOf(byte[] indexRow, int prefixLength, String userid) {
+        if (userid == null) {
+            return Bytes.tail(indexRow, indexRow.length - prefixLength - WeiboRowKeyCodec.ID_LENGTH);
+        }
+        return tables.weiboRowKey(userid, Long.MAX_VALUE - Bytes.toLong(indexRow, prefixLength));
+    }
+
+    private static byte[] hash(String normalized) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(Bytes.toBytes(normalized));
+            return Bytes.head(digest, HASH_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
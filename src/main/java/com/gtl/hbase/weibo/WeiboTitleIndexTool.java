@@ -0,0 +1,112 @@
+package com.gtl.hbase.weibo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 重建微博标题索引(t_weibo_title_index表)，重建期间服务正常读写
+ * 步骤：
+ * 1、创建t_weibo_title_index表(已经存在则跳过)，按盐值个数预分区
+ * 2、扫描t_weibo表的title列，用户和微博ID从rowkey中解析，按WeiboTitleIndex生成索引行批量写入
+ * 3、可以只重建某个时间之后发布的微博(例如标题索引写入失败之后)
+ *
+ * 索引行由标题、用户、微博ID决定，重复写入结果相同；已经不存在的微博的索引行不会删除，查询时会被跳过。
+ * 在已有数据上上线标题索引、以及WeiboResaltTool切换命名空间和盐值个数之后，都需要执行一次全量重建。
+ *
+ * 用法：WeiboTitleIndexTool zookeeper地址 [起始时间戳]
+ * 命名空间和盐值个数从weibo.namespace、weibo.salt.buckets读取(默认weibo、9)
+ */
+public class WeiboTitleIndexTool {
+
+    private WeiboDao dao;
+    private WeiboTables tables;
+    private WeiboTitleIndex titleIndex;
+    private int batchSize;
+
+    public WeiboTitleIndexTool(WeiboDao dao, WeiboTables tables, int batchSize) {
+        this.dao = dao;
+        this.tables = tables;
+        this.titleIndex = new WeiboTitleIndex(dao, tables);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 1、创建t_weibo_title_index表
+     * @throws IOException
+     */
+    public void createIndexTable() throws IOException {
+        TableName table = tables.titleIndexTable();
+        if (dao.tableExists(table.getNamespace(), table.getQualifier())) {
+            System.out.println("表" + table + "已经存在");
+            return;
+        }
+        dao.createTable(table.getNamespace(), table.getQualifier(), new byte[][]{WeiboConstants.CF1},
+                new int[]{1}, tables.getCodec().splitKeys());
+        System.out.println("表" + table + "创建成功");
+    }
+
+    /**
+     * 2、3、重建索引
+     * @param minTimestamp 只重建该时间之后发布的微博，0表示全量重建
+     * @return 重建索引的微博条数
+     * @throws IOException
+     */
+    public long rebuild(long minTimestamp) throws IOException {
+        long weibos = 0;
+        List<Put> puts = new ArrayList<Put>();
+        WeiboResultScanner resultScanner = null;
+        try {
+            Scan scan = new Scan();
+            //两种存储格式的标题都要读取，见WeiboPostCodec
+            scan.addColumn(WeiboConstants.CF1, WeiboConstants.POST);
+            scan.addColumn(WeiboConstants.CF1, WeiboConstants.TITLE);
+            scan.setCaching(batchSize);
+            if (minTimestamp > 0) {
+                scan.setTimeRange(minTimestamp, Long.MAX_VALUE);
+            }
+            resultScanner = dao.getDatas(tables.weiboTable(), scan);
+            for (Result result : resultScanner) {
+                byte[] row = result.getRow();
+                String title = WeiboPostCodec.toWeibo(result).getTitle();
+                puts.addAll(titleIndex.toPuts(WeiboRowKeyCodec.useridOf(row), title, WeiboRowKeyCodec.idOf(row)));
+                weibos++;
+                if (puts.size() >= batchSize) {
+                    dao.putDatas(titleIndex.getTable(), puts);
+                    puts = new ArrayList<Put>();
+                }
+            }
+            if (!puts.isEmpty()) {
+                dao.putDatas(titleIndex.getTable(), puts);
+            }
+        } finally {
+            if (resultScanner != null) {
+                resultScanner.close();
+            }
+        }
+        System.out.println("标题索引" + titleIndex.getTable() + "重建完成：" + weibos + "条微博");
+        return weibos;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("用法：WeiboTitleIndexTool zookeeper地址 [起始时间戳]");
+            return;
+        }
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", args[0]);
+        WeiboDao dao = new WeiboHbaseDaoImpl(conf);
+        try {
+            WeiboTitleIndexTool tool = new WeiboTitleIndexTool(dao, WeiboTables.create(conf), 500);
+            tool.createIndexTable();
+            tool.rebuild(args.length > 1 ? Long.parseLong(args[1]) : 0);
+        } finally {
+            dao.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.gtl.hbase.weibo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * userid与连续整数ID的双向映射，整数ID从0开始按出现顺序分配，用作WeiboBitmap中的元素
+ * 分配后不再回收，同一个进程中同一个userid的整数ID不变(WeiboFollowGraph重新加载时也不变)
+ * 非线程安全，由WeiboFollowGraph加锁访问。
+ */
+public class WeiboUserDictionary {
+
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] userids = new String[1024];
+
+    /**
+     * 获取userid的整数ID，不存在则分配一个
+     * @param userid
+     * @return
+     */
+    public int id(String userid) {
+        Integer id = ids.get(userid);
+        if (id != null) {
+            return id;
+        }
+        int next = ids.size();
+        if (next == userids.length) {
+            userids = Arrays.copyOf(userids, next * 2);
+        }
+        userids[next] = userid;
+        ids.put(userid, next);
+        return next;
+    }
+
+    /**
+     * 获取userid的整数ID
+     * @param userid
+     * @return 不存在时返回-1
+     */
+    public int idOf(String userid) {
+        Integer id = ids.get(userid);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * 整数ID对应的userid
+     * @param id
+     * @return
+     */
+    public String userid(int id) {
+        return userids[id];
+    }
+
+    /**
+     * 已经分配的整数ID个数
+     * @return
+     */
+    public int size() {
+        return ids.size();
+    }
+}